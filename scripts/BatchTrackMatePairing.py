@@ -5,6 +5,8 @@ from ij.plugin.frame import RoiManager
 
 from fiji.plugin.trackmate.pairing.scripting import PairTrackMate
 from fiji.plugin.trackmate.pairing.method import AverageTrackPositionPairing
+from fiji.plugin.trackmate.pairing.io import ReadFilter
+from fiji.plugin.trackmate.features import FeatureFilter
 from fiji.plugin.trackmate import Settings
 from fiji.plugin.trackmate.detection import HessianDetectorFactory
 from fiji.plugin.trackmate.tracking.sparselap import SimpleSparseLAPTrackerFactory
@@ -51,6 +53,26 @@ tracker_settings_ch2['MAX_FRAME_GAP'] = 2
 method = AverageTrackPositionPairing()
 max_pair_distance = 1. #  m
 
+# Options of reading and writing the TrackMate files.
+options = PairTrackMate.Options.build()
+
+# Optional filter applied while reading the TrackMate files for pairing.
+# Excluded spots and tracks are not loaded nor paired.
+# options.filter(ReadFilter.build() \
+# 	.trackFilter(FeatureFilter('NUMBER_SPOTS', 20, True)) \
+# 	.frames(0, 99) \
+# 	.get())
+
+# Uncomment to save the TrackMate files gzip-compressed (.xml.gz). Compression
+# runs in the background while the next image is processed.
+# options.compressOutput(True)
+
+# Uncomment to cache the content of the TrackMate files in binary files next
+# to them, so that pairing them again does not parse them.
+# options.useSidecars(True)
+
+options = options.get()
+
 # Loop over each TIF files.
 for im_file in os.listdir(source_folder):
 	if not im_file.endswith('.tif'):
@@ -98,7 +120,7 @@ for im_file in os.listdir(source_folder):
 	
 	# Perform tracking and pairing.
 	print(' - Executing tracking and pairing.')
-	PairTrackMate.process(imp, settings_ch1, settings_ch2, method, max_pair_distance, trackmate_sub_folder)
+	PairTrackMate.process(imp, settings_ch1, settings_ch2, method, max_pair_distance, trackmate_sub_folder, options)
 	print(' - Done.')
 	
 	# Force closing the image.
@@ -106,4 +128,7 @@ for im_file in os.listdir(source_folder):
 	imp.changes = false
 	imp.close()
 
+# Wait for the TrackMate files still being compressed, if any.
+PairTrackMate.awaitCompressions()
+
 print('\nFinished batch pairing in folder %s' % source_folder)
@@ -21,25 +21,26 @@
  */
 package fiji.plugin.trackmate.pairing;
 
-import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_ELEMENT_KEY;
-import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FILENAME_ATTRIBUTE_NAME;
-import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FOLDER_ATTRIBUTE_NAME;
-import static fiji.plugin.trackmate.io.TmXmlKeys.SETTINGS_ELEMENT_KEY;
-
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Set;
 
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.input.SAXBuilder;
-
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.io.TmXmlReader;
 import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.io.ReadFilter;
+import fiji.plugin.trackmate.pairing.io.TmXmlSidecar;
+import fiji.plugin.trackmate.pairing.io.TmXmlStreamReader;
+import fiji.plugin.trackmate.pairing.io.TmXmlStreamReader.ImageSettings;
+import fiji.plugin.trackmate.pairing.io.TrackMateFiles;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
 import net.imglib2.algorithm.Algorithm;
 
 public abstract class AbstractPairing implements Algorithm
@@ -51,6 +52,14 @@ public abstract class AbstractPairing implements Algorithm
 
 	protected String errorMessage;
 
+	protected ReadFilter filter = ReadFilter.NONE;
+
+	protected boolean useSidecars = false;
+
+	protected FrameSampling frameSampling = FrameSampling.ALL;
+
+	protected double zScale = 1.;
+
 	public AbstractPairing( final String xml1, final String xml2 )
 	{
 		this.xml1 = xml1;
@@ -72,6 +81,12 @@ public abstract class AbstractPairing implements Algorithm
 			return false;
 		}
 
+		if ( !( zScale > 0. ) || Double.isInfinite( zScale ) )
+		{
+			errorMessage = "Z scale is not strictly positive and finite: " + zScale;
+			return false;
+		}
+
 		// File exist and can be read.
 		final File file1 = new File( xml1 );
 		final File file2 = new File( xml2 );
@@ -86,27 +101,87 @@ public abstract class AbstractPairing implements Algorithm
 			return false;
 		}
 
-		// Files are proper XML files.
-		final TmXmlReader reader1 = new TmXmlReader( file1 );
-		final TmXmlReader reader2 = new TmXmlReader( file2 );
-		if ( !reader1.isReadingOk() )
+		// Files are TrackMate files. They are only parsed when processed.
+		final String error1 = TmXmlStreamReader.checkFile( file1 );
+		if ( error1 != null )
 		{
-			errorMessage = reader1.getErrorMessage();
+			errorMessage = error1;
 			return false;
 		}
-		if ( !reader2.isReadingOk() )
+		final String error2 = TmXmlStreamReader.checkFile( file2 );
+		if ( error2 != null )
 		{
-			errorMessage = reader2.getErrorMessage();
+			errorMessage = error2;
 			return false;
 		}
 
 		return true;
 	}
 
+	/**
+	 * Sets the filter applied to the spots and tracks of both files when they
+	 * are read. Filters can only be used with pairing methods that do not
+	 * need the full models.
+	 * 
+	 * @param filter
+	 *            the filter, or <code>null</code> to read everything.
+	 */
+	public void setFilter( final ReadFilter filter )
+	{
+		this.filter = ( filter == null ) ? ReadFilter.NONE : filter;
+	}
+
+	/**
+	 * Sets whether the content of the TrackMate files is cached in binary
+	 * sidecar files next to them. When <code>true</code>, a sidecar is
+	 * written after a file is parsed, and later reads of the same unchanged
+	 * file with the same filter load the sidecar instead of parsing the file.
+	 * Sidecars are not used with pairing methods that need the full models.
+	 * 
+	 * @param useSidecars
+	 *            whether to read and write sidecar files.
+	 * @see TmXmlSidecar
+	 */
+	public void setUseSidecars( final boolean useSidecars )
+	{
+		this.useSidecars = useSidecars;
+	}
+
+	/**
+	 * Sets the factor by which the Z coordinates are multiplied before
+	 * computing distances, for images whose Z calibration is not correct. The
+	 * default is 1.
+	 * 
+	 * @param zScale
+	 *            the Z scale, strictly positive.
+	 */
+	public void setZScale( final double zScale )
+	{
+		this.zScale = zScale;
+	}
+
+	public double getZScale()
+	{
+		return zScale;
+	}
+
+	/**
+	 * Sets the frames used to score track pairs. Sampling a subset of the
+	 * frames gives an approximate result faster, for interactive
+	 * exploration.
+	 * 
+	 * @param frameSampling
+	 *            the frame sampling, or <code>null</code> to use all frames.
+	 * @see PairingErrorEstimate
+	 */
+	public void setFrameSampling( final FrameSampling frameSampling )
+	{
+		this.frameSampling = ( frameSampling == null ) ? FrameSampling.ALL : frameSampling;
+	}
+
 	protected Model readModel( final String path )
 	{
-		final File file = new File( path );
-		final TmXmlReader reader = new TmXmlReader( file );
+		final TmXmlReader reader = TrackMateFiles.reader( new File( path ) );
 		final Model model = reader.getModel();
 		if ( !reader.isReadingOk() )
 		{
@@ -116,53 +191,189 @@ public abstract class AbstractPairing implements Algorithm
 		return model;
 	}
 
-	protected Settings readSettings( final String path )
+	/**
+	 * Reads the two TrackMate files and returns what is needed to pair them.
+	 * <p>
+	 * If the models are not needed, the files are read with a
+	 * {@link TmXmlStreamReader}, that only keeps the visible tracks and the
+	 * spot features exported with the pairing results. Otherwise the full
+	 * models are read with {@link TmXmlReader}, and no filter can be applied.
+	 * 
+	 * @param needsModels
+	 *            whether the pairing method needs the models.
+	 * @return the content of the two files, or <code>null</code> if one of
+	 *         them cannot be read.
+	 */
+	protected Input readInput( final boolean needsModels )
+	{
+		return readInput( needsModels, 1 );
+	}
+
+	/**
+	 * Reads the two TrackMate files and returns what is needed to pair them.
+	 * Large files that do not need the models are parsed on several threads.
+	 * 
+	 * @param needsModels
+	 *            whether the pairing method needs the models.
+	 * @param numThreads
+	 *            the number of threads to use to parse each file.
+	 * @return the content of the two files, or <code>null</code> if one of
+	 *         them cannot be read.
+	 * @see TmXmlStreamReader#TmXmlStreamReader(File, ReadFilter, int)
+	 */
+	protected Input readInput( final boolean needsModels, final int numThreads )
+	{
+		if ( needsModels )
+		{
+			if ( !filter.isEmpty() )
+			{
+				errorMessage = "Filters cannot be used with a pairing method that needs the full models.";
+				return null;
+			}
+			final Model model1 = readModel( xml1 );
+			if ( model1 == null )
+				return null;
+			final Model model2 = readModel( xml2 );
+			if ( model2 == null )
+				return null;
+			final ImageSettings settings1 = readImageSettings( xml1 );
+			final ImageSettings settings2 = readImageSettings( xml2 );
+			return new Input( model1, model2, null, null, model1.getSpaceUnits(),
+					settings1.imagePath, settings1.targetChannel, settings2.targetChannel, zScale );
+		}
+
+		final TmXmlSidecar content1 = readContent( xml1, numThreads );
+		if ( content1 == null )
+			return null;
+		final TmXmlSidecar content2 = readContent( xml2, numThreads );
+		if ( content2 == null )
+			return null;
+		return new Input( null, null, content1.getTracks(), content2.getTracks(), content1.getSpaceUnits(),
+				content1.getImagePath(), content1.getTargetChannel(), content2.getTargetChannel(), zScale );
+	}
+
+	/**
+	 * Reads what pairing needs from the specified TrackMate file, from its
+	 * sidecar if sidecars are used and it is up to date. Otherwise the file is
+	 * parsed, and its sidecar is written if sidecars are used. Failing to
+	 * write the sidecar is not an error.
+	 */
+	private TmXmlSidecar readContent( final String path, final int numThreads )
 	{
 		final File file = new File( path );
-		final TmXmlReader reader = new TmXmlReader( file );
+		if ( useSidecars )
+		{
+			final TmXmlSidecar cached = TmXmlSidecar.load( file, filter );
+			if ( cached != null )
+				return cached;
+		}
+
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file, filter, numThreads );
+		if ( !reader.isReadingOk() )
+		{
+			errorMessage = reader.getErrorMessage();
+			return null;
+		}
+		final TmXmlSidecar content = TmXmlSidecar.of( reader );
+		if ( useSidecars )
+			content.write( file, filter );
+		return content;
+	}
+
+	protected Settings readSettings( final String path )
+	{
+		final TmXmlReader reader = TrackMateFiles.reader( new File( path ) );
 		final Settings settings = reader.readSettings( null );
 		return settings;
 	}
 
 	public static final Collection< SpotPair > commonSpots( final Set< Spot > track1, final Set< Spot > track2, final double maxDist )
+	{
+		return commonSpots( SpotCoordinates.of( track1 ), SpotCoordinates.byFrame( track2 ), maxDist );
+	}
+
+	/**
+	 * Returns the spots of the first track that have a spot of the second
+	 * track in the same frame and closer than the specified distance, without
+	 * Z scaling.
+	 *
+	 * @see #commonSpots(SpotCoordinates, SpotCoordinates, double, double)
+	 */
+	public static final Collection< SpotPair > commonSpots( final SpotCoordinates track1, final SpotCoordinates track2, final double maxDist )
+	{
+		return commonSpots( track1, track2, maxDist, 1. );
+	}
+
+	/**
+	 * Returns the spots of the first track that have a spot of the second
+	 * track in the same frame and closer than the specified distance. For each
+	 * spot of the first track, the first spot of the second track satisfying
+	 * these conditions is taken.
+	 *
+	 * @param track1
+	 *            the coordinates of the first track.
+	 * @param track2
+	 *            the coordinates of the second track. Must be sorted by frame.
+	 * @param maxDist
+	 *            the max distance between paired spots.
+	 * @param zScale
+	 *            the factor by which the Z coordinates are multiplied.
+	 * @return a new collection of spot pairs.
+	 */
+	public static final Collection< SpotPair > commonSpots( final SpotCoordinates track1, final SpotCoordinates track2, final double maxDist, final double zScale )
 	{
 		final Collection< SpotPair > commons = new ArrayList<>();
-		for ( final Spot s1 : track1 )
+		final double maxSqDist = maxDist * maxDist;
+		final double[] buffer = new double[ track2.size() ];
+		for ( int i = 0; i < track1.size(); i++ )
 		{
-			for ( final Spot s2 : track2 )
-			{
-				if ( s1.getFeature( Spot.FRAME ).intValue() == s2.getFeature( Spot.FRAME ).intValue() )
-				{
-					final double d2 = s1.squareDistanceTo( s2 );
-					if ( d2 < maxDist * maxDist )
-					{
-						commons.add( new SpotPair( s1, s2 ) );
-						break;
-					}
-				}
-			}
+			final int frame = track1.frames[ i ];
+			final int start = track2.frameStart( frame );
+			final int end = track2.frameEnd( frame );
+			if ( start == end )
+				continue;
+
+			DistanceKernels.squareDistances(
+					track1.xs[ i ], track1.ys[ i ], track1.zs[ i ],
+					track2.xs, track2.ys, track2.zs,
+					start, end, zScale, buffer );
+			final int j = DistanceKernels.firstBelow( buffer, end - start, maxSqDist );
+			if ( j >= 0 )
+				commons.add( new SpotPair( track1.spots[ i ], track2.spots[ start + j ], zScale ) );
 		}
 		return commons;
 	}
 
 	protected String readImagePath( final String path )
 	{
-		final SAXBuilder sb = new SAXBuilder();
-		try
-		{
-			final Document document = sb.build( new File( path ) );
-			final Element root = document.getRootElement();
-			final Element settingsElement = root.getChild( SETTINGS_ELEMENT_KEY );
-			if ( null == settingsElement )
-				return null;
-			final Element imageInfoElement = settingsElement.getChild( IMAGE_ELEMENT_KEY );
-			final String filename = imageInfoElement.getAttributeValue( IMAGE_FILENAME_ATTRIBUTE_NAME );
-			final String folder = imageInfoElement.getAttributeValue( IMAGE_FOLDER_ATTRIBUTE_NAME );
-			return folder + filename;
-		}
-		catch ( final Exception e )
-		{}
-		return null;
+		return imagePath( path );
+	}
+
+	/**
+	 * Returns the path to the image and the channel in which the detection
+	 * happened, read from the settings of the specified TrackMate file in a
+	 * single pass.
+	 * <p>
+	 * Unlike {@link #readSettings(String)}, this does not instantiate the
+	 * detector and tracker factories, and therefore does not need a SciJava
+	 * context.
+	 * 
+	 * @param path
+	 *            the path to the TrackMate file.
+	 * @return the image settings.
+	 */
+	protected ImageSettings readImageSettings( final String path )
+	{
+		return TmXmlStreamReader.readImageSettings( new File( path ) );
+	}
+
+	/**
+	 * Returns the path to the image referenced in the settings of the
+	 * specified TrackMate file, or <code>null</code> if it cannot be read.
+	 */
+	static String imagePath( final String path )
+	{
+		return TmXmlStreamReader.readImageSettings( new File( path ) ).imagePath;
 	}
 
 	@Override
@@ -170,4 +381,64 @@ public abstract class AbstractPairing implements Algorithm
 	{
 		return errorMessage;
 	}
+
+	/**
+	 * The content of two TrackMate files needed to pair them. Either the
+	 * models or the track snapshots are set.
+	 */
+	protected static final class Input
+	{
+
+		public final Model model1;
+
+		public final Model model2;
+
+		public final TrackSnapshot tracks1;
+
+		public final TrackSnapshot tracks2;
+
+		public final String spaceUnits;
+
+		public final String sourceImagePath;
+
+		public final int targetChannel1;
+
+		public final int targetChannel2;
+
+		public final double zScale;
+
+		private Input(
+				final Model model1,
+				final Model model2,
+				final TrackSnapshot tracks1,
+				final TrackSnapshot tracks2,
+				final String spaceUnits,
+				final String sourceImagePath,
+				final int targetChannel1,
+				final int targetChannel2,
+				final double zScale )
+		{
+			this.model1 = model1;
+			this.model2 = model2;
+			this.tracks1 = tracks1;
+			this.tracks2 = tracks2;
+			this.spaceUnits = spaceUnits;
+			this.sourceImagePath = sourceImagePath;
+			this.targetChannel1 = targetChannel1;
+			this.targetChannel2 = targetChannel2;
+			this.zScale = zScale;
+		}
+
+		/**
+		 * Starts building a pairing context on this content, with the Z scale
+		 * of the pairing.
+		 */
+		public PairingContext.Builder context( final double maxPairingDistance )
+		{
+			final PairingContext.Builder builder = ( model1 != null )
+					? PairingContext.build( model1, model2, maxPairingDistance )
+					: PairingContext.build( tracks1, tracks2, maxPairingDistance );
+			return builder.zScale( zScale );
+		}
+	}
 }
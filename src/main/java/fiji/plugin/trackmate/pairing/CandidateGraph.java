@@ -0,0 +1,762 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex.FrameIndex;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * A sparse graph of the candidate track pairs between two models.
+ * <p>
+ * The graph is built by a single frame-wise spatial join of the spots of the
+ * two models. For each spot of a first track, and for each second track that
+ * has spots in the same frame closer than a cutoff distance, the closest of
+ * these spots is paired with it. The spot pairs are grouped by track pair to
+ * form the edges of the graph. An edge exists only if its two tracks have at
+ * least one spot pair.
+ * <p>
+ * Tracks are referred to by their index in the {@link TrackSnapshot}s of the
+ * graph, edges by their index in the graph, and spot pairs by their index in
+ * the graph. The edges of a first track are stored contiguously and sorted by
+ * second track index. The spot pairs of an edge are stored contiguously and
+ * sorted by frame. Because only the closest spot is kept, the graph built
+ * with a cutoff can be used for any pairing distance below this cutoff, by
+ * ignoring the spot pairs farther than this distance.
+ * <p>
+ * When the pairing context has a time budget, the first tracks are joined
+ * from the most promising to the least, and the join stops when
+ * {@value #JOIN_BUDGET_SHARE} of the budget has elapsed, leaving the rest to
+ * the pairing methods. The first tracks that were not joined have no edges,
+ * and the graph is partial.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class CandidateGraph
+{
+
+	/** The share of the time budget of a context given to the join. */
+	public static final double JOIN_BUDGET_SHARE = 0.75;
+
+	private final TrackSnapshot tracks1;
+
+	private final TrackSnapshot tracks2;
+
+	private final double cutoff;
+
+	private final double zScale;
+
+	private final FrameSampling frameSampling;
+
+	/** Whether each first track was joined, or <code>null</code> if they all were. */
+	private final boolean[] joined1;
+
+	private final int nJoined1;
+
+	/** Edges of track1 <code>i</code> are from edgeStarts1[i] to edgeStarts1[i+1]. */
+	private final int[] edgeStarts1;
+
+	private final int[] edgeTracks1;
+
+	private final int[] edgeTracks2;
+
+	/** Edges of track2 <code>j</code> are listed from edgeStarts2[j] to edgeStarts2[j+1] in edgesByTrack2. */
+	private final int[] edgeStarts2;
+
+	private final int[] edgesByTrack2;
+
+	/** Spot pairs of edge <code>e</code> are from pairStarts[e] to pairStarts[e+1]. */
+	private final int[] pairStarts;
+
+	private final int[] pairSpots1;
+
+	private final int[] pairSpots2;
+
+	private final double[] pairDistances;
+
+	private final int[] commonFrames;
+
+	private final double[] meanDistances;
+
+	private final double[] medianDistances;
+
+	private final double[] maxDistances;
+
+	private CandidateGraph( final TrackSnapshot tracks1, final TrackSnapshot tracks2, final double cutoff, final double zScale, final FrameSampling frameSampling, final TrackEdges[] joined )
+	{
+		this.tracks1 = tracks1;
+		this.tracks2 = tracks2;
+		this.cutoff = cutoff;
+		this.zScale = zScale;
+		this.frameSampling = frameSampling;
+
+		final int n1 = tracks1.size();
+		final int n2 = tracks2.size();
+
+		// Tracks not joined before the time budget expired have no edges.
+		int nJoined = 0;
+		for ( int i = 0; i < n1; i++ )
+			if ( joined[ i ] != null )
+				nJoined++;
+		this.nJoined1 = nJoined;
+		this.joined1 = ( nJoined == n1 ) ? null : new boolean[ n1 ];
+		for ( int i = 0; i < n1; i++ )
+		{
+			if ( joined[ i ] != null )
+			{
+				if ( joined1 != null )
+					joined1[ i ] = true;
+			}
+			else
+			{
+				joined[ i ] = TrackEdges.EMPTY;
+			}
+		}
+
+		// Concatenate per-track results.
+		this.edgeStarts1 = new int[ n1 + 1 ];
+		int nPairs = 0;
+		for ( int i = 0; i < n1; i++ )
+		{
+			edgeStarts1[ i + 1 ] = edgeStarts1[ i ] + joined[ i ].nEdges();
+			nPairs += joined[ i ].spots1.length;
+		}
+		final int nEdges = edgeStarts1[ n1 ];
+		this.edgeTracks1 = new int[ nEdges ];
+		this.edgeTracks2 = new int[ nEdges ];
+		this.pairStarts = new int[ nEdges + 1 ];
+		this.pairSpots1 = new int[ nPairs ];
+		this.pairSpots2 = new int[ nPairs ];
+		this.pairDistances = new double[ nPairs ];
+		int e = 0;
+		int p = 0;
+		for ( int i = 0; i < n1; i++ )
+		{
+			final TrackEdges te = joined[ i ];
+			for ( int k = 0; k < te.nEdges(); k++ )
+			{
+				edgeTracks1[ e ] = i;
+				edgeTracks2[ e ] = te.tracks2[ k ];
+				pairStarts[ e ] = p + te.pairStarts[ k ];
+				e++;
+			}
+			System.arraycopy( te.spots1, 0, pairSpots1, p, te.spots1.length );
+			System.arraycopy( te.spots2, 0, pairSpots2, p, te.spots2.length );
+			System.arraycopy( te.distances, 0, pairDistances, p, te.distances.length );
+			p += te.spots1.length;
+		}
+		pairStarts[ nEdges ] = nPairs;
+
+		// Index edges by second track.
+		this.edgeStarts2 = new int[ n2 + 1 ];
+		for ( int k = 0; k < nEdges; k++ )
+			edgeStarts2[ edgeTracks2[ k ] + 1 ]++;
+		for ( int j = 0; j < n2; j++ )
+			edgeStarts2[ j + 1 ] += edgeStarts2[ j ];
+		this.edgesByTrack2 = new int[ nEdges ];
+		final int[] cursors = Arrays.copyOf( edgeStarts2, n2 );
+		for ( int k = 0; k < nEdges; k++ )
+			edgesByTrack2[ cursors[ edgeTracks2[ k ] ]++ ] = k;
+
+		// Edge statistics.
+		this.commonFrames = new int[ nEdges ];
+		this.meanDistances = new double[ nEdges ];
+		this.medianDistances = new double[ nEdges ];
+		this.maxDistances = new double[ nEdges ];
+		for ( int k = 0; k < nEdges; k++ )
+		{
+			final int from = pairStarts[ k ];
+			final int to = pairStarts[ k + 1 ];
+			final int[] frames1 = tracks1.track( edgeTracks1[ k ] ).frames;
+			int nFrames = 0;
+			int lastFrame = Integer.MIN_VALUE;
+			double sum = 0.;
+			for ( int q = from; q < to; q++ )
+			{
+				final int frame = frames1[ pairSpots1[ q ] ];
+				if ( frame != lastFrame )
+				{
+					nFrames++;
+					lastFrame = frame;
+				}
+				sum += pairDistances[ q ];
+			}
+			final double[] sorted = Arrays.copyOfRange( pairDistances, from, to );
+			Arrays.sort( sorted );
+			final int n = sorted.length;
+			commonFrames[ k ] = nFrames;
+			meanDistances[ k ] = sum / n;
+			medianDistances[ k ] = ( n % 2 == 1 )
+					? sorted[ n / 2 ]
+					: 0.5 * ( sorted[ n / 2 - 1 ] + sorted[ n / 2 ] );
+			maxDistances[ k ] = sorted[ n - 1 ];
+		}
+	}
+
+	/**
+	 * Builds the candidate graph between the tracks of the two models of the
+	 * specified context. The join runs in parallel over the first tracks,
+	 * and only on the frames accepted by the frame sampling of the context.
+	 * If the context has a time budget, the join stops when
+	 * {@value #JOIN_BUDGET_SHARE} of it has elapsed.
+	 *
+	 * @param context
+	 *            the pairing context.
+	 * @param cutoff
+	 *            the distance beyond which spots are not paired.
+	 * @return a new candidate graph, or <code>null</code> if the context was
+	 *         canceled.
+	 */
+	public static CandidateGraph build( final PairingContext context, final double cutoff )
+	{
+		final TrackSnapshot tracks1 = context.getTracks1();
+		final TrackSnapshot tracks2 = context.getTracks2();
+		final FrameSpatialIndex index2 = context.getSpatialIndex2();
+		final FrameSampling frameSampling = context.getFrameSampling();
+
+		final int n1 = tracks1.size();
+		final TrackEdges[] joined = new TrackEdges[ n1 ];
+		final ThreadLocal< JoinScratch > scratches = ThreadLocal.withInitial( () -> new JoinScratch( tracks2.size() ) );
+		final AtomicInteger done = new AtomicInteger();
+		context.getLogger().setStatus( "Joining spots" );
+		final IntConsumer body = i -> {
+			joined[ i ] = join( tracks1.track( i ), index2, cutoff, frameSampling, scratches.get() );
+			final int d = done.incrementAndGet();
+			if ( ( d & 63 ) == 0 || d == n1 )
+				context.setProgress( ( double ) d / n1 );
+		};
+		if ( context.hasTimeBudget() )
+		{
+			final int[] order = joinOrder( tracks1, index2, cutoff, frameSampling );
+			context.parallelForInOrder( n1, JOIN_BUDGET_SHARE, q -> body.accept( order[ q ] ) );
+		}
+		else
+		{
+			context.parallelFor( n1, body );
+		}
+		if ( context.isCanceled() )
+			return null;
+
+		return new CandidateGraph( tracks1, tracks2, cutoff, index2.getZScale(), frameSampling, joined );
+	}
+
+	/*
+	 * TRACKS.
+	 */
+
+	public TrackSnapshot getTracks1()
+	{
+		return tracks1;
+	}
+
+	public TrackSnapshot getTracks2()
+	{
+		return tracks2;
+	}
+
+	/**
+	 * Returns the distance beyond which spots were not paired when building
+	 * this graph.
+	 */
+	public double getCutoff()
+	{
+		return cutoff;
+	}
+
+	/**
+	 * Returns the factor applied to the Z coordinates when computing the
+	 * spot distances of this graph.
+	 */
+	public double getZScale()
+	{
+		return zScale;
+	}
+
+	/**
+	 * Returns the frames whose spots were joined when building this graph.
+	 */
+	public FrameSampling getFrameSampling()
+	{
+		return frameSampling;
+	}
+
+	/**
+	 * Returns <code>true</code> if all the first tracks were joined when
+	 * building this graph.
+	 */
+	public boolean isComplete()
+	{
+		return joined1 == null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified first track was joined when
+	 * building this graph. If not, it has no edges, but may have candidates.
+	 */
+	public boolean isJoined( final int track1 )
+	{
+		return joined1 == null || joined1[ track1 ];
+	}
+
+	/**
+	 * Returns the number of first tracks joined when building this graph.
+	 */
+	public int nJoinedTracks()
+	{
+		return nJoined1;
+	}
+
+	/**
+	 * Returns the indices of the joined first tracks, from the most promising
+	 * to the least, for the methods that examine them under a time budget.
+	 * The most promising first tracks have the best edge with the most spot
+	 * pairs, then with the smallest mean distance. Ties keep the order of the
+	 * snapshot.
+	 */
+	public int[] priorityOrder()
+	{
+		final int n1 = tracks1.size();
+		final Integer[] order = new Integer[ nJoined1 ];
+		final int[] bestPairs = new int[ n1 ];
+		final double[] bestDistances = new double[ n1 ];
+		int q = 0;
+		for ( int i = 0; i < n1; i++ )
+		{
+			if ( !isJoined( i ) )
+				continue;
+			order[ q++ ] = Integer.valueOf( i );
+			bestDistances[ i ] = Double.POSITIVE_INFINITY;
+			for ( int e = edgesStart( i ); e < edgesEnd( i ); e++ )
+			{
+				final int n = nPairs( e );
+				if ( n > bestPairs[ i ] || ( n == bestPairs[ i ] && meanDistances[ e ] < bestDistances[ i ] ) )
+				{
+					bestPairs[ i ] = n;
+					bestDistances[ i ] = meanDistances[ e ];
+				}
+			}
+		}
+		Arrays.sort( order, Comparator
+				.comparingInt( ( final Integer i ) -> -bestPairs[ i.intValue() ] )
+				.thenComparingDouble( i -> bestDistances[ i.intValue() ] )
+				.thenComparingInt( Integer::intValue ) );
+
+		final int[] out = new int[ nJoined1 ];
+		for ( int k = 0; k < out.length; k++ )
+			out[ k ] = order[ k ].intValue();
+		return out;
+	}
+
+	/*
+	 * EDGES.
+	 */
+
+	public int nEdges()
+	{
+		return edgeTracks1.length;
+	}
+
+	/**
+	 * Returns the index of the first edge of the specified first track.
+	 */
+	public int edgesStart( final int track1 )
+	{
+		return edgeStarts1[ track1 ];
+	}
+
+	/**
+	 * Returns the index after the last edge of the specified first track.
+	 */
+	public int edgesEnd( final int track1 )
+	{
+		return edgeStarts1[ track1 + 1 ];
+	}
+
+	/**
+	 * Returns the number of edges of the specified second track.
+	 */
+	public int nEdges2( final int track2 )
+	{
+		return edgeStarts2[ track2 + 1 ] - edgeStarts2[ track2 ];
+	}
+
+	/**
+	 * Returns the index of the <code>k</code>th edge of the specified second
+	 * track. Edges of a second track are sorted by first track index.
+	 */
+	public int edge2( final int track2, final int k )
+	{
+		return edgesByTrack2[ edgeStarts2[ track2 ] + k ];
+	}
+
+	/**
+	 * Returns the index of the edge between the specified tracks.
+	 *
+	 * @param track1
+	 *            the index of the first track.
+	 * @param track2
+	 *            the index of the second track.
+	 * @return the edge index, or -1 if the two tracks have no spot pairs.
+	 */
+	public int edge( final int track1, final int track2 )
+	{
+		final int from = edgeStarts1[ track1 ];
+		final int to = edgeStarts1[ track1 + 1 ];
+		final int k = Arrays.binarySearch( edgeTracks2, from, to, track2 );
+		return k < 0 ? -1 : k;
+	}
+
+	public int track1( final int edge )
+	{
+		return edgeTracks1[ edge ];
+	}
+
+	public int track2( final int edge )
+	{
+		return edgeTracks2[ edge ];
+	}
+
+	/**
+	 * Returns the number of spot pairs of the specified edge.
+	 */
+	public int nPairs( final int edge )
+	{
+		return pairStarts[ edge + 1 ] - pairStarts[ edge ];
+	}
+
+	/**
+	 * Returns the number of spot pairs of the specified edge that are strictly
+	 * closer than the specified distance.
+	 */
+	public int nPairs( final int edge, final double maxDist )
+	{
+		if ( maxDist >= cutoff )
+			return nPairs( edge );
+		int n = 0;
+		for ( int p = pairStarts[ edge ]; p < pairStarts[ edge + 1 ]; p++ )
+			if ( pairDistances[ p ] < maxDist )
+				n++;
+		return n;
+	}
+
+	/**
+	 * Returns the number of frames in which the specified edge has spot pairs.
+	 */
+	public int commonFrames( final int edge )
+	{
+		return commonFrames[ edge ];
+	}
+
+	public double meanDistance( final int edge )
+	{
+		return meanDistances[ edge ];
+	}
+
+	public double medianDistance( final int edge )
+	{
+		return medianDistances[ edge ];
+	}
+
+	public double maxDistance( final int edge )
+	{
+		return maxDistances[ edge ];
+	}
+
+	/*
+	 * SPOT PAIRS.
+	 */
+
+	public int nPairs()
+	{
+		return pairDistances.length;
+	}
+
+	/**
+	 * Returns the index of the first spot pair of the specified edge.
+	 */
+	public int pairsStart( final int edge )
+	{
+		return pairStarts[ edge ];
+	}
+
+	/**
+	 * Returns the index after the last spot pair of the specified edge.
+	 */
+	public int pairsEnd( final int edge )
+	{
+		return pairStarts[ edge + 1 ];
+	}
+
+	/**
+	 * Returns the index of the first spot of the specified pair in the
+	 * coordinates of its track.
+	 */
+	public int spot1( final int pair )
+	{
+		return pairSpots1[ pair ];
+	}
+
+	/**
+	 * Returns the index of the second spot of the specified pair in the
+	 * coordinates of its track.
+	 */
+	public int spot2( final int pair )
+	{
+		return pairSpots2[ pair ];
+	}
+
+	public double distance( final int pair )
+	{
+		return pairDistances[ pair ];
+	}
+
+	/**
+	 * Returns the spot pairs of the specified edge.
+	 */
+	public Collection< SpotPair > spotPairs( final int edge )
+	{
+		return spotPairs( edge, Double.POSITIVE_INFINITY );
+	}
+
+	/**
+	 * Returns the spot pairs of the specified edge that are strictly closer
+	 * than the specified distance.
+	 */
+	public Collection< SpotPair > spotPairs( final int edge, final double maxDist )
+	{
+		final SpotCoordinates track1 = tracks1.track( edgeTracks1[ edge ] );
+		final SpotCoordinates track2 = tracks2.track( edgeTracks2[ edge ] );
+		final Collection< SpotPair > pairs = new ArrayList<>( nPairs( edge ) );
+		for ( int p = pairStarts[ edge ]; p < pairStarts[ edge + 1 ]; p++ )
+			if ( pairDistances[ p ] < maxDist )
+				pairs.add( new SpotPair( track1.spots[ pairSpots1[ p ] ], track2.spots[ pairSpots2[ p ] ], zScale ) );
+		return pairs;
+	}
+
+	/**
+	 * Adds the distances of all the spot pairs of this graph to the specified
+	 * array.
+	 */
+	public void addDistances( final DoubleArray out )
+	{
+		for ( final double d : pairDistances )
+			out.addValue( d );
+	}
+
+	/*
+	 * JOIN.
+	 */
+
+	/**
+	 * Orders the first tracks from the most promising to the least, for a
+	 * join under a time budget. The most promising first tracks have a spot
+	 * of the second model closer than the cutoff in the frame of their
+	 * middle spot. Then come the first tracks with the most spots in the
+	 * sampled frames where the second model has spots. Ties keep the order
+	 * of the snapshot.
+	 */
+	private static int[] joinOrder( final TrackSnapshot tracks1, final FrameSpatialIndex index2, final double cutoff, final FrameSampling frameSampling )
+	{
+		final int n1 = tracks1.size();
+		final long[] keys = new long[ n1 ];
+		for ( int i = 0; i < n1; i++ )
+		{
+			final SpotCoordinates track = tracks1.track( i );
+			int overlap = 0;
+			for ( int k = 0; k < track.size(); k++ )
+				if ( frameSampling.accepts( track.frames[ k ] ) && index2.frame( track.frames[ k ] ) != null )
+					overlap++;
+
+			boolean close = false;
+			if ( track.size() > 0 )
+			{
+				final int k = track.size() / 2;
+				final FrameIndex frame = index2.frame( track.frames[ k ] );
+				final int s = ( frame == null ) ? -1 : frame.tree.nearest( track.xs[ k ], track.ys[ k ], track.zs[ k ] );
+				close = s >= 0 && DistanceKernels.squareDistance(
+						track.xs[ k ], track.ys[ k ], track.zs[ k ],
+						frame.xs[ s ], frame.ys[ s ], frame.zs[ s ], index2.getZScale() ) < cutoff * cutoff;
+			}
+			keys[ i ] = ( ( close ? 0l : 1l ) << 62 )
+					| ( ( long ) ( Integer.MAX_VALUE - overlap ) << 31 )
+					| i;
+		}
+		Arrays.sort( keys );
+
+		final int[] order = new int[ n1 ];
+		for ( int q = 0; q < n1; q++ )
+			order[ q ] = ( int ) ( keys[ q ] & Integer.MAX_VALUE );
+		return order;
+	}
+
+	private static TrackEdges join( final SpotCoordinates track, final FrameSpatialIndex index2, final double cutoff, final FrameSampling frameSampling, final JoinScratch scratch )
+	{
+		final IntArray js = new IntArray();
+		final IntArray ks = new IntArray();
+		final IntArray ls = new IntArray();
+		final DoubleArray d2s = new DoubleArray();
+		final IntArray candidates = scratch.candidates;
+		final double zScale = index2.getZScale();
+		for ( int k = 0; k < track.size(); k++ )
+		{
+			if ( !frameSampling.accepts( track.frames[ k ] ) )
+				continue;
+			final FrameIndex frame = index2.frame( track.frames[ k ] );
+			if ( frame == null )
+				continue;
+
+			final double x = track.xs[ k ];
+			final double y = track.ys[ k ];
+			final double z = track.zs[ k ];
+			candidates.clear();
+			frame.tree.radiusSearch( x, y, z, cutoff, candidates );
+
+			// Keep the closest spot of each second track.
+			final int stamp = ++scratch.stamp;
+			for ( int c = 0; c < candidates.size(); c++ )
+			{
+				final int s = candidates.getValue( c );
+				final int j = frame.trackIndices[ s ];
+				final int l = frame.spotIndices[ s ];
+				final double d2 = DistanceKernels.squareDistance( x, y, z, frame.xs[ s ], frame.ys[ s ], frame.zs[ s ], zScale );
+				if ( scratch.stamps[ j ] != stamp )
+				{
+					scratch.stamps[ j ] = stamp;
+					scratch.slots[ j ] = js.size();
+					js.addValue( j );
+					ks.addValue( k );
+					ls.addValue( l );
+					d2s.addValue( d2 );
+				}
+				else
+				{
+					final int slot = scratch.slots[ j ];
+					final double other = d2s.getValue( slot );
+					if ( d2 < other || ( d2 == other && l < ls.getValue( slot ) ) )
+					{
+						ls.setValue( slot, l );
+						d2s.setValue( slot, d2 );
+					}
+				}
+			}
+		}
+
+		// Group by second track, keeping frame order within groups.
+		final int n = js.size();
+		final long[] keys = new long[ n ];
+		for ( int q = 0; q < n; q++ )
+			keys[ q ] = ( ( long ) js.getValue( q ) << 32 ) | q;
+		Arrays.sort( keys );
+
+		final IntArray tracks2 = new IntArray();
+		final IntArray pairStarts = new IntArray();
+		final int[] spots1 = new int[ n ];
+		final int[] spots2 = new int[ n ];
+		final double[] distances = new double[ n ];
+		int previous = -1;
+		for ( int q = 0; q < n; q++ )
+		{
+			final int entry = ( int ) keys[ q ];
+			final int j = js.getValue( entry );
+			if ( j != previous )
+			{
+				tracks2.addValue( j );
+				pairStarts.addValue( q );
+				previous = j;
+			}
+			spots1[ q ] = ks.getValue( entry );
+			spots2[ q ] = ls.getValue( entry );
+			distances[ q ] = Math.sqrt( d2s.getValue( entry ) );
+		}
+		pairStarts.addValue( n );
+		return new TrackEdges( tracks2.copyArray(), pairStarts.copyArray(), spots1, spots2, distances );
+	}
+
+	/**
+	 * The edges of one first track, as produced by the join.
+	 */
+	private static final class TrackEdges
+	{
+
+		private static final TrackEdges EMPTY = new TrackEdges( new int[ 0 ], new int[] { 0 }, new int[ 0 ], new int[ 0 ], new double[ 0 ] );
+
+		private final int[] tracks2;
+
+		private final int[] pairStarts;
+
+		private final int[] spots1;
+
+		private final int[] spots2;
+
+		private final double[] distances;
+
+		private TrackEdges( final int[] tracks2, final int[] pairStarts, final int[] spots1, final int[] spots2, final double[] distances )
+		{
+			this.tracks2 = tracks2;
+			this.pairStarts = pairStarts;
+			this.spots1 = spots1;
+			this.spots2 = spots2;
+			this.distances = distances;
+		}
+
+		private int nEdges()
+		{
+			return tracks2.length;
+		}
+	}
+
+	/**
+	 * Per-thread buffers used to keep the closest spot of each second track.
+	 */
+	private static final class JoinScratch
+	{
+
+		private final int[] stamps;
+
+		private final int[] slots;
+
+		private final IntArray candidates = new IntArray();
+
+		private int stamp;
+
+		private JoinScratch( final int nTracks2 )
+		{
+			this.stamps = new int[ nTracks2 ];
+			this.slots = new int[ nTracks2 ];
+		}
+	}
+}
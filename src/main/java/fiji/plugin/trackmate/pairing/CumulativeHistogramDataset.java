@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.Arrays;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.event.AxisChangeEvent;
+import org.jfree.chart.event.AxisChangeListener;
+import org.jfree.data.DomainOrder;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.scijava.util.IntArray;
+
+/**
+ * A dataset that plots the cumulative histogram of a large number of values
+ * with a bounded number of points.
+ * <p>
+ * The values are kept sorted. For the visible domain range, the dataset
+ * samples the cumulative histogram at a fixed number of quantiles, and
+ * reproduces exactly the steps of the values around a cursor position. When
+ * there are fewer values in the visible range than quantiles, all the steps
+ * are reproduced and the plot is identical to
+ * {@link CumulativeHistogram#toCumulativeHistogram(org.scijava.util.DoubleArray)}.
+ * <p>
+ * Register the dataset as listener of the domain axis it is plotted against
+ * to resample it when the user zooms, and call {@link #setCursor(double)} to
+ * follow the mouse.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class CumulativeHistogramDataset extends AbstractXYDataset implements AxisChangeListener
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String SERIES_KEY = "Cumulative histogram";
+
+	/** Default number of quantiles sampled in the visible range. */
+	public static final int DEFAULT_RESOLUTION = 1000;
+
+	/** Number of exact steps shown on each side of the cursor. */
+	private static final int CURSOR_HALF_WIDTH = 50;
+
+	private double[] values;
+
+	private final int resolution;
+
+	private double lower = Double.NEGATIVE_INFINITY;
+
+	private double upper = Double.POSITIVE_INFINITY;
+
+	private int cursorRank = -1;
+
+	/** Sampled points, x then y, replaced at once when resampling. */
+	private double[][] data;
+
+	/**
+	 * Creates a dataset for the specified values.
+	 * 
+	 * @param values
+	 *            the values. Not modified.
+	 */
+	public CumulativeHistogramDataset( final double[] values )
+	{
+		this( values, DEFAULT_RESOLUTION );
+	}
+
+	public CumulativeHistogramDataset( final double[] values, final int resolution )
+	{
+		this.values = values.clone();
+		Arrays.sort( this.values );
+		this.resolution = Math.max( 2, resolution );
+		resample();
+	}
+
+	/**
+	 * Replaces the values of this dataset by the ones of the specified
+	 * dataset, and resamples it. The visible domain range is kept.
+	 * 
+	 * @param other
+	 *            the dataset to take the values from.
+	 */
+	public void setValues( final CumulativeHistogramDataset other )
+	{
+		this.values = other.values;
+		this.cursorRank = -1;
+		resample();
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Sets the domain range that is visible, and resamples the dataset.
+	 */
+	public void setDomainRange( final double lower, final double upper )
+	{
+		if ( lower == this.lower && upper == this.upper )
+			return;
+		this.lower = lower;
+		this.upper = upper;
+		resample();
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Sets the position around which the steps of the cumulative histogram
+	 * are reproduced exactly. A <code>NaN</code> position removes the cursor.
+	 */
+	public void setCursor( final double x )
+	{
+		final int rank = Double.isNaN( x ) ? -1 : Math.min( values.length - 1, lowerBound( x ) );
+		if ( rank == cursorRank )
+			return;
+		cursorRank = rank;
+		resample();
+		fireDatasetChanged();
+	}
+
+	@Override
+	public void axisChanged( final AxisChangeEvent event )
+	{
+		if ( event.getAxis() instanceof ValueAxis )
+		{
+			final ValueAxis axis = ( ValueAxis ) event.getAxis();
+			setDomainRange( axis.getLowerBound(), axis.getUpperBound() );
+		}
+	}
+
+	/**
+	 * Returns the number of values in the cumulative histogram.
+	 */
+	public int nValues()
+	{
+		return values.length;
+	}
+
+	/**
+	 * Returns the value of the specified rank in the cumulative histogram.
+	 * 
+	 * @param rank
+	 *            the rank, from 0 to {@link #nValues()} - 1.
+	 * @return the value. Values are sorted in ascending order.
+	 */
+	public double getValue( final int rank )
+	{
+		return values[ rank ];
+	}
+
+	/*
+	 * XYDATASET.
+	 */
+
+	@Override
+	public int getSeriesCount()
+	{
+		return 1;
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	@Override
+	public Comparable getSeriesKey( final int series )
+	{
+		return SERIES_KEY;
+	}
+
+	@Override
+	public DomainOrder getDomainOrder()
+	{
+		return DomainOrder.ASCENDING;
+	}
+
+	@Override
+	public int getItemCount( final int series )
+	{
+		return data[ 0 ].length;
+	}
+
+	@Override
+	public Number getX( final int series, final int item )
+	{
+		return Double.valueOf( data[ 0 ][ item ] );
+	}
+
+	@Override
+	public Number getY( final int series, final int item )
+	{
+		return Double.valueOf( data[ 1 ][ item ] );
+	}
+
+	@Override
+	public double getXValue( final int series, final int item )
+	{
+		return data[ 0 ][ item ];
+	}
+
+	@Override
+	public double getYValue( final int series, final int item )
+	{
+		return data[ 1 ][ item ];
+	}
+
+	@Override
+	public String toString()
+	{
+		final int n = values.length;
+		if ( n == 0 )
+			return super.toString() + ": no values.";
+		return String.format( "%s: %d values, min = %.3g, median = %.3g, max = %.3g, plotted with %d points.",
+				super.toString(), n, values[ 0 ], values[ n / 2 ], values[ n - 1 ], data[ 0 ].length );
+	}
+
+	/*
+	 * SAMPLING.
+	 */
+
+	private void resample()
+	{
+		final int n = values.length;
+		if ( n == 0 )
+		{
+			data = new double[][] { { 0. }, { 0. } };
+			return;
+		}
+
+		/*
+		 * Ranks to reproduce exactly.
+		 */
+
+		final IntArray ranks = new IntArray();
+		final int iLo = lowerBound( lower );
+		final int iHi = upperBound( upper );
+		final int nVisible = iHi - iLo;
+		if ( nVisible <= resolution )
+		{
+			for ( int r = iLo; r < iHi; r++ )
+				ranks.addValue( r );
+		}
+		else
+		{
+			for ( int k = 0; k < resolution; k++ )
+				ranks.addValue( iLo + ( int ) ( ( long ) k * ( nVisible - 1 ) / ( resolution - 1 ) ) );
+		}
+		if ( cursorRank >= 0 )
+			for ( int r = Math.max( 0, cursorRank - CURSOR_HALF_WIDTH ); r < Math.min( n, cursorRank + CURSOR_HALF_WIDTH + 1 ); r++ )
+				ranks.addValue( r );
+
+		// Values just outside the visible range, and the global extent.
+		if ( iLo > 0 )
+			ranks.addValue( iLo - 1 );
+		if ( iHi < n )
+			ranks.addValue( iHi );
+		ranks.addValue( 0 );
+		ranks.addValue( n - 1 );
+
+		final int[] sorted = ranks.copyArray();
+		Arrays.sort( sorted );
+
+		/*
+		 * One step per rank.
+		 */
+
+		final double[] x = new double[ 2 * sorted.length + 1 ];
+		final double[] y = new double[ 2 * sorted.length + 1 ];
+		x[ 0 ] = Math.min( 0., values[ 0 ] );
+		y[ 0 ] = 0.;
+		int k = 1;
+		int previous = -1;
+		for ( final int r : sorted )
+		{
+			if ( r == previous )
+				continue;
+			previous = r;
+			x[ k ] = values[ r ];
+			y[ k ] = ( double ) r / n;
+			k++;
+			x[ k ] = values[ r ];
+			y[ k ] = ( double ) ( r + 1 ) / n;
+			k++;
+		}
+		this.data = new double[][] { Arrays.copyOf( x, k ), Arrays.copyOf( y, k ) };
+	}
+
+	/** Index of the first value larger than or equal to x. */
+	private int lowerBound( final double x )
+	{
+		int lo = 0;
+		int hi = values.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( values[ mid ] < x )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/** Index of the first value strictly larger than x. */
+	private int upperBound( final double x )
+	{
+		int lo = 0;
+		int hi = values.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( values[ mid ] <= x )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
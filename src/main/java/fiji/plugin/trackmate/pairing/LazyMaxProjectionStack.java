@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A virtual stack that holds the maximum intensity projection along Z of a
+ * hyperstack, computed lazily.
+ * <p>
+ * The projection of a channel and timepoint is computed the first time it is
+ * requested, typically when it is displayed, and kept in a bounded cache. The
+ * projections of the neighboring timepoints are then computed in the
+ * background, so that they are ready when the user scrolls through time.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class LazyMaxProjectionStack extends VirtualStack
+{
+
+	/** Default number of projected planes kept in memory. */
+	public static final int DEFAULT_CACHE_SIZE = 32;
+
+	/** Number of timepoints prefetched on each side of the requested one. */
+	private static final int PREFETCH_RADIUS = 1;
+
+	private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "Pairing MIP prefetcher" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private final ImagePlus source;
+
+	private final int nChannels;
+
+	private final int nSlices;
+
+	private final int nFrames;
+
+	private final Map< Integer, ImageProcessor > cache;
+
+	/**
+	 * Creates a lazy projection of the specified image.
+	 * 
+	 * @param source
+	 *            the image to project.
+	 * @param cacheSize
+	 *            the max number of projected planes kept in memory.
+	 */
+	public LazyMaxProjectionStack( final ImagePlus source, final int cacheSize )
+	{
+		super( source.getWidth(), source.getHeight(), null, null );
+		this.source = source;
+		this.nChannels = source.getNChannels();
+		this.nSlices = source.getNSlices();
+		this.nFrames = source.getNFrames();
+		final int capacity = Math.max( 1, cacheSize );
+		this.cache = new LinkedHashMap< Integer, ImageProcessor >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, ImageProcessor > eldest )
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns a new image that displays the lazy maximum intensity projection
+	 * of the specified image, with the same channels, timepoints, calibration
+	 * and display settings.
+	 */
+	public static ImagePlus project( final ImagePlus imp )
+	{
+		final LazyMaxProjectionStack stack = new LazyMaxProjectionStack( imp, DEFAULT_CACHE_SIZE );
+		final ImagePlus output = new ImagePlus( "MAX_" + imp.getTitle(), stack );
+		output.setDimensions( stack.nChannels, 1, stack.nFrames );
+		output.setOpenAsHyperStack( true );
+		output.setCalibration( imp.getCalibration().copy() );
+		if ( imp.isComposite() && stack.nChannels > 1 )
+		{
+			final CompositeImage composite = new CompositeImage( output, ( ( CompositeImage ) imp ).getMode() );
+			composite.setLuts( imp.getLuts() );
+			return composite;
+		}
+		output.setDisplayRange( imp.getDisplayRangeMin(), imp.getDisplayRangeMax() );
+		return output;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return nChannels * nFrames;
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return source.getBitDepth();
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return null;
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public void setPixels( final Object pixels, final int n )
+	{}
+
+	/**
+	 * The planes of a projection cannot be deleted: the call is ignored.
+	 */
+	@Override
+	public void deleteSlice( final int n )
+	{
+		IJ.log( "Cannot delete the planes of a lazy projection; ignored." );
+	}
+
+	/**
+	 * Returns the projection for the specified plane, 1-based, in the channel
+	 * then time order of the output image. The processor returned is a copy,
+	 * so callers may modify it without altering the cached projection. This
+	 * method can be called concurrently: only the reads of the source planes
+	 * are serialized.
+	 */
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int c = ( n - 1 ) % nChannels;
+		final int t = ( n - 1 ) / nChannels;
+		final ImageProcessor ip = projection( n );
+		prefetch( c, t );
+		return ip.duplicate();
+	}
+
+	private ImageProcessor projection( final int n )
+	{
+		synchronized ( cache )
+		{
+			final ImageProcessor ip = cache.get( n );
+			if ( ip != null )
+				return ip;
+		}
+		final int c = ( n - 1 ) % nChannels;
+		final int t = ( n - 1 ) / nChannels;
+		final ImageProcessor ip = project( c, t );
+		synchronized ( cache )
+		{
+			cache.put( n, ip );
+		}
+		return ip;
+	}
+
+	private void prefetch( final int c, final int t )
+	{
+		for ( int dt = 1; dt <= PREFETCH_RADIUS; dt++ )
+		{
+			for ( final int t2 : new int[] { t + dt, t - dt } )
+			{
+				if ( t2 < 0 || t2 >= nFrames )
+					continue;
+				final int n = t2 * nChannels + c + 1;
+				synchronized ( cache )
+				{
+					if ( cache.containsKey( n ) )
+						continue;
+				}
+				try
+				{
+					PREFETCHER.submit( () -> projection( n ) );
+				}
+				catch ( final RejectedExecutionException e )
+				{}
+			}
+		}
+	}
+
+	/*
+	 * PROJECTION.
+	 */
+
+	private ImageProcessor project( final int c, final int t )
+	{
+		final ImageStack stack = source.getStack();
+		final int size = source.getWidth() * source.getHeight();
+		ImageProcessor out = null;
+		for ( int z = 0; z < nSlices; z++ )
+		{
+			final ImageProcessor ip;
+			// Virtual source stacks are not meant to be read concurrently.
+			synchronized ( stack )
+			{
+				ip = stack.getProcessor( source.getStackIndex( c + 1, z + 1, t + 1 ) );
+			}
+			if ( out == null )
+			{
+				out = ip.duplicate();
+				continue;
+			}
+			max( ip.getPixels(), out.getPixels(), size );
+		}
+		return out;
+	}
+
+	private static void max( final Object src, final Object target, final int size )
+	{
+		if ( src instanceof byte[] )
+		{
+			final byte[] s = ( byte[] ) src;
+			final byte[] d = ( byte[] ) target;
+			for ( int i = 0; i < size; i++ )
+				if ( ( s[ i ] & 0xff ) > ( d[ i ] & 0xff ) )
+					d[ i ] = s[ i ];
+		}
+		else if ( src instanceof short[] )
+		{
+			final short[] s = ( short[] ) src;
+			final short[] d = ( short[] ) target;
+			for ( int i = 0; i < size; i++ )
+				if ( ( s[ i ] & 0xffff ) > ( d[ i ] & 0xffff ) )
+					d[ i ] = s[ i ];
+		}
+		else if ( src instanceof float[] )
+		{
+			final float[] s = ( float[] ) src;
+			final float[] d = ( float[] ) target;
+			for ( int i = 0; i < size; i++ )
+				if ( s[ i ] > d[ i ] )
+					d[ i ] = s[ i ];
+		}
+		else if ( src instanceof int[] )
+		{
+			// RGB: max of each component.
+			final int[] s = ( int[] ) src;
+			final int[] d = ( int[] ) target;
+			for ( int i = 0; i < size; i++ )
+			{
+				final int a = s[ i ];
+				final int b = d[ i ];
+				final int r = Math.max( a & 0xff0000, b & 0xff0000 );
+				final int g = Math.max( a & 0xff00, b & 0xff00 );
+				final int bl = Math.max( a & 0xff, b & 0xff );
+				d[ i ] = 0xff000000 | r | g | bl;
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unsupported pixel type: " + src.getClass() );
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A virtual stack that only reads some planes of a hyperstack, and returns
+ * blank planes for the others.
+ * <p>
+ * The planes read are the ones that belong to one of the selected channels
+ * and timepoints. The dimensions of the hyperstack are unchanged, so that
+ * the positions of the spots still match.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class MaskedPlaneStack extends VirtualStack
+{
+
+	private final ImagePlus source;
+
+	private final ImageStack stack;
+
+	private final boolean[] channels;
+
+	private final boolean[] frames;
+
+	private ImageProcessor blank;
+
+	/**
+	 * Creates a masked stack.
+	 * 
+	 * @param source
+	 *            the hyperstack to read planes from.
+	 * @param channels
+	 *            for each channel, 0-based, whether it is read.
+	 * @param frames
+	 *            for each timepoint, 0-based, whether it is read.
+	 */
+	public MaskedPlaneStack( final ImagePlus source, final boolean[] channels, final boolean[] frames )
+	{
+		super( source.getWidth(), source.getHeight(), null, null );
+		this.source = source;
+		this.stack = source.getStack();
+		this.channels = channels;
+		this.frames = frames;
+	}
+
+	/**
+	 * Returns a new image that displays the specified hyperstack, where only
+	 * the planes of the selected channels and timepoints are read. If the
+	 * hyperstack is a composite image, the new image is a composite image
+	 * with the same display mode and channel LUTs.
+	 */
+	public static ImagePlus mask( final ImagePlus imp, final boolean[] channels, final boolean[] frames )
+	{
+		final ImagePlus output = new ImagePlus( imp.getTitle(), new MaskedPlaneStack( imp, channels, frames ) );
+		output.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		output.setOpenAsHyperStack( true );
+		output.setCalibration( imp.getCalibration().copy() );
+		output.setDisplayRange( imp.getDisplayRangeMin(), imp.getDisplayRangeMax() );
+		if ( !imp.isComposite() )
+			return output;
+
+		final CompositeImage source = ( CompositeImage ) imp;
+		final CompositeImage composite = new CompositeImage( output, source.getMode() );
+		composite.setLuts( source.getLuts() );
+		return composite;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return stack.getSize();
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return source.getBitDepth();
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return stack.getSliceLabel( n );
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public void setPixels( final Object pixels, final int n )
+	{}
+
+	/**
+	 * The planes of a masked stack cannot be deleted: the call is ignored.
+	 */
+	@Override
+	public void deleteSlice( final int n )
+	{
+		IJ.log( "Cannot delete the planes of a masked stack; ignored." );
+	}
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int[] pos = source.convertIndexToPosition( n );
+		final int c = pos[ 0 ] - 1;
+		final int t = pos[ 2 ] - 1;
+		final boolean read = c < channels.length && channels[ c ] && t < frames.length && frames[ t ];
+		if ( !read )
+			return blank();
+
+		// Virtual source stacks are not meant to be read concurrently.
+		synchronized ( stack )
+		{
+			return stack.getProcessor( n );
+		}
+	}
+
+	private synchronized ImageProcessor blank()
+	{
+		if ( blank == null )
+		{
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			switch ( source.getBitDepth() )
+			{
+			case 8:
+				blank = new ByteProcessor( width, height );
+				break;
+			case 16:
+				blank = new ShortProcessor( width, height );
+				break;
+			case 24:
+				blank = new ColorProcessor( width, height );
+				break;
+			default:
+				blank = new FloatProcessor( width, height );
+				break;
+			}
+		}
+		// Callers may write in the pixels.
+		return blank.duplicate();
+	}
+}
@@ -32,6 +32,7 @@ import java.util.Map;
 
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
 
 /**
  * Results of the pairing of two TrackMate models.
@@ -80,10 +81,19 @@ public class Pairing
 
 		public final Spot s2;
 
+		/** The factor applied to the Z coordinates by {@link #distance()}. */
+		public final double zScale;
+
 		public SpotPair( final Spot s1, final Spot s2 )
+		{
+			this( s1, s2, 1. );
+		}
+
+		public SpotPair( final Spot s1, final Spot s2, final double zScale )
 		{
 			this.s1 = s1;
 			this.s2 = s2;
+			this.zScale = zScale;
 		}
 
 		@Override
@@ -92,12 +102,30 @@ public class Pairing
 			return s1.ID() + "-" + s2.ID();
 		}
 
+		/**
+		 * Returns the distance between the two spots, with their Z
+		 * coordinates multiplied by the Z scale of this pair.
+		 */
 		public double distance()
 		{
-			return Math.sqrt( s1.squareDistanceTo( s2 ) );
+			return Math.sqrt( DistanceKernels.squareDistance(
+					s1.getDoublePosition( 0 ), s1.getDoublePosition( 1 ), s1.getDoublePosition( 2 ),
+					s2.getDoublePosition( 0 ), s2.getDoublePosition( 1 ), s2.getDoublePosition( 2 ),
+					zScale ) );
 		}
 	}
 
+	/**
+	 * The spot features exported by {@link #toCsv()}, without their channel
+	 * suffix.
+	 */
+	private static final List< String > EXPORTED_FEATURE_PREFIXES = Arrays.asList(
+			"MEAN_INTENSITY_CH",
+			"MAX_INTENSITY_CH",
+			"STD_INTENSITY_CH",
+			SpotContrastAndSNRAnalyzerFactory.SNR,
+			SpotContrastAndSNRAnalyzerFactory.CONTRAST );
+
 	public final Collection< TrackPair > pairs;
 
 	public final Map< Integer, Collection< Spot > > unmatchedTracks1;
@@ -130,33 +158,84 @@ public class Pairing
 		this.ch2 = ch2;
 	}
 
+	/**
+	 * Returns the path to the image the spots of the first model were detected
+	 * in, or <code>null</code> if it is not known.
+	 */
+	public String getSourceImagePath()
+	{
+		return sourceImagePath;
+	}
+
+	/**
+	 * Returns the channel the spots of the first model were detected in,
+	 * 1-based.
+	 */
+	public int getTargetChannel1()
+	{
+		return ch1;
+	}
+
+	/**
+	 * Returns the channel the spots of the second model were detected in,
+	 * 1-based.
+	 */
+	public int getTargetChannel2()
+	{
+		return ch2;
+	}
+
+	/**
+	 * Returns the spot features exported by {@link #toCsv()}, without their
+	 * channel suffix.
+	 * 
+	 * @return an unmodifiable list of feature key prefixes.
+	 */
+	public static List< String > exportedFeaturePrefixes()
+	{
+		return Collections.unmodifiableList( EXPORTED_FEATURE_PREFIXES );
+	}
+
+	/**
+	 * Returns <code>true</code> if the spot feature with the specified key is
+	 * exported by {@link #toCsv()}, for any channel.
+	 * 
+	 * @param featureKey
+	 *            the feature key.
+	 * @return whether the feature is exported.
+	 */
+	public static boolean isExportedFeature( final String featureKey )
+	{
+		for ( final String prefix : EXPORTED_FEATURE_PREFIXES )
+			if ( featureKey.startsWith( prefix ) )
+				return true;
+		return false;
+	}
+
 	public List< String[] > toCsv()
 	{
-		/*
-		 * Define supplemental features to add. We specify them as a map of the
-		 * header for that column vs the pair of feature keys, one for spot1,
-		 * one for spot2.
-		 */
-		final SupplementalFeatures supFeatures = new SupplementalFeaturesBuilder()
-				.addFeature( "Mean_intensity_Spot_1", "MEAN_INTENSITY_CH" + ch1, true )
-				.addFeature( "Mean_intensity_Spot_2", "MEAN_INTENSITY_CH" + ch2, false )
-				.addFeature( "Max_intensity_Spot_1", "MAX_INTENSITY_CH" + ch1, true )
-				.addFeature( "Max_intensity_Spot_2", "MAX_INTENSITY_CH" + ch2, false )
-				.addFeature( "Std_intensity_Spot_1", "STD_INTENSITY_CH" + ch1, true )
-				.addFeature( "Std_intensity_Spot_2", "STD_INTENSITY_CH" + ch2, false )
-				.addFeature( "SNR_Spot_1", SpotContrastAndSNRAnalyzerFactory.SNR + ch1, true )
-				.addFeature( "SNR_Spot_2", SpotContrastAndSNRAnalyzerFactory.SNR + ch2, false )
-				.addFeature( "Contrast_Spot_1", SpotContrastAndSNRAnalyzerFactory.CONTRAST + ch1, true )
-				.addFeature( "Contrast_Spot_2", SpotContrastAndSNRAnalyzerFactory.CONTRAST + ch2, false )
-				.get();
+		final SupplementalFeatures supFeatures = supplementalFeatures( ch1, ch2 );
 
 		/*
 		 * Generate the list of string arrays to export to CSV.
 		 */
 
 		final List< String[] > strs = new ArrayList<>();
+		strs.add( csvHeader() );
+		for ( final TrackPair trackPair : pairs )
+			for ( final SpotPair pair : trackPair.paired )
+				strs.add( csvLine( trackPair.id1, trackPair.id2, pair, sourceImagePath, supFeatures ) );
+		return strs;
+	}
 
-		// Header.
+	/**
+	 * Returns the header of the CSV export of pairings.
+	 * 
+	 * @return the column names.
+	 * @see #toCsv()
+	 */
+	public static String[] csvHeader()
+	{
 		final List< String > header = new ArrayList<>();
 		final List< String > mainHeader = Arrays.asList(
 				"Track_pair",
@@ -172,33 +251,90 @@ public class Pairing
 				"Distance",
 				"Source_Image" );
 		header.addAll( mainHeader );
-		header.addAll( supFeatures.headers() );
-		strs.add( header.toArray( new String[] {} ) );
+		header.addAll( supplementalFeatures( 1, 2 ).headers() );
+		return header.toArray( new String[] {} );
+	}
 
-		for ( final TrackPair trackPair : pairs )
-		{
-			for ( final SpotPair pair : trackPair.paired )
-			{
-				final List< String > str = new ArrayList<>();
-				final List< String > mainValues = Arrays.asList(
-						trackPair.getName(),
-						trackPair.id1.toString(),
-						trackPair.id2.toString(),
-						"" + pair.s1.getFeature( Spot.FRAME ).intValue(),
-						Double.toString( pair.s1.getDoublePosition( 0 ) ),
-						Double.toString( pair.s1.getDoublePosition( 1 ) ),
-						Double.toString( pair.s1.getDoublePosition( 2 ) ),
-						Double.toString( pair.s2.getDoublePosition( 0 ) ),
-						Double.toString( pair.s2.getDoublePosition( 1 ) ),
-						Double.toString( pair.s2.getDoublePosition( 2 ) ),
-						Double.toString( pair.distance() ),
-						sourceImagePath );
-				str.addAll( mainValues );
-				str.addAll( supFeatures.toStrValues( pair.s1, pair.s2 ) );
-				strs.add( str.toArray( new String[] {} ) );
-			}
-		}
-		return strs;
+	/**
+	 * Returns the line of the CSV export for the specified spot pair, for
+	 * writers that do not build a {@link Pairing}.
+	 * 
+	 * @param id1
+	 *            the ID of the first track.
+	 * @param id2
+	 *            the ID of the second track.
+	 * @param pair
+	 *            the spot pair.
+	 * @param sourceImagePath
+	 *            the path to the source image.
+	 * @param ch1
+	 *            the channel the first spot was detected in.
+	 * @param ch2
+	 *            the channel the second spot was detected in.
+	 * @return the values of the line.
+	 * @see #toCsv()
+	 */
+	public static String[] csvLine( final Integer id1, final Integer id2, final SpotPair pair, final String sourceImagePath, final int ch1, final int ch2 )
+	{
+		return csvLine( id1, id2, pair, sourceImagePath, supplementalFeatures( ch1, ch2 ) );
+	}
+
+	/**
+	 * Returns the keys of the spot features exported by {@link #toCsv()} for
+	 * the spots detected in the specified channel.
+	 * 
+	 * @param channel
+	 *            the channel, 1-based.
+	 * @return a new list of feature keys.
+	 */
+	public static List< String > exportedFeatures( final int channel )
+	{
+		final List< String > keys = new ArrayList<>( EXPORTED_FEATURE_PREFIXES.size() );
+		for ( final String prefix : EXPORTED_FEATURE_PREFIXES )
+			keys.add( prefix + channel );
+		return keys;
+	}
+
+	private static String[] csvLine( final Integer id1, final Integer id2, final SpotPair pair, final String sourceImagePath, final SupplementalFeatures supFeatures )
+	{
+		final List< String > str = new ArrayList<>();
+		final List< String > mainValues = Arrays.asList(
+				id1 + "&" + id2,
+				id1.toString(),
+				id2.toString(),
+				"" + pair.s1.getFeature( Spot.FRAME ).intValue(),
+				Double.toString( pair.s1.getDoublePosition( 0 ) ),
+				Double.toString( pair.s1.getDoublePosition( 1 ) ),
+				Double.toString( pair.s1.getDoublePosition( 2 ) ),
+				Double.toString( pair.s2.getDoublePosition( 0 ) ),
+				Double.toString( pair.s2.getDoublePosition( 1 ) ),
+				Double.toString( pair.s2.getDoublePosition( 2 ) ),
+				Double.toString( pair.distance() ),
+				sourceImagePath );
+		str.addAll( mainValues );
+		str.addAll( supFeatures.toStrValues( pair.s1, pair.s2 ) );
+		return str.toArray( new String[] {} );
+	}
+
+	/**
+	 * Defines the supplemental features to export. We specify them as a map of
+	 * the header for that column vs the pair of feature keys, one for spot1,
+	 * one for spot2.
+	 */
+	private static SupplementalFeatures supplementalFeatures( final int ch1, final int ch2 )
+	{
+		return new SupplementalFeaturesBuilder()
+				.addFeature( "Mean_intensity_Spot_1", "MEAN_INTENSITY_CH" + ch1, true )
+				.addFeature( "Mean_intensity_Spot_2", "MEAN_INTENSITY_CH" + ch2, false )
+				.addFeature( "Max_intensity_Spot_1", "MAX_INTENSITY_CH" + ch1, true )
+				.addFeature( "Max_intensity_Spot_2", "MAX_INTENSITY_CH" + ch2, false )
+				.addFeature( "Std_intensity_Spot_1", "STD_INTENSITY_CH" + ch1, true )
+				.addFeature( "Std_intensity_Spot_2", "STD_INTENSITY_CH" + ch2, false )
+				.addFeature( "SNR_Spot_1", SpotContrastAndSNRAnalyzerFactory.SNR + ch1, true )
+				.addFeature( "SNR_Spot_2", SpotContrastAndSNRAnalyzerFactory.SNR + ch2, false )
+				.addFeature( "Contrast_Spot_1", SpotContrastAndSNRAnalyzerFactory.CONTRAST + ch1, true )
+				.addFeature( "Contrast_Spot_2", SpotContrastAndSNRAnalyzerFactory.CONTRAST + ch2, false )
+				.get();
 	}
 
 	@Override
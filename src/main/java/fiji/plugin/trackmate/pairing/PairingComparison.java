@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.method.PairingMethods;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Runs all the pairing methods on two TrackMate files and compares their
+ * results.
+ * <p>
+ * The two files are read once, and the candidate graph is built once and
+ * shared by all the methods, that then run concurrently. The result reports
+ * for each method the number of track pairs, unmatched tracks, spot pairs and
+ * the mean distance between paired spots, and for each couple of methods how
+ * many track pairs they have in common.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingComparison extends AbstractPairing implements OutputAlgorithm< PairingComparison.Result >, MultiThreaded
+{
+
+	private final double maxPairingDistance;
+
+	private int numThreads;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private Result output;
+
+	public PairingComparison( final String xml1, final String xml2, final double maxPairingDistance )
+	{
+		super( xml1, xml2 );
+		this.maxPairingDistance = maxPairingDistance;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( maxPairingDistance <= 0. )
+		{
+			errorMessage = "Max pairing distance is negative or zero: " + maxPairingDistance;
+			return false;
+		}
+		return super.checkInput();
+	}
+
+	@Override
+	public boolean process()
+	{
+		/*
+		 * Read files. None of the methods needs the models.
+		 */
+
+		final Input input = readInput( false, numThreads );
+		if ( input == null )
+			return false;
+
+		final String sourceImagePath = input.sourceImagePath;
+		final int ch1 = input.targetChannel1;
+		final int ch2 = input.targetChannel2;
+
+		/*
+		 * Run all methods on a shared context.
+		 */
+
+		final PairingMethods[] methods = PairingMethods.values();
+		final Map< PairingMethods, Pairing > pairings = new EnumMap<>( PairingMethods.class );
+		final ExecutorService methodExecutor = Executors.newFixedThreadPool( Math.min( methods.length, numThreads ) );
+		try (final PairingContext context = input.context( maxPairingDistance )
+				.numThreads( numThreads )
+				.logger( logger )
+				.frameSampling( frameSampling )
+				.get())
+		{
+			// Build the shared structures before the methods race for them.
+			logger.log( "Building candidate graph.\n" );
+			if ( context.getCandidateGraph() == null )
+			{
+				errorMessage = "Pairing canceled: " + context.getCancelReason();
+				return false;
+			}
+
+			final List< Future< Builder > > futures = new ArrayList<>( methods.length );
+			for ( final PairingMethods method : methods )
+				futures.add( methodExecutor.submit( () -> method.contextualMethod().pair( context ) ) );
+
+			try
+			{
+				for ( int i = 0; i < methods.length; i++ )
+				{
+					final Builder builder = futures.get( i ).get();
+					if ( builder == null )
+					{
+						errorMessage = "Pairing with method " + methods[ i ] + " was canceled.";
+						return false;
+					}
+					builder.sourceImagePath( sourceImagePath )
+							.targetChannel1( ch1 )
+							.targetChannel2( ch2 );
+					pairings.put( methods[ i ], builder.get() );
+					logger.log( "Method " + methods[ i ] + " done.\n" );
+				}
+			}
+			finally
+			{
+				// Stop the methods still running if one failed.
+				if ( pairings.size() < methods.length )
+				{
+					context.cancel( "Another pairing method failed." );
+					for ( final Future< Builder > future : futures )
+						future.cancel( true );
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			errorMessage = "Pairing comparison interrupted.";
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			errorMessage = "Error while running pairing methods: " + e.getCause().getMessage();
+			return false;
+		}
+		finally
+		{
+			methodExecutor.shutdownNow();
+		}
+
+		output = new Result( pairings );
+		return true;
+	}
+
+	@Override
+	public Result getResult()
+	{
+		return output;
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * The pairing results of all methods and their comparison.
+	 */
+	public static class Result
+	{
+
+		private final Map< PairingMethods, Pairing > pairings;
+
+		private Result( final Map< PairingMethods, Pairing > pairings )
+		{
+			this.pairings = Collections.unmodifiableMap( pairings );
+		}
+
+		/**
+		 * Returns the pairing produced by each method.
+		 */
+		public Map< PairingMethods, Pairing > getPairings()
+		{
+			return pairings;
+		}
+
+		/**
+		 * Returns the mean distance between all the spots paired by the
+		 * specified method, or 0 if it paired no spots.
+		 */
+		public double meanDistance( final PairingMethods method )
+		{
+			double sum = 0.;
+			int n = 0;
+			for ( final TrackPair trackPair : pairings.get( method ).pairs )
+			{
+				for ( final SpotPair pair : trackPair.paired )
+				{
+					sum += pair.distance();
+					n++;
+				}
+			}
+			return ( n == 0 ) ? 0. : sum / n;
+		}
+
+		/**
+		 * Returns the number of spots paired by the specified method.
+		 */
+		public int nSpotPairs( final PairingMethods method )
+		{
+			int n = 0;
+			for ( final TrackPair trackPair : pairings.get( method ).pairs )
+				n += trackPair.paired.size();
+			return n;
+		}
+
+		/**
+		 * Returns the number of track pairs two methods have in common.
+		 */
+		public int nCommonPairs( final PairingMethods method1, final PairingMethods method2 )
+		{
+			final Set< String > names1 = pairNames( pairings.get( method1 ) );
+			final Set< String > names2 = pairNames( pairings.get( method2 ) );
+			names1.retainAll( names2 );
+			return names1.size();
+		}
+
+		/**
+		 * Returns the Jaccard index between the track pairs of two methods:
+		 * the number of pairs they have in common divided by the number of
+		 * distinct pairs they produce.
+		 */
+		public double agreement( final PairingMethods method1, final PairingMethods method2 )
+		{
+			final Set< String > names1 = pairNames( pairings.get( method1 ) );
+			final Set< String > names2 = pairNames( pairings.get( method2 ) );
+			final int n1 = names1.size();
+			names1.retainAll( names2 );
+			final int union = n1 + names2.size() - names1.size();
+			return ( union == 0 ) ? 1. : ( double ) names1.size() / union;
+		}
+
+		/**
+		 * Returns a table with one line per method, summarizing its results.
+		 */
+		public List< String[] > summaryToCsv()
+		{
+			final List< String[] > strs = new ArrayList<>();
+			strs.add( new String[] {
+					"Method",
+					"N_track_pairs",
+					"N_unmatched_tracks_1",
+					"N_unmatched_tracks_2",
+					"N_spot_pairs",
+					"Mean_distance" } );
+			for ( final PairingMethods method : pairings.keySet() )
+			{
+				final Pairing pairing = pairings.get( method );
+				strs.add( new String[] {
+						method.name(),
+						Integer.toString( pairing.pairs.size() ),
+						Integer.toString( pairing.unmatchedTracks1.size() ),
+						Integer.toString( pairing.unmatchedTracks2.size() ),
+						Integer.toString( nSpotPairs( method ) ),
+						Double.toString( meanDistance( method ) ) } );
+			}
+			return strs;
+		}
+
+		/**
+		 * Returns a table with one line per couple of methods, reporting how
+		 * many track pairs they have in common and their agreement.
+		 */
+		public List< String[] > agreementToCsv()
+		{
+			final List< String[] > strs = new ArrayList<>();
+			strs.add( new String[] {
+					"Method_1",
+					"Method_2",
+					"N_common_track_pairs",
+					"Agreement" } );
+			final List< PairingMethods > methods = new ArrayList<>( pairings.keySet() );
+			for ( int i = 0; i < methods.size(); i++ )
+			{
+				for ( int j = i + 1; j < methods.size(); j++ )
+				{
+					final PairingMethods m1 = methods.get( i );
+					final PairingMethods m2 = methods.get( j );
+					strs.add( new String[] {
+							m1.name(),
+							m2.name(),
+							Integer.toString( nCommonPairs( m1, m2 ) ),
+							Double.toString( agreement( m1, m2 ) ) } );
+				}
+			}
+			return strs;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder( super.toString() );
+			for ( final PairingMethods method : pairings.keySet() )
+			{
+				final Pairing pairing = pairings.get( method );
+				str.append( String.format( "\n - %s: %d pairs, %d + %d unmatched, %d spot pairs, mean dist = %.2f %s",
+						method,
+						pairing.pairs.size(),
+						pairing.unmatchedTracks1.size(),
+						pairing.unmatchedTracks2.size(),
+						nSpotPairs( method ),
+						meanDistance( method ),
+						pairing.units ) );
+			}
+			str.append( "\nAgreement between methods:" );
+			final List< String[] > agreement = agreementToCsv();
+			for ( final String[] line : agreement.subList( 1, agreement.size() ) )
+				str.append( "\n - " + Arrays.toString( line ) );
+			return str.toString();
+		}
+
+		private static Set< String > pairNames( final Pairing pairing )
+		{
+			final Set< String > names = new HashSet<>();
+			for ( final TrackPair pair : pairing.pairs )
+				names.add( pair.getName() );
+			return names;
+		}
+	}
+}
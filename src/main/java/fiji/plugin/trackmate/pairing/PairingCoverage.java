@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+
+/**
+ * Describes how much of the candidates a pairing run under a time budget
+ * could examine.
+ * <p>
+ * Under a time budget, the pairing methods examine their candidates from the
+ * most promising to the least, and stop when the budget expires. The items
+ * they examine depend on the method: first tracks for most of them, frames
+ * for the methods that pair spots frame by frame. The pairing is then made on
+ * the items examined so far. The first tracks not examined are reported as
+ * unmatched, although they may have a partner in the second model, and the
+ * second tracks that would have been paired with them are reported as
+ * unmatched too.
+ * <p>
+ * Reading the files counts in the time budget. If it uses up the budget,
+ * nothing is examined and all tracks are reported as unmatched.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PairingCoverage
+{
+
+	/** The time budget, in milliseconds. */
+	public final long timeBudget;
+
+	/** The time the pairing took, in milliseconds, reading included. */
+	public final long elapsed;
+
+	/** The time spent reading the files, in milliseconds. */
+	public final long readingTime;
+
+	/** The number of items the method had to examine. */
+	public final int nItems;
+
+	/** The number of items examined before the time budget expired. */
+	public final int nExaminedItems;
+
+	/** What the items are, for instance "first tracks" or "frames". */
+	public final String items;
+
+	private PairingCoverage( final long timeBudget, final long elapsed, final long readingTime, final int nItems, final int nExaminedItems, final String items )
+	{
+		this.timeBudget = timeBudget;
+		this.elapsed = elapsed;
+		this.readingTime = readingTime;
+		this.nItems = nItems;
+		this.nExaminedItems = nExaminedItems;
+		this.items = items;
+	}
+
+	/**
+	 * Returns the coverage reported by the method last run in the specified
+	 * context.
+	 *
+	 * @param context
+	 *            the pairing context, with a time budget.
+	 * @param timeBudget
+	 *            the time budget, in milliseconds.
+	 * @param elapsed
+	 *            the time the pairing took, in milliseconds.
+	 * @param readingTime
+	 *            the time spent reading the files, in milliseconds.
+	 * @return a new coverage, or <code>null</code> if the method did not
+	 *         report it.
+	 */
+	public static PairingCoverage of( final PairingContext context, final long timeBudget, final long elapsed, final long readingTime )
+	{
+		final PairingContext.Coverage coverage = context.getCoverage();
+		if ( coverage == null )
+			return null;
+		return new PairingCoverage( timeBudget, elapsed, readingTime, coverage.nItems, coverage.nExamined, coverage.items );
+	}
+
+	/**
+	 * Returns <code>true</code> if the time budget expired before all items
+	 * were examined.
+	 */
+	public boolean isPartial()
+	{
+		return nExaminedItems < nItems;
+	}
+
+	/**
+	 * Returns the fraction of items examined.
+	 */
+	public double fraction()
+	{
+		return ( nItems == 0 ) ? 1. : ( double ) nExaminedItems / nItems;
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( !isPartial() )
+			return String.format( "Complete pairing in %d ms, within the time budget of %d ms.", elapsed, timeBudget );
+		if ( nExaminedItems == 0 && readingTime >= timeBudget )
+			return String.format( "Empty pairing: reading the files took %d ms, the whole time budget of %d ms. "
+					+ "None of the %d %s was examined, and all tracks are reported as unmatched.",
+					readingTime, timeBudget, nItems, items );
+		return String.format( "Partial pairing after %d ms, for a time budget of %d ms, %d ms of which reading the files: "
+				+ "%d of %d %s examined (%.1f%%).",
+				elapsed, timeBudget, readingTime, nExaminedItems, nItems, items, 100. * fraction() );
+	}
+}
@@ -21,80 +21,219 @@
  */
 package fiji.plugin.trackmate.pairing;
 
-import java.util.Collection;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
-import org.jfree.data.xy.DefaultXYDataset;
 import org.scijava.util.DoubleArray;
 
-import fiji.plugin.trackmate.Model;
-import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.TrackModel;
-import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex.FrameIndex;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.algorithm.OutputAlgorithm;
 
-public class PairingCumulativeHistogram extends AbstractPairing implements OutputAlgorithm< DefaultXYDataset >
+/**
+ * Computes the cumulative histogram of the distances between the spots of two
+ * TrackMate files.
+ * <p>
+ * For each spot of the first file and each track of the second file that has
+ * spots in the same frame, the distance to the closest of these spots is
+ * measured. Frames are processed in random order and in batches of growing
+ * size. After each batch, the histogram of the distances measured so far is
+ * published to the listener, if any: it is the histogram of a random
+ * subsample of frames, that converges to the final one. With a frame
+ * sampling, only the sampled frames are measured.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingCumulativeHistogram extends AbstractPairing implements OutputAlgorithm< CumulativeHistogramDataset >, MultiThreaded
 {
 
-	private DefaultXYDataset output;
+	/**
+	 * Interface for listeners notified of the intermediate histograms.
+	 */
+	@FunctionalInterface
+	public static interface Listener
+	{
+
+		/**
+		 * Called after each batch of frames, from the thread running the
+		 * computation.
+		 * 
+		 * @param dataset
+		 *            the histogram of the distances measured so far.
+		 * @param progress
+		 *            the fraction of frames processed, between 0 and 1.
+		 */
+		public void histogramUpdated( CumulativeHistogramDataset dataset, double progress );
+	}
+
+	/** Fraction of frames in the first batch. */
+	private static final int FIRST_BATCH_DIVISOR = 32;
+
+	private CumulativeHistogramDataset output;
 
 	private String units;
 
+	private Listener listener;
+
+	private int numThreads;
+
+	private long seed = 0l;
+
 	public PairingCumulativeHistogram( final String xml1, final String xml2 )
 	{
 		super( xml1, xml2 );
+		setNumThreads();
 	}
 
 	@Override
 	public boolean process()
 	{
 		/*
-		 * Read models.
+		 * Read files.
 		 */
 
-		final Model model1 = readModel( xml1 );
-		if ( model1 == null )
+		final Input input = readInput( false, numThreads );
+		if ( input == null )
 			return false;
 
-		this.units = model1.getSpaceUnits();
-
-		final Model model2 = readModel( xml2 );
-		if ( model2 == null )
-			return false;
+		this.units = input.spaceUnits;
 
 		/*
-		 * Build pair data structure.
+		 * Measure distances frame by frame.
 		 */
 
-		final TrackModel tm1 = model1.getTrackModel();
-		final TrackModel tm2 = model2.getTrackModel();
-
-		final DoubleArray arr = new DoubleArray();
-		for ( final Integer id1 : tm1.unsortedTrackIDs( true ) )
+		try (final PairingContext context = input.context( Double.POSITIVE_INFINITY )
+				.numThreads( numThreads )
+				.get())
 		{
-			final Set< Spot > track1 = tm1.trackSpots( id1 );
-			for ( final Integer id2 : tm2.unsortedTrackIDs( true ) )
+			final FrameSpatialIndex index1 = context.getSpatialIndex1();
+			final FrameSpatialIndex index2 = context.getSpatialIndex2();
+			final int nTracks2 = index2.getTracks().size();
+
+			// Sampled frames with spots in both models, in random order.
+			final List< Integer > frames = new ArrayList<>();
+			for ( int t = Math.max( index1.minFrame(), index2.minFrame() ); t <= Math.min( index1.maxFrame(), index2.maxFrame() ); t++ )
+				if ( frameSampling.accepts( t ) && index1.nSpots( t ) > 0 && index2.nSpots( t ) > 0 )
+					frames.add( t );
+			Collections.shuffle( frames, new Random( seed ) );
+
+			final DoubleArray[] perFrame = new DoubleArray[ frames.size() ];
+			final ThreadLocal< double[] > closests = ThreadLocal.withInitial( () -> new double[ nTracks2 ] );
+			final DoubleArray arr = new DoubleArray();
+			int done = 0;
+			int batch = Math.max( 1, frames.size() / FIRST_BATCH_DIVISOR );
+			while ( done < frames.size() )
 			{
-				final Set< Spot > track2 = tm2.trackSpots( id2 );
-				final Collection< SpotPair > commons = commonSpots( track1, track2, Double.POSITIVE_INFINITY );
-
-				for ( final SpotPair pair : commons )
+				final int from = done;
+				final int to = Math.min( frames.size(), done + batch );
+				context.parallelFor( to - from, k -> perFrame[ from + k ] = distances(
+						index1.frame( frames.get( from + k ) ),
+						index2.frame( frames.get( from + k ) ),
+						context.getZScale(),
+						closests.get() ) );
+				for ( int k = from; k < to; k++ )
 				{
-					final double d = pair.distance();
-					arr.addValue( d );
+					arr.ensureCapacity( arr.size() + perFrame[ k ].size() );
+					for ( int i = 0; i < perFrame[ k ].size(); i++ )
+						arr.addValue( perFrame[ k ].getValue( i ) );
+					perFrame[ k ] = null;
 				}
+				done = to;
+				batch *= 2;
+
+				if ( listener != null && done < frames.size() )
+					listener.histogramUpdated( new CumulativeHistogramDataset( arr.copyArray() ), ( double ) done / frames.size() );
 			}
+			output = new CumulativeHistogramDataset( arr.copyArray() );
 		}
 
-		output = CumulativeHistogram.toCumulativeHistogram( arr );
+		if ( listener != null )
+			listener.histogramUpdated( output, 1. );
 		return true;
 	}
 
+	/**
+	 * For each spot of the first frame and each track of the second frame,
+	 * the distance to the closest spot of this track.
+	 */
+	private static DoubleArray distances( final FrameIndex frame1, final FrameIndex frame2, final double zScale, final double[] closests )
+	{
+		final DoubleArray out = new DoubleArray();
+		final int n2 = frame2.size();
+		final double[] d2s = new double[ n2 ];
+		for ( int i = 0; i < frame1.size(); i++ )
+		{
+			DistanceKernels.squareDistances(
+					frame1.xs[ i ], frame1.ys[ i ], frame1.zs[ i ],
+					frame2.xs, frame2.ys, frame2.zs, 0, n2, zScale, d2s );
+			for ( int l = 0; l < n2; l++ )
+				closests[ frame2.trackIndices[ l ] ] = Double.POSITIVE_INFINITY;
+			for ( int l = 0; l < n2; l++ )
+			{
+				final double d2 = d2s[ l ];
+				final int j = frame2.trackIndices[ l ];
+				if ( d2 < closests[ j ] )
+					closests[ j ] = d2;
+			}
+			for ( int l = 0; l < n2; l++ )
+			{
+				final int j = frame2.trackIndices[ l ];
+				if ( closests[ j ] < Double.POSITIVE_INFINITY )
+				{
+					out.addValue( Math.sqrt( closests[ j ] ) );
+					// Count each track once.
+					closests[ j ] = Double.POSITIVE_INFINITY;
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Sets the listener notified of the intermediate histograms.
+	 */
+	public void setListener( final Listener listener )
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the seed of the random order in which frames are processed.
+	 */
+	public void setSeed( final long seed )
+	{
+		this.seed = seed;
+	}
+
 	public String getUnits()
 	{
 		return units;
 	}
 
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
@@ -102,7 +241,7 @@ public class PairingCumulativeHistogram extends AbstractPairing implements Outpu
 	}
 
 	@Override
-	public DefaultXYDataset getResult()
+	public CumulativeHistogramDataset getResult()
 	{
 		return output;
 	}
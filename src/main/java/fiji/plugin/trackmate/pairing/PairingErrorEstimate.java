@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * Estimates how many track assignments of an approximate pairing might
+ * change in the exact one.
+ * <p>
+ * With a fraction <code>p</code> of the frames sampled, the number of spot
+ * pairs of each candidate track pair is roughly a binomial sample of the
+ * exact number. For each first track, the estimate considers its two best
+ * candidates, with <code>a</code> and <code>b</code> sampled spot pairs. The
+ * sign of the exact difference is estimated to be wrong with a probability
+ * of <code>&Phi;(-(a - b) / &radic;((a + b)(1 - p)))</code>. These
+ * probabilities are summed over the first tracks. First tracks that have
+ * spots but none in the sampled frames cannot be scored at all, and are all
+ * counted as possibly changed.
+ * <p>
+ * The estimate applies to the methods that score track pairs by their
+ * number of spot pairs. It ignores the knock-on effects of the greedy
+ * assignment, and should be read as an order of magnitude.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PairingErrorEstimate
+{
+
+	/** The fraction of frames used by the approximate pairing. */
+	public final double fraction;
+
+	/** The number of first tracks. */
+	public final int nTracks;
+
+	/** The expected number of first tracks whose assignment might change. */
+	public final double expectedChanges;
+
+	/** The number of first tracks without spots in the sampled frames. */
+	public final int nUnsampledTracks;
+
+	private PairingErrorEstimate( final double fraction, final int nTracks, final double expectedChanges, final int nUnsampledTracks )
+	{
+		this.fraction = fraction;
+		this.nTracks = nTracks;
+		this.expectedChanges = expectedChanges;
+		this.nUnsampledTracks = nUnsampledTracks;
+	}
+
+	/**
+	 * Estimates the error of a pairing derived from the specified graph.
+	 *
+	 * @param graph
+	 *            the candidate graph, built with a frame sampling.
+	 * @param maxPairingDistance
+	 *            the max pairing distance of the pairing.
+	 * @return a new estimate.
+	 */
+	public static PairingErrorEstimate of( final CandidateGraph graph, final double maxPairingDistance )
+	{
+		final FrameSampling sampling = graph.getFrameSampling();
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final double p = sampling.fraction();
+		if ( sampling.isAll() )
+			return new PairingErrorEstimate( p, tracks1.size(), 0., 0 );
+
+		double expected = 0.;
+		int nUnsampled = 0;
+		for ( int i = 0; i < tracks1.size(); i++ )
+		{
+			final SpotCoordinates track = tracks1.track( i );
+			if ( track.size() > 0 && !isSampled( track, sampling ) )
+			{
+				nUnsampled++;
+				continue;
+			}
+
+			int a = 0;
+			int b = 0;
+			for ( int e = graph.edgesStart( i ); e < graph.edgesEnd( i ); e++ )
+			{
+				final int n = graph.nPairs( e, maxPairingDistance );
+				if ( n > a )
+				{
+					b = a;
+					a = n;
+				}
+				else if ( n > b )
+				{
+					b = n;
+				}
+			}
+			if ( a == 0 )
+				continue;
+			expected += normalTail( ( a - b ) / Math.sqrt( ( a + b ) * ( 1. - p ) ) );
+		}
+		return new PairingErrorEstimate( p, tracks1.size(), expected + nUnsampled, nUnsampled );
+	}
+
+	private static boolean isSampled( final SpotCoordinates track, final FrameSampling sampling )
+	{
+		for ( final int frame : track.frames )
+			if ( sampling.accepts( frame ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns <code>&Phi;(-z)</code>, the probability that a standard normal
+	 * variable is larger than <code>z</code>, for <code>z &ge; 0</code>. Uses
+	 * the approximation 7.1.26 of Abramowitz and Stegun, accurate to 1e-7.
+	 */
+	private static double normalTail( final double z )
+	{
+		final double x = z / Math.sqrt( 2. );
+		final double t = 1. / ( 1. + 0.3275911 * x );
+		final double poly = t * ( 0.254829592 + t * ( -0.284496736 + t * ( 1.421413741 + t * ( -1.453152027 + t * 1.061405429 ) ) ) );
+		return 0.5 * poly * Math.exp( -x * x );
+	}
+
+	/**
+	 * Returns the expected fraction of first tracks whose assignment might
+	 * change.
+	 */
+	public double expectedChangeFraction()
+	{
+		return ( nTracks == 0 ) ? 0. : expectedChanges / nTracks;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "Approximate pairing on %.0f%% of frames: about %.0f of %d assignments (%.1f%%) might change in the exact pairing.",
+				100. * fraction, expectedChanges, nTracks, 100. * expectedChangeFraction() );
+	}
+}
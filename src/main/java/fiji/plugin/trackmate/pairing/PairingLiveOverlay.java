@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import fiji.plugin.trackmate.pairing.PairingSession.Update;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+
+/**
+ * The overlay of a pairing preview that follows the successive pairings of a
+ * {@link PairingSession}.
+ * <p>
+ * The overlay is made of the lightweight {@link PairingOverlay} layers, that
+ * are rebuilt from the pairing of an update only if the update changed
+ * something. The colors and groups are the same as in
+ * {@link PairingPreviewCreator#preview2D(Pairing, ImagePlus)}.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingLiveOverlay
+{
+
+	private final ImagePlus output;
+
+	private final double[] calibration;
+
+	/**
+	 * Creates a live overlay.
+	 * 
+	 * @param output
+	 *            the image to draw on, as returned by
+	 *            {@link PairingPreviewCreator#project(ImagePlus)}.
+	 * @param source
+	 *            the source image, used to read the spatial calibration.
+	 */
+	public PairingLiveOverlay( final ImagePlus output, final ImagePlus source )
+	{
+		this.output = output;
+		this.calibration = TMUtils.getSpatialCalibration( source );
+	}
+
+	/**
+	 * Updates the overlay with the pairing of the specified update, and sets
+	 * it on the output image.
+	 */
+	public void apply( final Update update )
+	{
+		if ( update.isEmpty() && output.getOverlay() != null )
+			return;
+
+		final Overlay overlay = new Overlay();
+		PairingOverlay.addTo( overlay, update.pairing, output, calibration );
+		output.setOverlay( overlay );
+	}
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+/**
+ * A lightweight overlay layer that paints the spots of a pairing.
+ * <p>
+ * Instead of one ROI per spot, line and label, a layer is a single ROI that
+ * stores the spots it paints in primitive arrays indexed by frame. When the
+ * image is repainted, only the spots of the frame currently displayed that
+ * are in the visible part of the image are painted. A pairing is displayed
+ * with three layers, with the same colors and groups as the preview used to
+ * have: the unmatched tracks of the first model in cyan (group 0), the
+ * unmatched tracks of the second model in magenta (group 1) and the paired
+ * spots in white (group 2).
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingOverlay extends Roi
+{
+
+	private static final long serialVersionUID = 1L;
+
+	static final Color COLOR1 = Color.CYAN;
+
+	static final Color COLOR2 = Color.MAGENTA;
+
+	static final Color COLOR3 = Color.WHITE;
+
+	static final int FONT_SIZE = 6;
+
+	/**
+	 * How far left of the visible area, in image pixels, spots are still
+	 * painted, because their label might be visible.
+	 */
+	private static final double LABEL_MARGIN = 10. * FONT_SIZE;
+
+	/** Labels are not painted below this font size on screen. */
+	private static final double MIN_SCREEN_FONT_SIZE = 3.;
+
+	private final boolean paired;
+
+	/** Entries of frame <code>t</code> are from frameStarts[t] to frameStarts[t+1]. */
+	private final int[] frameStarts;
+
+	private final float[] xs1;
+
+	private final float[] ys1;
+
+	private final float[] rs1;
+
+	private final float[] xs2;
+
+	private final float[] ys2;
+
+	private final float[] rs2;
+
+	private final String[] labels;
+
+	private PairingOverlay( final Entries entries, final boolean paired, final int width, final int height, final Color color, final int group )
+	{
+		super( 0, 0, width, height );
+		this.paired = paired;
+		setStrokeColor( color );
+		setGroup( group );
+
+		/*
+		 * Count entries per frame.
+		 */
+
+		final int[][] countsRef = new int[][] { new int[ 16 ] };
+		entries.forEach( ( frame, x1, y1, r1, x2, y2, r2, label ) -> {
+			if ( frame >= countsRef[ 0 ].length )
+				countsRef[ 0 ] = Arrays.copyOf( countsRef[ 0 ], Math.max( frame + 1, 2 * countsRef[ 0 ].length ) );
+			countsRef[ 0 ][ frame ]++;
+		} );
+		final int[] perFrame = countsRef[ 0 ];
+		this.frameStarts = new int[ perFrame.length + 1 ];
+		for ( int t = 0; t < perFrame.length; t++ )
+			frameStarts[ t + 1 ] = frameStarts[ t ] + perFrame[ t ];
+
+		/*
+		 * Fill arrays.
+		 */
+
+		final int n = frameStarts[ perFrame.length ];
+		this.xs1 = new float[ n ];
+		this.ys1 = new float[ n ];
+		this.rs1 = new float[ n ];
+		this.xs2 = paired ? new float[ n ] : xs1;
+		this.ys2 = paired ? new float[ n ] : ys1;
+		this.rs2 = paired ? new float[ n ] : rs1;
+		this.labels = new String[ n ];
+		final int[] next = Arrays.copyOf( frameStarts, perFrame.length );
+		entries.forEach( ( frame, x1, y1, r1, x2, y2, r2, label ) -> {
+			final int k = next[ frame ]++;
+			xs1[ k ] = ( float ) x1;
+			ys1[ k ] = ( float ) y1;
+			rs1[ k ] = ( float ) r1;
+			xs2[ k ] = ( float ) x2;
+			ys2[ k ] = ( float ) y2;
+			rs2[ k ] = ( float ) r2;
+			labels[ k ] = label;
+		} );
+	}
+
+	@Override
+	public void drawOverlay( final Graphics g )
+	{
+		if ( imp == null )
+			return;
+		final ImageCanvas canvas = imp.getCanvas();
+		if ( canvas == null )
+			return;
+
+		final int frame = imp.convertIndexToPosition( imp.getCurrentSlice() )[ 2 ] - 1;
+		draw( ( Graphics2D ) g, frame, canvas.getSrcRect(), canvas.getMagnification() );
+	}
+
+	/**
+	 * Paints the spots of the specified frame that are in the specified
+	 * visible area.
+	 * 
+	 * @param g2d
+	 *            the graphics to paint on.
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @param srcRect
+	 *            the visible area, in image pixels. Its top left corner is
+	 *            painted at (0, 0).
+	 * @param magnification
+	 *            the magnification from image pixels to graphics units.
+	 */
+	public void draw( final Graphics2D g2d, final int frame, final Rectangle srcRect, final double magnification )
+	{
+		if ( frame < 0 || frame >= frameStarts.length - 1 )
+			return;
+		final int start = frameStarts[ frame ];
+		final int end = frameStarts[ frame + 1 ];
+		if ( start == end )
+			return;
+
+		final double xcorner = srcRect.x;
+		final double ycorner = srcRect.y;
+		final double xmin = xcorner - LABEL_MARGIN;
+		final double xmax = xcorner + srcRect.width;
+		final double ymin = ycorner - FONT_SIZE;
+		final double ymax = ycorner + srcRect.height + FONT_SIZE;
+
+		final Color originalColor = g2d.getColor();
+		final Font originalFont = g2d.getFont();
+		g2d.setColor( getStrokeColor() );
+		final double screenFontSize = FONT_SIZE * magnification;
+		final boolean drawLabels = screenFontSize >= MIN_SCREEN_FONT_SIZE;
+		g2d.setFont( originalFont.deriveFont( ( float ) screenFontSize ) );
+		final FontMetrics fm = g2d.getFontMetrics();
+		final double labelOffset = fm.getAscent() / 2.;
+
+		for ( int k = start; k < end; k++ )
+		{
+			final double x1 = xs1[ k ];
+			final double y1 = ys1[ k ];
+			final double r1 = rs1[ k ];
+			final double x2 = xs2[ k ];
+			final double y2 = ys2[ k ];
+			final double r2 = rs2[ k ];
+
+			// Bounding box against visible area.
+			if ( Math.max( x1 + r1, x2 + r2 ) < xmin
+					|| Math.min( x1 - r1, x2 - r2 ) > xmax
+					|| Math.max( y1 + r1, y2 + r2 ) < ymin
+					|| Math.min( y1 - r1, y2 - r2 ) > ymax )
+				continue;
+
+			final double sx1 = ( x1 - xcorner ) * magnification;
+			final double sy1 = ( y1 - ycorner ) * magnification;
+			final double sr1 = r1 * magnification;
+			g2d.drawOval( ( int ) Math.round( sx1 - sr1 ), ( int ) Math.round( sy1 - sr1 ),
+					( int ) Math.round( 2 * sr1 ), ( int ) Math.round( 2 * sr1 ) );
+
+			final double sx2 = ( x2 - xcorner ) * magnification;
+			final double sy2 = ( y2 - ycorner ) * magnification;
+			if ( paired )
+			{
+				final double sr2 = r2 * magnification;
+				g2d.drawOval( ( int ) Math.round( sx2 - sr2 ), ( int ) Math.round( sy2 - sr2 ),
+						( int ) Math.round( 2 * sr2 ), ( int ) Math.round( 2 * sr2 ) );
+				g2d.drawLine( ( int ) Math.round( sx1 ), ( int ) Math.round( sy1 ),
+						( int ) Math.round( sx2 ), ( int ) Math.round( sy2 ) );
+			}
+
+			if ( drawLabels )
+			{
+				// Right of the rightmost spot, vertically centered on it.
+				final double mx1 = x1 + r1 + 1.5;
+				final double mx2 = x2 + r2 + 1.5;
+				final double mx = Math.max( mx1, mx2 );
+				final double my = ( mx1 > mx2 ) ? y1 : y2;
+				g2d.drawString( labels[ k ],
+						( float ) ( ( mx - xcorner ) * magnification ),
+						( float ) ( ( my - ycorner ) * magnification + labelOffset ) );
+			}
+		}
+
+		g2d.setColor( originalColor );
+		g2d.setFont( originalFont );
+	}
+
+	/**
+	 * Returns the number of spots or spot pairs painted by this layer.
+	 */
+	public int size()
+	{
+		return labels.length;
+	}
+
+	/**
+	 * Adds the layers that paint the specified pairing to the specified
+	 * overlay.
+	 * 
+	 * @param overlay
+	 *            the overlay to add the layers to.
+	 * @param pairing
+	 *            the pairing to paint.
+	 * @param output
+	 *            the image the overlay is painted on.
+	 * @param calibration
+	 *            the spatial calibration of the image the spots were detected
+	 *            in.
+	 */
+	public static void addTo( final Overlay overlay, final Pairing pairing, final ImagePlus output, final double[] calibration )
+	{
+		for ( final PairingOverlay layer : layers( pairing, output, calibration ) )
+			overlay.add( layer );
+	}
+
+	/**
+	 * Returns the layers that paint the specified pairing, in painting order.
+	 * 
+	 * @param pairing
+	 *            the pairing to paint.
+	 * @param output
+	 *            the image the layers are painted on.
+	 * @param calibration
+	 *            the spatial calibration of the image the spots were detected
+	 *            in.
+	 * @return a new list of layers.
+	 */
+	public static List< PairingOverlay > layers( final Pairing pairing, final ImagePlus output, final double[] calibration )
+	{
+		final int width = output.getWidth();
+		final int height = output.getHeight();
+		return Arrays.asList(
+				new PairingOverlay( unmatched( pairing.unmatchedTracks1, calibration ), false, width, height, COLOR1, 0 ),
+				new PairingOverlay( unmatched( pairing.unmatchedTracks2, calibration ), false, width, height, COLOR2, 1 ),
+				new PairingOverlay( matched( pairing.pairs, calibration ), true, width, height, COLOR3, 2 ) );
+	}
+
+	private static Entries unmatched( final Map< Integer, Collection< Spot > > tracks, final double[] calibration )
+	{
+		return visitor -> {
+			for ( final Integer id : tracks.keySet() )
+			{
+				final String label = id.toString();
+				for ( final Spot spot : tracks.get( id ) )
+				{
+					final double x = spot.getDoublePosition( 0 ) / calibration[ 0 ];
+					final double y = spot.getDoublePosition( 1 ) / calibration[ 1 ];
+					final double r = spot.getFeature( Spot.RADIUS ).doubleValue() / calibration[ 0 ];
+					visitor.visit( spot.getFeature( Spot.FRAME ).intValue(), x, y, r, x, y, r, label );
+				}
+			}
+		};
+	}
+
+	private static Entries matched( final Collection< TrackPair > pairs, final double[] calibration )
+	{
+		return visitor -> {
+			for ( final TrackPair trackPair : pairs )
+			{
+				final String label = trackPair.getName();
+				for ( final SpotPair pair : trackPair.paired )
+				{
+					visitor.visit( pair.s1.getFeature( Spot.FRAME ).intValue(),
+							pair.s1.getDoublePosition( 0 ) / calibration[ 0 ],
+							pair.s1.getDoublePosition( 1 ) / calibration[ 1 ],
+							pair.s1.getFeature( Spot.RADIUS ).doubleValue() / calibration[ 0 ],
+							pair.s2.getDoublePosition( 0 ) / calibration[ 0 ],
+							pair.s2.getDoublePosition( 1 ) / calibration[ 1 ],
+							pair.s2.getFeature( Spot.RADIUS ).doubleValue() / calibration[ 0 ],
+							label );
+				}
+			}
+		};
+	}
+
+	/*
+	 * Source of the entries of a layer, that can be iterated several times.
+	 */
+
+	@FunctionalInterface
+	private static interface EntryVisitor
+	{
+		public void visit( int frame, double x1, double y1, double r1, double x2, double y2, double r2, String label );
+	}
+
+	@FunctionalInterface
+	private static interface Entries
+	{
+		public void forEach( EntryVisitor visitor );
+	}
+}
@@ -21,38 +21,45 @@
  */
 package fiji.plugin.trackmate.pairing;
 
-import java.awt.Color;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map;
 
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.io.TmXmlReader;
 import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
 import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.io.TrackMateFiles;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Line;
-import ij.gui.OvalRoi;
 import ij.gui.Overlay;
-import ij.gui.TextRoi;
-import ij.plugin.ZProjector;
 
 public class PairingPreviewCreator
 {
 
-	private static final Color COLOR1 = Color.CYAN;
-
-	private static final Color COLOR2 = Color.MAGENTA;
-
-	private static final Color COLOR3 = Color.WHITE;
-
-	private static final int FONT_SIZE = 6;
-
+	/**
+	 * Opens the image referenced in the specified TrackMate file.
+	 * <p>
+	 * If the image is a TIFF file, it is opened as a virtual stack, and only
+	 * the planes displayed are read from disk. Otherwise the image is opened
+	 * by the TrackMate reader, and loaded in memory.
+	 * 
+	 * @param xml
+	 *            the path to the TrackMate file.
+	 * @return the image, or <code>null</code> if it cannot be opened.
+	 */
 	public static ImagePlus openImage( final String xml )
 	{
-		final TmXmlReader reader = new TmXmlReader( new File( xml ) );
+		final String imagePath = AbstractPairing.imagePath( xml );
+		if ( imagePath != null && new File( imagePath ).canRead() )
+		{
+			final ImagePlus imp = IJ.openVirtual( imagePath );
+			if ( imp != null )
+				return imp;
+		}
+
+		final TmXmlReader reader = TrackMateFiles.reader( new File( xml ) );
 		if ( !reader.isReadingOk() )
 		{
 			IJ.error( reader.getErrorMessage() );
@@ -61,17 +68,90 @@ public class PairingPreviewCreator
 		return reader.readImage();
 	}
 
+	/**
+	 * Opens the image referenced in the specified TrackMate file, to preview
+	 * the specified pairing. All the planes of the image are read.
+	 * 
+	 * @param xml
+	 *            the path to the TrackMate file.
+	 * @param pairing
+	 *            the pairing to preview.
+	 * @return the image, or <code>null</code> if it cannot be opened.
+	 * @see #openImage(String, Pairing, boolean)
+	 */
+	public static ImagePlus openImage( final String xml, final Pairing pairing )
+	{
+		return openImage( xml, pairing, false );
+	}
+
+	/**
+	 * Opens the image referenced in the specified TrackMate file, to preview
+	 * the specified pairing.
+	 * <p>
+	 * If <code>maskUnusedPlanes</code> is <code>true</code>, only the planes
+	 * that are needed to preview the pairing are read: the planes of the two
+	 * target channels, at the timepoints where there are paired or unmatched
+	 * spots. The other planes are blank. The dimensions of the image, and the
+	 * channel colors of a composite image, are unchanged.
+	 * 
+	 * @param xml
+	 *            the path to the TrackMate file.
+	 * @param pairing
+	 *            the pairing to preview.
+	 * @param maskUnusedPlanes
+	 *            whether to skip reading the planes that are not needed for
+	 *            the preview.
+	 * @return the image, or <code>null</code> if it cannot be opened.
+	 */
+	public static ImagePlus openImage( final String xml, final Pairing pairing, final boolean maskUnusedPlanes )
+	{
+		final ImagePlus imp = openImage( xml );
+		if ( imp == null || !maskUnusedPlanes )
+			return imp;
+
+		final boolean[] channels = new boolean[ imp.getNChannels() ];
+		boolean anyChannel = false;
+		for ( final int ch : new int[] { pairing.getTargetChannel1(), pairing.getTargetChannel2() } )
+		{
+			if ( ch >= 1 && ch <= channels.length )
+			{
+				channels[ ch - 1 ] = true;
+				anyChannel = true;
+			}
+		}
+		// Unknown target channels: read them all.
+		if ( !anyChannel )
+			Arrays.fill( channels, true );
+
+		final boolean[] frames = new boolean[ imp.getNFrames() ];
+		for ( final TrackPair trackPair : pairing.pairs )
+		{
+			for ( final SpotPair pair : trackPair.paired )
+			{
+				markFrame( frames, pair.s1 );
+				markFrame( frames, pair.s2 );
+			}
+		}
+		for ( final Collection< Spot > track : pairing.unmatchedTracks1.values() )
+			for ( final Spot spot : track )
+				markFrame( frames, spot );
+		for ( final Collection< Spot > track : pairing.unmatchedTracks2.values() )
+			for ( final Spot spot : track )
+				markFrame( frames, spot );
+
+		return MaskedPlaneStack.mask( imp, channels, frames );
+	}
+
+	private static void markFrame( final boolean[] frames, final Spot spot )
+	{
+		final int t = spot.getFeature( Spot.FRAME ).intValue();
+		if ( t >= 0 && t < frames.length )
+			frames[ t ] = true;
+	}
+
 	public static ImagePlus preview2D( final Pairing pairing, final ImagePlus imp )
 	{
-		/*
-		 * Check if image is 3D. If yes make a MIP.
-		 */
-		final ImagePlus output;
-		final boolean is3D = imp.getNSlices() > 1;
-		if ( is3D )
-			output = ZProjector.run( imp, "max all" );
-		else
-			output = imp;
+		final ImagePlus output = project( imp );
 
 		/*
 		 * Create overlay.
@@ -86,130 +166,25 @@ public class PairingPreviewCreator
 		final double[] calibration = TMUtils.getSpatialCalibration( imp );
 
 		/*
-		 * Add unpaired tracks to overlay.
-		 */
-
-		addUnmatchedTracks( pairing.unmatchedTracks1, overlay, calibration, COLOR1, 0 );
-		addUnmatchedTracks( pairing.unmatchedTracks2, overlay, calibration, COLOR2, 1 );
-
-		/*
-		 * Add paired tracks to overlay.
+		 * Add unpaired and paired tracks to overlay.
 		 */
 
-		addMatchedTracks( pairing.pairs, overlay, calibration, COLOR3, 2 );
+		PairingOverlay.addTo( overlay, pairing, output, calibration );
 
 		return output;
 	}
 
-	private static void addMatchedTracks(
-			final Collection< TrackPair > pairs,
-			final Overlay overlay,
-			final double[] calibration,
-			final Color color,
-			final int group )
-	{
-		for ( final TrackPair trackPair : pairs )
-		{
-			for ( final SpotPair spotPair : trackPair.paired )
-			{
-				final OvalRoi roi1 = spotToRoi( spotPair.s1, calibration, color, group );
-				final OvalRoi roi2 = spotToRoi( spotPair.s2, calibration, color, group );
-				overlay.add( roi1 );
-				overlay.add( roi2 );
-				overlay.add( lineBetween( roi1, roi2, color, group ) );
-				overlay.add( annotate( trackPair.getName(), roi1, roi2, color, group ) );
-			}
-		}
-	}
-
-	private static final void addUnmatchedTracks(
-			final Map< Integer, Collection< Spot > > unmatchedTracks,
-			final Overlay overlay,
-			final double[] calibration,
-			final Color color,
-			final int group )
-	{
-		for ( final Integer id : unmatchedTracks.keySet() )
-		{
-			final Collection< Spot > track = unmatchedTracks.get( id );
-			for ( final Spot spot : track )
-			{
-				final OvalRoi roi = spotToRoi( spot, calibration, color, group );
-				overlay.add( roi );
-				overlay.add( annotate( "" + id, roi, roi, color, group ) );
-			}
-		}
-	}
-
-	private static TextRoi annotate( final String text, final OvalRoi roi1, final OvalRoi roi2, final Color color, final int group )
-	{
-		final double r1 = roi1.getFloatWidth() / 2.;
-		final double r2 = roi2.getFloatWidth() / 2.;
-		final double xc1 = roi1.getXBase() + r1;
-		final double yc1 = roi1.getYBase() + r1;
-		final double xc2 = roi2.getXBase() + r2;
-		final double yc2 = roi2.getYBase() + r2;
-
-		final double mx1 = xc1 + r1 + 1.5;
-		final double mx2 = xc2 + r2 + 1.5;
-		final double mx;
-		final double my;
-		if ( mx1 > mx2 )
-		{
-			mx = mx1;
-			my = yc1;
-		}
-		else
-		{
-			mx = mx2;
-			my = yc2;
-		}
-		final TextRoi roi = new TextRoi( mx, my, text );
-		roi.setFontSize( FONT_SIZE );
-		final float height = roi.getCurrentFont().getSize2D();
-		roi.setLocation( mx, my - height / 2. );
-		roi.setGroup( group );
-		roi.setStrokeColor( color );
-		roi.setName( roi1.getName() + '-' + roi2.getName() );
-		roi.setPosition( 0, 0, roi1.getTPosition() );
-		return roi;
-	}
-
-	private static Line lineBetween( final OvalRoi roi1, final OvalRoi roi2, final Color color, final int group )
-	{
-		final double r1 = roi1.getFloatWidth() / 2.;
-		final double r2 = roi2.getFloatWidth() / 2.;
-		final double xc1 = roi1.getXBase() + r1;
-		final double yc1 = roi1.getYBase() + r1;
-		final double xc2 = roi2.getXBase() + r2;
-		final double yc2 = roi2.getYBase() + r2;
-		final double xs1 = xc1 - 0.5;
-		final double ys1 = yc1 - 0.5;
-		final double xs2 = xc2 - 0.5;
-		final double ys2 = yc2 - 0.5;
-		final Line roi = new Line( xs1, ys1, xs2, ys2 );
-		roi.setGroup( group );
-		roi.setStrokeColor( color );
-		roi.setName( roi1.getName() + '-' + roi2.getName() );
-		roi.setPosition( 0, 0, roi1.getTPosition() );
-		return roi;
-	}
-
-	private static final OvalRoi spotToRoi(
-			final Spot spot,
-			final double[] calibration,
-			final Color color,
-			final int group )
+	/**
+	 * Returns the image on which the preview of a pairing is drawn: a maximum
+	 * intensity projection if the image is 3D, the image itself otherwise.
+	 * The projection is computed lazily, one timepoint at a time, when it is
+	 * displayed.
+	 */
+	public static ImagePlus project( final ImagePlus imp )
 	{
-		final int frame = spot.getFeature( Spot.FRAME ).intValue();
-		final double x = spot.getDoublePosition( 0 ) / calibration[ 0 ];
-		final double y = spot.getDoublePosition( 1 ) / calibration[ 1 ];
-		final double radius = spot.getFeature( Spot.RADIUS ).doubleValue() / calibration[ 0 ];
-		final OvalRoi roi = new OvalRoi( x - radius, y - radius, 2 * radius, 2 * radius );
-		roi.setGroup( group );
-		roi.setStrokeColor( color );
-		roi.setName( spot.getName() );
-		roi.setPosition( 0, 0, frame + 1 );
-		return roi;
+		final boolean is3D = imp.getNSlices() > 1;
+		if ( is3D )
+			return LazyMaxProjectionStack.project( imp );
+		return imp;
 	}
 }
@@ -0,0 +1,405 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.plugin.filter.AVI_Writer;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * Renders the preview of a pairing without display, with the overlay baked
+ * in the images, for quality control in batch processing.
+ * <p>
+ * Each frame of the preview is rendered as an RGB image, made of the two
+ * target channels of the pairing with their display settings, on which the
+ * unmatched and paired spots are painted. Frames are rendered in parallel,
+ * and at most a few frames per thread are held in memory at any time. The
+ * planes of the source image are read one at a time; the projection of 3D
+ * images, the blending of channels and the painting of the overlay run in
+ * parallel.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingRenderer implements MultiThreaded
+{
+
+	public enum Format
+	{
+		PNG, TIFF, AVI;
+	}
+
+	/** Frames rendered ahead of the one being written, per thread. */
+	private static final int FRAMES_AHEAD_PER_THREAD = 2;
+
+	private final ImagePlus preview;
+
+	private final List< PairingOverlay > layers;
+
+	private final int[] channels;
+
+	private int numThreads;
+
+	/**
+	 * Creates a renderer for the specified pairing.
+	 * 
+	 * @param pairing
+	 *            the pairing to render.
+	 * @param imp
+	 *            the image the spots were detected in, as returned by
+	 *            {@link PairingPreviewCreator#openImage(String, Pairing)}.
+	 */
+	public PairingRenderer( final Pairing pairing, final ImagePlus imp )
+	{
+		this.preview = PairingPreviewCreator.project( imp );
+		this.layers = PairingOverlay.layers( pairing, preview, TMUtils.getSpatialCalibration( imp ) );
+		this.channels = channels( pairing, preview.getNChannels() );
+		setNumThreads();
+	}
+
+	/**
+	 * Returns the number of frames of the rendering.
+	 */
+	public int nFrames()
+	{
+		return preview.getNFrames();
+	}
+
+	/**
+	 * Renders the specified frame.
+	 * 
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @return a new RGB image.
+	 */
+	public ColorProcessor render( final int frame )
+	{
+		final int width = preview.getWidth();
+		final int height = preview.getHeight();
+
+		/*
+		 * Blend channels.
+		 */
+
+		final int[] rgb = new int[ width * height ];
+		final LUT[] luts = preview.isComposite() ? preview.getLuts() : null;
+		for ( final int c : channels )
+		{
+			final ImageProcessor ip = plane( c, frame );
+			if ( luts != null && c <= luts.length )
+			{
+				final LUT lut = luts[ c - 1 ];
+				ip.setLut( lut );
+				ip.setMinAndMax( lut.min, lut.max );
+			}
+			else
+			{
+				ip.setMinAndMax( preview.getDisplayRangeMin(), preview.getDisplayRangeMax() );
+			}
+			add( ( int[] ) ip.convertToRGB().getPixels(), rgb );
+		}
+
+		/*
+		 * Paint overlay.
+		 */
+
+		final BufferedImage image = new ColorProcessor( width, height, rgb ).getBufferedImage();
+		final Graphics2D g2d = image.createGraphics();
+		g2d.setRenderingHint( RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON );
+		final Rectangle all = new Rectangle( 0, 0, width, height );
+		for ( final PairingOverlay layer : layers )
+			layer.draw( g2d, frame, all, 1. );
+		g2d.dispose();
+		return new ColorProcessor( image );
+	}
+
+	/**
+	 * Writes all the frames of the rendering as separate images in the
+	 * specified folder.
+	 * 
+	 * @param folder
+	 *            the folder to write to. It is created if it does not exist.
+	 * @param prefix
+	 *            the prefix of the file names. The frame number and extension
+	 *            are appended to it.
+	 * @param format
+	 *            the image format, {@link Format#PNG} or {@link Format#TIFF}.
+	 * @throws IOException
+	 *             if a frame cannot be written.
+	 */
+	public void writeSequence( final File folder, final String prefix, final Format format ) throws IOException
+	{
+		if ( format == Format.AVI )
+			throw new IllegalArgumentException( "Use writeAvi() to write AVI movies." );
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Could not create folder " + folder );
+
+		final int nFrames = nFrames();
+		final int nDigits = Integer.toString( nFrames ).length();
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final List< Future< Boolean > > futures = new ArrayList<>( nFrames );
+			for ( int t = 0; t < nFrames; t++ )
+			{
+				final int frame = t;
+				futures.add( executor.submit( () -> {
+					final String name = String.format( "%s-%0" + nDigits + "d", prefix, frame );
+					final FileSaver saver = new FileSaver( new ImagePlus( name, render( frame ) ) );
+					return format == Format.PNG
+							? saver.saveAsPng( new File( folder, name + ".png" ).getAbsolutePath() )
+							: saver.saveAsTiff( new File( folder, name + ".tif" ).getAbsolutePath() );
+				} ) );
+			}
+			for ( int t = 0; t < nFrames; t++ )
+				if ( !futures.get( t ).get() )
+					throw new IOException( "Could not write frame " + t + " to " + folder );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Rendering interrupted.", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new IOException( "Problem rendering frames: " + e.getCause().getMessage(), e.getCause() );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the rendering to an AVI movie. Frames are rendered in parallel
+	 * ahead of the one being written.
+	 * 
+	 * @param file
+	 *            the AVI file to write.
+	 * @param fps
+	 *            the frame rate of the movie.
+	 * @throws IOException
+	 *             if the movie cannot be written.
+	 */
+	public void writeAvi( final File file, final double fps ) throws IOException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final RenderedStack stack = new RenderedStack( executor, numThreads * FRAMES_AHEAD_PER_THREAD );
+			final ImagePlus movie = new ImagePlus( preview.getTitle(), stack );
+			final Calibration calibration = new Calibration();
+			calibration.fps = fps;
+			movie.setCalibration( calibration );
+			new AVI_Writer().writeImage( movie, file.getAbsolutePath(), AVI_Writer.JPEG_COMPRESSION, 90 );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/*
+	 * PRIVATE.
+	 */
+
+	/**
+	 * Returns a copy of the plane of the preview at the specified 1-based
+	 * channel and 0-based frame.
+	 * <p>
+	 * A lazy projection is thread-safe and returns copies: it is read without
+	 * lock, so that the projections of several frames are computed in
+	 * parallel, and only the reads of the source planes are serialized. Other
+	 * stacks are read one plane at a time.
+	 */
+	private ImageProcessor plane( final int c, final int frame )
+	{
+		final ImageStack stack = preview.getStack();
+		final int n = preview.getStackIndex( c, 1, frame + 1 );
+		if ( stack instanceof LazyMaxProjectionStack )
+			return stack.getProcessor( n );
+
+		final ImageProcessor plane;
+		// Virtual stacks are not meant to be read concurrently.
+		synchronized ( stack )
+		{
+			plane = stack.getProcessor( n );
+		}
+		// Do not modify the planes of the preview.
+		return plane.duplicate();
+	}
+
+	private static void add( final int[] src, final int[] target )
+	{
+		for ( int i = 0; i < src.length; i++ )
+		{
+			final int a = src[ i ];
+			final int b = target[ i ];
+			final int r = Math.min( 255, ( ( a >> 16 ) & 0xff ) + ( ( b >> 16 ) & 0xff ) );
+			final int g = Math.min( 255, ( ( a >> 8 ) & 0xff ) + ( ( b >> 8 ) & 0xff ) );
+			final int bl = Math.min( 255, ( a & 0xff ) + ( b & 0xff ) );
+			target[ i ] = 0xff000000 | ( r << 16 ) | ( g << 8 ) | bl;
+		}
+	}
+
+	/**
+	 * The 1-based channels to render: the two target channels of the pairing
+	 * if they exist in the image, the first channel otherwise.
+	 */
+	private static int[] channels( final Pairing pairing, final int nChannels )
+	{
+		final int ch1 = pairing.getTargetChannel1();
+		final int ch2 = pairing.getTargetChannel2();
+		final boolean valid1 = ch1 >= 1 && ch1 <= nChannels;
+		final boolean valid2 = ch2 >= 1 && ch2 <= nChannels && ch2 != ch1;
+		if ( valid1 && valid2 )
+			return new int[] { ch1, ch2 };
+		if ( valid1 )
+			return new int[] { ch1 };
+		if ( valid2 )
+			return new int[] { ch2 };
+		return new int[] { 1 };
+	}
+
+	/**
+	 * A virtual stack that renders its frames in parallel, a bounded number
+	 * of frames ahead of the last one requested. It is meant to be read in
+	 * order.
+	 */
+	private class RenderedStack extends VirtualStack
+	{
+
+		private final ExecutorService executor;
+
+		private final int ahead;
+
+		private final Map< Integer, Future< ColorProcessor > > pending = new LinkedHashMap<>();
+
+		public RenderedStack( final ExecutorService executor, final int ahead )
+		{
+			super( preview.getWidth(), preview.getHeight(), null, null );
+			this.executor = executor;
+			this.ahead = ahead;
+		}
+
+		@Override
+		public int getSize()
+		{
+			return nFrames();
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return 24;
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return null;
+		}
+
+		@Override
+		public Object getPixels( final int n )
+		{
+			return getProcessor( n ).getPixels();
+		}
+
+		@Override
+		public void setPixels( final Object pixels, final int n )
+		{}
+
+		@Override
+		public void deleteSlice( final int n )
+		{
+			IJ.log( "Cannot delete the frames of a rendering; ignored." );
+		}
+
+		@Override
+		public synchronized ImageProcessor getProcessor( final int n )
+		{
+			// Discard frames before this one, and schedule the next ones.
+			pending.keySet().removeIf( k -> k < n );
+			for ( int k = n; k < Math.min( n + ahead, getSize() + 1 ); k++ )
+			{
+				final int frame = k - 1;
+				pending.computeIfAbsent( k, key -> executor.submit( () -> render( frame ) ) );
+			}
+			try
+			{
+				return pending.remove( n ).get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Rendering interrupted.", e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( "Problem rendering frame " + n + ": " + e.getCause().getMessage(), e.getCause() );
+			}
+		}
+	}
+}
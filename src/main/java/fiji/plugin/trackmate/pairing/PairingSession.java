@@ -0,0 +1,417 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.io.TmXmlStreamReader.ImageSettings;
+import fiji.plugin.trackmate.pairing.method.ContextualPairingMethod;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * Keeps two TrackMate models and their candidate graph in memory, so that
+ * they can be paired repeatedly with different max pairing distances or
+ * methods, without reading the files or searching spots again.
+ * <p>
+ * The files are read and the candidate graph is built by {@link #process()},
+ * with a cutoff that bounds the max pairing distances that can be used
+ * afterwards. Each call to {@link #pair(ContextualPairingMethod, double)} then
+ * derives the pairing from the graph, and reports what changed compared to
+ * the previous pairing of this session.
+ * <p>
+ * With a frame sampling, the graph is built on a subset of the frames and the
+ * pairings are approximate. {@link #refine()} then rebuilds the graph on all
+ * frames and repeats the last pairing exactly.
+ * <p>
+ * Only the methods that read the candidate graph, the ones based on common
+ * spots and on mean or median positions, derive their pairing from the
+ * session cheaply. The per-frame methods reuse the spatial indices of the
+ * session but redo their assignment on every call, and the shortlisted and
+ * mutual methods recompute the track positions on every call. They work in
+ * a session, but are not incremental and are slower to update.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingSession extends AbstractPairing implements MultiThreaded
+{
+
+	private final double cutoff;
+
+	private int numThreads;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private Model model1;
+
+	private Model model2;
+
+	private CandidateGraph graph;
+
+	private FrameSpatialIndex index1;
+
+	private FrameSpatialIndex index2;
+
+	private String sourceImagePath;
+
+	private int ch1;
+
+	private int ch2;
+
+	private Pairing current;
+
+	private ContextualPairingMethod lastMethod;
+
+	private double lastDistance;
+
+	/**
+	 * Creates a new session for the two specified files.
+	 * 
+	 * @param xml1
+	 *            the path to the first TrackMate file.
+	 * @param xml2
+	 *            the path to the second TrackMate file.
+	 * @param cutoff
+	 *            the largest max pairing distance that will be used in this
+	 *            session.
+	 */
+	public PairingSession( final String xml1, final String xml2, final double cutoff )
+	{
+		super( xml1, xml2 );
+		this.cutoff = cutoff;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( !( cutoff > 0. ) || Double.isInfinite( cutoff ) )
+		{
+			errorMessage = "Cutoff distance is not strictly positive and finite: " + cutoff;
+			return false;
+		}
+		return super.checkInput();
+	}
+
+	@Override
+	public boolean process()
+	{
+		final Model m1 = readModel( xml1 );
+		if ( m1 == null )
+			return false;
+
+		final Model m2 = readModel( xml2 );
+		if ( m2 == null )
+			return false;
+
+		final CandidateGraph g = buildGraph( m1, m2, frameSampling );
+		if ( g == null )
+		{
+			errorMessage = "Pairing canceled.";
+			return false;
+		}
+
+		final ImageSettings settings1 = readImageSettings( xml1 );
+		final ImageSettings settings2 = readImageSettings( xml2 );
+		synchronized ( this )
+		{
+			this.model1 = m1;
+			this.model2 = m2;
+			this.graph = g;
+			this.index1 = null;
+			this.index2 = null;
+			this.sourceImagePath = settings1.imagePath;
+			this.ch1 = settings1.targetChannel;
+			this.ch2 = settings2.targetChannel;
+			this.current = null;
+			this.lastMethod = null;
+		}
+		return true;
+	}
+
+	private CandidateGraph buildGraph( final Model m1, final Model m2, final FrameSampling sampling )
+	{
+		try (final PairingContext context = PairingContext.build( m1, m2, cutoff )
+				.zScale( zScale )
+				.numThreads( numThreads )
+				.logger( logger )
+				.frameSampling( sampling )
+				.get())
+		{
+			return context.getCandidateGraph();
+		}
+	}
+
+	/**
+	 * Pairs the models of this session with the specified method and max
+	 * pairing distance.
+	 * 
+	 * @param method
+	 *            the pairing method.
+	 * @param maxPairingDistance
+	 *            the max pairing distance. Must not be larger than the cutoff
+	 *            of this session.
+	 * @return the new pairing and what changed compared to the previous one,
+	 *         or <code>null</code> if the method failed. The error message
+	 *         then says why.
+	 * @throws IllegalStateException
+	 *             if the session has not been successfully processed.
+	 * @throws IllegalArgumentException
+	 *             if the max pairing distance is larger than the cutoff.
+	 */
+	public synchronized Update pair( final ContextualPairingMethod method, final double maxPairingDistance )
+	{
+		if ( graph == null )
+			throw new IllegalStateException( "The session has not been processed." );
+
+		final Builder builder;
+		try (final PairingContext context = PairingContext.build( model1, model2, maxPairingDistance )
+				.zScale( graph.getZScale() )
+				.numThreads( numThreads )
+				.candidateGraph( graph )
+				.spatialIndices( index1, index2 )
+				.get())
+		{
+			builder = method.pair( context );
+			// Keep the indices built by per-frame methods for the next calls.
+			if ( context.hasSpatialIndices() )
+			{
+				index1 = context.getSpatialIndex1();
+				index2 = context.getSpatialIndex2();
+			}
+		}
+		if ( builder == null )
+		{
+			errorMessage = "Pairing with method " + method.getClass().getSimpleName() + " was canceled.";
+			return null;
+		}
+		final Pairing pairing = builder
+				.sourceImagePath( sourceImagePath )
+				.targetChannel1( ch1 )
+				.targetChannel2( ch2 )
+				.get();
+
+		final Update update = new Update( current, pairing );
+		current = pairing;
+		lastMethod = method;
+		lastDistance = maxPairingDistance;
+		return update;
+	}
+
+	/**
+	 * Rebuilds the candidate graph of this session on all frames, and repeats
+	 * the last pairing with it. Does nothing if the session is not
+	 * approximate.
+	 * 
+	 * @return the exact pairing and what changed compared to the approximate
+	 *         one, or <code>null</code> if there was no pairing yet, if the
+	 *         session is not approximate or if the pairing failed.
+	 * @throws IllegalStateException
+	 *             if the session has not been successfully processed.
+	 */
+	public synchronized Update refine()
+	{
+		if ( graph == null )
+			throw new IllegalStateException( "The session has not been processed." );
+		if ( !isApproximate() )
+			return null;
+
+		final CandidateGraph g = buildGraph( model1, model2, FrameSampling.ALL );
+		if ( g == null )
+			return null;
+		graph = g;
+		// The indices were built on the snapshots of the previous graph.
+		index1 = null;
+		index2 = null;
+		return ( lastMethod == null ) ? null : pair( lastMethod, lastDistance );
+	}
+
+	/**
+	 * Returns <code>true</code> if the candidate graph of this session was
+	 * built on a subset of the frames.
+	 */
+	public synchronized boolean isApproximate()
+	{
+		return graph != null && !graph.getFrameSampling().isAll();
+	}
+
+	/**
+	 * Returns the estimate of how many assignments of the last pairing might
+	 * change in the exact pairing, or <code>null</code> if there was no
+	 * pairing yet or if the session is not approximate.
+	 */
+	public synchronized PairingErrorEstimate getErrorEstimate()
+	{
+		if ( current == null || !isApproximate() )
+			return null;
+		return PairingErrorEstimate.of( graph, lastDistance );
+	}
+
+	/**
+	 * Returns <code>true</code> if this session was built for the two
+	 * specified files and can pair them with the specified max pairing
+	 * distance.
+	 */
+	public synchronized boolean canPair( final String path1, final String path2, final double maxPairingDistance )
+	{
+		return graph != null
+				&& xml1.equals( path1 )
+				&& xml2.equals( path2 )
+				&& maxPairingDistance <= cutoff;
+	}
+
+	/**
+	 * Returns the last pairing computed in this session, or <code>null</code>
+	 * if there is none.
+	 */
+	public synchronized Pairing getPairing()
+	{
+		return current;
+	}
+
+	public double getCutoff()
+	{
+		return cutoff;
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * The difference between two successive pairings of a session.
+	 * <p>
+	 * A track pair is reported as removed and added again if its spot pairs
+	 * changed. The unmatched tracks are identified by their id.
+	 */
+	public static class Update
+	{
+
+		public final Pairing pairing;
+
+		public final Collection< TrackPair > addedPairs;
+
+		public final Collection< TrackPair > removedPairs;
+
+		public final Collection< Integer > addedUnmatched1;
+
+		public final Collection< Integer > removedUnmatched1;
+
+		public final Collection< Integer > addedUnmatched2;
+
+		public final Collection< Integer > removedUnmatched2;
+
+		private Update( final Pairing previous, final Pairing pairing )
+		{
+			this.pairing = pairing;
+
+			final Map< String, TrackPair > before = new HashMap<>();
+			if ( previous != null )
+				for ( final TrackPair pair : previous.pairs )
+					before.put( pair.getName(), pair );
+			final Map< String, TrackPair > after = new HashMap<>();
+			for ( final TrackPair pair : pairing.pairs )
+				after.put( pair.getName(), pair );
+
+			this.addedPairs = Collections.unmodifiableCollection( changed( after, before ) );
+			this.removedPairs = Collections.unmodifiableCollection( changed( before, after ) );
+
+			final Collection< Integer > u1 = ( previous == null ) ? Collections.emptySet() : previous.unmatchedTracks1.keySet();
+			final Collection< Integer > u2 = ( previous == null ) ? Collections.emptySet() : previous.unmatchedTracks2.keySet();
+			this.addedUnmatched1 = missing( pairing.unmatchedTracks1.keySet(), u1 );
+			this.removedUnmatched1 = missing( u1, pairing.unmatchedTracks1.keySet() );
+			this.addedUnmatched2 = missing( pairing.unmatchedTracks2.keySet(), u2 );
+			this.removedUnmatched2 = missing( u2, pairing.unmatchedTracks2.keySet() );
+		}
+
+		/**
+		 * Returns <code>true</code> if this update does not change anything.
+		 */
+		public boolean isEmpty()
+		{
+			return addedPairs.isEmpty()
+					&& removedPairs.isEmpty()
+					&& addedUnmatched1.isEmpty()
+					&& removedUnmatched1.isEmpty()
+					&& addedUnmatched2.isEmpty()
+					&& removedUnmatched2.isEmpty();
+		}
+
+		/*
+		 * Pairs in a that are not in b, or that have a different number of spot
+		 * pairs. Both pairings are derived from the same graph, so the spot
+		 * pairs of a track pair only differ by the ones filtered out by the
+		 * distance.
+		 */
+		private static Collection< TrackPair > changed( final Map< String, TrackPair > a, final Map< String, TrackPair > b )
+		{
+			final Collection< TrackPair > out = new ArrayList<>();
+			for ( final String name : a.keySet() )
+			{
+				final TrackPair pa = a.get( name );
+				final TrackPair pb = b.get( name );
+				if ( pb == null || pb.paired.size() != pa.paired.size() )
+					out.add( pa );
+			}
+			return out;
+		}
+
+		private static Collection< Integer > missing( final Collection< Integer > a, final Collection< Integer > b )
+		{
+			final Collection< Integer > out = new ArrayList<>();
+			for ( final Integer id : a )
+				if ( !b.contains( id ) )
+					out.add( id );
+			return Collections.unmodifiableCollection( out );
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.method.ContextualPairingMethod;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.method.PairingMethod;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Pairs two TrackMate files for several values of the max pairing distance.
+ * <p>
+ * The two files are read once, and the candidate graph is built once, with
+ * the largest distance as cutoff. The pairing at each distance is then derived
+ * from this graph, ignoring the spot pairs farther than this distance. The
+ * number of candidate spot pairs at each distance is counted incrementally
+ * from the sorted distances of all spot pairs.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingSweep extends AbstractPairing implements OutputAlgorithm< PairingSweep.Result >, MultiThreaded, Cancelable
+{
+
+	private final ContextualPairingMethod method;
+
+	private final double[] maxPairingDistances;
+
+	private int numThreads;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private Result output;
+
+	private volatile PairingContext context;
+
+	private volatile String cancelReason;
+
+	public PairingSweep( final String xml1, final String xml2, final PairingMethod method, final double... maxPairingDistances )
+	{
+		this( xml1, xml2, ContextualPairingMethod.adapt( method ), maxPairingDistances );
+	}
+
+	public PairingSweep( final String xml1, final String xml2, final ContextualPairingMethod method, final double... maxPairingDistances )
+	{
+		super( xml1, xml2 );
+		this.method = method;
+		this.maxPairingDistances = ( maxPairingDistances == null ) ? null : maxPairingDistances.clone();
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( maxPairingDistances == null || maxPairingDistances.length == 0 )
+		{
+			errorMessage = "No max pairing distance specified.";
+			return false;
+		}
+		for ( final double maxPairingDistance : maxPairingDistances )
+		{
+			if ( !( maxPairingDistance > 0. ) || Double.isInfinite( maxPairingDistance ) )
+			{
+				errorMessage = "Max pairing distance is not strictly positive and finite: " + maxPairingDistance;
+				return false;
+			}
+		}
+		return super.checkInput();
+	}
+
+	@Override
+	public boolean process()
+	{
+		/*
+		 * Read files.
+		 */
+
+		final Input input = readInput( method.needsModels(), numThreads );
+		if ( input == null )
+			return false;
+
+		final String sourceImagePath = input.sourceImagePath;
+		final int ch1 = input.targetChannel1;
+		final int ch2 = input.targetChannel2;
+
+		final double[] distances = maxPairingDistances.clone();
+		Arrays.sort( distances );
+		final double largest = distances[ distances.length - 1 ];
+
+		/*
+		 * Build the candidate graph at the largest distance.
+		 */
+
+		final CandidateGraph graph;
+		try (final PairingContext ctx = input.context( largest )
+				.numThreads( numThreads )
+				.logger( logger )
+				.frameSampling( frameSampling )
+				.get())
+		{
+			this.context = ctx;
+			if ( isCanceled() )
+				ctx.cancel( cancelReason );
+			graph = ctx.getCandidateGraph();
+		}
+		finally
+		{
+			this.context = null;
+		}
+		if ( graph == null || isCanceled() )
+		{
+			errorMessage = "Pairing canceled: " + getCancelReason();
+			return false;
+		}
+
+		// Sorted distances of all candidate spot pairs.
+		final double[] pairDistances = new double[ graph.nPairs() ];
+		for ( int p = 0; p < pairDistances.length; p++ )
+			pairDistances[ p ] = graph.distance( p );
+		Arrays.sort( pairDistances );
+
+		/*
+		 * Derive the pairing at each distance.
+		 */
+
+		final List< Pairing > pairings = new ArrayList<>( distances.length );
+		final int[] nCandidatePairs = new int[ distances.length ];
+		int nBelow = 0;
+		for ( int k = 0; k < distances.length; k++ )
+		{
+			final double maxPairingDistance = distances[ k ];
+			logger.log( "Pairing with max distance " + maxPairingDistance + ".\n" );
+			logger.setProgress( ( double ) k / distances.length );
+
+			// Spot pairs strictly closer than the distance.
+			while ( nBelow < pairDistances.length && pairDistances[ nBelow ] < maxPairingDistance )
+				nBelow++;
+			nCandidatePairs[ k ] = nBelow;
+
+			final Builder builder;
+			try (final PairingContext ctx = input.context( maxPairingDistance )
+					.numThreads( numThreads )
+					.candidateGraph( graph )
+					.get())
+			{
+				this.context = ctx;
+				if ( isCanceled() )
+					ctx.cancel( cancelReason );
+				builder = method.pair( ctx );
+			}
+			finally
+			{
+				this.context = null;
+			}
+			if ( builder == null || isCanceled() )
+			{
+				errorMessage = "Pairing canceled: " + getCancelReason();
+				return false;
+			}
+
+			builder.sourceImagePath( sourceImagePath )
+					.targetChannel1( ch1 )
+					.targetChannel2( ch2 );
+			pairings.add( builder.get() );
+		}
+		logger.setProgress( 1. );
+
+		output = new Result( distances, pairings, nCandidatePairs );
+		return true;
+	}
+
+	@Override
+	public Result getResult()
+	{
+		return output;
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+		final PairingContext ctx = context;
+		if ( ctx != null )
+			ctx.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * The pairings obtained for each max pairing distance, sorted by
+	 * increasing distance.
+	 */
+	public static class Result
+	{
+
+		private final double[] distances;
+
+		private final List< Pairing > pairings;
+
+		private final int[] nCandidatePairs;
+
+		private Result( final double[] distances, final List< Pairing > pairings, final int[] nCandidatePairs )
+		{
+			this.distances = distances;
+			this.pairings = Collections.unmodifiableList( pairings );
+			this.nCandidatePairs = nCandidatePairs;
+		}
+
+		public int size()
+		{
+			return distances.length;
+		}
+
+		public double distance( final int k )
+		{
+			return distances[ k ];
+		}
+
+		public Pairing pairing( final int k )
+		{
+			return pairings.get( k );
+		}
+
+		/**
+		 * Returns the number of spot pairs, in the same frame and closer than
+		 * the <code>k</code>th distance, found between all the tracks of the
+		 * two models.
+		 */
+		public int nCandidateSpotPairs( final int k )
+		{
+			return nCandidatePairs[ k ];
+		}
+
+		/**
+		 * Returns the number of spot pairs in the track pairs of the
+		 * <code>k</code>th pairing.
+		 */
+		public int nPairedSpots( final int k )
+		{
+			int n = 0;
+			for ( final TrackPair pair : pairings.get( k ).pairs )
+				n += pair.paired.size();
+			return n;
+		}
+
+		public List< String[] > toCsv()
+		{
+			final List< String[] > strs = new ArrayList<>();
+			strs.add( new String[] {
+					"Max_pairing_distance",
+					"N_track_pairs",
+					"N_unmatched_tracks_1",
+					"N_unmatched_tracks_2",
+					"N_paired_spots",
+					"N_candidate_spot_pairs" } );
+			for ( int k = 0; k < distances.length; k++ )
+			{
+				final Pairing pairing = pairings.get( k );
+				strs.add( new String[] {
+						Double.toString( distances[ k ] ),
+						Integer.toString( pairing.pairs.size() ),
+						Integer.toString( pairing.unmatchedTracks1.size() ),
+						Integer.toString( pairing.unmatchedTracks2.size() ),
+						Integer.toString( nPairedSpots( k ) ),
+						Integer.toString( nCandidatePairs[ k ] ) } );
+			}
+			return strs;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder( super.toString() );
+			for ( int k = 0; k < distances.length; k++ )
+			{
+				final Pairing pairing = pairings.get( k );
+				str.append( String.format( "\n - dist = %.2f %s: %d pairs, %d + %d unmatched, %d paired spots",
+						distances[ k ],
+						pairing.units,
+						pairing.pairs.size(),
+						pairing.unmatchedTracks1.size(),
+						pairing.unmatchedTracks2.size(),
+						nPairedSpots( k ) ) );
+			}
+			return str.toString();
+		}
+	}
+}
@@ -23,11 +23,16 @@ package fiji.plugin.trackmate.pairing;
 
 import java.util.Map;
 
-import fiji.plugin.trackmate.Model;
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.detection.DetectorKeys;
 import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.method.ContextualPairingMethod;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
 import fiji.plugin.trackmate.pairing.method.PairingMethod;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.algorithm.OutputAlgorithm;
 
 /**
@@ -37,24 +42,50 @@ import net.imglib2.algorithm.OutputAlgorithm;
  * based on the how many spots in common frames are within a specified maximum
  * pairing distance. A track pair is the pair for which this number of common
  * spots is the highest.
+ * <p>
+ * A time budget can be set for the pairing to return in time, for instance
+ * for live feedback. The most promising candidate track pairs are then
+ * examined first, and when the budget expires the pairing is made on the
+ * ones examined so far. It is flagged as partial, see {@link #isPartial()}
+ * and {@link #getCoverage()}.
  * 
  * @author Jean-Yves Tinevez
  *
  */
-public class PairingTrackMate extends AbstractPairing implements OutputAlgorithm< Pairing >
+public class PairingTrackMate extends AbstractPairing implements OutputAlgorithm< Pairing >, MultiThreaded, Cancelable
 {
 
 	private final double maxPairingDistance;
 
 	private Pairing output;
 
-	private final PairingMethod method;
+	private final ContextualPairingMethod method;
+
+	private int numThreads;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private PairingErrorEstimate errorEstimate;
+
+	private long timeBudget = -1l;
+
+	private PairingCoverage coverage;
+
+	private volatile PairingContext context;
+
+	private volatile String cancelReason;
 
 	public PairingTrackMate( final String xml1, final String xml2, final PairingMethod method, final double maxPairingDistance )
+	{
+		this( xml1, xml2, ContextualPairingMethod.adapt( method ), maxPairingDistance );
+	}
+
+	public PairingTrackMate( final String xml1, final String xml2, final ContextualPairingMethod method, final double maxPairingDistance )
 	{
 		super( xml1, xml2 );
 		this.method = method;
 		this.maxPairingDistance = maxPairingDistance;
+		setNumThreads();
 	}
 
 	@Override
@@ -71,33 +102,68 @@ public class PairingTrackMate extends AbstractPairing implements OutputAlgorithm
 	@Override
 	public boolean process()
 	{
+		final long start = System.currentTimeMillis();
+		// A previous cancel request does not carry over to this run.
+		cancelReason = null;
+		context = null;
+
 		/*
-		 * Read models.
+		 * Read files.
 		 */
 
-		final Model model1 = readModel( xml1 );
-		if ( model1 == null )
-			return false;
-
-		final Model model2 = readModel( xml2 );
-		if ( model2 == null )
+		final Input input = readInput( method.needsModels(), numThreads );
+		if ( input == null )
 			return false;
 
 		/*
 		 * Build pair data structure.
 		 */
 
-		final Builder builder = method.pair( model1, model2, maxPairingDistance );
+		final Builder builder;
+		errorEstimate = null;
+		coverage = null;
+		// Reading the files counts in the time budget.
+		final long readingTime = System.currentTimeMillis() - start;
+		final long remaining = ( timeBudget < 0 )
+				? -1l
+				: Math.max( 0l, timeBudget - readingTime );
+		try (final PairingContext ctx = input.context( maxPairingDistance )
+				.numThreads( numThreads )
+				.logger( logger )
+				.frameSampling( frameSampling )
+				.timeBudget( remaining )
+				.get())
+		{
+			this.context = ctx;
+			if ( isCanceled() )
+				ctx.cancel( cancelReason );
+			builder = method.pair( ctx );
+			// Only if the method used the candidate graph.
+			if ( builder != null && !frameSampling.isAll() && ctx.hasCandidateGraph() && ctx.getCandidateGraph() != null )
+				errorEstimate = PairingErrorEstimate.of( ctx.getCandidateGraph(), maxPairingDistance );
+			if ( builder != null && timeBudget >= 0 )
+				coverage = PairingCoverage.of( ctx, timeBudget, System.currentTimeMillis() - start, readingTime );
+		}
+		finally
+		{
+			this.context = null;
+		}
+		if ( builder == null || isCanceled() )
+		{
+			errorMessage = "Pairing canceled: " + getCancelReason();
+			return false;
+		}
 
 		// Add path to source image.
-		final String sourceImagePath = readImagePath( xml1 );
-		builder.sourceImagePath( sourceImagePath );
+		builder.sourceImagePath( input.sourceImagePath );
 
 		// Add detection channel for first model.
-		builder.targetChannel1( determineDetectionChannel( readSettings( xml1 ) ) );
-		builder.targetChannel2( determineDetectionChannel( readSettings( xml2 ) ) );
+		builder.targetChannel1( input.targetChannel1 );
+		builder.targetChannel2( input.targetChannel2 );
 		
 		output = builder.get();
+		if ( isPartial() )
+			logger.log( coverage.toString() + '\n' );
 		return true;
 	}
 
@@ -107,6 +173,100 @@ public class PairingTrackMate extends AbstractPairing implements OutputAlgorithm
 		return output;
 	}
 
+	/**
+	 * Returns the estimate of how many assignments of the last pairing might
+	 * change in the exact pairing, or <code>null</code> if the pairing used
+	 * all frames.
+	 * 
+	 * @see #setFrameSampling(fiji.plugin.trackmate.pairing.util.FrameSampling)
+	 */
+	public PairingErrorEstimate getErrorEstimate()
+	{
+		return errorEstimate;
+	}
+
+	/**
+	 * Sets the time budget of the pairing, counted from the start of
+	 * {@link #process()}, file reading included. The methods examine their
+	 * candidates from the most promising to the least, and stop when it
+	 * expires. Methods that are not {@link ContextualPairingMethod}s cannot
+	 * be stopped once started: they are only run if the budget has not
+	 * expired after reading the files.
+	 * 
+	 * @param millis
+	 *            the time budget in milliseconds, or a negative value for no
+	 *            budget.
+	 */
+	public void setTimeBudget( final long millis )
+	{
+		this.timeBudget = ( millis < 0 ) ? -1l : millis;
+	}
+
+	/**
+	 * Returns <code>true</code> if the time budget expired before the last
+	 * pairing could examine all candidate track pairs.
+	 */
+	public boolean isPartial()
+	{
+		return coverage != null && coverage.isPartial();
+	}
+
+	/**
+	 * Returns how much of the candidates the last pairing examined, or
+	 * <code>null</code> if it had no time budget or if its method does not
+	 * report it.
+	 * 
+	 * @see #setTimeBudget(long)
+	 */
+	public PairingCoverage getCoverage()
+	{
+		return coverage;
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+		final PairingContext ctx = context;
+		if ( ctx != null )
+			ctx.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
 	/**
 	 * Tries to determine from the settings in what channel the detection
 	 * happened.
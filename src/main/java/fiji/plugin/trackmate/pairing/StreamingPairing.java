@@ -0,0 +1,1078 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+import org.scijava.util.LongArray;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.io.TmXmlFrameStream;
+import fiji.plugin.trackmate.pairing.io.TmXmlFrameStream.Frame;
+import fiji.plugin.trackmate.pairing.io.TmXmlTrackIndex;
+import fiji.plugin.trackmate.pairing.method.PairingMethods;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.PointKDTree;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Pairs two TrackMate files without loading them, for movies too long for
+ * their models to fit in memory.
+ * <p>
+ * The track membership of the spots is read first, without the spots, with
+ * {@link TmXmlTrackIndex}. Then the spots of the two files are streamed in
+ * lockstep, one window of frames at a time. The frames of a window are
+ * joined in parallel: for each spot of a first track, the closest spot of
+ * each second track in the same frame and closer than the max pairing
+ * distance is a candidate spot pair, as in the {@link CandidateGraph}. The
+ * candidate spot pairs are spilled to a compact temporary file, and the
+ * number of spots and their position sums are kept for each track.
+ * <p>
+ * Tracks are assigned as {@link PairingMethods#COMMON_SPOTS} or
+ * {@link PairingMethods#CLOSEST_MEAN_POSITION} would do, and the spot pairs
+ * of the matched tracks are read back from the spill and written to the
+ * sink, in the format of {@link Pairing#toCsv()}. Unlike
+ * {@link PairingMethods#COMMON_SPOTS}, ties between second tracks go to the
+ * first one in the file, and each spot is paired with the closest spot of
+ * the second track rather than the first one found.
+ * <p>
+ * With {@link PairingMethods#COMMON_SPOTS}, first tracks are assigned in the
+ * order of the file, each as soon as the window with its last spot is
+ * processed and the tracks before it are assigned. Its spot pairs are then
+ * written and its state released, and the spot pairs with second tracks
+ * already taken are not spilled. Only the first tracks that are still
+ * running or that wait for an earlier one are kept, so a long track early in
+ * the file delays the tracks after it, and tracks with spots outside of the
+ * filter are assigned at the end. {@link PairingMethods#CLOSEST_MEAN_POSITION}
+ * needs the mean position of all the second tracks, so all its tracks are
+ * assigned and written at the end. Lines are written by track as they are
+ * assigned, not sorted by frame.
+ * <p>
+ * Memory therefore depends on the window size, on the number of tracks and
+ * on the tracks waiting for their assignment, plus a few bytes per spot for
+ * the {@link TmXmlTrackIndex}.
+ * <p>
+ * The median position method needs all the positions of each track, and is
+ * not supported.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class StreamingPairing extends AbstractPairing implements OutputAlgorithm< StreamingPairing.Result >, MultiThreaded
+{
+
+	/** Default number of frames per window. */
+	public static final int DEFAULT_FRAME_WINDOW = 100;
+
+	/**
+	 * Receives the lines of the pairing results.
+	 */
+	@FunctionalInterface
+	public interface LineSink
+	{
+		void write( String[] line ) throws IOException;
+	}
+
+	private final PairingMethods method;
+
+	private final double maxPairingDistance;
+
+	private final LineSink sink;
+
+	private int frameWindow = DEFAULT_FRAME_WINDOW;
+
+	private int numThreads;
+
+	private Result output;
+
+	/**
+	 * Creates a streaming pairing.
+	 * 
+	 * @param xml1
+	 *            the path to the first TrackMate file.
+	 * @param xml2
+	 *            the path to the second TrackMate file.
+	 * @param method
+	 *            the pairing method, {@link PairingMethods#COMMON_SPOTS} or
+	 *            {@link PairingMethods#CLOSEST_MEAN_POSITION}.
+	 * @param maxPairingDistance
+	 *            the max pairing distance.
+	 * @param sink
+	 *            the sink the header and the spot pairs are written to.
+	 */
+	public StreamingPairing( final String xml1, final String xml2, final PairingMethods method, final double maxPairingDistance, final LineSink sink )
+	{
+		super( xml1, xml2 );
+		this.method = method;
+		this.maxPairingDistance = maxPairingDistance;
+		this.sink = sink;
+		setNumThreads();
+	}
+
+	/**
+	 * Sets the number of frames read from each file before they are joined.
+	 * 
+	 * @param frameWindow
+	 *            the number of frames per window.
+	 */
+	public void setFrameWindow( final int frameWindow )
+	{
+		this.frameWindow = Math.max( 1, frameWindow );
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( !super.checkInput() )
+			return false;
+		if ( method != PairingMethods.COMMON_SPOTS && method != PairingMethods.CLOSEST_MEAN_POSITION )
+		{
+			errorMessage = "Streaming pairing does not support the method '" + method + "'.";
+			return false;
+		}
+		if ( sink == null )
+		{
+			errorMessage = "Line sink is null.";
+			return false;
+		}
+		if ( !frameSampling.isAll() )
+		{
+			errorMessage = "Streaming pairing does not support frame sampling.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		output = null;
+
+		/*
+		 * Track membership.
+		 */
+
+		final TmXmlTrackIndex index1 = new TmXmlTrackIndex( new File( xml1 ), filter );
+		if ( !index1.isReadingOk() )
+		{
+			errorMessage = index1.getErrorMessage();
+			return false;
+		}
+		final TmXmlTrackIndex index2 = new TmXmlTrackIndex( new File( xml2 ), filter );
+		if ( !index2.isReadingOk() )
+		{
+			errorMessage = index2.getErrorMessage();
+			return false;
+		}
+		final int ch1 = index1.getTargetChannel();
+		final int ch2 = index2.getTargetChannel();
+		final List< String > features1 = Pairing.exportedFeatures( ch1 );
+		final List< String > features2 = Pairing.exportedFeatures( ch2 );
+
+		/*
+		 * Stream frames, assigning the tracks as soon as possible.
+		 */
+
+		final TrackStats stats1 = new TrackStats( index1.nTracks() );
+		final TrackStats stats2 = new TrackStats( index2.nTracks() );
+		final Map< Integer, PendingTrack > pending = new HashMap<>();
+		// Null when the tracks are assigned at the end.
+		final CommonSpotsAssignment commonSpots = ( method == PairingMethods.COMMON_SPOTS )
+				? new CommonSpotsAssignment( index1.nTracks(), index2.nTracks() )
+				: null;
+		int nFrames = 0;
+		int maxWindowSpots = 0;
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try (final Spill spill = new Spill( features1, features2 ))
+		{
+			final SpotPairWriter writer = new SpotPairWriter( spill, index1, index2 );
+			sink.write( Pairing.csvHeader() );
+			try (final TmXmlFrameStream stream1 = new TmXmlFrameStream( new File( xml1 ), features1, filter );
+					final TmXmlFrameStream stream2 = new TmXmlFrameStream( new File( xml2 ), features2, filter ))
+			{
+				Frame frame1 = stream1.next();
+				Frame frame2 = stream2.next();
+				final List< Frame > window1 = new ArrayList<>();
+				final List< Frame > window2 = new ArrayList<>();
+				while ( frame1 != null || frame2 != null )
+				{
+					final int start = Math.min(
+							( frame1 == null ) ? Integer.MAX_VALUE : frame1.frame,
+							( frame2 == null ) ? Integer.MAX_VALUE : frame2.frame );
+					final long end = ( long ) start + frameWindow;
+					window1.clear();
+					window2.clear();
+					int nSpots = 0;
+					while ( frame1 != null && frame1.frame < end )
+					{
+						window1.add( frame1 );
+						nSpots += frame1.size();
+						frame1 = stream1.next();
+					}
+					while ( frame2 != null && frame2.frame < end )
+					{
+						window2.add( frame2 );
+						nSpots += frame2.size();
+						frame2 = stream2.next();
+					}
+					maxWindowSpots = Math.max( maxWindowSpots, nSpots );
+					nFrames += processWindow( window1, window2, index1, index2, stats1, stats2, pending, commonSpots, executor, spill );
+					if ( commonSpots != null )
+						commonSpots.advance( pending, stats1, index1, false, writer );
+				}
+			}
+
+			/*
+			 * Remaining track assignment.
+			 */
+
+			final int[] matches;
+			if ( commonSpots != null )
+			{
+				// Tracks with spots outside of the filter are only complete now.
+				commonSpots.advance( pending, stats1, index1, true, writer );
+				matches = commonSpots.matches;
+			}
+			else
+			{
+				matches = assignByMeanPosition( stats1, stats2, pending );
+				writer.writeAll( matches );
+			}
+
+			/*
+			 * Summary.
+			 */
+
+			// Tracks left without spots by the filter are not reported.
+			final boolean[] taken = new boolean[ index2.nTracks() ];
+			final List< Integer > unmatched1 = new ArrayList<>();
+			int nTrackPairs = 0;
+			for ( int i = 0; i < matches.length; i++ )
+			{
+				if ( matches[ i ] >= 0 )
+				{
+					taken[ matches[ i ] ] = true;
+					nTrackPairs++;
+				}
+				else if ( matches[ i ] == UNMATCHED && stats1.nSpots[ i ] > 0 )
+				{
+					unmatched1.add( index1.trackID( i ) );
+				}
+			}
+			final List< Integer > unmatched2 = new ArrayList<>();
+			for ( int j = 0; j < taken.length; j++ )
+				if ( !taken[ j ] && !stats2.claimed[ j ] && stats2.nSpots[ j ] > 0 )
+					unmatched2.add( index2.trackID( j ) );
+
+			output = new Result( nTrackPairs, writer.nSpotPairs, unmatched1, unmatched2, nFrames, maxWindowSpots, index1.getSpaceUnits() );
+			return true;
+		}
+		catch ( final IOException | XMLStreamException | IllegalArgumentException e )
+		{
+			errorMessage = "Problem streaming the files:\n" + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * WINDOWS.
+	 */
+
+	/**
+	 * Joins the frames of one window, updates the per-track state and spills
+	 * the candidate spot pairs, in frame order. Spot pairs that can no longer
+	 * be part of a track pair are dropped.
+	 * 
+	 * @return the number of frames in the window.
+	 */
+	private int processWindow(
+			final List< Frame > window1,
+			final List< Frame > window2,
+			final TmXmlTrackIndex index1,
+			final TmXmlTrackIndex index2,
+			final TrackStats stats1,
+			final TrackStats stats2,
+			final Map< Integer, PendingTrack > pending,
+			final CommonSpotsAssignment commonSpots,
+			final ExecutorService executor,
+			final Spill spill ) throws IOException
+	{
+		final Map< Integer, Frame > byFrame2 = new HashMap<>( 2 * window2.size() );
+		for ( final Frame frame2 : window2 )
+			byFrame2.put( Integer.valueOf( frame2.frame ), frame2 );
+
+		final List< Future< FrameJoin > > futures = new ArrayList<>( window1.size() );
+		for ( final Frame frame1 : window1 )
+		{
+			final Frame frame2 = byFrame2.get( Integer.valueOf( frame1.frame ) );
+			futures.add( executor.submit( () -> join( frame1, index1, frame2, index2, maxPairingDistance, zScale ) ) );
+		}
+
+		// Frames of the second file, in order.
+		int nFrames = 0;
+		for ( final Frame frame2 : window2 )
+		{
+			stats2.add( frame2, tracksOf( frame2, index2 ) );
+			if ( !containsFrame( window1, frame2.frame ) )
+				nFrames++;
+		}
+
+		// Frames of the first file and their candidate pairs, in order.
+		for ( int f = 0; f < window1.size(); f++ )
+		{
+			final FrameJoin join = get( futures.get( f ) );
+			stats1.add( join.frame1, join.tracks1 );
+			nFrames++;
+			for ( int q = 0; q < join.size(); q++ )
+			{
+				final int i = join.tracks1[ join.spots1.getValue( q ) ];
+				final int j = join.tracks2[ join.spots2.getValue( q ) ];
+				if ( commonSpots != null && !commonSpots.isOpen( i, j ) )
+					continue;
+				PendingTrack track = pending.get( Integer.valueOf( i ) );
+				if ( track == null )
+				{
+					track = new PendingTrack();
+					pending.put( Integer.valueOf( i ), track );
+				}
+				final long record = spill.write( i, j, join.frame1, join.spots1.getValue( q ), join.frame2, join.spots2.getValue( q ) );
+				// The mean position assignment reads the whole spill back.
+				track.add( j, ( commonSpots != null ) ? record : -1l );
+			}
+		}
+		return nFrames;
+	}
+
+	private static boolean containsFrame( final List< Frame > window, final int frame )
+	{
+		for ( final Frame f : window )
+			if ( f.frame == frame )
+				return true;
+		return false;
+	}
+
+	private static int[] tracksOf( final Frame frame, final TmXmlTrackIndex index )
+	{
+		final int[] tracks = new int[ frame.size() ];
+		for ( int k = 0; k < tracks.length; k++ )
+			tracks[ k ] = index.trackOf( frame.ids[ k ] );
+		return tracks;
+	}
+
+	/**
+	 * Joins the spots of one frame: for each spot of a first track, keeps the
+	 * closest spot of each second track strictly closer than the max
+	 * distance.
+	 */
+	private static FrameJoin join( final Frame frame1, final TmXmlTrackIndex index1, final Frame frame2, final TmXmlTrackIndex index2, final double maxDist, final double zScale )
+	{
+		final int[] tracks1 = tracksOf( frame1, index1 );
+		final FrameJoin join = new FrameJoin( frame1, tracks1, frame2 );
+		if ( frame2 == null )
+			return join;
+
+		final int[] tracks2 = tracksOf( frame2, index2 );
+		join.tracks2 = tracks2;
+
+		// Spots of the second file that belong to a track.
+		final int n2 = frame2.size();
+		final int[] rows = new int[ n2 ];
+		final double[] xs = new double[ n2 ];
+		final double[] ys = new double[ n2 ];
+		final double[] zs = new double[ n2 ];
+		int n = 0;
+		for ( int s = 0; s < n2; s++ )
+		{
+			if ( tracks2[ s ] < 0 )
+				continue;
+			rows[ n ] = s;
+			xs[ n ] = frame2.xs[ s ];
+			ys[ n ] = frame2.ys[ s ];
+			zs[ n ] = frame2.zs[ s ];
+			n++;
+		}
+		if ( n == 0 )
+			return join;
+
+		final PointKDTree tree = new PointKDTree( xs, ys, zs, n, zScale );
+		final IntArray candidates = new IntArray();
+		final Map< Integer, Integer > closest = new HashMap<>();
+		final IntArray bestRows = new IntArray();
+		final DoubleArray bestD2s = new DoubleArray();
+		for ( int k = 0; k < frame1.size(); k++ )
+		{
+			if ( tracks1[ k ] < 0 )
+				continue;
+
+			final double x = frame1.xs[ k ];
+			final double y = frame1.ys[ k ];
+			final double z = frame1.zs[ k ];
+			candidates.clear();
+			tree.radiusSearch( x, y, z, maxDist, candidates );
+			if ( candidates.isEmpty() )
+				continue;
+
+			// Keep the closest spot of each second track.
+			closest.clear();
+			bestRows.clear();
+			bestD2s.clear();
+			for ( int c = 0; c < candidates.size(); c++ )
+			{
+				final int s = rows[ candidates.getValue( c ) ];
+				final double d2 = DistanceKernels.squareDistance( x, y, z, frame2.xs[ s ], frame2.ys[ s ], frame2.zs[ s ], zScale );
+				final Integer j = Integer.valueOf( tracks2[ s ] );
+				final Integer slot = closest.get( j );
+				if ( slot == null )
+				{
+					closest.put( j, Integer.valueOf( bestRows.size() ) );
+					bestRows.addValue( s );
+					bestD2s.addValue( d2 );
+				}
+				else
+				{
+					final int q = slot.intValue();
+					final double other = bestD2s.getValue( q );
+					if ( d2 < other || ( d2 == other && s < bestRows.getValue( q ) ) )
+					{
+						bestRows.setValue( q, s );
+						bestD2s.setValue( q, d2 );
+					}
+				}
+			}
+
+			// Emit by increasing second track index.
+			final int[] order = new int[ bestRows.size() ];
+			for ( int q = 0; q < order.length; q++ )
+				order[ q ] = bestRows.getValue( q );
+			sortByTrack( order, tracks2 );
+			for ( final int s : order )
+			{
+				join.spots1.addValue( k );
+				join.spots2.addValue( s );
+			}
+		}
+		return join;
+	}
+
+	private static void sortByTrack( final int[] rows, final int[] tracks )
+	{
+		final long[] keys = new long[ rows.length ];
+		for ( int q = 0; q < rows.length; q++ )
+			keys[ q ] = ( ( long ) tracks[ rows[ q ] ] << 32 ) | rows[ q ];
+		Arrays.sort( keys );
+		for ( int q = 0; q < rows.length; q++ )
+			rows[ q ] = ( int ) keys[ q ];
+	}
+
+	/*
+	 * ASSIGNMENT.
+	 */
+
+	/** Marks a first track that has no candidate second track. */
+	private static final int UNMATCHED = -1;
+
+	/**
+	 * Marks a first track that was assigned a second track it has no spot
+	 * pairs with. It is neither paired nor reported as unmatched.
+	 */
+	private static final int MATCHED_WITHOUT_PAIRS = -2;
+
+	/**
+	 * Assigns to each first track, in order, the second track not yet taken
+	 * with which it has the most spot pairs, the first one on ties. This is
+	 * the assignment of {@link PairingMethods#COMMON_SPOTS}.
+	 * <p>
+	 * The spot pairs of a first track are all known once all its spots are
+	 * read, so it can be assigned as soon as it is complete and all the
+	 * tracks before it are assigned. Its spot pairs are then written and its
+	 * state released.
+	 */
+	private static final class CommonSpotsAssignment
+	{
+
+		private final int[] matches;
+
+		private final boolean[] taken;
+
+		/** Index of the first track to assign next. */
+		private int next;
+
+		private CommonSpotsAssignment( final int n1, final int n2 )
+		{
+			this.matches = new int[ n1 ];
+			this.taken = new boolean[ n2 ];
+			Arrays.fill( matches, UNMATCHED );
+		}
+
+		/**
+		 * Returns <code>true</code> if the first track can still be assigned
+		 * the second one.
+		 */
+		private boolean isOpen( final int i, final int j )
+		{
+			return i >= next && !taken[ j ];
+		}
+
+		/**
+		 * Assigns the next first tracks whose spots are all read, or all the
+		 * remaining first tracks, and writes their spot pairs.
+		 */
+		private void advance( final Map< Integer, PendingTrack > pending, final TrackStats stats1, final TmXmlTrackIndex index1, final boolean all, final SpotPairWriter writer ) throws IOException
+		{
+			for ( ; next < matches.length; next++ )
+			{
+				if ( !all && stats1.nSpots[ next ] < index1.nSpots( next ) )
+					return;
+				final PendingTrack track = pending.remove( Integer.valueOf( next ) );
+				if ( track == null )
+					continue;
+				final int q = track.best( taken );
+				if ( q < 0 )
+					continue;
+				final int j = track.tracks2.getValue( q );
+				taken[ j ] = true;
+				matches[ next ] = j;
+				writer.write( track.records.get( q ) );
+			}
+		}
+	}
+
+	/**
+	 * Assigns to each first track, in order, the second track not yet taken
+	 * whose mean position is the closest, if closer than the max pairing
+	 * distance. This is the assignment of
+	 * {@link PairingMethods#CLOSEST_MEAN_POSITION}.
+	 */
+	private int[] assignByMeanPosition( final TrackStats stats1, final TrackStats stats2, final Map< Integer, PendingTrack > pending )
+	{
+		final int n1 = stats1.nSpots.length;
+		final int n2 = stats2.nSpots.length;
+		final double[] xs2 = new double[ n2 ];
+		final double[] ys2 = new double[ n2 ];
+		final double[] zs2 = new double[ n2 ];
+		for ( int j = 0; j < n2; j++ )
+		{
+			xs2[ j ] = stats2.sums[ 3 * j ] / stats2.nSpots[ j ];
+			ys2[ j ] = stats2.sums[ 3 * j + 1 ] / stats2.nSpots[ j ];
+			zs2[ j ] = stats2.sums[ 3 * j + 2 ] / stats2.nSpots[ j ];
+		}
+
+		final int[] matches = new int[ n1 ];
+		final double[] sqDists = new double[ n2 ];
+		final double maxSqDist = maxPairingDistance * maxPairingDistance;
+		for ( int i = 0; i < n1; i++ )
+		{
+			matches[ i ] = UNMATCHED;
+			final int n = stats1.nSpots[ i ];
+			if ( n == 0 )
+				continue;
+
+			DistanceKernels.squareDistances(
+					stats1.sums[ 3 * i ] / n, stats1.sums[ 3 * i + 1 ] / n, stats1.sums[ 3 * i + 2 ] / n,
+					xs2, ys2, zs2, 0, n2, zScale, sqDists );
+			int bestMatch = -1;
+			double smallestSqDist = Double.POSITIVE_INFINITY;
+			for ( int j = 0; j < n2; j++ )
+			{
+				final double d2 = sqDists[ j ];
+				if ( stats2.nSpots[ j ] == 0 || stats2.claimed[ j ] || d2 > maxSqDist )
+					continue;
+				if ( d2 < smallestSqDist )
+				{
+					smallestSqDist = d2;
+					bestMatch = j;
+				}
+			}
+			if ( bestMatch < 0 )
+				continue;
+
+			stats2.claimed[ bestMatch ] = true;
+			final PendingTrack track = pending.get( Integer.valueOf( i ) );
+			final boolean hasPairs = track != null && track.indexOf( bestMatch ) >= 0;
+			matches[ i ] = hasPairs ? bestMatch : MATCHED_WITHOUT_PAIRS;
+		}
+		return matches;
+	}
+
+	/**
+	 * The candidate second tracks of a first track not assigned yet, with the
+	 * number of spot pairs and the spilled spot pairs for each of them.
+	 */
+	private static final class PendingTrack
+	{
+
+		private final IntArray tracks2 = new IntArray();
+
+		private final IntArray counts = new IntArray();
+
+		private final List< LongArray > records = new ArrayList<>();
+
+		/**
+		 * Adds a spot pair with the specified second track, and its record in
+		 * the spill if it is not negative.
+		 */
+		private void add( final int j, final long record )
+		{
+			int q = indexOf( j );
+			if ( q < 0 )
+			{
+				q = tracks2.size();
+				tracks2.addValue( j );
+				counts.addValue( 0 );
+				records.add( new LongArray() );
+			}
+			counts.setValue( q, counts.getValue( q ) + 1 );
+			if ( record >= 0 )
+				records.get( q ).addValue( record );
+		}
+
+		private int indexOf( final int j )
+		{
+			for ( int q = 0; q < tracks2.size(); q++ )
+				if ( tracks2.getValue( q ) == j )
+					return q;
+			return -1;
+		}
+
+		/**
+		 * Returns the slot of the second track not taken with which there are
+		 * the most spot pairs, the lowest track index on ties, or -1.
+		 */
+		private int best( final boolean[] taken )
+		{
+			int best = -1;
+			int largest = 0;
+			for ( int q = 0; q < tracks2.size(); q++ )
+			{
+				final int j = tracks2.getValue( q );
+				if ( taken[ j ] )
+					continue;
+				final int n = counts.getValue( q );
+				if ( n > largest || ( n == largest && j < tracks2.getValue( best ) ) )
+				{
+					largest = n;
+					best = q;
+				}
+			}
+			return best;
+		}
+	}
+
+	/*
+	 * SPILL.
+	 */
+
+	/**
+	 * The candidate spot pairs of the tracks not assigned yet, in fixed-size
+	 * records in a temporary file. Records are read back in blocks.
+	 */
+	private static final class Spill implements Closeable
+	{
+
+		/** Number of records read from the file at once. */
+		private static final int BLOCK_RECORDS = 1024;
+
+		private final File file;
+
+		private final DataOutputStream out;
+
+		private RandomAccessFile in;
+
+		private final List< String > features1;
+
+		private final List< String > features2;
+
+		private final int recordSize;
+
+		private final ByteBuffer block;
+
+		private long blockStart;
+
+		private int blockRecords;
+
+		private long nRecords;
+
+		private Spill( final List< String > features1, final List< String > features2 ) throws IOException
+		{
+			this.features1 = features1;
+			this.features2 = features2;
+			// Track indices, frame, then ID, position and features of each spot.
+			this.recordSize = 3 * Integer.BYTES
+					+ 2 * ( Integer.BYTES + 3 * Double.BYTES )
+					+ ( features1.size() + features2.size() ) * Double.BYTES;
+			this.block = ByteBuffer.allocate( BLOCK_RECORDS * recordSize );
+			this.file = File.createTempFile( "pairing-", ".spill" );
+			try
+			{
+				this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ) );
+			}
+			catch ( final IOException e )
+			{
+				file.delete();
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes a spot pair and returns the index of its record.
+		 */
+		private long write( final int i, final int j, final Frame frame1, final int k1, final Frame frame2, final int k2 ) throws IOException
+		{
+			out.writeInt( i );
+			out.writeInt( j );
+			out.writeInt( frame1.frame );
+			writeSpot( frame1, k1 );
+			writeSpot( frame2, k2 );
+			return nRecords++;
+		}
+
+		private void writeSpot( final Frame frame, final int k ) throws IOException
+		{
+			out.writeInt( frame.ids[ k ] );
+			out.writeDouble( frame.xs[ k ] );
+			out.writeDouble( frame.ys[ k ] );
+			out.writeDouble( frame.zs[ k ] );
+			for ( final double[] values : frame.features )
+				out.writeDouble( values[ k ] );
+		}
+
+		/**
+		 * Reads the record with the specified index.
+		 */
+		private SpillRecord read( final long r ) throws IOException
+		{
+			if ( r < blockStart || r >= blockStart + blockRecords )
+			{
+				out.flush();
+				if ( in == null )
+					in = new RandomAccessFile( file, "r" );
+				blockStart = r;
+				blockRecords = ( int ) Math.min( BLOCK_RECORDS, nRecords - r );
+				in.seek( r * recordSize );
+				in.readFully( block.array(), 0, blockRecords * recordSize );
+			}
+			block.position( ( int ) ( r - blockStart ) * recordSize );
+			final int i = block.getInt();
+			final int j = block.getInt();
+			final int frame = block.getInt();
+			final Spot s1 = readSpot( frame, features1 );
+			final Spot s2 = readSpot( frame, features2 );
+			return new SpillRecord( i, j, s1, s2 );
+		}
+
+		private Spot readSpot( final int frame, final List< String > features )
+		{
+			final Spot spot = new Spot( block.getInt() );
+			spot.putFeature( Spot.POSITION_X, Double.valueOf( block.getDouble() ) );
+			spot.putFeature( Spot.POSITION_Y, Double.valueOf( block.getDouble() ) );
+			spot.putFeature( Spot.POSITION_Z, Double.valueOf( block.getDouble() ) );
+			spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
+			for ( final String key : features )
+			{
+				final double value = block.getDouble();
+				if ( !Double.isNaN( value ) )
+					spot.putFeature( key, Double.valueOf( value ) );
+			}
+			return spot;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				out.close();
+				if ( in != null )
+					in.close();
+			}
+			finally
+			{
+				file.delete();
+			}
+		}
+	}
+
+	private static final class SpillRecord
+	{
+
+		private final int i;
+
+		private final int j;
+
+		private final Spot s1;
+
+		private final Spot s2;
+
+		private SpillRecord( final int i, final int j, final Spot s1, final Spot s2 )
+		{
+			this.i = i;
+			this.j = j;
+			this.s1 = s1;
+			this.s2 = s2;
+		}
+	}
+
+	/**
+	 * Writes the spilled spot pairs of assigned tracks to the sink.
+	 */
+	private final class SpotPairWriter
+	{
+
+		private final Spill spill;
+
+		private final TmXmlTrackIndex index1;
+
+		private final TmXmlTrackIndex index2;
+
+		private long nSpotPairs;
+
+		private SpotPairWriter( final Spill spill, final TmXmlTrackIndex index1, final TmXmlTrackIndex index2 )
+		{
+			this.spill = spill;
+			this.index1 = index1;
+			this.index2 = index2;
+		}
+
+		/**
+		 * Writes the spot pairs with the specified records.
+		 */
+		private void write( final LongArray records ) throws IOException
+		{
+			for ( int q = 0; q < records.size(); q++ )
+				write( spill.read( records.getValue( q ) ) );
+		}
+
+		/**
+		 * Writes all the spilled spot pairs of matched tracks.
+		 */
+		private void writeAll( final int[] matches ) throws IOException
+		{
+			for ( long r = 0; r < spill.nRecords; r++ )
+			{
+				final SpillRecord record = spill.read( r );
+				if ( matches[ record.i ] == record.j )
+					write( record );
+			}
+		}
+
+		private void write( final SpillRecord record ) throws IOException
+		{
+			sink.write( Pairing.csvLine(
+					index1.trackID( record.i ), index2.trackID( record.j ),
+					new SpotPair( record.s1, record.s2, zScale ),
+					index1.getImagePath(), index1.getTargetChannel(), index2.getTargetChannel() ) );
+			nSpotPairs++;
+		}
+	}
+
+	private static FrameJoin get( final Future< FrameJoin > future ) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while pairing." );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new IOException( cause );
+		}
+	}
+
+	@Override
+	public Result getResult()
+	{
+		return output;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * The candidate spot pairs of one frame, as rows in the frames of the two
+	 * files.
+	 */
+	private static final class FrameJoin
+	{
+
+		private final Frame frame1;
+
+		private final int[] tracks1;
+
+		private final Frame frame2;
+
+		private int[] tracks2;
+
+		private final IntArray spots1 = new IntArray();
+
+		private final IntArray spots2 = new IntArray();
+
+		private FrameJoin( final Frame frame1, final int[] tracks1, final Frame frame2 )
+		{
+			this.frame1 = frame1;
+			this.tracks1 = tracks1;
+			this.frame2 = frame2;
+		}
+
+		private int size()
+		{
+			return spots1.size();
+		}
+	}
+
+	/**
+	 * The state kept for each track across windows.
+	 */
+	private static final class TrackStats
+	{
+
+		private final int[] nSpots;
+
+		/** Sums of X, Y and Z of the spots of each track. */
+		private final double[] sums;
+
+		/** Whether a second track was assigned by mean position. */
+		private final boolean[] claimed;
+
+		private TrackStats( final int nTracks )
+		{
+			this.nSpots = new int[ nTracks ];
+			this.sums = new double[ 3 * nTracks ];
+			this.claimed = new boolean[ nTracks ];
+		}
+
+		private void add( final Frame frame, final int[] tracks )
+		{
+			for ( int k = 0; k < tracks.length; k++ )
+			{
+				final int t = tracks[ k ];
+				if ( t < 0 )
+					continue;
+				nSpots[ t ]++;
+				sums[ 3 * t ] += frame.xs[ k ];
+				sums[ 3 * t + 1 ] += frame.ys[ k ];
+				sums[ 3 * t + 2 ] += frame.zs[ k ];
+			}
+		}
+	}
+
+	/**
+	 * Summary of a streaming pairing.
+	 */
+	public static class Result
+	{
+
+		public final int nTrackPairs;
+
+		public final long nSpotPairs;
+
+		public final List< Integer > unmatchedTracks1;
+
+		public final List< Integer > unmatchedTracks2;
+
+		public final int nFrames;
+
+		/** The largest number of spots held in memory for one window. */
+		public final int maxWindowSpots;
+
+		public final String units;
+
+		private Result( final int nTrackPairs, final long nSpotPairs, final List< Integer > unmatchedTracks1, final List< Integer > unmatchedTracks2, final int nFrames, final int maxWindowSpots, final String units )
+		{
+			this.nTrackPairs = nTrackPairs;
+			this.nSpotPairs = nSpotPairs;
+			this.unmatchedTracks1 = Collections.unmodifiableList( unmatchedTracks1 );
+			this.unmatchedTracks2 = Collections.unmodifiableList( unmatchedTracks2 );
+			this.nFrames = nFrames;
+			this.maxWindowSpots = maxWindowSpots;
+			this.units = units;
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder( super.toString() );
+			str.append( "\nTrack pairs: " + nTrackPairs );
+			str.append( "\nSpot pairs: " + nSpotPairs );
+			str.append( "\nUnmatched tracks 1: " + unmatchedTracks1.size() );
+			str.append( "\nUnmatched tracks 2: " + unmatchedTracks2.size() );
+			str.append( "\nFrames streamed: " + nFrames );
+			str.append( "\nLargest window: " + maxWindowSpots + " spots" );
+			return str.toString();
+		}
+	}
+}
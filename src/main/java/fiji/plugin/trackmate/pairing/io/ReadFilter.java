@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import fiji.plugin.trackmate.features.FeatureFilter;
+
+/**
+ * Restrictions on the spots and tracks read from a TrackMate file, applied
+ * while the file is streamed by {@link TmXmlStreamReader}, so that excluded
+ * spots and tracks are never materialized nor paired.
+ * <p>
+ * Three kinds of restrictions are supported:
+ * <ul>
+ * <li>track feature filters, with the same semantics as the track filters of
+ * TrackMate: a track is kept if its feature value is above (or below) the
+ * threshold, or if it does not have this feature;
+ * <li>a frame window: only the spots in the window are kept;
+ * <li>a spatial region, as a box in physical units: only the spots inside the
+ * box are kept.
+ * </ul>
+ * Tracks that have no spot left after filtering are discarded.
+ * <p>
+ * Filters are created with a builder:
+ * 
+ * <pre>
+ * final ReadFilter filter = ReadFilter.build()
+ * 		.trackFilter( new FeatureFilter( "NUMBER_SPOTS", 60, true ) )
+ * 		.frames( 0, 99 )
+ * 		.region( 0., 0., 50., 50. )
+ * 		.get();
+ * </pre>
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class ReadFilter
+{
+
+	/** A filter that keeps everything. */
+	public static final ReadFilter NONE = build().get();
+
+	private final List< FeatureFilter > trackFilters;
+
+	private final int minFrame;
+
+	private final int maxFrame;
+
+	private final double[] min;
+
+	private final double[] max;
+
+	private ReadFilter( final List< FeatureFilter > trackFilters, final int minFrame, final int maxFrame, final double[] min, final double[] max )
+	{
+		this.trackFilters = trackFilters;
+		this.minFrame = minFrame;
+		this.maxFrame = maxFrame;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Returns <code>true</code> if this filter keeps everything.
+	 */
+	public boolean isEmpty()
+	{
+		return trackFilters.isEmpty() && !filtersSpots();
+	}
+
+	/**
+	 * Returns <code>true</code> if this filter may exclude spots, based on
+	 * their frame or position.
+	 */
+	public boolean filtersSpots()
+	{
+		if ( minFrame != Integer.MIN_VALUE || maxFrame != Integer.MAX_VALUE )
+			return true;
+		for ( int d = 0; d < 3; d++ )
+			if ( min[ d ] != Double.NEGATIVE_INFINITY || max[ d ] != Double.POSITIVE_INFINITY )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns <code>true</code> if a spot in the specified frame and at the
+	 * specified position is kept.
+	 */
+	public boolean acceptSpot( final int frame, final double x, final double y, final double z )
+	{
+		return frame >= minFrame && frame <= maxFrame
+				&& x >= min[ 0 ] && x <= max[ 0 ]
+				&& y >= min[ 1 ] && y <= max[ 1 ]
+				&& z >= min[ 2 ] && z <= max[ 2 ];
+	}
+
+	/**
+	 * Returns <code>true</code> if a track with the specified features is
+	 * kept.
+	 * 
+	 * @param features
+	 *            the track features, as a function that returns
+	 *            <code>null</code> for the features the track does not have.
+	 */
+	public boolean acceptTrack( final Function< String, Double > features )
+	{
+		for ( final FeatureFilter filter : trackFilters )
+		{
+			final Double val = features.apply( filter.feature );
+			if ( val == null )
+				continue;
+			if ( filter.isAbove ? val.doubleValue() < filter.value : val.doubleValue() > filter.value )
+				return false;
+		}
+		return true;
+	}
+
+	public List< FeatureFilter > getTrackFilters()
+	{
+		return trackFilters;
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( isEmpty() )
+			return "No filter";
+		final StringBuilder str = new StringBuilder();
+		for ( final FeatureFilter filter : trackFilters )
+			str.append( filter.feature + ( filter.isAbove ? " >= " : " <= " ) + filter.value + "; " );
+		if ( minFrame != Integer.MIN_VALUE || maxFrame != Integer.MAX_VALUE )
+			str.append( "frames in [" + minFrame + ", " + maxFrame + "]; " );
+		final String[] axes = new String[] { "X", "Y", "Z" };
+		for ( int d = 0; d < 3; d++ )
+			if ( min[ d ] != Double.NEGATIVE_INFINITY || max[ d ] != Double.POSITIVE_INFINITY )
+				str.append( axes[ d ] + " in [" + min[ d ] + ", " + max[ d ] + "]; " );
+		return str.substring( 0, str.length() - 2 );
+	}
+
+	public static Builder build()
+	{
+		return new Builder();
+	}
+
+	public static final class Builder
+	{
+
+		private final List< FeatureFilter > trackFilters = new ArrayList<>();
+
+		private int minFrame = Integer.MIN_VALUE;
+
+		private int maxFrame = Integer.MAX_VALUE;
+
+		private final double[] min = new double[] { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+		private final double[] max = new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+
+		private Builder()
+		{}
+
+		/**
+		 * Adds a filter on a track feature.
+		 */
+		public Builder trackFilter( final FeatureFilter filter )
+		{
+			trackFilters.add( filter );
+			return this;
+		}
+
+		/**
+		 * Only keeps the spots between the two specified frames, inclusive.
+		 */
+		public Builder frames( final int minFrame, final int maxFrame )
+		{
+			if ( minFrame > maxFrame )
+				throw new IllegalArgumentException( "Min frame (" + minFrame + ") is larger than max frame (" + maxFrame + ")." );
+			this.minFrame = minFrame;
+			this.maxFrame = maxFrame;
+			return this;
+		}
+
+		/**
+		 * Only keeps the spots in the specified XY rectangle, in physical
+		 * units, whatever their Z position.
+		 */
+		public Builder region( final double xmin, final double ymin, final double xmax, final double ymax )
+		{
+			return region( xmin, ymin, Double.NEGATIVE_INFINITY, xmax, ymax, Double.POSITIVE_INFINITY );
+		}
+
+		/**
+		 * Only keeps the spots in the specified box, in physical units.
+		 */
+		public Builder region( final double xmin, final double ymin, final double zmin, final double xmax, final double ymax, final double zmax )
+		{
+			if ( xmin > xmax || ymin > ymax || zmin > zmax )
+				throw new IllegalArgumentException( "Region min is larger than region max." );
+			min[ 0 ] = xmin;
+			min[ 1 ] = ymin;
+			min[ 2 ] = zmin;
+			max[ 0 ] = xmax;
+			max[ 1 ] = ymax;
+			max[ 2 ] = zmax;
+			return this;
+		}
+
+		public ReadFilter get()
+		{
+			return new ReadFilter(
+					Collections.unmodifiableList( new ArrayList<>( trackFilters ) ),
+					minFrame,
+					maxFrame,
+					min.clone(),
+					max.clone() );
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Streams the spots of a TrackMate file one frame at a time.
+ * <p>
+ * Each call to {@link #next()} parses the next <code>SpotsInFrame</code>
+ * element of the file, and returns its spots in primitive columns: ID,
+ * position and the requested features. Only the current frame is held in
+ * memory by the stream, so that files much larger than the memory can be
+ * processed with {@link TmXmlTrackIndex} to assign spots to their track.
+ * <p>
+ * TrackMate writes frames in increasing order, and the stream checks it.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class TmXmlFrameStream implements AutoCloseable
+{
+
+	private final InputStream is;
+
+	private final XMLStreamReader xml;
+
+	private final ReadFilter filter;
+
+	private final Map< String, Integer > featureIndices = new HashMap<>();
+
+	private final int nFeatures;
+
+	private int lastFrame = Integer.MIN_VALUE;
+
+	private boolean done;
+
+	/*
+	 * Buffers of the current frame.
+	 */
+
+	private final IntArray ids = new IntArray();
+
+	private final DoubleArray xs = new DoubleArray();
+
+	private final DoubleArray ys = new DoubleArray();
+
+	private final DoubleArray zs = new DoubleArray();
+
+	private final DoubleArray[] features;
+
+	/**
+	 * Opens a stream on the spots of the specified file.
+	 * 
+	 * @param file
+	 *            the TrackMate file, possibly compressed.
+	 * @param featureKeys
+	 *            the spot features to read.
+	 * @param filter
+	 *            the filter on spots. Its track filters are not used here.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 * @throws XMLStreamException
+	 *             if the file is not XML.
+	 */
+	public TmXmlFrameStream( final File file, final List< String > featureKeys, final ReadFilter filter ) throws IOException, XMLStreamException
+	{
+		this.filter = filter;
+		this.nFeatures = featureKeys.size();
+		this.features = new DoubleArray[ nFeatures ];
+		for ( int f = 0; f < nFeatures; f++ )
+		{
+			featureIndices.put( featureKeys.get( f ), Integer.valueOf( f ) );
+			features[ f ] = new DoubleArray();
+		}
+
+		this.is = TrackMateFiles.open( file );
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+		try
+		{
+			this.xml = factory.createXMLStreamReader( is );
+		}
+		catch ( final XMLStreamException e )
+		{
+			is.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the spots of the next frame in the file.
+	 * 
+	 * @return the next frame, or <code>null</code> if all the frames have
+	 *         been read.
+	 * @throws XMLStreamException
+	 *             if the file cannot be parsed.
+	 */
+	public Frame next() throws XMLStreamException
+	{
+		if ( done )
+			return null;
+
+		while ( xml.hasNext() )
+		{
+			final int event = xml.next();
+			if ( event == XMLStreamConstants.END_ELEMENT && SPOT_COLLECTION_ELEMENT_KEY.equals( xml.getLocalName() ) )
+				break;
+			if ( event == XMLStreamConstants.START_ELEMENT && SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals( xml.getLocalName() ) )
+				return readFrame();
+		}
+		done = true;
+		return null;
+	}
+
+	private Frame readFrame() throws XMLStreamException
+	{
+		final String str = xml.getAttributeValue( null, FRAME_ATTRIBUTE_NAME );
+		if ( str == null )
+			throw new XMLStreamException( "Element " + SPOT_FRAME_COLLECTION_ELEMENT_KEY + " has no " + FRAME_ATTRIBUTE_NAME + " attribute.", xml.getLocation() );
+		final int frame = ( int ) Double.parseDouble( str );
+		if ( frame <= lastFrame )
+			throw new XMLStreamException( "Frames are not in increasing order: " + frame + " after " + lastFrame + ".", xml.getLocation() );
+		lastFrame = frame;
+
+		ids.clear();
+		xs.clear();
+		ys.clear();
+		zs.clear();
+		for ( final DoubleArray column : features )
+			column.clear();
+
+		while ( xml.hasNext() )
+		{
+			final int event = xml.next();
+			if ( event == XMLStreamConstants.END_ELEMENT && SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals( xml.getLocalName() ) )
+				break;
+			if ( event == XMLStreamConstants.START_ELEMENT && SPOT_ELEMENT_KEY.equals( xml.getLocalName() ) )
+				readSpot( frame );
+		}
+
+		final int n = ids.size();
+		final double[][] values = new double[ nFeatures ][];
+		for ( int f = 0; f < nFeatures; f++ )
+			values[ f ] = Arrays.copyOf( features[ f ].getArray(), n );
+		return new Frame( frame,
+				Arrays.copyOf( ids.getArray(), n ),
+				Arrays.copyOf( xs.getArray(), n ),
+				Arrays.copyOf( ys.getArray(), n ),
+				Arrays.copyOf( zs.getArray(), n ),
+				values );
+	}
+
+	private void readSpot( final int frame ) throws XMLStreamException
+	{
+		int id = -1;
+		double x = 0.;
+		double y = 0.;
+		double z = 0.;
+		final double[] values = new double[ nFeatures ];
+		Arrays.fill( values, Double.NaN );
+		final int nAttributes = xml.getAttributeCount();
+		for ( int i = 0; i < nAttributes; i++ )
+		{
+			final String key = xml.getAttributeLocalName( i );
+			switch ( key )
+			{
+			case SPOT_ID_ATTRIBUTE_NAME:
+				id = Integer.parseInt( xml.getAttributeValue( i ) );
+				break;
+			case Spot.POSITION_X:
+				x = Double.parseDouble( xml.getAttributeValue( i ) );
+				break;
+			case Spot.POSITION_Y:
+				y = Double.parseDouble( xml.getAttributeValue( i ) );
+				break;
+			case Spot.POSITION_Z:
+				z = Double.parseDouble( xml.getAttributeValue( i ) );
+				break;
+			default:
+				final Integer f = featureIndices.get( key );
+				if ( f != null )
+					values[ f.intValue() ] = Double.parseDouble( xml.getAttributeValue( i ) );
+			}
+		}
+		if ( id < 0 )
+			throw new XMLStreamException( "Spot without ID in frame " + frame + ".", xml.getLocation() );
+		if ( !filter.acceptSpot( frame, x, y, z ) )
+			return;
+
+		ids.addValue( id );
+		xs.addValue( x );
+		ys.addValue( y );
+		zs.addValue( z );
+		for ( int f = 0; f < nFeatures; f++ )
+			features[ f ].addValue( values[ f ] );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			xml.close();
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( e );
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * The spots of one frame, in the order of the file.
+	 */
+	public static final class Frame
+	{
+
+		public final int frame;
+
+		public final int[] ids;
+
+		public final double[] xs;
+
+		public final double[] ys;
+
+		public final double[] zs;
+
+		/** Values of the requested features, NaN when a spot does not have it. */
+		public final double[][] features;
+
+		private Frame( final int frame, final int[] ids, final double[] xs, final double[] ys, final double[] zs, final double[][] features )
+		{
+			this.frame = frame;
+			this.ids = ids;
+			this.xs = xs;
+			this.ys = ys;
+			this.zs = zs;
+			this.features = features;
+		}
+
+		public int size()
+		{
+			return ids.length;
+		}
+	}
+}
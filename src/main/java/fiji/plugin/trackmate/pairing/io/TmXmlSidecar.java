@@ -0,0 +1,496 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * The content of a TrackMate file needed for pairing, that can be cached in a
+ * binary sidecar file next to it.
+ * <p>
+ * The sidecar stores the visible tracks as read by {@link TmXmlStreamReader}:
+ * track IDs and sizes, then the spot IDs, frames, positions, radius, quality
+ * and exported features in primitive columns, ordered by track. It is read
+ * in one go when loaded, and only the spot objects need to be created, which
+ * takes a fraction of the time needed to parse the XML.
+ * <p>
+ * A sidecar is only used if it was written for the same filter and the same
+ * feature selection, and if the size, modification time and SHA-256 digest
+ * of the TrackMate file have not changed since. The digest covers the whole
+ * file, so checking a sidecar reads the file once, without parsing it.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class TmXmlSidecar
+{
+
+	/** Extension appended to the name of the TrackMate file. */
+	public static final String EXTENSION = ".pairing-cache";
+
+	private static final int MAGIC = 0x544d5043;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * The feature selection of the sidecars of files read with the spot
+	 * features exported by {@link Pairing#toCsv()}.
+	 */
+	public static final String EXPORTED_FEATURES = "exported" + Pairing.exportedFeaturePrefixes();
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final TrackSnapshot tracks;
+
+	private final String spaceUnits;
+
+	private final String imagePath;
+
+	private final int targetChannel;
+
+	private TmXmlSidecar( final TrackSnapshot tracks, final String spaceUnits, final String imagePath, final int targetChannel )
+	{
+		this.tracks = tracks;
+		this.spaceUnits = spaceUnits;
+		this.imagePath = imagePath;
+		this.targetChannel = targetChannel;
+	}
+
+	/**
+	 * Returns the content of a TrackMate file read without errors by the
+	 * specified reader.
+	 */
+	public static TmXmlSidecar of( final TmXmlStreamReader reader )
+	{
+		return new TmXmlSidecar( reader.getTracks(), reader.getSpaceUnits(), reader.getImagePath(), reader.getTargetChannel() );
+	}
+
+	/**
+	 * Returns the visible tracks of the file.
+	 */
+	public TrackSnapshot getTracks()
+	{
+		return tracks;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	/**
+	 * Returns the path to the image referenced in the settings of the file,
+	 * or <code>null</code> if there is none.
+	 */
+	public String getImagePath()
+	{
+		return imagePath;
+	}
+
+	/**
+	 * Returns the channel in which the detection happened, or
+	 * {@link DetectorKeys#DEFAULT_TARGET_CHANNEL} if it is not specified.
+	 */
+	public int getTargetChannel()
+	{
+		return targetChannel;
+	}
+
+	/**
+	 * Returns the sidecar file of the specified TrackMate file.
+	 */
+	public static File sidecarOf( final File file )
+	{
+		return new File( file.getPath() + EXTENSION );
+	}
+
+	/*
+	 * LOADING.
+	 */
+
+	/**
+	 * Loads the sidecar of the specified TrackMate file, read with the spot
+	 * features exported by {@link Pairing#toCsv()}, if it exists and is up to
+	 * date.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param filter
+	 *            the filter the file is read with.
+	 * @return the content of the file, or <code>null</code> if there is no
+	 *         usable sidecar.
+	 */
+	public static TmXmlSidecar load( final File file, final ReadFilter filter )
+	{
+		return load( file, filter, EXPORTED_FEATURES );
+	}
+
+	/**
+	 * Loads the sidecar of the specified TrackMate file, if it exists and is
+	 * up to date.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param filter
+	 *            the filter the file is read with.
+	 * @param featureSelection
+	 *            a description of the spot features the file is read with,
+	 *            as passed to {@link #write(File, ReadFilter, String)}.
+	 * @return the content of the file, or <code>null</code> if there is no
+	 *         usable sidecar.
+	 */
+	public static TmXmlSidecar load( final File file, final ReadFilter filter, final String featureSelection )
+	{
+		final File sidecar = sidecarOf( file );
+		if ( !sidecar.isFile() )
+			return null;
+
+		try (final FileChannel channel = FileChannel.open( sidecar.toPath(), StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			if ( size > Integer.MAX_VALUE )
+				return null;
+			final ByteBuffer buffer = ByteBuffer.allocate( ( int ) size );
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					return null;
+			buffer.flip();
+			if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				return null;
+			if ( buffer.getLong() != file.length() || buffer.getLong() != file.lastModified() )
+				return null;
+			final byte[] digest = new byte[ buffer.getInt() ];
+			buffer.get( digest );
+			if ( !filter.toString().equals( getString( buffer ) ) || !featureSelection.equals( getString( buffer ) ) )
+				return null;
+			if ( !MessageDigest.isEqual( digest, digest( file ) ) )
+				return null;
+
+			final String spaceUnits = getString( buffer );
+			final String imagePath = getString( buffer );
+			final int targetChannel = buffer.getInt();
+
+			final int nFeatures = buffer.getInt();
+			final String[] featureKeys = new String[ nFeatures ];
+			for ( int f = 0; f < nFeatures; f++ )
+				featureKeys[ f ] = getString( buffer );
+
+			final int nTracks = buffer.getInt();
+			final int nSpots = buffer.getInt();
+			final int[] trackIDs = getInts( buffer, nTracks );
+			final int[] trackSizes = getInts( buffer, nTracks );
+			final int[] ids = getInts( buffer, nSpots );
+			final int[] frames = getInts( buffer, nSpots );
+			final double[] xs = getDoubles( buffer, nSpots );
+			final double[] ys = getDoubles( buffer, nSpots );
+			final double[] zs = getDoubles( buffer, nSpots );
+			final double[] ts = getDoubles( buffer, nSpots );
+			final double[] radii = getDoubles( buffer, nSpots );
+			final double[] qualities = getDoubles( buffer, nSpots );
+			final double[][] features = new double[ nFeatures ][];
+			for ( int f = 0; f < nFeatures; f++ )
+				features[ f ] = getDoubles( buffer, nSpots );
+			final int nNames = buffer.getInt();
+			final String[] names = new String[ nSpots ];
+			for ( int k = 0; k < nNames; k++ )
+				names[ buffer.getInt() ] = getString( buffer );
+
+			final Integer[] visibleIDs = new Integer[ nTracks ];
+			final SpotCoordinates[] visibleTracks = new SpotCoordinates[ nTracks ];
+			int row = 0;
+			for ( int t = 0; t < nTracks; t++ )
+			{
+				final Spot[] spots = new Spot[ trackSizes[ t ] ];
+				for ( int i = 0; i < spots.length; i++, row++ )
+				{
+					final Spot spot = new Spot( ids[ row ] );
+					spot.putFeature( Spot.POSITION_X, Double.valueOf( xs[ row ] ) );
+					spot.putFeature( Spot.POSITION_Y, Double.valueOf( ys[ row ] ) );
+					spot.putFeature( Spot.POSITION_Z, Double.valueOf( zs[ row ] ) );
+					spot.putFeature( Spot.FRAME, Double.valueOf( frames[ row ] ) );
+					putIfDefined( spot, Spot.POSITION_T, ts[ row ] );
+					putIfDefined( spot, Spot.RADIUS, radii[ row ] );
+					putIfDefined( spot, Spot.QUALITY, qualities[ row ] );
+					for ( int f = 0; f < nFeatures; f++ )
+						putIfDefined( spot, featureKeys[ f ], features[ f ][ row ] );
+					if ( names[ row ] != null )
+						spot.setName( names[ row ] );
+					spots[ i ] = spot;
+				}
+				visibleIDs[ t ] = Integer.valueOf( trackIDs[ t ] );
+				// Spots are stored sorted by frame, this keeps their order.
+				visibleTracks[ t ] = SpotCoordinates.byFrame( Arrays.asList( spots ) );
+			}
+			final TrackSnapshot tracks = new TrackSnapshot( visibleIDs, visibleTracks, spaceUnits );
+			return new TmXmlSidecar( tracks, spaceUnits, imagePath, targetChannel );
+		}
+		catch ( final IOException | BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException | IllegalArgumentException e )
+		{
+			// Truncated or corrupted sidecar.
+			return null;
+		}
+	}
+
+	/*
+	 * WRITING.
+	 */
+
+	/**
+	 * Writes the sidecar of the specified TrackMate file, read with the spot
+	 * features exported by {@link Pairing#toCsv()}.
+	 * 
+	 * @param file
+	 *            the TrackMate file this content was read from.
+	 * @param filter
+	 *            the filter the file was read with.
+	 * @return <code>true</code> if the sidecar could be written.
+	 */
+	public boolean write( final File file, final ReadFilter filter )
+	{
+		return write( file, filter, EXPORTED_FEATURES );
+	}
+
+	/**
+	 * Writes the sidecar of the specified TrackMate file. The sidecar is
+	 * written to a temporary file first, and then moved in place.
+	 * 
+	 * @param file
+	 *            the TrackMate file this content was read from.
+	 * @param filter
+	 *            the filter the file was read with.
+	 * @param featureSelection
+	 *            a description of the spot features the file was read with,
+	 *            for instance of the {@link Predicate} given to the
+	 *            {@link TmXmlStreamReader}. The sidecar is only loaded for the
+	 *            same description.
+	 * @return <code>true</code> if the sidecar could be written.
+	 */
+	public boolean write( final File file, final ReadFilter filter, final String featureSelection )
+	{
+		final File sidecar = sidecarOf( file );
+		final File part = new File( sidecar.getPath() + ".part" );
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( part ), 1 << 16 ) ))
+			{
+				write( out, file, filter, featureSelection );
+			}
+			Files.move( part.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			part.delete();
+			return false;
+		}
+	}
+
+	private void write( final DataOutputStream out, final File file, final ReadFilter filter, final String featureSelection ) throws IOException
+	{
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeLong( file.length() );
+		out.writeLong( file.lastModified() );
+		final byte[] digest = digest( file );
+		out.writeInt( digest.length );
+		out.write( digest );
+		putString( out, filter.toString() );
+		putString( out, featureSelection );
+		putString( out, spaceUnits );
+		putString( out, imagePath );
+		out.writeInt( targetChannel );
+
+		final List< Spot > spots = new ArrayList<>( tracks.nSpots() );
+		for ( int t = 0; t < tracks.size(); t++ )
+			spots.addAll( Arrays.asList( tracks.track( t ).spots ) );
+
+		final Set< String > featureKeys = new LinkedHashSet<>();
+		for ( final Spot spot : spots )
+			for ( final Map.Entry< String, Double > entry : spot.getFeatures().entrySet() )
+				if ( !isColumn( entry.getKey() ) )
+					featureKeys.add( entry.getKey() );
+		out.writeInt( featureKeys.size() );
+		for ( final String key : featureKeys )
+			putString( out, key );
+
+		out.writeInt( tracks.size() );
+		out.writeInt( spots.size() );
+		for ( int t = 0; t < tracks.size(); t++ )
+			out.writeInt( tracks.id( t ).intValue() );
+		for ( int t = 0; t < tracks.size(); t++ )
+			out.writeInt( tracks.track( t ).size() );
+		for ( final Spot spot : spots )
+			out.writeInt( spot.ID() );
+		for ( final Spot spot : spots )
+			out.writeInt( spot.getFeature( Spot.FRAME ).intValue() );
+		writeFeature( out, spots, Spot.POSITION_X );
+		writeFeature( out, spots, Spot.POSITION_Y );
+		writeFeature( out, spots, Spot.POSITION_Z );
+		writeFeature( out, spots, Spot.POSITION_T );
+		writeFeature( out, spots, Spot.RADIUS );
+		writeFeature( out, spots, Spot.QUALITY );
+		for ( final String key : featureKeys )
+			writeFeature( out, spots, key );
+
+		// Only the names that are not the default one.
+		final List< Integer > named = new ArrayList<>();
+		for ( int row = 0; row < spots.size(); row++ )
+		{
+			final Spot spot = spots.get( row );
+			final String name = spot.getName();
+			if ( name != null && !name.equals( "ID" + spot.ID() ) )
+				named.add( Integer.valueOf( row ) );
+		}
+		out.writeInt( named.size() );
+		for ( final Integer row : named )
+		{
+			out.writeInt( row.intValue() );
+			putString( out, spots.get( row.intValue() ).getName() );
+		}
+	}
+
+	private static void writeFeature( final DataOutputStream out, final List< Spot > spots, final String key ) throws IOException
+	{
+		for ( final Spot spot : spots )
+		{
+			final Double value = spot.getFeature( key );
+			out.writeDouble( ( value == null ) ? Double.NaN : value.doubleValue() );
+		}
+	}
+
+	private static boolean isColumn( final String key )
+	{
+		switch ( key )
+		{
+		case Spot.POSITION_X:
+		case Spot.POSITION_Y:
+		case Spot.POSITION_Z:
+		case Spot.POSITION_T:
+		case Spot.FRAME:
+		case Spot.RADIUS:
+		case Spot.QUALITY:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * UTILS.
+	 */
+
+	/**
+	 * Computes the SHA-256 digest of the whole specified file.
+	 */
+	private static byte[] digest( final File file ) throws IOException
+	{
+		final MessageDigest md;
+		try
+		{
+			md = MessageDigest.getInstance( DIGEST_ALGORITHM );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// Every Java platform provides SHA-256.
+			throw new IOException( e );
+		}
+		try (final InputStream is = Files.newInputStream( file.toPath() ))
+		{
+			final byte[] bytes = new byte[ 1 << 16 ];
+			int n;
+			while ( ( n = is.read( bytes ) ) >= 0 )
+				md.update( bytes, 0, n );
+		}
+		return md.digest();
+	}
+
+	private static void putIfDefined( final Spot spot, final String key, final double value )
+	{
+		if ( !Double.isNaN( value ) )
+			spot.putFeature( key, Double.valueOf( value ) );
+	}
+
+	private static void putString( final DataOutputStream out, final String str ) throws IOException
+	{
+		if ( str == null )
+		{
+			out.writeInt( -1 );
+			return;
+		}
+		final byte[] bytes = str.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	private static String getString( final ByteBuffer buffer )
+	{
+		final int length = buffer.getInt();
+		if ( length < 0 )
+			return null;
+		final byte[] bytes = new byte[ length ];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static int[] getInts( final ByteBuffer buffer, final int n )
+	{
+		final int[] arr = new int[ n ];
+		buffer.asIntBuffer().get( arr );
+		buffer.position( buffer.position() + n * Integer.BYTES );
+		return arr;
+	}
+
+	private static double[] getDoubles( final ByteBuffer buffer, final int n )
+	{
+		final double[] arr = new double[ n ];
+		buffer.asDoubleBuffer().get( arr );
+		buffer.position( buffer.position() + n * Double.BYTES );
+		return arr;
+	}
+}
@@ -0,0 +1,332 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Splits the bytes of a TrackMate XML file into parts that can be parsed
+ * independently.
+ * <p>
+ * The spot section of a TrackMate file is made of independent
+ * <code>SpotsInFrame</code> elements, and its track section of independent
+ * <code>Track</code> elements. The splitter locates these two sections, and
+ * cuts them in blocks of whole elements, just by scanning bytes. Each block
+ * is wrapped in a dummy root element to be parsed as a document of its own.
+ * What is left of the file, without the content of these two sections, is
+ * also a valid document, that holds the model attributes, the track
+ * visibility and the settings.
+ * <p>
+ * The markup of the file is not checked, but <code>&lt;</code> characters
+ * are always escaped in text, so the element names searched for cannot be
+ * found elsewhere than in tags.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+final class TmXmlSplitter
+{
+
+	private static final byte[] BLOCK_OPEN = "<Block>".getBytes( StandardCharsets.US_ASCII );
+
+	private static final byte[] BLOCK_CLOSE = "</Block>".getBytes( StandardCharsets.US_ASCII );
+
+	private final ByteBuffer buffer;
+
+	/** Start of the content of the spot section. */
+	private final int spotsStart;
+
+	/** End of the content of the spot section. */
+	private final int spotsEnd;
+
+	/** Start of the content of the track section. */
+	private final int tracksStart;
+
+	/** End of the content of the track section. */
+	private final int tracksEnd;
+
+	private TmXmlSplitter( final ByteBuffer buffer, final int spotsStart, final int spotsEnd, final int tracksStart, final int tracksEnd )
+	{
+		this.buffer = buffer;
+		this.spotsStart = spotsStart;
+		this.spotsEnd = spotsEnd;
+		this.tracksStart = tracksStart;
+		this.tracksEnd = tracksEnd;
+	}
+
+	/**
+	 * Locates the spot and track sections in the specified bytes.
+	 * <p>
+	 * The spot section is searched from the start of the file, since it comes
+	 * right after the log. The track section and the end of the spot section
+	 * are searched from the end of the file, since only the track visibility
+	 * and the settings come after them. The bulk of the file is therefore not
+	 * scanned.
+	 * 
+	 * @param buffer
+	 *            the bytes of the file.
+	 * @return a new splitter, or <code>null</code> if the sections cannot be
+	 *         found in the expected order.
+	 */
+	static TmXmlSplitter locate( final ByteBuffer buffer )
+	{
+		final int length = buffer.limit();
+
+		final int spotsTag = indexOf( buffer, startTag( SPOT_COLLECTION_ELEMENT_KEY ), 0, length );
+		if ( spotsTag < 0 )
+			return null;
+		final int spotsStart = contentStart( buffer, spotsTag, length );
+		if ( spotsStart < 0 )
+			return null;
+
+		final int tracksTag = lastIndexOf( buffer, startTag( TRACK_COLLECTION_ELEMENT_KEY ), spotsStart, length );
+		if ( tracksTag < 0 )
+			return null;
+		final int tracksStart = contentStart( buffer, tracksTag, length );
+		if ( tracksStart < 0 )
+			return null;
+
+		final int spotsEnd;
+		if ( isEmptyElement( buffer, spotsStart ) )
+			spotsEnd = spotsStart;
+		else
+			spotsEnd = lastIndexOf( buffer, endTag( SPOT_COLLECTION_ELEMENT_KEY ), spotsStart, tracksTag );
+
+		final int tracksEnd;
+		if ( isEmptyElement( buffer, tracksStart ) )
+			tracksEnd = tracksStart;
+		else
+			tracksEnd = lastIndexOf( buffer, endTag( TRACK_COLLECTION_ELEMENT_KEY ), tracksStart, length );
+
+		if ( spotsEnd < 0 || tracksEnd < 0 )
+			return null;
+		return new TmXmlSplitter( buffer, spotsStart, spotsEnd, tracksStart, tracksEnd );
+	}
+
+	/**
+	 * Returns the rest of the file, without the content of the spot and
+	 * track sections.
+	 */
+	InputStream rest()
+	{
+		return concat(
+				slice( 0, spotsStart ),
+				slice( spotsEnd, tracksStart ),
+				slice( tracksEnd, buffer.limit() ) );
+	}
+
+	/**
+	 * Returns the file without the content of the spot section.
+	 */
+	InputStream withoutSpots()
+	{
+		return concat(
+				slice( 0, spotsStart ),
+				slice( spotsEnd, buffer.limit() ) );
+	}
+
+	/**
+	 * Cuts the spot section in at most the specified number of blocks of whole
+	 * <code>SpotsInFrame</code> elements.
+	 * 
+	 * @return the bounds of the blocks: block <code>i</code> spans from
+	 *         <code>bounds[i]</code> to <code>bounds[i+1]</code>.
+	 */
+	int[] spotBlocks( final int nBlocks )
+	{
+		return split( spotsStart, spotsEnd, startTag( SPOT_FRAME_COLLECTION_ELEMENT_KEY ), nBlocks );
+	}
+
+	/**
+	 * Cuts the track section in at most the specified number of blocks of
+	 * whole <code>Track</code> elements.
+	 * 
+	 * @return the bounds of the blocks: block <code>i</code> spans from
+	 *         <code>bounds[i]</code> to <code>bounds[i+1]</code>.
+	 */
+	int[] trackBlocks( final int nBlocks )
+	{
+		return split( tracksStart, tracksEnd, startTag( TRACK_ELEMENT_KEY ), nBlocks );
+	}
+
+	/**
+	 * Returns the specified block, wrapped in a dummy root element.
+	 */
+	InputStream block( final int from, final int to )
+	{
+		return concat(
+				new ByteArrayInputStream( BLOCK_OPEN ),
+				slice( from, to ),
+				new ByteArrayInputStream( BLOCK_CLOSE ) );
+	}
+
+	private int[] split( final int from, final int to, final byte[] elementStart, final int nBlocks )
+	{
+		final int[] bounds = new int[ nBlocks + 1 ];
+		bounds[ 0 ] = from;
+		int n = 1;
+		for ( int i = 1; i < nBlocks; i++ )
+		{
+			final long target = from + ( long ) ( to - from ) * i / nBlocks;
+			final int start = Math.max( ( int ) target, bounds[ n - 1 ] + 1 );
+			if ( start >= to )
+				break;
+			final int bound = indexOf( buffer, elementStart, start, to );
+			if ( bound < 0 )
+				break;
+			bounds[ n++ ] = bound;
+		}
+		bounds[ n++ ] = to;
+		return Arrays.copyOf( bounds, n );
+	}
+
+	private InputStream slice( final int from, final int to )
+	{
+		final ByteBuffer slice = buffer.duplicate();
+		slice.limit( to );
+		slice.position( from );
+		return new ByteBufferInputStream( slice );
+	}
+
+	private static InputStream concat( final InputStream... streams )
+	{
+		return new SequenceInputStream( Collections.enumeration( Arrays.asList( streams ) ) );
+	}
+
+	/**
+	 * Returns the position after the start tag beginning at the specified
+	 * position, or -1 if it is not closed.
+	 */
+	private static int contentStart( final ByteBuffer buffer, final int tag, final int to )
+	{
+		for ( int i = tag; i < to; i++ )
+			if ( buffer.get( i ) == '>' )
+				return i + 1;
+		return -1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the start tag ending before the specified
+	 * position is the one of an empty element.
+	 */
+	private static boolean isEmptyElement( final ByteBuffer buffer, final int contentStart )
+	{
+		return buffer.get( contentStart - 2 ) == '/';
+	}
+
+	private static byte[] startTag( final String element )
+	{
+		return ( "<" + element ).getBytes( StandardCharsets.US_ASCII );
+	}
+
+	private static byte[] endTag( final String element )
+	{
+		return ( "</" + element + ">" ).getBytes( StandardCharsets.US_ASCII );
+	}
+
+	/**
+	 * Returns the position of the first occurrence of the specified tag
+	 * start, that is followed by a character ending the element name.
+	 */
+	private static int indexOf( final ByteBuffer buffer, final byte[] tag, final int from, final int to )
+	{
+		final int last = to - tag.length;
+		for ( int i = from; i <= last; i++ )
+			if ( matches( buffer, tag, i, to ) )
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the position of the last occurrence of the specified tag start,
+	 * that is followed by a character ending the element name.
+	 */
+	private static int lastIndexOf( final ByteBuffer buffer, final byte[] tag, final int from, final int to )
+	{
+		for ( int i = to - tag.length; i >= from; i-- )
+			if ( matches( buffer, tag, i, to ) )
+				return i;
+		return -1;
+	}
+
+	private static boolean matches( final ByteBuffer buffer, final byte[] tag, final int pos, final int to )
+	{
+		for ( int j = 0; j < tag.length; j++ )
+			if ( buffer.get( pos + j ) != tag[ j ] )
+				return false;
+		// Reject longer element names, e.g. TrackID for Track.
+		final int next = pos + tag.length;
+		if ( tag[ tag.length - 1 ] == '>' || next >= to )
+			return true;
+		final byte b = buffer.get( next );
+		return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * An input stream over the remaining bytes of a buffer.
+	 */
+	private static final class ByteBufferInputStream extends InputStream
+	{
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream( final ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len )
+		{
+			if ( len == 0 )
+				return 0;
+			if ( !buffer.hasRemaining() )
+				return -1;
+			final int n = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, n );
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,1004 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.DETECTOR_SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FILENAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FOLDER_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.ROOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * A streaming reader for TrackMate XML files, that only reads what pairing
+ * needs.
+ * <p>
+ * Contrary to {@link TmXmlReader}, the file is not loaded in memory as a
+ * document and no model is built. The file is read once with StAX, and the
+ * spots are stored in primitive columns: ID, frame, position, radius, quality
+ * and the spot features accepted by a filter, by default the ones exported
+ * by {@link Pairing#toCsv()}. Edges are only used to determine which spots
+ * belong to which track, and edge and track features are skipped. Spot
+ * objects are then created only for the spots of the visible tracks, and
+ * returned as a {@link TrackSnapshot}.
+ * <p>
+ * The path to the source image and the target channel of the detector are
+ * read in the same pass.
+ * <p>
+ * A {@link ReadFilter} can be specified to restrict the spots and tracks that
+ * are read. It is applied while streaming: excluded spots are not stored, the
+ * edges of excluded tracks are skipped, and no spot object is created for
+ * them.
+ * <p>
+ * Files compressed with gzip are decompressed while they are read. Large
+ * uncompressed files can be read on several threads, see
+ * {@link #TmXmlStreamReader(File, Predicate, ReadFilter, int)}.
+ * <p>
+ * The file is read when the reader is created. Check
+ * {@link #isReadingOk()} before using the results.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class TmXmlStreamReader
+{
+
+	/** Files smaller than this are always read on a single thread. */
+	private static final long PARALLEL_MIN_SIZE = 8 * 1024 * 1024;
+
+	/** Number of blocks per thread, so that threads stay busy until the end. */
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	private final File file;
+
+	private final Predicate< String > featureFilter;
+
+	private final ReadFilter filter;
+
+	private final int numThreads;
+
+	private String errorMessage;
+
+	private String spaceUnits = "";
+
+	private String imagePath;
+
+	private int targetChannel = DetectorKeys.DEFAULT_TARGET_CHANNEL;
+
+	private TrackSnapshot tracks;
+
+	/** The spots and tracks of the whole file. */
+	private final Block content = new Block();
+
+	private Set< Integer > filteredTrackIDs;
+
+	/**
+	 * Reads the specified file, keeping the spot features exported by
+	 * {@link Pairing#toCsv()}.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 */
+	public TmXmlStreamReader( final File file )
+	{
+		this( file, ReadFilter.NONE );
+	}
+
+	/**
+	 * Reads the specified file, keeping the spot features exported by
+	 * {@link Pairing#toCsv()}, and only the spots and tracks accepted by the
+	 * specified filter.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param filter
+	 *            the filter on spots and tracks.
+	 */
+	public TmXmlStreamReader( final File file, final ReadFilter filter )
+	{
+		this( file, filter, 1 );
+	}
+
+	/**
+	 * Reads the specified file on several threads, keeping the spot features
+	 * exported by {@link Pairing#toCsv()}, and only the spots and tracks
+	 * accepted by the specified filter.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param filter
+	 *            the filter on spots and tracks.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public TmXmlStreamReader( final File file, final ReadFilter filter, final int numThreads )
+	{
+		this( file, Pairing::isExportedFeature, filter, numThreads );
+	}
+
+	/**
+	 * Reads the specified file, keeping the spot features accepted by the
+	 * specified filter. Position, radius, quality and frame are always kept.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param featureFilter
+	 *            the filter on spot feature keys.
+	 */
+	public TmXmlStreamReader( final File file, final Predicate< String > featureFilter )
+	{
+		this( file, featureFilter, ReadFilter.NONE );
+	}
+
+	/**
+	 * Reads the specified file, keeping the spot features accepted by the
+	 * specified feature filter, and only the spots and tracks accepted by the
+	 * specified filter. Excluded spots are not stored, and excluded tracks
+	 * are skipped.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param featureFilter
+	 *            the filter on spot feature keys.
+	 * @param filter
+	 *            the filter on spots and tracks.
+	 */
+	public TmXmlStreamReader( final File file, final Predicate< String > featureFilter, final ReadFilter filter )
+	{
+		this( file, featureFilter, filter, 1 );
+	}
+
+	/**
+	 * Reads the specified file on several threads, keeping the spot features
+	 * accepted by the specified feature filter, and only the spots and tracks
+	 * accepted by the specified filter.
+	 * <p>
+	 * The spot and track sections of the file are cut in blocks of whole
+	 * <code>SpotsInFrame</code> and <code>Track</code> elements, that are
+	 * parsed concurrently and then merged in the order of the file. The
+	 * results are therefore the same as when reading on a single thread. The
+	 * feature filter must be thread-safe.
+	 * <p>
+	 * Compressed files, small files and files larger than 2 GB are read on a
+	 * single thread.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param featureFilter
+	 *            the filter on spot feature keys.
+	 * @param filter
+	 *            the filter on spots and tracks.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public TmXmlStreamReader( final File file, final Predicate< String > featureFilter, final ReadFilter filter, final int numThreads )
+	{
+		this.file = file;
+		this.featureFilter = featureFilter;
+		this.filter = filter;
+		this.numThreads = Math.max( 1, numThreads );
+		read();
+	}
+
+	/**
+	 * Returns <code>true</code> if the file was read without errors.
+	 */
+	public boolean isReadingOk()
+	{
+		return errorMessage == null;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the visible tracks of the file, or <code>null</code> if it could
+	 * not be read.
+	 */
+	public TrackSnapshot getTracks()
+	{
+		return tracks;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	/**
+	 * Returns the path to the image referenced in the settings of the file,
+	 * or <code>null</code> if there is none.
+	 */
+	public String getImagePath()
+	{
+		return imagePath;
+	}
+
+	/**
+	 * Returns the channel in which the detection happened, or
+	 * {@link DetectorKeys#DEFAULT_TARGET_CHANNEL} if it is not specified.
+	 */
+	public int getTargetChannel()
+	{
+		return targetChannel;
+	}
+
+	/**
+	 * Returns the number of spots read from the file and accepted by the
+	 * filter, whether they belong to a visible track or not.
+	 */
+	public int getNSpots()
+	{
+		return content.nSpots;
+	}
+
+	/**
+	 * Checks that the specified file can be opened and that its root element
+	 * is the one of a TrackMate file. Only the beginning of the file is read.
+	 * 
+	 * @param file
+	 *            the file to check.
+	 * @return an error message, or <code>null</code> if the file looks like a
+	 *         TrackMate file.
+	 */
+	public static String checkFile( final File file )
+	{
+		try (final InputStream is = TrackMateFiles.open( file ))
+		{
+			final XMLStreamReader xml = createFactory().createXMLStreamReader( is );
+			try
+			{
+				while ( xml.hasNext() )
+				{
+					if ( xml.next() == XMLStreamConstants.START_ELEMENT )
+					{
+						if ( !ROOT_ELEMENT_KEY.equals( xml.getLocalName() ) )
+							return "Not a TrackMate file, root element is " + xml.getLocalName() + ": " + file;
+						return null;
+					}
+				}
+				return "File has no root element: " + file;
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+		catch ( final IOException | XMLStreamException e )
+		{
+			return "Problem reading " + file + ":\n" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Returns the spatial units of the model in the specified file, or
+	 * <code>null</code> if they cannot be read. The file is only read until
+	 * the model element.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @return the spatial units.
+	 */
+	public static String readSpatialUnits( final File file )
+	{
+		try (final InputStream is = TrackMateFiles.open( file ))
+		{
+			final XMLStreamReader xml = createFactory().createXMLStreamReader( is );
+			try
+			{
+				while ( xml.hasNext() )
+				{
+					if ( xml.next() == XMLStreamConstants.START_ELEMENT && MODEL_ELEMENT_KEY.equals( xml.getLocalName() ) )
+						return xml.getAttributeValue( null, SPATIAL_UNITS_ATTRIBUTE_NAME );
+				}
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+		catch ( final IOException | XMLStreamException e )
+		{}
+		return null;
+	}
+
+	/**
+	 * Returns the path to the image and the target channel stored in the
+	 * settings of the specified file. The file is streamed until the end of
+	 * the settings element, without building the model nor a document.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @return the image settings. Their fields have their default values if
+	 *         they cannot be read.
+	 */
+	public static ImageSettings readImageSettings( final File file )
+	{
+		String imagePath = null;
+		int targetChannel = DetectorKeys.DEFAULT_TARGET_CHANNEL;
+		try (final InputStream is = TrackMateFiles.open( file ))
+		{
+			final XMLStreamReader xml = createFactory().createXMLStreamReader( is );
+			try
+			{
+				boolean inSettings = false;
+				while ( xml.hasNext() )
+				{
+					final int event = xml.next();
+					if ( event == XMLStreamConstants.END_ELEMENT && SETTINGS_ELEMENT_KEY.equals( xml.getLocalName() ) )
+						break;
+					if ( event != XMLStreamConstants.START_ELEMENT )
+						continue;
+
+					final String name = xml.getLocalName();
+					if ( SETTINGS_ELEMENT_KEY.equals( name ) )
+					{
+						inSettings = true;
+					}
+					else if ( inSettings && IMAGE_ELEMENT_KEY.equals( name ) )
+					{
+						final String filename = xml.getAttributeValue( null, IMAGE_FILENAME_ATTRIBUTE_NAME );
+						final String folder = xml.getAttributeValue( null, IMAGE_FOLDER_ATTRIBUTE_NAME );
+						if ( filename != null && folder != null )
+							imagePath = folder + filename;
+					}
+					else if ( inSettings && DETECTOR_SETTINGS_ELEMENT_KEY.equals( name ) )
+					{
+						final String str = xml.getAttributeValue( null, DetectorKeys.KEY_TARGET_CHANNEL );
+						if ( str != null )
+							targetChannel = ( int ) Double.parseDouble( str );
+					}
+				}
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+		catch ( final IOException | XMLStreamException | NumberFormatException e )
+		{}
+		return new ImageSettings( imagePath, targetChannel );
+	}
+
+	/**
+	 * The image a TrackMate file was made on, as stored in its settings.
+	 */
+	public static final class ImageSettings
+	{
+
+		/**
+		 * The path to the image, or <code>null</code> if there is none.
+		 */
+		public final String imagePath;
+
+		/**
+		 * The channel in which the detection happened, or
+		 * {@link DetectorKeys#DEFAULT_TARGET_CHANNEL} if it is not specified.
+		 */
+		public final int targetChannel;
+
+		private ImageSettings( final String imagePath, final int targetChannel )
+		{
+			this.imagePath = imagePath;
+			this.targetChannel = targetChannel;
+		}
+	}
+
+	/*
+	 * PARSING.
+	 */
+
+	private void read()
+	{
+		try
+		{
+			if ( numThreads == 1 || !readParallel() )
+				readSequential();
+			tracks = buildTracks();
+		}
+		catch ( final IOException | XMLStreamException | IllegalArgumentException e )
+		{
+			// IllegalArgumentException also covers NumberFormatException.
+			errorMessage = "Problem reading " + file + ":\n" + e.getMessage();
+		}
+	}
+
+	private void readSequential() throws IOException, XMLStreamException
+	{
+		try (final InputStream is = TrackMateFiles.open( file ))
+		{
+			final XMLStreamReader xml = createFactory().createXMLStreamReader( is );
+			try
+			{
+				parse( xml, content );
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the file on several threads, if possible.
+	 * 
+	 * @return <code>false</code> if the file must be read on a single thread
+	 *         instead, without anything read.
+	 */
+	private boolean readParallel() throws IOException, XMLStreamException
+	{
+		final long size = file.length();
+		if ( size < PARALLEL_MIN_SIZE || size > Integer.MAX_VALUE || TrackMateFiles.isCompressed( file ) )
+			return false;
+
+		final ByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+		}
+		final TmXmlSplitter splitter = TmXmlSplitter.locate( buffer );
+		if ( splitter == null )
+			return false;
+
+		// The rest of the file holds the XML declaration, hence the encoding.
+		final XMLStreamReader xml = createFactory().createXMLStreamReader( splitter.rest() );
+		try
+		{
+			final String declared = xml.getCharacterEncodingScheme();
+			final String encoding = ( declared == null ) ? StandardCharsets.UTF_8.name() : declared;
+			final int nBlocks = BLOCKS_PER_THREAD * numThreads;
+			final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+			try
+			{
+				final List< Future< Block > > spotBlocks = submit( executor, splitter, splitter.spotBlocks( nBlocks ), encoding );
+				final List< Future< Block > > trackBlocks = submit( executor, splitter, splitter.trackBlocks( nBlocks ), encoding );
+
+				// Model, track visibility and settings, while blocks are parsed.
+				parse( xml, content );
+
+				// Merge in the order of the file.
+				for ( final Future< Block > block : spotBlocks )
+					content.append( get( block ) );
+				for ( final Future< Block > block : trackBlocks )
+					content.append( get( block ) );
+			}
+			finally
+			{
+				executor.shutdownNow();
+			}
+		}
+		finally
+		{
+			xml.close();
+		}
+		return true;
+	}
+
+	private List< Future< Block > > submit( final ExecutorService executor, final TmXmlSplitter splitter, final int[] bounds, final String encoding )
+	{
+		final List< Future< Block > > futures = new ArrayList<>( bounds.length - 1 );
+		for ( int i = 0; i < bounds.length - 1; i++ )
+		{
+			final InputStream is = splitter.block( bounds[ i ], bounds[ i + 1 ] );
+			futures.add( executor.submit( () -> {
+				final Block block = new Block();
+				final XMLStreamReader xml = createFactory().createXMLStreamReader( is, encoding );
+				try
+				{
+					parse( xml, block );
+				}
+				finally
+				{
+					xml.close();
+				}
+				return block;
+			} ) );
+		}
+		return futures;
+	}
+
+	private static Block get( final Future< Block > future ) throws IOException, XMLStreamException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while reading." );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof XMLStreamException )
+				throw ( XMLStreamException ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new IOException( cause );
+		}
+	}
+
+	/**
+	 * Parses the specified document, storing the spots and tracks in the
+	 * specified block. The document can be the whole file, or a block of its
+	 * spot or track section.
+	 */
+	private void parse( final XMLStreamReader xml, final Block block ) throws XMLStreamException
+	{
+		boolean inSettings = false;
+		boolean acceptTrack = true;
+		int frame = 0;
+		while ( xml.hasNext() )
+		{
+			final int event = xml.next();
+			if ( event == XMLStreamConstants.END_ELEMENT )
+			{
+				if ( SETTINGS_ELEMENT_KEY.equals( xml.getLocalName() ) )
+					inSettings = false;
+				continue;
+			}
+			if ( event != XMLStreamConstants.START_ELEMENT )
+				continue;
+
+			final String name = xml.getLocalName();
+			if ( SPOT_ELEMENT_KEY.equals( name ) )
+			{
+				block.readSpot( xml, frame );
+			}
+			else if ( TRACK_EDGE_ELEMENT_KEY.equals( name ) )
+			{
+				if ( !acceptTrack )
+					continue;
+				block.edgeSources.addValue( parseInt( xml, EdgeTargetAnalyzer.SPOT_SOURCE_ID ) );
+				block.edgeTargets.addValue( parseInt( xml, EdgeTargetAnalyzer.SPOT_TARGET_ID ) );
+			}
+			else if ( SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals( name ) )
+			{
+				frame = parseInt( xml, FRAME_ATTRIBUTE_NAME );
+			}
+			else if ( TRACK_ELEMENT_KEY.equals( name ) )
+			{
+				acceptTrack = filter.acceptTrack( key -> {
+					final String value = xml.getAttributeValue( null, key );
+					return ( value == null ) ? null : Double.valueOf( value );
+				} );
+				if ( !acceptTrack )
+					continue;
+				block.trackIDs.addValue( parseInt( xml, TRACK_ID_ATTRIBUTE_NAME ) );
+				block.trackStarts.addValue( block.edgeSources.size() );
+			}
+			else if ( TRACK_ID_ELEMENT_KEY.equals( name ) )
+			{
+				if ( filteredTrackIDs == null )
+					throw new IllegalArgumentException( "Element " + name + " found outside of a " + FILTERED_TRACK_ELEMENT_KEY + " element." );
+				filteredTrackIDs.add( Integer.valueOf( parseInt( xml, TRACK_ID_ATTRIBUTE_NAME ) ) );
+			}
+			else if ( FILTERED_TRACK_ELEMENT_KEY.equals( name ) )
+			{
+				filteredTrackIDs = new HashSet<>();
+			}
+			else if ( MODEL_ELEMENT_KEY.equals( name ) )
+			{
+				final String units = xml.getAttributeValue( null, SPATIAL_UNITS_ATTRIBUTE_NAME );
+				if ( units != null )
+					spaceUnits = units;
+			}
+			else if ( SETTINGS_ELEMENT_KEY.equals( name ) )
+			{
+				inSettings = true;
+			}
+			else if ( inSettings && IMAGE_ELEMENT_KEY.equals( name ) )
+			{
+				final String filename = xml.getAttributeValue( null, IMAGE_FILENAME_ATTRIBUTE_NAME );
+				final String folder = xml.getAttributeValue( null, IMAGE_FOLDER_ATTRIBUTE_NAME );
+				if ( filename != null && folder != null )
+					imagePath = folder + filename;
+			}
+			else if ( inSettings && DETECTOR_SETTINGS_ELEMENT_KEY.equals( name ) )
+			{
+				final String str = xml.getAttributeValue( null, DetectorKeys.KEY_TARGET_CHANNEL );
+				if ( str != null )
+					targetChannel = ( int ) Double.parseDouble( str );
+			}
+		}
+	}
+
+	/*
+	 * TRACKS.
+	 */
+
+	private TrackSnapshot buildTracks()
+	{
+		final int nSpots = content.nSpots;
+
+		// Sorted spot IDs, with their row in the columns.
+		final long[] idToRow = new long[ nSpots ];
+		for ( int row = 0; row < nSpots; row++ )
+			idToRow[ row ] = ( ( long ) content.ids.getValue( row ) << 32 ) | row;
+		Arrays.sort( idToRow );
+
+		final IntArray trackIDs = content.trackIDs;
+		final IntArray trackStarts = content.trackStarts;
+		final int nTracks = trackIDs.size();
+		trackStarts.addValue( content.edgeSources.size() );
+		final int[] stamps = new int[ nSpots ];
+		final List< Integer > visibleIDs = new ArrayList<>( nTracks );
+		final List< SpotCoordinates > visibleTracks = new ArrayList<>( nTracks );
+		for ( int k = 0; k < nTracks; k++ )
+		{
+			final Integer trackID = Integer.valueOf( trackIDs.getValue( k ) );
+			if ( filteredTrackIDs != null && !filteredTrackIDs.contains( trackID ) )
+				continue;
+
+			final List< Spot > spots = new ArrayList<>();
+			for ( int e = trackStarts.getValue( k ); e < trackStarts.getValue( k + 1 ); e++ )
+			{
+				addSpot( rowOf( idToRow, content.edgeSources.getValue( e ) ), k + 1, stamps, spots );
+				addSpot( rowOf( idToRow, content.edgeTargets.getValue( e ) ), k + 1, stamps, spots );
+			}
+			// Tracks without edges, or whose spots were all excluded.
+			if ( spots.isEmpty() )
+				continue;
+
+			visibleIDs.add( trackID );
+			visibleTracks.add( SpotCoordinates.byFrame( spots ) );
+		}
+		return new TrackSnapshot(
+				visibleIDs.toArray( new Integer[ visibleIDs.size() ] ),
+				visibleTracks.toArray( new SpotCoordinates[ visibleTracks.size() ] ),
+				spaceUnits );
+	}
+
+	private void addSpot( final int row, final int stamp, final int[] stamps, final List< Spot > spots )
+	{
+		if ( row < 0 || stamps[ row ] == stamp )
+			return;
+		stamps[ row ] = stamp;
+		spots.add( content.createSpot( row ) );
+	}
+
+	private static void putIfDefined( final Spot spot, final String key, final double value )
+	{
+		if ( !Double.isNaN( value ) )
+			spot.putFeature( key, Double.valueOf( value ) );
+	}
+
+	/**
+	 * Returns the row of the spot with the specified ID, or -1 if it was
+	 * excluded by the filter.
+	 */
+	private int rowOf( final long[] idToRow, final int id )
+	{
+		int lo = 0;
+		int hi = idToRow.length - 1;
+		while ( lo <= hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			final int midID = ( int ) ( idToRow[ mid ] >> 32 );
+			if ( midID < id )
+				lo = mid + 1;
+			else if ( midID > id )
+				hi = mid - 1;
+			else
+				return ( int ) idToRow[ mid ];
+		}
+		if ( filter.filtersSpots() )
+			return -1;
+		throw new IllegalArgumentException( "Edge refers to an unknown spot ID: " + id + "." );
+	}
+
+	private static int parseInt( final XMLStreamReader xml, final String attribute )
+	{
+		final String value = xml.getAttributeValue( null, attribute );
+		if ( value == null )
+			throw new IllegalArgumentException( "Element " + xml.getLocalName() + " has no " + attribute + " attribute." );
+		return ( int ) Double.parseDouble( value );
+	}
+
+	private static XMLInputFactory createFactory()
+	{
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+		return factory;
+	}
+
+	private static void append( final IntArray to, final IntArray from )
+	{
+		final int size = to.size();
+		to.ensureCapacity( size + from.size() );
+		to.setSize( size + from.size() );
+		System.arraycopy( from.getArray(), 0, to.getArray(), size, from.size() );
+	}
+
+	private static void append( final DoubleArray to, final DoubleArray from )
+	{
+		final int size = to.size();
+		to.ensureCapacity( size + from.size() );
+		to.setSize( size + from.size() );
+		System.arraycopy( from.getArray(), 0, to.getArray(), size, from.size() );
+	}
+
+	/**
+	 * The spots and tracks read from the file, or from a block of it. Spots
+	 * are stored in columns, and tracks as lists of edges.
+	 */
+	private final class Block
+	{
+
+		private int nSpots;
+
+		/*
+		 * Spot columns.
+		 */
+
+		private final IntArray ids = new IntArray();
+
+		private final IntArray frames = new IntArray();
+
+		private final DoubleArray xs = new DoubleArray();
+
+		private final DoubleArray ys = new DoubleArray();
+
+		private final DoubleArray zs = new DoubleArray();
+
+		private final DoubleArray ts = new DoubleArray();
+
+		private final DoubleArray radii = new DoubleArray();
+
+		private final DoubleArray qualities = new DoubleArray();
+
+		/** Spot names, <code>null</code> when they are the default one. */
+		private final List< String > names = new ArrayList<>();
+
+		private final Map< String, DoubleArray > features = new LinkedHashMap<>();
+
+		/*
+		 * Tracks.
+		 */
+
+		private final IntArray trackIDs = new IntArray();
+
+		/** Index of the first edge of each track in the edge arrays. */
+		private final IntArray trackStarts = new IntArray();
+
+		private final IntArray edgeSources = new IntArray();
+
+		private final IntArray edgeTargets = new IntArray();
+
+		private void readSpot( final XMLStreamReader xml, final int frame )
+		{
+			int id = -1;
+			String name = null;
+			double x = 0.;
+			double y = 0.;
+			double z = 0.;
+			double t = Double.NaN;
+			double radius = Double.NaN;
+			double quality = Double.NaN;
+			int spotFrame = frame;
+			final int nAttributes = xml.getAttributeCount();
+			for ( int i = 0; i < nAttributes; i++ )
+			{
+				final String key = xml.getAttributeLocalName( i );
+				final String value = xml.getAttributeValue( i );
+				switch ( key )
+				{
+				case SPOT_ID_ATTRIBUTE_NAME:
+					id = Integer.parseInt( value );
+					break;
+				case SPOT_NAME_ATTRIBUTE_NAME:
+					name = value;
+					break;
+				case Spot.POSITION_X:
+					x = Double.parseDouble( value );
+					break;
+				case Spot.POSITION_Y:
+					y = Double.parseDouble( value );
+					break;
+				case Spot.POSITION_Z:
+					z = Double.parseDouble( value );
+					break;
+				case Spot.POSITION_T:
+					t = Double.parseDouble( value );
+					break;
+				case Spot.RADIUS:
+					radius = Double.parseDouble( value );
+					break;
+				case Spot.QUALITY:
+					quality = Double.parseDouble( value );
+					break;
+				case Spot.FRAME:
+					spotFrame = ( int ) Double.parseDouble( value );
+					break;
+				default:
+					if ( featureFilter.test( key ) )
+						column( key ).addValue( Double.parseDouble( value ) );
+				}
+			}
+			if ( id < 0 )
+				throw new IllegalArgumentException( "Spot without ID in frame " + frame + "." );
+			if ( !filter.acceptSpot( spotFrame, x, y, z ) )
+			{
+				rewindFeatures();
+				return;
+			}
+
+			ids.addValue( id );
+			frames.addValue( spotFrame );
+			xs.addValue( x );
+			ys.addValue( y );
+			zs.addValue( z );
+			ts.addValue( t );
+			radii.addValue( radius );
+			qualities.addValue( quality );
+			names.add( ( name == null || name.equals( "ID" + id ) ) ? null : name );
+			nSpots++;
+			padFeatures();
+		}
+
+		/**
+		 * Appends the spots and tracks of the specified block, read from a
+		 * later part of the file.
+		 */
+		private void append( final Block other )
+		{
+			final int edgeOffset = edgeSources.size();
+			for ( int k = 0; k < other.trackIDs.size(); k++ )
+			{
+				trackIDs.addValue( other.trackIDs.getValue( k ) );
+				trackStarts.addValue( edgeOffset + other.trackStarts.getValue( k ) );
+			}
+			TmXmlStreamReader.append( edgeSources, other.edgeSources );
+			TmXmlStreamReader.append( edgeTargets, other.edgeTargets );
+
+			TmXmlStreamReader.append( ids, other.ids );
+			TmXmlStreamReader.append( frames, other.frames );
+			TmXmlStreamReader.append( xs, other.xs );
+			TmXmlStreamReader.append( ys, other.ys );
+			TmXmlStreamReader.append( zs, other.zs );
+			TmXmlStreamReader.append( ts, other.ts );
+			TmXmlStreamReader.append( radii, other.radii );
+			TmXmlStreamReader.append( qualities, other.qualities );
+			names.addAll( other.names );
+			for ( final Map.Entry< String, DoubleArray > entry : other.features.entrySet() )
+				TmXmlStreamReader.append( column( entry.getKey() ), entry.getValue() );
+			nSpots += other.nSpots;
+			padFeatures();
+		}
+
+		/**
+		 * Pads the features the last spots do not have.
+		 */
+		private void padFeatures()
+		{
+			for ( final DoubleArray column : features.values() )
+			{
+				final int size = column.size();
+				if ( size < nSpots )
+				{
+					column.ensureCapacity( nSpots );
+					column.setSize( nSpots );
+					Arrays.fill( column.getArray(), size, nSpots, Double.NaN );
+				}
+			}
+		}
+
+		/**
+		 * Removes the features added for a spot that was finally excluded.
+		 */
+		private void rewindFeatures()
+		{
+			for ( final DoubleArray column : features.values() )
+				if ( column.size() > nSpots )
+					column.setSize( nSpots );
+		}
+
+		/**
+		 * Returns the column for the specified feature, created and padded
+		 * with NaNs for the spots already read if needed.
+		 */
+		private DoubleArray column( final String key )
+		{
+			DoubleArray column = features.get( key );
+			if ( column == null )
+			{
+				column = new DoubleArray();
+				column.ensureCapacity( nSpots + 1 );
+				column.setSize( nSpots );
+				Arrays.fill( column.getArray(), 0, nSpots, Double.NaN );
+				features.put( key, column );
+			}
+			return column;
+		}
+
+		private Spot createSpot( final int row )
+		{
+			final Spot spot = new Spot( ids.getValue( row ) );
+			spot.putFeature( Spot.POSITION_X, Double.valueOf( xs.getValue( row ) ) );
+			spot.putFeature( Spot.POSITION_Y, Double.valueOf( ys.getValue( row ) ) );
+			spot.putFeature( Spot.POSITION_Z, Double.valueOf( zs.getValue( row ) ) );
+			spot.putFeature( Spot.FRAME, Double.valueOf( frames.getValue( row ) ) );
+			putIfDefined( spot, Spot.POSITION_T, ts.getValue( row ) );
+			putIfDefined( spot, Spot.RADIUS, radii.getValue( row ) );
+			putIfDefined( spot, Spot.QUALITY, qualities.getValue( row ) );
+			for ( final Map.Entry< String, DoubleArray > entry : features.entrySet() )
+				putIfDefined( spot, entry.getKey(), entry.getValue().getValue( row ) );
+			final String name = names.get( row );
+			if ( name != null )
+				spot.setName( name );
+			return spot;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.DETECTOR_SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FILENAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FOLDER_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+
+/**
+ * The track membership of the spots of a TrackMate file, read without the
+ * spots themselves.
+ * <p>
+ * Only the track section, the track visibility and the settings of the file
+ * are read. For each visible track that has edges and is accepted by the
+ * filter, the IDs of its spots are stored with the index of the track, in a
+ * sorted array of longs. This takes a few bytes per spot, so that the spots
+ * can then be streamed frame by frame with {@link TmXmlFrameStream} and
+ * assigned to their track without loading the model.
+ * <p>
+ * Uncompressed files are memory-mapped and the spot section is skipped
+ * without being parsed. Compressed files are parsed entirely.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class TmXmlTrackIndex
+{
+
+	private final File file;
+
+	private final ReadFilter filter;
+
+	private String errorMessage;
+
+	private String spaceUnits = "";
+
+	private String imagePath;
+
+	private int targetChannel = DetectorKeys.DEFAULT_TARGET_CHANNEL;
+
+	/** IDs of the indexed tracks, in the order of the file. */
+	private int[] trackIDs;
+
+	/** Spot ID in the high bits, track index in the low bits, sorted. */
+	private long[] spotTracks;
+
+	/** Number of spots of each indexed track. */
+	private int[] trackSizes;
+
+	/*
+	 * Tracks and edges as read, released once the spots are indexed.
+	 */
+
+	private IntArray allTrackIDs = new IntArray();
+
+	private IntArray trackStarts = new IntArray();
+
+	private IntArray edgeSources = new IntArray();
+
+	private IntArray edgeTargets = new IntArray();
+
+	private Set< Integer > filteredTrackIDs;
+
+	/**
+	 * Reads the track membership of the spots of the specified file.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @param filter
+	 *            the filter on tracks. Its spot restrictions are not used
+	 *            here.
+	 */
+	public TmXmlTrackIndex( final File file, final ReadFilter filter )
+	{
+		this.file = file;
+		this.filter = filter;
+		read();
+	}
+
+	/**
+	 * Returns <code>true</code> if the file was read without errors.
+	 */
+	public boolean isReadingOk()
+	{
+		return errorMessage == null;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the number of indexed tracks.
+	 */
+	public int nTracks()
+	{
+		return trackIDs.length;
+	}
+
+	/**
+	 * Returns the ID of the track with the specified index.
+	 */
+	public Integer trackID( final int index )
+	{
+		return Integer.valueOf( trackIDs[ index ] );
+	}
+
+	/**
+	 * Returns the number of spots of the track with the specified index, in
+	 * the whole file.
+	 */
+	public int nSpots( final int index )
+	{
+		return trackSizes[ index ];
+	}
+
+	/**
+	 * Returns the index of the track the spot with the specified ID belongs
+	 * to.
+	 * 
+	 * @param spotID
+	 *            the spot ID.
+	 * @return the track index, or -1 if the spot is not in an indexed track.
+	 */
+	public int trackOf( final int spotID )
+	{
+		int lo = 0;
+		int hi = spotTracks.length - 1;
+		while ( lo <= hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			final int midID = ( int ) ( spotTracks[ mid ] >> 32 );
+			if ( midID < spotID )
+				lo = mid + 1;
+			else if ( midID > spotID )
+				hi = mid - 1;
+			else
+				return ( int ) spotTracks[ mid ];
+		}
+		return -1;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	/**
+	 * Returns the path to the image referenced in the settings of the file,
+	 * or <code>null</code> if there is none.
+	 */
+	public String getImagePath()
+	{
+		return imagePath;
+	}
+
+	/**
+	 * Returns the channel in which the detection happened, or
+	 * {@link DetectorKeys#DEFAULT_TARGET_CHANNEL} if it is not specified.
+	 */
+	public int getTargetChannel()
+	{
+		return targetChannel;
+	}
+
+	/*
+	 * PARSING.
+	 */
+
+	private void read()
+	{
+		try (final InputStream is = open())
+		{
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+			factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+			final XMLStreamReader xml = factory.createXMLStreamReader( is );
+			try
+			{
+				parse( xml );
+			}
+			finally
+			{
+				xml.close();
+			}
+			index();
+		}
+		catch ( final IOException | XMLStreamException | IllegalArgumentException e )
+		{
+			errorMessage = "Problem reading " + file + ":\n" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Opens the file, without its spot section if possible.
+	 */
+	private InputStream open() throws IOException
+	{
+		final long size = file.length();
+		if ( size <= Integer.MAX_VALUE && !TrackMateFiles.isCompressed( file ) )
+		{
+			try (final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+			{
+				final ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+				final TmXmlSplitter splitter = TmXmlSplitter.locate( buffer );
+				if ( splitter != null )
+					return splitter.withoutSpots();
+			}
+		}
+		return TrackMateFiles.open( file );
+	}
+
+	private void parse( final XMLStreamReader xml ) throws XMLStreamException
+	{
+		boolean inSettings = false;
+		boolean acceptTrack = true;
+		while ( xml.hasNext() )
+		{
+			final int event = xml.next();
+			if ( event == XMLStreamConstants.END_ELEMENT )
+			{
+				if ( SETTINGS_ELEMENT_KEY.equals( xml.getLocalName() ) )
+					inSettings = false;
+				continue;
+			}
+			if ( event != XMLStreamConstants.START_ELEMENT )
+				continue;
+
+			final String name = xml.getLocalName();
+			if ( TRACK_EDGE_ELEMENT_KEY.equals( name ) )
+			{
+				if ( !acceptTrack )
+					continue;
+				edgeSources.addValue( parseInt( xml, EdgeTargetAnalyzer.SPOT_SOURCE_ID ) );
+				edgeTargets.addValue( parseInt( xml, EdgeTargetAnalyzer.SPOT_TARGET_ID ) );
+			}
+			else if ( TRACK_ELEMENT_KEY.equals( name ) )
+			{
+				acceptTrack = filter.acceptTrack( key -> {
+					final String value = xml.getAttributeValue( null, key );
+					return ( value == null ) ? null : Double.valueOf( value );
+				} );
+				if ( !acceptTrack )
+					continue;
+				allTrackIDs.addValue( parseInt( xml, TRACK_ID_ATTRIBUTE_NAME ) );
+				trackStarts.addValue( edgeSources.size() );
+			}
+			else if ( TRACK_ID_ELEMENT_KEY.equals( name ) )
+			{
+				filteredTrackIDs.add( Integer.valueOf( parseInt( xml, TRACK_ID_ATTRIBUTE_NAME ) ) );
+			}
+			else if ( FILTERED_TRACK_ELEMENT_KEY.equals( name ) )
+			{
+				filteredTrackIDs = new HashSet<>();
+			}
+			else if ( MODEL_ELEMENT_KEY.equals( name ) )
+			{
+				final String units = xml.getAttributeValue( null, SPATIAL_UNITS_ATTRIBUTE_NAME );
+				if ( units != null )
+					spaceUnits = units;
+			}
+			else if ( SETTINGS_ELEMENT_KEY.equals( name ) )
+			{
+				inSettings = true;
+			}
+			else if ( inSettings && IMAGE_ELEMENT_KEY.equals( name ) )
+			{
+				final String filename = xml.getAttributeValue( null, IMAGE_FILENAME_ATTRIBUTE_NAME );
+				final String folder = xml.getAttributeValue( null, IMAGE_FOLDER_ATTRIBUTE_NAME );
+				if ( filename != null && folder != null )
+					imagePath = folder + filename;
+			}
+			else if ( inSettings && DETECTOR_SETTINGS_ELEMENT_KEY.equals( name ) )
+			{
+				final String str = xml.getAttributeValue( null, DetectorKeys.KEY_TARGET_CHANNEL );
+				if ( str != null )
+					targetChannel = ( int ) Double.parseDouble( str );
+			}
+		}
+	}
+
+	/**
+	 * Indexes the spots of the visible tracks that have edges.
+	 */
+	private void index()
+	{
+		final int nTracks = allTrackIDs.size();
+		trackStarts.addValue( edgeSources.size() );
+		final IntArray indexed = new IntArray();
+		final long[] pairs = new long[ 2 * edgeSources.size() ];
+		int n = 0;
+		for ( int k = 0; k < nTracks; k++ )
+		{
+			final int trackID = allTrackIDs.getValue( k );
+			if ( filteredTrackIDs != null && !filteredTrackIDs.contains( Integer.valueOf( trackID ) ) )
+				continue;
+			final int start = trackStarts.getValue( k );
+			final int end = trackStarts.getValue( k + 1 );
+			if ( start == end )
+				continue;
+
+			final long index = indexed.size();
+			indexed.addValue( trackID );
+			for ( int e = start; e < end; e++ )
+			{
+				pairs[ n++ ] = ( ( long ) edgeSources.getValue( e ) << 32 ) | index;
+				pairs[ n++ ] = ( ( long ) edgeTargets.getValue( e ) << 32 ) | index;
+			}
+		}
+		Arrays.sort( pairs, 0, n );
+
+		// Remove duplicates, spots belong to several edges of their track.
+		int m = 0;
+		for ( int q = 0; q < n; q++ )
+			if ( m == 0 || pairs[ q ] != pairs[ m - 1 ] )
+				pairs[ m++ ] = pairs[ q ];
+
+		this.trackIDs = indexed.copyArray();
+		this.spotTracks = Arrays.copyOf( pairs, m );
+		this.trackSizes = new int[ trackIDs.length ];
+		for ( int q = 0; q < m; q++ )
+			trackSizes[ ( int ) pairs[ q ] ]++;
+		allTrackIDs = null;
+		trackStarts = null;
+		edgeSources = null;
+		edgeTargets = null;
+	}
+
+	private static int parseInt( final XMLStreamReader xml, final String attribute )
+	{
+		final String value = xml.getAttributeValue( null, attribute );
+		if ( value == null )
+			throw new IllegalArgumentException( "Element " + xml.getLocalName() + " has no " + attribute + " attribute." );
+		return ( int ) Double.parseDouble( value );
+	}
+}
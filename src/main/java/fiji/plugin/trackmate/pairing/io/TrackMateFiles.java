@@ -0,0 +1,357 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import fiji.plugin.trackmate.io.TmXmlReader;
+
+/**
+ * Utilities to read and write TrackMate files that may be compressed with
+ * gzip.
+ * <p>
+ * Compressed files are detected from their first bytes, whatever their
+ * extension, and decompressed while they are read. Files are compressed on
+ * a background thread, so that the next computation can start while the
+ * previous file is being written.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class TrackMateFiles
+{
+
+	/** Extension of compressed TrackMate files, after <code>.xml</code>. */
+	public static final String GZIP_EXTENSION = ".gz";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	/**
+	 * Single thread compressing files in the background. It is not a daemon,
+	 * so that pending compressions complete before the JVM exits, and it
+	 * stops after a second without work.
+	 */
+	private static final ThreadPoolExecutor COMPRESSOR = new ThreadPoolExecutor(
+			1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+			r -> new Thread( r, "TrackMate file compressor" ) );
+	static
+	{
+		COMPRESSOR.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Compressions that are running, or that failed and whose error has not
+	 * been reported yet by {@link #awaitCompressions()}.
+	 */
+	private static final Queue< Future< File > > PENDING = new ConcurrentLinkedQueue<>();
+
+	/** Temporary plain versions of the compressed files read so far. */
+	private static final Map< File, Uncompressed > UNCOMPRESSED = new HashMap<>();
+
+	private TrackMateFiles()
+	{}
+
+	/**
+	 * Returns <code>true</code> if the specified file starts with the gzip
+	 * magic bytes.
+	 */
+	public static boolean isCompressed( final File file )
+	{
+		try (final InputStream is = new FileInputStream( file ))
+		{
+			final int b0 = is.read();
+			final int b1 = is.read();
+			return b0 >= 0 && b1 >= 0 && ( b0 | ( b1 << 8 ) ) == GZIP_MAGIC;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified path has the extension of a
+	 * compressed file.
+	 */
+	public static boolean hasCompressedExtension( final String path )
+	{
+		return path.toLowerCase( Locale.ROOT ).endsWith( GZIP_EXTENSION );
+	}
+
+	/**
+	 * Opens a buffered stream on the specified file, decompressing it on the
+	 * fly if it is compressed.
+	 * 
+	 * @param file
+	 *            the file to open.
+	 * @return a new stream, to be closed by the caller.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public static InputStream open( final File file ) throws IOException
+	{
+		if ( isCompressed( file ) )
+			return new BufferedInputStream( new GZIPInputStream( new FileInputStream( file ), BUFFER_SIZE ), BUFFER_SIZE );
+		return new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE );
+	}
+
+	/**
+	 * Returns a plain version of the specified file, for readers that only
+	 * accept files. If the file is not compressed, it is returned as is.
+	 * Otherwise it is decompressed to a temporary file, that is reused by the
+	 * next calls for the same file as long as the file is not modified, and
+	 * deleted when the JVM exits. If the file is modified, it is decompressed
+	 * again to a new temporary file, and the previous one is kept until the
+	 * JVM exits, since other readers may still use it. Callers must not modify
+	 * nor delete it.
+	 * 
+	 * @param file
+	 *            the file, compressed or not.
+	 * @return the file, or a temporary file.
+	 * @throws IOException
+	 *             if the file cannot be decompressed.
+	 */
+	public static File uncompressed( final File file ) throws IOException
+	{
+		if ( !isCompressed( file ) )
+			return file;
+
+		final File key = file.getAbsoluteFile();
+		synchronized ( UNCOMPRESSED )
+		{
+			final Uncompressed cached = UNCOMPRESSED.get( key );
+			if ( cached != null && cached.isUpToDate( file ) )
+				return cached.plain;
+		}
+
+		final Uncompressed uncompressed = new Uncompressed( file );
+		final File tmp = File.createTempFile( "trackmate-", ".xml" );
+		tmp.deleteOnExit();
+		try (final InputStream is = open( file ))
+		{
+			Files.copy( is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( final IOException e )
+		{
+			tmp.delete();
+			throw e;
+		}
+		uncompressed.plain = tmp;
+
+		synchronized ( UNCOMPRESSED )
+		{
+			UNCOMPRESSED.put( key, uncompressed );
+		}
+		return tmp;
+	}
+
+	/**
+	 * Creates a {@link TmXmlReader} for the specified file, compressed or not.
+	 * Compressed files are decompressed once to a temporary file, that is
+	 * shared by the readers of the same file.
+	 * 
+	 * @param file
+	 *            the TrackMate file.
+	 * @return a new reader. Check {@link TmXmlReader#isReadingOk()} before
+	 *         using it.
+	 * @see #uncompressed(File)
+	 */
+	public static TmXmlReader reader( final File file )
+	{
+		try
+		{
+			return new TmXmlReader( uncompressed( file ) );
+		}
+		catch ( final IOException e )
+		{
+			// Let the reader report the problem.
+			return new TmXmlReader( file );
+		}
+	}
+
+	/**
+	 * Compresses the specified file to the target file on a background
+	 * thread. The source file is kept. The target file appears only when
+	 * complete.
+	 * 
+	 * @param source
+	 *            the plain file to compress.
+	 * @param target
+	 *            the compressed file to write.
+	 * @return a future that returns the target file once written.
+	 */
+	public static Future< File > compress( final File source, final File target )
+	{
+		return compress( source, target, false );
+	}
+
+	/**
+	 * Compresses the specified file to the target file on a background
+	 * thread. The target file appears only when complete.
+	 * 
+	 * @param source
+	 *            the plain file to compress.
+	 * @param target
+	 *            the compressed file to write.
+	 * @param deleteSource
+	 *            whether to delete the source file once the target file is
+	 *            written.
+	 * @return a future that returns the target file once written.
+	 */
+	public static Future< File > compress( final File source, final File target, final boolean deleteSource )
+	{
+		final Compression compression = new Compression( () -> {
+			final File part = new File( target.getPath() + ".part" );
+			try (final InputStream is = new FileInputStream( source );
+					final OutputStream os = new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( part ), BUFFER_SIZE ), BUFFER_SIZE ))
+			{
+				final byte[] buffer = new byte[ BUFFER_SIZE ];
+				int n;
+				while ( ( n = is.read( buffer ) ) > 0 )
+					os.write( buffer, 0, n );
+			}
+			Files.move( part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			if ( deleteSource )
+				Files.delete( source.toPath() );
+			return target;
+		} );
+		// Added first, so that it is in the queue when it completes.
+		PENDING.add( compression );
+		COMPRESSOR.execute( compression );
+		return compression;
+	}
+
+	/**
+	 * Waits for all the compressions started with
+	 * {@link #compress(File, File, boolean)} to complete, and reports the
+	 * ones that failed since the last call.
+	 * 
+	 * @throws IOException
+	 *             if one of them failed. The other ones are still awaited.
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting.
+	 */
+	public static void awaitCompressions() throws IOException, InterruptedException
+	{
+		IOException error = null;
+		Future< File > future;
+		while ( ( future = PENDING.poll() ) != null )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				final Throwable cause = e.getCause();
+				if ( error == null )
+					error = ( cause instanceof IOException ) ? ( IOException ) cause : new IOException( cause );
+			}
+		}
+		if ( error != null )
+			throw error;
+	}
+
+	/**
+	 * A compression that leaves the pending queue once complete, unless it
+	 * failed, so that its error is reported by {@link #awaitCompressions()}.
+	 */
+	private static final class Compression extends FutureTask< File >
+	{
+
+		private Compression( final Callable< File > callable )
+		{
+			super( callable );
+		}
+
+		@Override
+		protected void done()
+		{
+			if ( isCancelled() )
+			{
+				PENDING.remove( this );
+				return;
+			}
+			try
+			{
+				get();
+				PENDING.remove( this );
+			}
+			catch ( final ExecutionException | InterruptedException e )
+			{
+				// Kept for awaitCompressions() to report.
+			}
+		}
+	}
+
+	/**
+	 * The temporary plain version of a compressed file, valid as long as the
+	 * compressed file has the same size and modification time.
+	 */
+	private static final class Uncompressed
+	{
+
+		private final long length;
+
+		private final long lastModified;
+
+		private File plain;
+
+		private Uncompressed( final File file )
+		{
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		private boolean isUpToDate( final File file )
+		{
+			return plain.isFile()
+					&& file.length() == length
+					&& file.lastModified() == lastModified;
+		}
+	}
+}
@@ -21,109 +21,248 @@
  */
 package fiji.plugin.trackmate.pairing.method;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+
+import org.scijava.util.IntArray;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.TrackModel;
-import fiji.plugin.trackmate.pairing.AbstractPairing;
+import fiji.plugin.trackmate.pairing.CandidateGraph;
 import fiji.plugin.trackmate.pairing.Pairing;
 import fiji.plugin.trackmate.pairing.Pairing.Builder;
-import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.PointKDTree;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
-import net.imglib2.util.Util;
 
 /**
  * Pair tracks based on the average positions of its spots, ignoring frame. This
  * can improve pairing when track pairs have few common time-points.
+ * <p>
+ * The spots paired between two matched tracks are read from the
+ * {@link CandidateGraph} of the pairing context. First tracks that were not
+ * joined in the graph before its time budget expired are reported as
+ * unmatched.
+ * <p>
+ * Under a time budget, the candidates of the first tracks are searched from
+ * the most promising first track to the least, until the budget expires.
+ * The greedy assignment is then made on the first tracks examined, in the
+ * order of the snapshot, so that it gives the same result as without budget
+ * if the budget does not expire. The other first tracks are reported as
+ * unmatched.
  * 
  * @author Jean-Yves Tinevez.
  */
-public class AverageTrackPositionPairing implements PairingMethod
+public class AverageTrackPositionPairing implements PairingMethod, ContextualPairingMethod
 {
 
 	@Override
 	public Builder pair( final Model model1, final Model model2, final double maxPairingDistance )
 	{
-		final Builder builder = Pairing.build().units( model1.getSpaceUnits() );
-
-		final TrackModel tm1 = model1.getTrackModel();
-		final TrackModel tm2 = model2.getTrackModel();
-
-		final Deque< Integer > ids1 = new ArrayDeque<>( tm1.unsortedTrackIDs( true ) );
-		final Map< Integer, RealLocalizable > pos1 = new HashMap<>( ids1.size() );
-		for ( final Integer id : ids1 )
+		try (final PairingContext context = PairingContext.build( model1, model2, maxPairingDistance ).get())
 		{
-			final Set< Spot > track = tm1.trackSpots( id );
-			final RealLocalizable pos = trackPosition( track );
-			pos1.put( id, pos );
+			return pair( context );
 		}
+	}
 
-		final List< Integer > ids2 = new ArrayList<>( tm2.unsortedTrackIDs( true ) );
-		final Map< Integer, RealLocalizable > pos2 = new HashMap<>( ids2.size() );
-		for ( final Integer id : ids2 )
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		final CandidateGraph graph = context.getCandidateGraph();
+		if ( graph == null )
+			return null;
+
+		if ( context.hasTimeBudget() )
+			return pairWithinBudget( context, graph );
+
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final TrackSnapshot tracks2 = graph.getTracks2();
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+
+		// Positions of the second tracks, as a structure of arrays.
+		final int n2 = tracks2.size();
+		final double[] xs2 = new double[ n2 ];
+		final double[] ys2 = new double[ n2 ];
+		final double[] zs2 = new double[ n2 ];
+		for ( int j = 0; j < n2; j++ )
 		{
-			final Set< Spot > track = tm2.trackSpots( id );
-			final RealLocalizable pos = trackPosition( track );
-			pos2.put( id, pos );
+			final RealLocalizable pos = trackPosition( tracks2.spots( j ) );
+			xs2[ j ] = pos.getDoublePosition( 0 );
+			ys2[ j ] = pos.getDoublePosition( 1 );
+			zs2[ j ] = pos.getDoublePosition( 2 );
 		}
 
 		/*
 		 * Greedy optimization.
 		 */
 
-		while ( !ids1.isEmpty() )
+		final boolean[] taken = new boolean[ n2 ];
+		final double[] sqDists = new double[ n2 ];
+		final double maxPairingDistance = context.getMaxPairingDistance();
+		final double maxSqDist = maxPairingDistance * maxPairingDistance;
+		for ( int i = 0; i < tracks1.size(); i++ )
 		{
-			final Integer id1 = ids1.pop();
-			final RealLocalizable l1 = pos1.get( id1 );
+			if ( context.isCanceled() )
+				return null;
+
+			// Not joined before the time budget expired: not examined.
+			if ( !graph.isJoined( i ) )
+			{
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+				continue;
+			}
+
+			final RealLocalizable l1 = trackPosition( tracks1.spots( i ) );
+			DistanceKernels.squareDistances(
+					l1.getDoublePosition( 0 ), l1.getDoublePosition( 1 ), l1.getDoublePosition( 2 ),
+					xs2, ys2, zs2, 0, n2, context.getZScale(), sqDists );
 
-			Integer bestMatch = null;
-			double smallesDist = Double.POSITIVE_INFINITY;
-			for ( final Integer id2 : ids2 )
+			int bestMatch = -1;
+			double smallestSqDist = Double.POSITIVE_INFINITY;
+			for ( int j = 0; j < n2; j++ )
 			{
-				final RealLocalizable l2 = pos2.get( id2 );
-				final double d = Util.distance( l1, l2 );
-				if ( d > maxPairingDistance )
+				final double d2 = sqDists[ j ];
+				if ( taken[ j ] || d2 > maxSqDist )
 					continue;
 
-				if ( d < smallesDist )
+				if ( d2 < smallestSqDist )
 				{
-					smallesDist = d;
-					bestMatch = id2;
+					smallestSqDist = d2;
+					bestMatch = j;
 				}
 			}
 
-			final Set< Spot > track1 = tm1.trackSpots( id1 );
-			if ( bestMatch != null )
+			if ( bestMatch >= 0 )
 			{
-				ids2.remove( bestMatch );
-				final Set< Spot > track2 = tm2.trackSpots( bestMatch );
-
-				final Collection< SpotPair > bestCommons = AbstractPairing.commonSpots( track1, track2, maxPairingDistance );
-				if ( !bestCommons.isEmpty() )
-					builder.pair( id1, bestMatch, bestCommons );
+				taken[ bestMatch ] = true;
+				final int edge = graph.edge( i, bestMatch );
+				if ( edge >= 0 && graph.nPairs( edge, maxPairingDistance ) > 0 )
+					builder.pair( tracks1.id( i ), tracks2.id( bestMatch ), graph.spotPairs( edge, maxPairingDistance ) );
 			}
 			else
 			{
-				builder.unmatchedTrack1( id1, track1 );
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
 			}
 		}
 
 		// Add the remaining track2 to unmatched list.
-		for ( final Integer id2 : ids2 )
+		for ( int j = 0; j < n2; j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Searches the candidates of the first tracks by decreasing priority
+	 * until the time budget expires, then assigns the ones examined.
+	 */
+	private Builder pairWithinBudget( final PairingContext context, final CandidateGraph graph )
+	{
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final TrackSnapshot tracks2 = graph.getTracks2();
+		final double maxPairingDistance = context.getMaxPairingDistance();
+		final double maxSqDist = maxPairingDistance * maxPairingDistance;
+
+		// Positions of the non-empty second tracks, in a k-d tree.
+		final IntArray indices2 = new IntArray();
+		for ( int j = 0; j < tracks2.size(); j++ )
+			if ( tracks2.track( j ).size() > 0 )
+				indices2.addValue( j );
+		final int n2 = indices2.size();
+		final double[] xs2 = new double[ n2 ];
+		final double[] ys2 = new double[ n2 ];
+		final double[] zs2 = new double[ n2 ];
+		for ( int b = 0; b < n2; b++ )
+		{
+			final RealLocalizable pos = trackPosition( tracks2.spots( indices2.getValue( b ) ) );
+			xs2[ b ] = pos.getDoublePosition( 0 );
+			ys2[ b ] = pos.getDoublePosition( 1 );
+			zs2[ b ] = pos.getDoublePosition( 2 );
+		}
+		final double zScale = context.getZScale();
+		final PointKDTree tree2 = new PointKDTree( xs2, ys2, zs2, n2, zScale );
+
+		/*
+		 * Candidates of each first track, by increasing distance then by
+		 * second track, as the greedy loop would visit them.
+		 */
+
+		final int[] order = graph.priorityOrder();
+		final int[][] candidates = new int[ tracks1.size() ][];
+		// The tree search is strict, the max pairing distance is inclusive.
+		final double radius = Math.nextUp( maxPairingDistance );
+		final int nExamined = context.parallelForInOrder( order.length, q -> {
+			final int i = order[ q ];
+			if ( tracks1.track( i ).size() == 0 )
+			{
+				candidates[ i ] = new int[ 0 ];
+				return;
+			}
+			final RealLocalizable l1 = trackPosition( tracks1.spots( i ) );
+			final double x = l1.getDoublePosition( 0 );
+			final double y = l1.getDoublePosition( 1 );
+			final double z = l1.getDoublePosition( 2 );
+			final IntArray found = new IntArray();
+			tree2.radiusSearch( x, y, z, radius, found );
+			final List< double[] > sorted = new ArrayList<>( found.size() );
+			for ( int c = 0; c < found.size(); c++ )
+			{
+				final int b = found.getValue( c );
+				final double d2 = DistanceKernels.squareDistance( x, y, z, xs2[ b ], ys2[ b ], zs2[ b ], zScale );
+				if ( d2 <= maxSqDist )
+					sorted.add( new double[] { d2, indices2.getValue( b ) } );
+			}
+			sorted.sort( Comparator.comparingDouble( ( final double[] c ) -> c[ 0 ] ).thenComparingDouble( c -> c[ 1 ] ) );
+			final int[] js = new int[ sorted.size() ];
+			for ( int c = 0; c < js.length; c++ )
+				js[ c ] = ( int ) sorted.get( c )[ 1 ];
+			candidates[ i ] = js;
+		} );
+		if ( context.isCanceled() )
+			return null;
+		context.setCoverage( nExamined, tracks1.size(), "first tracks" );
+
+		/*
+		 * Greedy optimization.
+		 */
+
+		final boolean[] taken = new boolean[ tracks2.size() ];
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		for ( int i = 0; i < tracks1.size(); i++ )
 		{
-			final Set< Spot > track2 = tm2.trackSpots( id2 );
-			builder.unmatchedTrack2( id2, track2 );
+			int bestMatch = -1;
+			if ( candidates[ i ] != null )
+			{
+				for ( final int j : candidates[ i ] )
+				{
+					if ( !taken[ j ] )
+					{
+						bestMatch = j;
+						break;
+					}
+				}
+			}
+			if ( bestMatch >= 0 )
+			{
+				taken[ bestMatch ] = true;
+				final int edge = graph.edge( i, bestMatch );
+				if ( edge >= 0 && graph.nPairs( edge, maxPairingDistance ) > 0 )
+					builder.pair( tracks1.id( i ), tracks2.id( bestMatch ), graph.spotPairs( edge, maxPairingDistance ) );
+			}
+			else
+			{
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+			}
 		}
+		for ( int j = 0; j < tracks2.size(); j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
 
 		return builder;
 	}
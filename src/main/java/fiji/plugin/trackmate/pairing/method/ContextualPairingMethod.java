@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+
+/**
+ * Interface for methods that pair tracks within a {@link PairingContext}.
+ * <p>
+ * Contrary to {@link PairingMethod}, implementations receive a context that
+ * gives them a thread budget, progress reporting and cancellation, and the
+ * data structures shared by all the methods run on the same models. Existing
+ * {@link PairingMethod}s can be used where a {@link ContextualPairingMethod}
+ * is expected via {@link #adapt(PairingMethod)}.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public interface ContextualPairingMethod
+{
+
+	/**
+	 * Performs the pairing between the tracks of the two models of the
+	 * specified context.
+	 * 
+	 * @param context
+	 *            the pairing context.
+	 * @return a builder that can generate the pairing results, or
+	 *         <code>null</code> if the context was canceled before the
+	 *         pairing completed.
+	 */
+	public Builder pair( PairingContext context );
+
+	/**
+	 * Returns <code>true</code> if this method needs the TrackMate models of
+	 * the context, via {@link PairingContext#getModel1()} and
+	 * {@link PairingContext#getModel2()}. Otherwise it only uses the track
+	 * snapshots and the structures built from them, and can run on a context
+	 * built without models.
+	 * 
+	 * @return whether this method needs the models.
+	 */
+	public default boolean needsModels()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns a {@link ContextualPairingMethod} that executes the specified
+	 * pairing method. If it already implements this interface, it is returned
+	 * as is.
+	 * 
+	 * @param method
+	 *            the method to adapt.
+	 * @return a {@link ContextualPairingMethod}.
+	 */
+	public static ContextualPairingMethod adapt( final PairingMethod method )
+	{
+		if ( method instanceof ContextualPairingMethod )
+			return ( ContextualPairingMethod ) method;
+		return new PairingMethodAdapter( method );
+	}
+}
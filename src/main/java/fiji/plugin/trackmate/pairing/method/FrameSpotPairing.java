@@ -0,0 +1,452 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex.FrameIndex;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * Pairs spots rather than tracks. In each frame, the spots of the first model
+ * are matched one-to-one to the spots of the second model closer than the max
+ * pairing distance, regardless of the tracks they belong to. This is useful
+ * when the tracking of one channel is fragmented, and the track-based methods
+ * miss most of the pairs.
+ * <p>
+ * Two assignments are possible:
+ * <ul>
+ * <li>{@link Assignment#GREEDY}: the closest spot pairs of the frame are
+ * taken first, as long as none of their spots is already paired.</li>
+ * <li>{@link Assignment#LAP}: the spot pairs are chosen to maximize the number
+ * of paired spots in the frame, then to minimize the sum of their squared
+ * distances. The assignment problem is solved separately for each group of
+ * spots connected by candidate pairs, so its cost depends on the density of
+ * the spots relative to the max pairing distance, not on their number.</li>
+ * </ul>
+ * Frames are processed in parallel, using the per-frame spatial indices of
+ * the pairing context. Under a time budget, the frames are processed from the
+ * one with the most spots in both models to the one with the fewest, until
+ * the budget expires. The spots of the frames not processed are not paired.
+ * <p>
+ * So that the results can be exported like the ones of the other methods, the
+ * spot pairs are grouped in pseudo track pairs: all the spot pairs made of a
+ * spot of the track <code>id1</code> and a spot of the track
+ * <code>id2</code> form the track pair <code>id1&amp;id2</code>. A track can
+ * therefore be part of several track pairs. Tracks none of whose spots are
+ * paired are reported as unmatched. Only the spots that belong to visible
+ * tracks are considered.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class FrameSpotPairing implements PairingMethod, ContextualPairingMethod
+{
+
+	/**
+	 * How spots are assigned to each other in a frame.
+	 */
+	public enum Assignment
+	{
+		GREEDY, LAP;
+	}
+
+	private final Assignment assignment;
+
+	public FrameSpotPairing( final Assignment assignment )
+	{
+		this.assignment = assignment;
+	}
+
+	@Override
+	public Builder pair( final Model model1, final Model model2, final double maxPairingDistance )
+	{
+		try (final PairingContext context = PairingContext.build( model1, model2, maxPairingDistance ).get())
+		{
+			return pair( context );
+		}
+	}
+
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		final FrameSpatialIndex index1 = context.getSpatialIndex1();
+		final FrameSpatialIndex index2 = context.getSpatialIndex2();
+		final TrackSnapshot tracks1 = index1.getTracks();
+		final TrackSnapshot tracks2 = index2.getTracks();
+		final double maxPairingDistance = context.getMaxPairingDistance();
+
+		/*
+		 * Match spots frame by frame.
+		 */
+
+		final int minFrame = Math.min( index1.minFrame(), index2.minFrame() );
+		final int maxFrame = Math.max( index1.maxFrame(), index2.maxFrame() );
+		final int nFrames = Math.max( 0, maxFrame - minFrame + 1 );
+		final int[][] matches = new int[ nFrames ][];
+		final IntConsumer body = f -> {
+			final FrameIndex frame1 = index1.frame( minFrame + f );
+			final FrameIndex frame2 = index2.frame( minFrame + f );
+			if ( frame1 != null && frame2 != null )
+				matches[ f ] = match( frame1, frame2, maxPairingDistance, context.getZScale(), assignment );
+		};
+		if ( context.hasTimeBudget() )
+		{
+			// Frames with the most spots that can be paired first.
+			final long[] keys = new long[ nFrames ];
+			for ( int f = 0; f < nFrames; f++ )
+			{
+				final int overlap = Math.min( index1.nSpots( minFrame + f ), index2.nSpots( minFrame + f ) );
+				keys[ f ] = ( ( long ) ( Integer.MAX_VALUE - overlap ) << 32 ) | f;
+			}
+			Arrays.sort( keys );
+			final int nExamined = context.parallelForInOrder( nFrames, q -> body.accept( ( int ) keys[ q ] ) );
+			context.setCoverage( nExamined, nFrames, "frames" );
+		}
+		else
+		{
+			context.parallelFor( nFrames, body );
+		}
+		if ( context.isCanceled() )
+			return null;
+
+		/*
+		 * Group spot pairs by track pairs, in frame order.
+		 */
+
+		final Map< Long, List< SpotPair > > groups = new TreeMap<>();
+		final boolean[] paired1 = new boolean[ tracks1.size() ];
+		final boolean[] paired2 = new boolean[ tracks2.size() ];
+		for ( int f = 0; f < nFrames; f++ )
+		{
+			if ( matches[ f ] == null )
+				continue;
+
+			final FrameIndex frame1 = index1.frame( minFrame + f );
+			final FrameIndex frame2 = index2.frame( minFrame + f );
+			final int[] m = matches[ f ];
+			for ( int k = 0; k < m.length; k += 2 )
+			{
+				final int i = frame1.trackIndices[ m[ k ] ];
+				final int j = frame2.trackIndices[ m[ k + 1 ] ];
+				paired1[ i ] = true;
+				paired2[ j ] = true;
+				groups.computeIfAbsent( Long.valueOf( ( ( long ) i << 32 ) | j ), key -> new ArrayList<>() )
+						.add( new SpotPair(
+								tracks1.track( i ).spots[ frame1.spotIndices[ m[ k ] ] ],
+								tracks2.track( j ).spots[ frame2.spotIndices[ m[ k + 1 ] ] ],
+								context.getZScale() ) );
+			}
+			matches[ f ] = null;
+		}
+
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		for ( final Map.Entry< Long, List< SpotPair > > group : groups.entrySet() )
+		{
+			final long key = group.getKey().longValue();
+			final int i = ( int ) ( key >>> 32 );
+			final int j = ( int ) key;
+			builder.pair( tracks1.id( i ), tracks2.id( j ), group.getValue() );
+		}
+		for ( int i = 0; i < paired1.length; i++ )
+			if ( !paired1[ i ] )
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+		for ( int j = 0; j < paired2.length; j++ )
+			if ( !paired2[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Matches the spots of one frame.
+	 * 
+	 * @return the matched spots, as consecutive couples of indices in the
+	 *         first and second frame index.
+	 */
+	private static int[] match( final FrameIndex frame1, final FrameIndex frame2, final double maxDist, final double zScale, final Assignment assignment )
+	{
+		// Candidate spot pairs, strictly closer than the max distance.
+		final IntArray as = new IntArray();
+		final IntArray bs = new IntArray();
+		final DoubleArray d2s = new DoubleArray();
+		final IntArray candidates = new IntArray();
+		for ( int a = 0; a < frame1.size(); a++ )
+		{
+			final double x = frame1.xs[ a ];
+			final double y = frame1.ys[ a ];
+			final double z = frame1.zs[ a ];
+			candidates.clear();
+			frame2.tree.radiusSearch( x, y, z, maxDist, candidates );
+			for ( int c = 0; c < candidates.size(); c++ )
+			{
+				final int b = candidates.getValue( c );
+				as.addValue( a );
+				bs.addValue( b );
+				d2s.addValue( DistanceKernels.squareDistance( x, y, z, frame2.xs[ b ], frame2.ys[ b ], frame2.zs[ b ], zScale ) );
+			}
+		}
+		if ( as.isEmpty() )
+			return new int[ 0 ];
+
+		final int[] matched2 = new int[ frame1.size() ];
+		Arrays.fill( matched2, -1 );
+		if ( assignment == Assignment.LAP )
+			solveLAP( frame1.size(), frame2.size(), as, bs, d2s, maxDist * maxDist, matched2 );
+		else
+			solveGreedy( frame2.size(), as, bs, d2s, matched2 );
+
+		final IntArray out = new IntArray();
+		for ( int a = 0; a < matched2.length; a++ )
+		{
+			if ( matched2[ a ] < 0 )
+				continue;
+			out.addValue( a );
+			out.addValue( matched2[ a ] );
+		}
+		return out.copyArray();
+	}
+
+	/**
+	 * Takes the candidate pairs by increasing distance, skipping the ones
+	 * whose spots are already paired. Ties are broken by the order of the
+	 * candidates.
+	 */
+	private static void solveGreedy( final int n2, final IntArray as, final IntArray bs, final DoubleArray d2s, final int[] matched2 )
+	{
+		final Integer[] order = new Integer[ as.size() ];
+		for ( int e = 0; e < order.length; e++ )
+			order[ e ] = Integer.valueOf( e );
+		Arrays.sort( order, Comparator.comparingDouble( e -> d2s.getValue( e.intValue() ) ) );
+
+		final boolean[] taken2 = new boolean[ n2 ];
+		for ( final Integer e : order )
+		{
+			final int a = as.getValue( e.intValue() );
+			final int b = bs.getValue( e.intValue() );
+			if ( matched2[ a ] >= 0 || taken2[ b ] )
+				continue;
+			matched2[ a ] = b;
+			taken2[ b ] = true;
+		}
+	}
+
+	/**
+	 * Solves the assignment problem separately on each connected component
+	 * of the candidate pairs.
+	 */
+	private static void solveLAP( final int n1, final int n2, final IntArray as, final IntArray bs, final DoubleArray d2s, final double maxSqDist, final int[] matched2 )
+	{
+		// Union-find over the spots, the second ones after the first ones.
+		final int[] parent = new int[ n1 + n2 ];
+		for ( int k = 0; k < parent.length; k++ )
+			parent[ k ] = k;
+		for ( int e = 0; e < as.size(); e++ )
+		{
+			final int ra = root( parent, as.getValue( e ) );
+			final int rb = root( parent, n1 + bs.getValue( e ) );
+			if ( ra != rb )
+				parent[ ra ] = rb;
+		}
+
+		// Candidates of each component.
+		final Map< Integer, IntArray > components = new TreeMap<>();
+		for ( int e = 0; e < as.size(); e++ )
+			components.computeIfAbsent( Integer.valueOf( root( parent, as.getValue( e ) ) ), k -> new IntArray() ).addValue( e );
+
+		final int[] rows = new int[ n1 ];
+		final int[] cols = new int[ n2 ];
+		Arrays.fill( rows, -1 );
+		Arrays.fill( cols, -1 );
+		for ( final IntArray edges : components.values() )
+		{
+			if ( edges.size() == 1 )
+			{
+				final int e = edges.getValue( 0 );
+				matched2[ as.getValue( e ) ] = bs.getValue( e );
+				continue;
+			}
+
+			// Local indices of the spots of the component.
+			final IntArray spots1 = new IntArray();
+			final IntArray spots2 = new IntArray();
+			for ( int k = 0; k < edges.size(); k++ )
+			{
+				final int e = edges.getValue( k );
+				final int a = as.getValue( e );
+				final int b = bs.getValue( e );
+				if ( rows[ a ] < 0 )
+				{
+					rows[ a ] = spots1.size();
+					spots1.addValue( a );
+				}
+				if ( cols[ b ] < 0 )
+				{
+					cols[ b ] = spots2.size();
+					spots2.addValue( b );
+				}
+			}
+
+			/*
+			 * Missing pairs cost more than all the candidate pairs together,
+			 * so that the number of pairs is maximized first. The solver needs
+			 * at least as many columns as rows.
+			 */
+			final boolean transpose = spots1.size() > spots2.size();
+			final int nRows = transpose ? spots2.size() : spots1.size();
+			final int nCols = transpose ? spots1.size() : spots2.size();
+			final double forbidden = maxSqDist * ( nRows + 1 );
+			final double[][] costs = new double[ nRows ][ nCols ];
+			for ( final double[] row : costs )
+				Arrays.fill( row, forbidden );
+			for ( int k = 0; k < edges.size(); k++ )
+			{
+				final int e = edges.getValue( k );
+				final int r = rows[ as.getValue( e ) ];
+				final int c = cols[ bs.getValue( e ) ];
+				if ( transpose )
+					costs[ c ][ r ] = d2s.getValue( e );
+				else
+					costs[ r ][ c ] = d2s.getValue( e );
+			}
+
+			final int[] assigned = hungarian( costs, nCols );
+			for ( int r = 0; r < nRows; r++ )
+			{
+				final int c = assigned[ r ];
+				if ( costs[ r ][ c ] >= forbidden )
+					continue;
+				if ( transpose )
+					matched2[ spots1.getValue( c ) ] = spots2.getValue( r );
+				else
+					matched2[ spots1.getValue( r ) ] = spots2.getValue( c );
+			}
+
+			for ( int k = 0; k < spots1.size(); k++ )
+				rows[ spots1.getValue( k ) ] = -1;
+			for ( int k = 0; k < spots2.size(); k++ )
+				cols[ spots2.getValue( k ) ] = -1;
+		}
+	}
+
+	private static int root( final int[] parent, int k )
+	{
+		while ( parent[ k ] != k )
+		{
+			parent[ k ] = parent[ parent[ k ] ];
+			k = parent[ k ];
+		}
+		return k;
+	}
+
+	/**
+	 * Solves the rectangular assignment problem with the Hungarian algorithm,
+	 * in <code>O(n^2 m)</code> for <code>n</code> rows and <code>m</code>
+	 * columns, <code>n &le; m</code>.
+	 * 
+	 * @return the column assigned to each row.
+	 */
+	private static int[] hungarian( final double[][] costs, final int m )
+	{
+		final int n = costs.length;
+		// Potentials and matching, 1-based, column 0 is a sentinel.
+		final double[] u = new double[ n + 1 ];
+		final double[] v = new double[ m + 1 ];
+		final int[] p = new int[ m + 1 ];
+		final int[] way = new int[ m + 1 ];
+		final double[] minv = new double[ m + 1 ];
+		final boolean[] used = new boolean[ m + 1 ];
+		for ( int i = 1; i <= n; i++ )
+		{
+			p[ 0 ] = i;
+			int j0 = 0;
+			Arrays.fill( minv, Double.POSITIVE_INFINITY );
+			Arrays.fill( used, false );
+			do
+			{
+				used[ j0 ] = true;
+				final int i0 = p[ j0 ];
+				double delta = Double.POSITIVE_INFINITY;
+				int j1 = 0;
+				for ( int j = 1; j <= m; j++ )
+				{
+					if ( used[ j ] )
+						continue;
+					final double cur = costs[ i0 - 1 ][ j - 1 ] - u[ i0 ] - v[ j ];
+					if ( cur < minv[ j ] )
+					{
+						minv[ j ] = cur;
+						way[ j ] = j0;
+					}
+					if ( minv[ j ] < delta )
+					{
+						delta = minv[ j ];
+						j1 = j;
+					}
+				}
+				for ( int j = 0; j <= m; j++ )
+				{
+					if ( used[ j ] )
+					{
+						u[ p[ j ] ] += delta;
+						v[ j ] -= delta;
+					}
+					else
+					{
+						minv[ j ] -= delta;
+					}
+				}
+				j0 = j1;
+			}
+			while ( p[ j0 ] != 0 );
+
+			do
+			{
+				final int j1 = way[ j0 ];
+				p[ j0 ] = p[ j1 ];
+				j0 = j1;
+			}
+			while ( j0 != 0 );
+		}
+
+		final int[] assigned = new int[ n ];
+		for ( int j = 1; j <= m; j++ )
+			if ( p[ j ] != 0 )
+				assigned[ p[ j ] - 1 ] = j - 1;
+		return assigned;
+	}
+}
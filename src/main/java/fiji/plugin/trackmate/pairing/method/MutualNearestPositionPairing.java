@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.pairing.CandidateGraph;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.PointKDTree;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+import net.imglib2.RealLocalizable;
+
+/**
+ * Pairs tracks based on the average positions of their spots, like
+ * {@link AverageTrackPositionPairing}, but with a result that does not depend
+ * on the order of the tracks.
+ * <p>
+ * Tracks whose mean positions are mutual nearest neighbours, and not farther
+ * than the max pairing distance, are paired first. The remaining tracks are
+ * then paired by processing their candidate pairs by increasing distance,
+ * skipping the tracks already paired. Ties are broken by the order of the
+ * tracks in the snapshots. Nearest neighbours and candidates are found with
+ * k-d trees over the mean positions, so pairing costs
+ * <code>O((T1 + T2) log T)</code> instead of <code>O(T1 &times; T2)</code>
+ * for reasonable max pairing distances.
+ * <p>
+ * As with {@link AverageTrackPositionPairing}, two tracks paired but without
+ * spots closer than the max pairing distance in the same frames are neither
+ * reported as a pair nor as unmatched. First tracks that were not joined in
+ * the candidate graph before its time budget expired are not paired, and are
+ * reported as unmatched.
+ * <p>
+ * Under a time budget, the first tracks are examined from the most promising
+ * to the least, until the budget expires. The pairing is then made on the
+ * first tracks examined. Since it does not depend on the order of the
+ * tracks, it is the same as without budget if the budget does not expire.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class MutualNearestPositionPairing extends AverageTrackPositionPairing
+{
+
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		final CandidateGraph graph = context.getCandidateGraph();
+		if ( graph == null )
+			return null;
+
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final TrackSnapshot tracks2 = graph.getTracks2();
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		final double maxPairingDistance = context.getMaxPairingDistance();
+		final double maxSqDist = maxPairingDistance * maxPairingDistance;
+
+		final Positions positions1 = new Positions( tracks1, graph, context.getZScale() );
+		final Positions positions2 = new Positions( tracks2, null, context.getZScale() );
+		final PointKDTree tree1 = positions1.tree();
+		final PointKDTree tree2 = positions2.tree();
+		final int n1 = positions1.size();
+		final int n2 = positions2.size();
+
+		/*
+		 * Mutual nearest neighbours, and candidates of the other first
+		 * tracks. Under a time budget, the first tracks are visited by
+		 * decreasing priority until the budget expires.
+		 */
+
+		final int[] visit = visitOrder( context, graph, positions1 );
+		final int[] matches1 = new int[ n1 ];
+		final int[] matches2 = new int[ n2 ];
+		Arrays.fill( matches1, -1 );
+		Arrays.fill( matches2, -1 );
+		final IntArray as = new IntArray();
+		final IntArray bs = new IntArray();
+		final DoubleArray d2s = new DoubleArray();
+		final IntArray candidates = new IntArray();
+		// The tree search is strict, the max pairing distance is inclusive.
+		final double radius = Math.nextUp( maxPairingDistance );
+		int nExamined = 0;
+		for ( ; nExamined < visit.length && n2 > 0; nExamined++ )
+		{
+			if ( context.isCanceled() )
+				return null;
+			if ( context.isExpired() )
+				break;
+
+			final int a = visit[ nExamined ];
+			final int nearest = tree2.nearest( positions1.xs[ a ], positions1.ys[ a ], positions1.zs[ a ] );
+			if ( positions1.sqDistance( a, positions2, nearest ) <= maxSqDist
+					&& tree1.nearest( positions2.xs[ nearest ], positions2.ys[ nearest ], positions2.zs[ nearest ] ) == a )
+			{
+				matches1[ a ] = nearest;
+				matches2[ nearest ] = a;
+				continue;
+			}
+
+			// Candidates of second tracks mutually matched are skipped below.
+			candidates.clear();
+			tree2.radiusSearch( positions1.xs[ a ], positions1.ys[ a ], positions1.zs[ a ], radius, candidates );
+			for ( int c = 0; c < candidates.size(); c++ )
+			{
+				final int b = candidates.getValue( c );
+				final double d2 = positions1.sqDistance( a, positions2, b );
+				if ( d2 > maxSqDist )
+					continue;
+				as.addValue( a );
+				bs.addValue( b );
+				d2s.addValue( d2 );
+			}
+		}
+		if ( context.hasTimeBudget() )
+		{
+			// Empty first tracks joined in the graph have nothing to examine.
+			int nEmpty = 0;
+			for ( int i = 0; i < tracks1.size(); i++ )
+				if ( tracks1.track( i ).size() == 0 && graph.isJoined( i ) )
+					nEmpty++;
+			final int nVisited = ( n2 > 0 ) ? nExamined : visit.length;
+			context.setCoverage( nVisited + nEmpty, tracks1.size(), "first tracks" );
+		}
+
+		/*
+		 * Remaining tracks, by increasing distance.
+		 */
+
+		final Integer[] order = new Integer[ as.size() ];
+		for ( int e = 0; e < order.length; e++ )
+			order[ e ] = Integer.valueOf( e );
+		Arrays.sort( order, Comparator
+				.comparingDouble( ( final Integer e ) -> d2s.getValue( e.intValue() ) )
+				.thenComparingInt( e -> as.getValue( e.intValue() ) )
+				.thenComparingInt( e -> bs.getValue( e.intValue() ) ) );
+		for ( final Integer e : order )
+		{
+			final int a = as.getValue( e.intValue() );
+			final int b = bs.getValue( e.intValue() );
+			if ( matches1[ a ] >= 0 || matches2[ b ] >= 0 )
+				continue;
+			matches1[ a ] = b;
+			matches2[ b ] = a;
+		}
+		if ( context.isCanceled() )
+			return null;
+
+		/*
+		 * Collect the results, in the order of the first tracks.
+		 */
+
+		final boolean[] taken = new boolean[ tracks2.size() ];
+		final boolean[] matched = new boolean[ tracks1.size() ];
+		for ( int a = 0; a < n1; a++ )
+		{
+			if ( matches1[ a ] < 0 )
+				continue;
+			final int i = positions1.tracks[ a ];
+			final int j = positions2.tracks[ matches1[ a ] ];
+			matched[ i ] = true;
+			taken[ j ] = true;
+			final int edge = graph.edge( i, j );
+			if ( edge >= 0 && graph.nPairs( edge, maxPairingDistance ) > 0 )
+				builder.pair( tracks1.id( i ), tracks2.id( j ), graph.spotPairs( edge, maxPairingDistance ) );
+		}
+		for ( int i = 0; i < tracks1.size(); i++ )
+			if ( !matched[ i ] )
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+		for ( int j = 0; j < tracks2.size(); j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Returns the order in which the first tracks are visited: by decreasing
+	 * priority under a time budget, in the order of the snapshot otherwise.
+	 */
+	private static int[] visitOrder( final PairingContext context, final CandidateGraph graph, final Positions positions1 )
+	{
+		final int n1 = positions1.size();
+		final int[] visit = new int[ n1 ];
+		if ( !context.hasTimeBudget() )
+		{
+			for ( int a = 0; a < n1; a++ )
+				visit[ a ] = a;
+			return visit;
+		}
+
+		// Index of each joined non-empty first track in the positions.
+		final int[] position = new int[ graph.getTracks1().size() ];
+		Arrays.fill( position, -1 );
+		for ( int a = 0; a < n1; a++ )
+			position[ positions1.tracks[ a ] ] = a;
+		int q = 0;
+		for ( final int i : graph.priorityOrder() )
+			if ( position[ i ] >= 0 )
+				visit[ q++ ] = position[ i ];
+		return visit;
+	}
+
+	/**
+	 * The positions of the non-empty tracks of a snapshot. If a graph is
+	 * specified, only the first tracks it joined are kept.
+	 */
+	private final class Positions
+	{
+
+		/** The index of each track in the snapshot. */
+		private final int[] tracks;
+
+		private final double[] xs;
+
+		private final double[] ys;
+
+		private final double[] zs;
+
+		private final double zScale;
+
+		private Positions( final TrackSnapshot snapshot, final CandidateGraph graph, final double zScale )
+		{
+			this.zScale = zScale;
+			final IntArray indices = new IntArray();
+			for ( int t = 0; t < snapshot.size(); t++ )
+				if ( snapshot.track( t ).size() > 0 && ( graph == null || graph.isJoined( t ) ) )
+					indices.addValue( t );
+			this.tracks = indices.copyArray();
+			final int n = tracks.length;
+			this.xs = new double[ n ];
+			this.ys = new double[ n ];
+			this.zs = new double[ n ];
+			for ( int k = 0; k < n; k++ )
+			{
+				final RealLocalizable pos = trackPosition( snapshot.spots( tracks[ k ] ) );
+				xs[ k ] = pos.getDoublePosition( 0 );
+				ys[ k ] = pos.getDoublePosition( 1 );
+				zs[ k ] = pos.getDoublePosition( 2 );
+			}
+		}
+
+		private int size()
+		{
+			return tracks.length;
+		}
+
+		private PointKDTree tree()
+		{
+			return new PointKDTree( xs, ys, zs, tracks.length, zScale );
+		}
+
+		private double sqDistance( final int k, final Positions other, final int l )
+		{
+			return DistanceKernels.squareDistance( xs[ k ], ys[ k ], zs[ k ], other.xs[ l ], other.ys[ l ], other.zs[ l ], zScale );
+		}
+	}
+}
@@ -0,0 +1,716 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.CandidateGraph;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+import fiji.plugin.trackmate.pairing.util.FrameSpatialIndex;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * The execution context given to a {@link ContextualPairingMethod}.
+ * <p>
+ * It holds the two models to pair and the max pairing distance, and offers
+ * the services a pairing method needs to run: a thread budget and the
+ * executor that goes with it, a logger to report progress, cancellation, an
+ * optional time budget, and data structures that can be shared between
+ * several methods run on the same models. These structures are built
+ * lazily, the first time they are requested, and only once.
+ * <p>
+ * Contexts are created with a builder:
+ *
+ * <pre>
+ * final PairingContext context = PairingContext.build( model1, model2, maxPairingDistance )
+ * 		.zScale( 1. )
+ * 		.numThreads( 4 )
+ * 		.logger( logger )
+ * 		.get();
+ * </pre>
+ *
+ * Contexts can also be built directly on {@link TrackSnapshot}s, for instance
+ * read with a streaming reader, without the models. Methods that need the
+ * models cannot be run on such contexts.
+ * <p>
+ * The executor of a context should be released with {@link #close()} when
+ * the context is not needed anymore. Its threads are daemon threads, so a
+ * context that is not closed does not prevent the JVM from exiting.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PairingContext implements Cancelable, AutoCloseable
+{
+
+	private final Model model1;
+
+	private final Model model2;
+
+	private final double maxPairingDistance;
+
+	private final double zScale;
+
+	private final int numThreads;
+
+	private final Logger logger;
+
+	private final FrameSampling frameSampling;
+
+	/** Start of the time budget, in {@link System#nanoTime()} units. */
+	private final long start;
+
+	/** Time budget in nanoseconds, or -1 if there is none. */
+	private final long budget;
+
+	private volatile Coverage coverage;
+
+	private volatile String cancelReason;
+
+	private ExecutorService executor;
+
+	private TrackSnapshot tracks1;
+
+	private TrackSnapshot tracks2;
+
+	private FrameSpatialIndex index1;
+
+	private FrameSpatialIndex index2;
+
+	private CandidateGraph graph;
+
+	private PairingContext(
+			final Model model1,
+			final Model model2,
+			final TrackSnapshot tracks1,
+			final TrackSnapshot tracks2,
+			final double maxPairingDistance,
+			final double zScale,
+			final int numThreads,
+			final Logger logger,
+			final FrameSampling frameSampling,
+			final long timeBudget,
+			final CandidateGraph graph,
+			final FrameSpatialIndex index1,
+			final FrameSpatialIndex index2 )
+	{
+		this.model1 = model1;
+		this.model2 = model2;
+		this.tracks1 = tracks1;
+		this.tracks2 = tracks2;
+		this.maxPairingDistance = maxPairingDistance;
+		this.zScale = zScale;
+		this.numThreads = numThreads;
+		this.logger = logger;
+		this.frameSampling = frameSampling;
+		this.start = System.nanoTime();
+		// Capped to stay clear of overflows.
+		this.budget = ( timeBudget < 0 )
+				? -1l
+				: Math.min( TimeUnit.MILLISECONDS.toNanos( timeBudget ), Long.MAX_VALUE / 2 );
+		this.graph = graph;
+		if ( graph != null )
+		{
+			this.tracks1 = graph.getTracks1();
+			this.tracks2 = graph.getTracks2();
+		}
+		this.index1 = index1;
+		this.index2 = index2;
+	}
+
+	/**
+	 * Returns the first model, or <code>null</code> if this context was built
+	 * on track snapshots.
+	 */
+	public Model getModel1()
+	{
+		return model1;
+	}
+
+	/**
+	 * Returns the second model, or <code>null</code> if this context was
+	 * built on track snapshots.
+	 */
+	public Model getModel2()
+	{
+		return model2;
+	}
+
+	public double getMaxPairingDistance()
+	{
+		return maxPairingDistance;
+	}
+
+	/**
+	 * Returns the factor by which the Z coordinates are multiplied before
+	 * computing distances, for images whose Z calibration is not correct.
+	 */
+	public double getZScale()
+	{
+		return zScale;
+	}
+
+	/**
+	 * Returns the max number of threads pairing methods may use.
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public Logger getLogger()
+	{
+		return logger;
+	}
+
+	/**
+	 * Returns the frames whose spots are joined when the candidate graph is
+	 * built. If not all frames are used, the pairing is an approximation.
+	 */
+	public FrameSampling getFrameSampling()
+	{
+		return frameSampling;
+	}
+
+	/**
+	 * Returns <code>true</code> if this context was given a time budget.
+	 */
+	public boolean hasTimeBudget()
+	{
+		return budget >= 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the time budget of this context has
+	 * expired. Contexts without a time budget never expire.
+	 * <p>
+	 * Unlike cancellation, expiry does not discard the work done: methods
+	 * run under a time budget examine the most promising candidates first,
+	 * and when it expires they return the pairing of the candidates examined
+	 * so far. They report what they examined with
+	 * {@link #setCoverage(int, int, String)}.
+	 */
+	public boolean isExpired()
+	{
+		return isExpired( 1. );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified share of the time budget of
+	 * this context has elapsed. Used by the shared structures built before
+	 * the methods run, to leave them time to use the structures.
+	 *
+	 * @param share
+	 *            the share of the time budget, between 0 and 1.
+	 */
+	public boolean isExpired( final double share )
+	{
+		return budget >= 0 && System.nanoTime() - start >= ( long ) ( share * budget );
+	}
+
+	/**
+	 * Records how much of the candidates a method examined before the time
+	 * budget expired.
+	 *
+	 * @param nExamined
+	 *            the number of items examined.
+	 * @param nItems
+	 *            the total number of items.
+	 * @param items
+	 *            what the items are, for instance "first tracks" or
+	 *            "frames".
+	 */
+	public void setCoverage( final int nExamined, final int nItems, final String items )
+	{
+		this.coverage = new Coverage( nExamined, nItems, items );
+	}
+
+	/**
+	 * Returns how much of the candidates the last method run in this context
+	 * examined, or <code>null</code> if it did not report it.
+	 */
+	public Coverage getCoverage()
+	{
+		return coverage;
+	}
+
+	/**
+	 * Reports the progress of the current method, between 0 and 1.
+	 *
+	 * @param progress
+	 *            the progress.
+	 */
+	public void setProgress( final double progress )
+	{
+		logger.setProgress( progress );
+	}
+
+	/*
+	 * SHARED STRUCTURES.
+	 */
+
+	/**
+	 * Returns a snapshot of the visible tracks of the first model.
+	 */
+	public synchronized TrackSnapshot getTracks1()
+	{
+		if ( tracks1 == null )
+			tracks1 = TrackSnapshot.of( model1 );
+		return tracks1;
+	}
+
+	/**
+	 * Returns a snapshot of the visible tracks of the second model.
+	 */
+	public synchronized TrackSnapshot getTracks2()
+	{
+		if ( tracks2 == null )
+			tracks2 = TrackSnapshot.of( model2 );
+		return tracks2;
+	}
+
+	/**
+	 * Returns a per-frame spatial index of the spots of the first tracks.
+	 */
+	public synchronized FrameSpatialIndex getSpatialIndex1()
+	{
+		if ( index1 == null )
+			index1 = new FrameSpatialIndex( getTracks1(), zScale );
+		return index1;
+	}
+
+	/**
+	 * Returns a per-frame spatial index of the spots of the second tracks.
+	 */
+	public synchronized FrameSpatialIndex getSpatialIndex2()
+	{
+		if ( index2 == null )
+			index2 = new FrameSpatialIndex( getTracks2(), zScale );
+		return index2;
+	}
+
+	/**
+	 * Returns <code>true</code> if the spatial indices of both snapshots have
+	 * already been built or given, without building them.
+	 */
+	public synchronized boolean hasSpatialIndices()
+	{
+		return index1 != null && index2 != null;
+	}
+
+	/**
+	 * Returns the graph of the candidate track pairs between the two models,
+	 * built with the max pairing distance of this context as cutoff. If the
+	 * context has a time budget, the graph may be partial.
+	 * <p>
+	 * If a graph was given to the builder of this context, it is returned
+	 * instead. Its cutoff can then be larger than the max pairing distance,
+	 * and the methods must ignore the spot pairs farther than this distance.
+	 *
+	 * @return the candidate graph, or <code>null</code> if the context was
+	 *         canceled while building it.
+	 */
+	public synchronized CandidateGraph getCandidateGraph()
+	{
+		if ( graph == null )
+			graph = CandidateGraph.build( this, maxPairingDistance );
+		return graph;
+	}
+
+	/**
+	 * Returns <code>true</code> if the candidate graph of this context has
+	 * already been built or given, without building it.
+	 */
+	public synchronized boolean hasCandidateGraph()
+	{
+		return graph != null;
+	}
+
+	/*
+	 * MULTITHREADING.
+	 */
+
+	/**
+	 * Returns an executor sized after the thread budget of this context. Its
+	 * threads are daemon threads.
+	 */
+	public synchronized ExecutorService getExecutorService()
+	{
+		if ( executor == null )
+		{
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool( numThreads, r -> {
+				final Thread thread = new Thread( r, "PairingContext-" + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+		return executor;
+	}
+
+	/**
+	 * Executes the specified body for all integers from 0 to <code>n</code>
+	 * (exclusive), in parallel over the thread budget of this context. Work is
+	 * split in contiguous chunks. Chunks that have not started yet are skipped
+	 * if the context is canceled.
+	 *
+	 * @param n
+	 *            the number of iterations.
+	 * @param body
+	 *            the body of the loop.
+	 */
+	public void parallelFor( final int n, final IntConsumer body )
+	{
+		if ( n <= 0 )
+			return;
+		if ( numThreads == 1 || n == 1 )
+		{
+			for ( int i = 0; i < n && !isCanceled(); i++ )
+				body.accept( i );
+			return;
+		}
+
+		final int nChunks = Math.min( n, 4 * numThreads );
+		final List< Future< ? > > futures = new ArrayList<>( nChunks );
+		final ExecutorService service = getExecutorService();
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			final int from = ( int ) ( ( long ) n * c / nChunks );
+			final int to = ( int ) ( ( long ) n * ( c + 1 ) / nChunks );
+			futures.add( service.submit( () -> {
+				for ( int i = from; i < to; i++ )
+				{
+					if ( isCanceled() )
+						return;
+					body.accept( i );
+				}
+			} ) );
+		}
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			cancel( "Interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Executes the specified body for the integers from 0 to <code>n</code>
+	 * (exclusive), in parallel over the thread budget of this context.
+	 * Iterations are started in increasing order, one at a time, so that the
+	 * first ones are done first. Iterations that have not started yet are
+	 * skipped if the context is canceled or if its time budget expires.
+	 *
+	 * @param n
+	 *            the number of iterations.
+	 * @param body
+	 *            the body of the loop.
+	 * @return the number of iterations executed. They are the first ones.
+	 */
+	public int parallelForInOrder( final int n, final IntConsumer body )
+	{
+		return parallelForInOrder( n, 1., body );
+	}
+
+	/**
+	 * Same as {@link #parallelForInOrder(int, IntConsumer)}, but stops
+	 * starting iterations when the specified share of the time budget has
+	 * elapsed.
+	 *
+	 * @param n
+	 *            the number of iterations.
+	 * @param share
+	 *            the share of the time budget, between 0 and 1.
+	 * @param body
+	 *            the body of the loop.
+	 * @return the number of iterations executed. They are the first ones.
+	 */
+	public int parallelForInOrder( final int n, final double share, final IntConsumer body )
+	{
+		if ( n <= 0 )
+			return 0;
+		final AtomicInteger cursor = new AtomicInteger();
+		final Runnable worker = () -> {
+			while ( !isCanceled() && !isExpired( share ) )
+			{
+				final int i = cursor.getAndIncrement();
+				if ( i >= n )
+					return;
+				body.accept( i );
+			}
+		};
+		if ( numThreads == 1 || n == 1 )
+		{
+			worker.run();
+			return Math.min( n, cursor.get() );
+		}
+
+		final int nWorkers = Math.min( n, numThreads );
+		final List< Future< ? > > futures = new ArrayList<>( nWorkers );
+		final ExecutorService service = getExecutorService();
+		for ( int w = 0; w < nWorkers; w++ )
+			futures.add( service.submit( worker ) );
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			cancel( "Interrupted." );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		return Math.min( n, cursor.get() );
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if ( executor != null )
+		{
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/*
+	 * CANCELABLE.
+	 */
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * How much of the candidates a method examined.
+	 */
+	public static final class Coverage
+	{
+
+		public final int nExamined;
+
+		public final int nItems;
+
+		public final String items;
+
+		private Coverage( final int nExamined, final int nItems, final String items )
+		{
+			this.nExamined = nExamined;
+			this.nItems = nItems;
+			this.items = items;
+		}
+	}
+
+	/*
+	 * BUILDER.
+	 */
+
+	public static Builder build( final Model model1, final Model model2, final double maxPairingDistance )
+	{
+		if ( model1 == null )
+			throw new IllegalArgumentException( "Model1 is null." );
+		if ( model2 == null )
+			throw new IllegalArgumentException( "Model2 is null." );
+		return new Builder( model1, model2, null, null, maxPairingDistance );
+	}
+
+	/**
+	 * Starts building a context on the specified track snapshots, without
+	 * models.
+	 */
+	public static Builder build( final TrackSnapshot tracks1, final TrackSnapshot tracks2, final double maxPairingDistance )
+	{
+		if ( tracks1 == null )
+			throw new IllegalArgumentException( "Tracks1 is null." );
+		if ( tracks2 == null )
+			throw new IllegalArgumentException( "Tracks2 is null." );
+		return new Builder( null, null, tracks1, tracks2, maxPairingDistance );
+	}
+
+	public static final class Builder
+	{
+
+		private final Model model1;
+
+		private final Model model2;
+
+		private final TrackSnapshot tracks1;
+
+		private final TrackSnapshot tracks2;
+
+		private final double maxPairingDistance;
+
+		private double zScale = 1.;
+
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+
+		private Logger logger = Logger.VOID_LOGGER;
+
+		private FrameSampling frameSampling = FrameSampling.ALL;
+
+		private long timeBudget = -1l;
+
+		private CandidateGraph graph;
+
+		private FrameSpatialIndex index1;
+
+		private FrameSpatialIndex index2;
+
+		private Builder(
+				final Model model1,
+				final Model model2,
+				final TrackSnapshot tracks1,
+				final TrackSnapshot tracks2,
+				final double maxPairingDistance )
+		{
+			this.model1 = model1;
+			this.model2 = model2;
+			this.tracks1 = tracks1;
+			this.tracks2 = tracks2;
+			this.maxPairingDistance = maxPairingDistance;
+		}
+
+		/**
+		 * Multiplies the Z coordinates by the specified factor before
+		 * computing distances. The default is 1.
+		 */
+		public Builder zScale( final double zScale )
+		{
+			if ( !( zScale > 0. ) || Double.isInfinite( zScale ) )
+				throw new IllegalArgumentException( "The Z scale must be strictly positive and finite: " + zScale );
+			this.zScale = zScale;
+			return this;
+		}
+
+		public Builder numThreads( final int numThreads )
+		{
+			this.numThreads = Math.max( 1, numThreads );
+			return this;
+		}
+
+		public Builder logger( final Logger logger )
+		{
+			this.logger = ( logger == null ) ? Logger.VOID_LOGGER : logger;
+			return this;
+		}
+
+		/**
+		 * Only joins the spots of the frames accepted by the specified
+		 * sampling when building the candidate graph, to get an approximate
+		 * pairing faster. Ignored if a candidate graph is given to this
+		 * builder.
+		 */
+		public Builder frameSampling( final FrameSampling frameSampling )
+		{
+			this.frameSampling = ( frameSampling == null ) ? FrameSampling.ALL : frameSampling;
+			return this;
+		}
+
+		/**
+		 * Gives the context a time budget, counted from the moment it is
+		 * built. When it expires, the methods stop examining candidates, and
+		 * pair the ones examined so far.
+		 *
+		 * @param millis
+		 *            the time budget in milliseconds, or a negative value for
+		 *            no budget.
+		 */
+		public Builder timeBudget( final long millis )
+		{
+			this.timeBudget = ( millis < 0 ) ? -1l : millis;
+			return this;
+		}
+
+		/**
+		 * Reuses a candidate graph built for the same models, for instance in
+		 * another context. Its cutoff must not be smaller than the max
+		 * pairing distance, and it must have been built with the Z scale of
+		 * this builder.
+		 */
+		public Builder candidateGraph( final CandidateGraph graph )
+		{
+			if ( graph != null && graph.getCutoff() < maxPairingDistance )
+				throw new IllegalArgumentException( "The cutoff of the candidate graph (" + graph.getCutoff()
+						+ ") is smaller than the max pairing distance (" + maxPairingDistance + ")." );
+			this.graph = graph;
+			return this;
+		}
+
+		/**
+		 * Reuses the per-frame spatial indices built for the same track
+		 * snapshots, for instance in another context that shared the same
+		 * candidate graph.
+		 */
+		public Builder spatialIndices( final FrameSpatialIndex index1, final FrameSpatialIndex index2 )
+		{
+			this.index1 = index1;
+			this.index2 = index2;
+			return this;
+		}
+
+		public PairingContext get()
+		{
+			if ( ( index1 != null && index1.getZScale() != zScale ) || ( index2 != null && index2.getZScale() != zScale ) )
+				throw new IllegalArgumentException( "The spatial indices were built with another Z scale than " + zScale + "." );
+			if ( graph != null && graph.getZScale() != zScale )
+				throw new IllegalArgumentException( "The candidate graph was built with another Z scale (" + graph.getZScale() + ") than " + zScale + "." );
+			return new PairingContext( model1, model2, tracks1, tracks2, maxPairingDistance, zScale, numThreads, logger, frameSampling, timeBudget, graph, index1, index2 );
+		}
+	}
+}
@@ -26,6 +26,9 @@ import fiji.plugin.trackmate.pairing.Pairing.Builder;
 
 /**
  * Interface for methods that can pair tracks together.
+ * <p>
+ * Methods that need multithreading, progress reporting or shared data
+ * structures should implement {@link ContextualPairingMethod}.
  * 
  * @author Jean-Yves Tinevez
  *
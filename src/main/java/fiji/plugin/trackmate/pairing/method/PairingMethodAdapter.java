@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * Executes a {@link PairingMethod} as a {@link ContextualPairingMethod}. The
+ * wrapped method runs single-threaded on the models of the context, and can
+ * only be canceled before it starts. Likewise, it is only run if the time
+ * budget of the context has not expired yet. Otherwise all the tracks are
+ * reported as unmatched. The wrapped method does not know the Z scale of the
+ * context, which must therefore be 1.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairingMethodAdapter implements ContextualPairingMethod
+{
+
+	private final PairingMethod method;
+
+	public PairingMethodAdapter( final PairingMethod method )
+	{
+		this.method = method;
+	}
+
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		if ( context.isCanceled() )
+			return null;
+		if ( context.getModel1() == null || context.getModel2() == null )
+			throw new IllegalStateException( "Pairing method " + method + " needs the models, but the context was built without them." );
+		if ( context.getZScale() != 1. )
+			throw new IllegalStateException( "Pairing method " + method + " does not support a Z scale other than 1." );
+
+		if ( context.isExpired() )
+		{
+			final TrackSnapshot tracks1 = context.getTracks1();
+			context.setCoverage( 0, tracks1.size(), "first tracks" );
+			final TrackSnapshot tracks2 = context.getTracks2();
+			final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+			for ( int i = 0; i < tracks1.size(); i++ )
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+			for ( int j = 0; j < tracks2.size(); j++ )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+			return builder;
+		}
+
+		context.setProgress( 0. );
+		final Builder builder = method.pair( context.getModel1(), context.getModel2(), context.getMaxPairingDistance() );
+		context.setProgress( 1. );
+		if ( context.hasTimeBudget() )
+		{
+			final int n1 = context.getTracks1().size();
+			context.setCoverage( n1, n1, "first tracks" );
+		}
+		return builder;
+	}
+
+	@Override
+	public boolean needsModels()
+	{
+		return true;
+	}
+
+	public PairingMethod getMethod()
+	{
+		return method;
+	}
+
+	@Override
+	public String toString()
+	{
+		return method.toString();
+	}
+}
@@ -21,21 +21,29 @@
  */
 package fiji.plugin.trackmate.pairing.method;
 
+import java.util.function.Supplier;
+
+import fiji.plugin.trackmate.pairing.method.FrameSpotPairing.Assignment;
+
 public enum PairingMethods
 {
 
-	COMMON_SPOTS( "Maximize N closest spots", new SpotConcensusPairing() ),
-	CLOSEST_MEAN_POSITION( "Closest mean position", new AverageTrackPositionPairing() ),
-	CLOSEST_MEDIAN_POSITION( "Closest median position", new MedianTrackPositionPairing() );
+	COMMON_SPOTS( "Maximize N closest spots", SpotConcensusPairing::new ),
+	SHORTLISTED_COMMON_SPOTS( "Maximize N closest spots, shortlisted by mean position", () -> new ShortlistSpotConcensusPairing( false ) ),
+	CLOSEST_MEAN_POSITION( "Closest mean position", AverageTrackPositionPairing::new ),
+	CLOSEST_MEDIAN_POSITION( "Closest median position", MedianTrackPositionPairing::new ),
+	MUTUAL_CLOSEST_MEAN_POSITION( "Mutual closest mean position", MutualNearestPositionPairing::new ),
+	FRAME_CLOSEST_SPOTS( "Closest spots in each frame", () -> new FrameSpotPairing( Assignment.GREEDY ) ),
+	FRAME_OPTIMAL_SPOTS( "Optimal spot assignment in each frame", () -> new FrameSpotPairing( Assignment.LAP ) );
 
 	private final String name;
 
-	private final PairingMethod method;
+	private final Supplier< PairingMethod > factory;
 
-	PairingMethods( final String name, final PairingMethod method )
+	PairingMethods( final String name, final Supplier< PairingMethod > factory )
 	{
 		this.name = name;
-		this.method = method;
+		this.factory = factory;
 	}
 
 	@Override
@@ -44,8 +52,24 @@ public enum PairingMethods
 		return name;
 	}
 
+	/**
+	 * Returns a new instance of this pairing method.
+	 * 
+	 * @return a new {@link PairingMethod}.
+	 */
 	public PairingMethod method()
 	{
-		return method;
+		return factory.get();
+	}
+
+	/**
+	 * Returns a new instance of this pairing method, that can be executed
+	 * within a {@link PairingContext}.
+	 * 
+	 * @return a new {@link ContextualPairingMethod}.
+	 */
+	public ContextualPairingMethod contextualMethod()
+	{
+		return ContextualPairingMethod.adapt( method() );
 	}
 }
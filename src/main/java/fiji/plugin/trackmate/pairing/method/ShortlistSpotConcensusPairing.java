@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.AbstractPairing;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.Builder;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.PointKDTree;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+import net.imglib2.RealLocalizable;
+
+/**
+ * Pairs tracks like {@link SpotConcensusPairing}, by maximizing the number of
+ * spots they have in common, but only scores the track pairs shortlisted by
+ * their positions.
+ * <p>
+ * For each first track, the <code>k</code> second tracks whose positions are
+ * the closest, within a radius relaxed compared to the max pairing distance,
+ * are shortlisted. Track positions are the mean or median positions of their
+ * spots, as in {@link AverageTrackPositionPairing} and
+ * {@link MedianTrackPositionPairing}, and the shortlist is searched in a k-d
+ * tree. The spots in common are then counted only between the tracks of the
+ * shortlists, by walking them frame by frame, and the first tracks are
+ * matched in order to the shortlisted second track not yet taken with the
+ * most spots in common. Ties and spot pairs are resolved as in
+ * {@link SpotConcensusPairing}.
+ * <p>
+ * The candidate graph of the context is not used. When the tracks that share
+ * spots are always shortlisted, the results are identical to the ones of
+ * {@link SpotConcensusPairing}. Tracks that share few spots and whose
+ * positions are far apart can be missed.
+ * <p>
+ * Under a time budget, the shortlists are scored from the most promising
+ * first track to the least, until the budget expires: first the ones with a
+ * second track position within the max pairing distance, then the ones with
+ * the most spots. The first tracks are then matched in order as above, and
+ * the ones not scored are reported as unmatched.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class ShortlistSpotConcensusPairing implements PairingMethod, ContextualPairingMethod
+{
+
+	/** Default number of second tracks shortlisted for each first track. */
+	public static final int DEFAULT_SHORTLIST_SIZE = 10;
+
+	/**
+	 * Default factor applied to the max pairing distance to get the radius
+	 * within which tracks are shortlisted.
+	 */
+	public static final double DEFAULT_RADIUS_FACTOR = 5.;
+
+	private final AverageTrackPositionPairing positions;
+
+	private final int shortlistSize;
+
+	private final double radiusFactor;
+
+	/**
+	 * Creates the method with the default shortlist size and radius.
+	 * 
+	 * @param median
+	 *            if <code>true</code>, tracks are shortlisted based on the
+	 *            median position of their spots, otherwise the mean position.
+	 */
+	public ShortlistSpotConcensusPairing( final boolean median )
+	{
+		this( median, DEFAULT_SHORTLIST_SIZE, DEFAULT_RADIUS_FACTOR );
+	}
+
+	/**
+	 * Creates the method.
+	 * 
+	 * @param median
+	 *            if <code>true</code>, tracks are shortlisted based on the
+	 *            median position of their spots, otherwise the mean position.
+	 * @param shortlistSize
+	 *            the number of second tracks shortlisted for each first
+	 *            track.
+	 * @param radiusFactor
+	 *            the factor applied to the max pairing distance to get the
+	 *            radius within which tracks are shortlisted.
+	 */
+	public ShortlistSpotConcensusPairing( final boolean median, final int shortlistSize, final double radiusFactor )
+	{
+		this.positions = median ? new MedianTrackPositionPairing() : new AverageTrackPositionPairing();
+		this.shortlistSize = shortlistSize;
+		this.radiusFactor = radiusFactor;
+	}
+
+	@Override
+	public Builder pair( final Model model1, final Model model2, final double maxPairingDistance )
+	{
+		try (final PairingContext context = PairingContext.build( model1, model2, maxPairingDistance ).get())
+		{
+			return pair( context );
+		}
+	}
+
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		final TrackSnapshot tracks1 = context.getTracks1();
+		final TrackSnapshot tracks2 = context.getTracks2();
+		final double maxPairingDistance = context.getMaxPairingDistance();
+		final double zScale = context.getZScale();
+		final int n1 = tracks1.size();
+		final int n2 = tracks2.size();
+
+		/*
+		 * Shortlist by position.
+		 */
+
+		final double[][] pos1 = positions( tracks1 );
+		final double[][] pos2 = positions( tracks2 );
+		final PointKDTree tree2 = new PointKDTree( pos2[ 0 ], pos2[ 1 ], pos2[ 2 ], n2, zScale );
+		final double radius = radiusFactor * maxPairingDistance;
+
+		/*
+		 * Count common spots within the shortlists.
+		 */
+
+		final int[][] shortlists = new int[ n1 ][];
+		final int[][] counts = new int[ n1 ][];
+		final IntConsumer body = i -> {
+			final IntArray shortlist = new IntArray();
+			tree2.kNearest( pos1[ 0 ][ i ], pos1[ 1 ][ i ], pos1[ 2 ][ i ], shortlistSize, radius, shortlist );
+			final int[] js = shortlist.copyArray();
+			Arrays.sort( js );
+			final int[] ns = new int[ js.length ];
+			for ( int c = 0; c < js.length; c++ )
+				ns[ c ] = countCommonSpots( tracks1.track( i ), tracks2.track( js[ c ] ), maxPairingDistance, zScale );
+			shortlists[ i ] = js;
+			counts[ i ] = ns;
+		};
+		if ( context.hasTimeBudget() )
+		{
+			final int[] order = priorityOrder( tracks1, pos1, tree2, pos2, maxPairingDistance, zScale );
+			final int nExamined = context.parallelForInOrder( n1, q -> body.accept( order[ q ] ) );
+			context.setCoverage( nExamined, n1, "first tracks" );
+		}
+		else
+		{
+			context.parallelFor( n1, body );
+		}
+		if ( context.isCanceled() )
+			return null;
+
+		/*
+		 * Greedy assignment, as in the spot consensus pairing.
+		 */
+
+		final boolean[] taken = new boolean[ n2 ];
+		final int[] ranks = SpotConcensusPairing.tieRanks( tracks2 );
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		for ( int i = 0; i < n1; i++ )
+		{
+			int bestMatch = -1;
+			int largestCommonNbr = 0;
+			// Not scored before the time budget expired.
+			final int nShortlisted = ( shortlists[ i ] == null ) ? 0 : shortlists[ i ].length;
+			for ( int c = 0; c < nShortlisted; c++ )
+			{
+				final int j = shortlists[ i ][ c ];
+				if ( taken[ j ] )
+					continue;
+				final int n = counts[ i ][ c ];
+				if ( n > largestCommonNbr || ( n == largestCommonNbr && n > 0 && ranks[ j ] < ranks[ bestMatch ] ) )
+				{
+					largestCommonNbr = n;
+					bestMatch = j;
+				}
+			}
+			if ( bestMatch >= 0 )
+			{
+				taken[ bestMatch ] = true;
+				final Collection< SpotPair > pairs = AbstractPairing.commonSpots( tracks1.track( i ), tracks2.track( bestMatch ), maxPairingDistance, zScale );
+				builder.pair( tracks1.id( i ), tracks2.id( bestMatch ), pairs );
+			}
+			else
+			{
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+			}
+		}
+		// Add the remaining track2 to unmatched list.
+		for ( int j = 0; j < n2; j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Orders the first tracks from the most promising to the least: the ones
+	 * with a second track position within the max pairing distance, then the
+	 * ones with the most spots. Ties keep the order of the snapshot.
+	 */
+	private static int[] priorityOrder( final TrackSnapshot tracks1, final double[][] pos1, final PointKDTree tree2, final double[][] pos2, final double maxPairingDistance, final double zScale )
+	{
+		final int n1 = tracks1.size();
+		final long[] keys = new long[ n1 ];
+		for ( int i = 0; i < n1; i++ )
+		{
+			final int b = tree2.nearest( pos1[ 0 ][ i ], pos1[ 1 ][ i ], pos1[ 2 ][ i ] );
+			final boolean close = b >= 0 && DistanceKernels.squareDistance(
+					pos1[ 0 ][ i ], pos1[ 1 ][ i ], pos1[ 2 ][ i ],
+					pos2[ 0 ][ b ], pos2[ 1 ][ b ], pos2[ 2 ][ b ], zScale ) <= maxPairingDistance * maxPairingDistance;
+			keys[ i ] = ( ( close ? 0l : 1l ) << 62 )
+					| ( ( long ) ( Integer.MAX_VALUE - tracks1.track( i ).size() ) << 31 )
+					| i;
+		}
+		Arrays.sort( keys );
+		final int[] order = new int[ n1 ];
+		for ( int q = 0; q < n1; q++ )
+			order[ q ] = ( int ) ( keys[ q ] & Integer.MAX_VALUE );
+		return order;
+	}
+
+	/**
+	 * Returns the positions of the tracks of the snapshot, as X, Y and Z
+	 * arrays. Empty tracks are given infinite positions so that they are never
+	 * shortlisted.
+	 */
+	private double[][] positions( final TrackSnapshot tracks )
+	{
+		final int n = tracks.size();
+		final double[][] xyz = new double[ 3 ][ n ];
+		for ( int t = 0; t < n; t++ )
+		{
+			if ( tracks.track( t ).size() == 0 )
+			{
+				xyz[ 0 ][ t ] = Double.POSITIVE_INFINITY;
+				xyz[ 1 ][ t ] = Double.POSITIVE_INFINITY;
+				xyz[ 2 ][ t ] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			final RealLocalizable pos = positions.trackPosition( tracks.spots( t ) );
+			xyz[ 0 ][ t ] = pos.getDoublePosition( 0 );
+			xyz[ 1 ][ t ] = pos.getDoublePosition( 1 );
+			xyz[ 2 ][ t ] = pos.getDoublePosition( 2 );
+		}
+		return xyz;
+	}
+
+	/**
+	 * Counts the spots two tracks have in common: the spots of the first
+	 * track that have a spot of the second track in the same frame, strictly
+	 * closer than the max distance.
+	 * 
+	 * @return the number of spots in common.
+	 */
+	private static int countCommonSpots( final SpotCoordinates track1, final SpotCoordinates track2, final double maxDist, final double zScale )
+	{
+		final double maxSqDist = maxDist * maxDist;
+		int n = 0;
+		int start = 0;
+		for ( int k = 0; k < track1.size(); k++ )
+		{
+			final int frame = track1.frames[ k ];
+			while ( start < track2.size() && track2.frames[ start ] < frame )
+				start++;
+
+			for ( int l = start; l < track2.size() && track2.frames[ l ] == frame; l++ )
+			{
+				final double d2 = DistanceKernels.squareDistance(
+						track1.xs[ k ], track1.ys[ k ], track1.zs[ k ],
+						track2.xs[ l ], track2.ys[ l ], track2.zs[ l ], zScale );
+				if ( d2 < maxSqDist )
+				{
+					n++;
+					break;
+				}
+			}
+		}
+		return n;
+	}
+}
@@ -22,31 +22,63 @@
 package fiji.plugin.trackmate.pairing.method;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackModel;
 import fiji.plugin.trackmate.pairing.AbstractPairing;
+import fiji.plugin.trackmate.pairing.CandidateGraph;
 import fiji.plugin.trackmate.pairing.Pairing;
 import fiji.plugin.trackmate.pairing.Pairing.Builder;
 import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
 
 /**
  * Performs pairing by searching for each track in the first model, what track
  * in the second model has the most spots 'in common'. By 'in common' we mean,
  * spots that are in the same frame, and are closer than the max pairing
  * distance specified in the constructor.
+ * <p>
+ * The number of spots in common are read from the {@link CandidateGraph} of
+ * the pairing context. The spot pairs of a track pair are then made as in
+ * {@link AbstractPairing#commonSpots(SpotCoordinates, SpotCoordinates, double, double)}:
+ * each spot of the first track is paired with the first spot of the second
+ * track found in the same frame closer than the max pairing distance. When
+ * two second tracks have the same number of spots in common with a first
+ * track, the one that comes first in a hash set of their IDs is taken, as
+ * {@link #pair(Model, Model, double)} does. With snapshots made by
+ * {@link TrackSnapshot#of(Model)}, both give the same pairing.
+ * <p>
+ * Under a time budget, the spot pairs of the first tracks are counted from
+ * the most promising first track to the least, until the budget expires.
+ * The greedy assignment is then made on the first tracks examined, in the
+ * order of the snapshot, so that it gives the same result as without budget
+ * if the budget does not expire. The other first tracks are reported as
+ * unmatched.
  * 
  * @author Jean-Yves Tinevez
  *
  */
-public class SpotConcensusPairing implements PairingMethod
+public class SpotConcensusPairing implements PairingMethod, ContextualPairingMethod
 {
 
+	/**
+	 * Pairs the tracks of the two models directly, as this method always did.
+	 * <p>
+	 * The first tracks are visited in the iteration order of the track model,
+	 * which is the order of {@link TrackSnapshot#of(Model)}, so this gives
+	 * the same pairing as {@link #pair(PairingContext)} on such snapshots.
+	 */
 	@Override
 	public Builder pair( final Model model1, final Model model2, final double maxPairingDistance )
 	{
@@ -99,4 +131,229 @@ public class SpotConcensusPairing implements PairingMethod
 
 		return builder;
 	}
+
+	@Override
+	public Builder pair( final PairingContext context )
+	{
+		final CandidateGraph graph = context.getCandidateGraph();
+		if ( graph == null )
+			return null;
+
+		if ( context.hasTimeBudget() )
+			return pairWithinBudget( context, graph );
+
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final TrackSnapshot tracks2 = graph.getTracks2();
+		final boolean[] taken = new boolean[ tracks2.size() ];
+		final int[] ranks = tieRanks( tracks2 );
+		final double maxPairingDistance = context.getMaxPairingDistance();
+
+		/*
+		 * When the graph was built with a larger cutoff, counting the spot
+		 * pairs of an edge means scanning them, and it pays to visit the edges
+		 * by decreasing upper bound.
+		 */
+		final boolean bounded = maxPairingDistance < graph.getCutoff();
+
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		for ( int i = 0; i < tracks1.size(); i++ )
+		{
+			if ( context.isCanceled() )
+				return null;
+
+			/*
+			 * Match by local nearest neighbor. I don't think we need global
+			 * optimization in that case.
+			 */
+			final int bestEdge = bounded
+					? bestEdgeBounded( graph, i, taken, ranks, maxPairingDistance )
+					: bestEdge( graph, i, taken, ranks, maxPairingDistance );
+			if ( bestEdge >= 0 )
+			{
+				final int j = graph.track2( bestEdge );
+				taken[ j ] = true;
+				builder.pair( tracks1.id( i ), tracks2.id( j ), spotPairs( graph, i, j, maxPairingDistance ) );
+			}
+			else
+			{
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+			}
+		}
+		// Add the remaining track2 to unmatched list.
+		for ( int j = 0; j < tracks2.size(); j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Counts the spot pairs of the first tracks by decreasing priority until
+	 * the time budget expires, then assigns the ones examined.
+	 */
+	private static Builder pairWithinBudget( final PairingContext context, final CandidateGraph graph )
+	{
+		final TrackSnapshot tracks1 = graph.getTracks1();
+		final TrackSnapshot tracks2 = graph.getTracks2();
+		final double maxPairingDistance = context.getMaxPairingDistance();
+
+		final int[] ranks = tieRanks( tracks2 );
+		final int[] order = graph.priorityOrder();
+		final int[][] ranked = new int[ tracks1.size() ][];
+		final int nExamined = context.parallelForInOrder( order.length,
+				q -> ranked[ order[ q ] ] = rankedEdges( graph, order[ q ], ranks, maxPairingDistance ) );
+		if ( context.isCanceled() )
+			return null;
+		context.setCoverage( nExamined, tracks1.size(), "first tracks" );
+
+		final boolean[] taken = new boolean[ tracks2.size() ];
+		final Builder builder = Pairing.build().units( tracks1.getSpaceUnits() );
+		for ( int i = 0; i < tracks1.size(); i++ )
+		{
+			int bestEdge = -1;
+			if ( ranked[ i ] != null )
+			{
+				for ( final int e : ranked[ i ] )
+				{
+					if ( !taken[ graph.track2( e ) ] )
+					{
+						bestEdge = e;
+						break;
+					}
+				}
+			}
+			if ( bestEdge >= 0 )
+			{
+				final int j = graph.track2( bestEdge );
+				taken[ j ] = true;
+				builder.pair( tracks1.id( i ), tracks2.id( j ), spotPairs( graph, i, j, maxPairingDistance ) );
+			}
+			else
+			{
+				builder.unmatchedTrack1( tracks1.id( i ), tracks1.spots( i ) );
+			}
+		}
+		for ( int j = 0; j < tracks2.size(); j++ )
+			if ( !taken[ j ] )
+				builder.unmatchedTrack2( tracks2.id( j ), tracks2.spots( j ) );
+
+		return builder;
+	}
+
+	/**
+	 * Returns the spot pairs of the specified tracks: for each spot of the
+	 * first track, the first spot of the second track in the same frame and
+	 * closer than the max pairing distance.
+	 */
+	private static Collection< SpotPair > spotPairs( final CandidateGraph graph, final int i, final int j, final double maxPairingDistance )
+	{
+		return AbstractPairing.commonSpots( graph.getTracks1().track( i ), graph.getTracks2().track( j ), maxPairingDistance, graph.getZScale() );
+	}
+
+	/**
+	 * Returns the rank of each second track in the iteration order of a hash
+	 * set of their IDs. This is how {@link #pair(Model, Model, double)}
+	 * breaks ties between second tracks.
+	 */
+	static int[] tieRanks( final TrackSnapshot tracks2 )
+	{
+		final List< Integer > ids = new ArrayList<>( tracks2.size() );
+		final Map< Integer, Integer > indices = new HashMap<>();
+		for ( int j = 0; j < tracks2.size(); j++ )
+		{
+			ids.add( tracks2.id( j ) );
+			indices.put( tracks2.id( j ), Integer.valueOf( j ) );
+		}
+		final int[] ranks = new int[ tracks2.size() ];
+		int rank = 0;
+		for ( final Integer id : new HashSet<>( ids ) )
+			ranks[ indices.get( id ).intValue() ] = rank++;
+		return ranks;
+	}
+
+	/**
+	 * Returns the edges of the specified first track that have spot pairs
+	 * closer than the max pairing distance, by decreasing number of such
+	 * pairs. Ties are sorted by rank of their second track.
+	 */
+	private static int[] rankedEdges( final CandidateGraph graph, final int i, final int[] ranks, final double maxPairingDistance )
+	{
+		final int start = graph.edgesStart( i );
+		final int end = graph.edgesEnd( i );
+		final int[] counts = new int[ end - start ];
+		final List< Integer > edges = new ArrayList<>( end - start );
+		for ( int e = start; e < end; e++ )
+		{
+			counts[ e - start ] = graph.nPairs( e, maxPairingDistance );
+			if ( counts[ e - start ] > 0 )
+				edges.add( Integer.valueOf( e ) );
+		}
+		edges.sort( ( e1, e2 ) -> {
+			final int c = Integer.compare( counts[ e2 - start ], counts[ e1 - start ] );
+			return ( c != 0 ) ? c : Integer.compare( ranks[ graph.track2( e1 ) ], ranks[ graph.track2( e2 ) ] );
+		} );
+		final int[] sorted = new int[ edges.size() ];
+		for ( int k = 0; k < sorted.length; k++ )
+			sorted[ k ] = edges.get( k ).intValue();
+		return sorted;
+	}
+
+	/**
+	 * Returns the edge of the specified first track, towards a second track
+	 * not taken, that has the most spot pairs. Ties are broken by taking the
+	 * second track of lowest rank.
+	 */
+	private static int bestEdge( final CandidateGraph graph, final int i, final boolean[] taken, final int[] ranks, final double maxPairingDistance )
+	{
+		int bestEdge = -1;
+		int largestCommonNbr = 0;
+		for ( int e = graph.edgesStart( i ); e < graph.edgesEnd( i ); e++ )
+		{
+			if ( taken[ graph.track2( e ) ] )
+				continue;
+			final int n = graph.nPairs( e, maxPairingDistance );
+			if ( n > largestCommonNbr || ( n == largestCommonNbr && n > 0 && ranks[ graph.track2( e ) ] < ranks[ graph.track2( bestEdge ) ] ) )
+			{
+				largestCommonNbr = n;
+				bestEdge = e;
+			}
+		}
+		return bestEdge;
+	}
+
+	/**
+	 * Same as {@link #bestEdge(CandidateGraph, int, boolean[], int[], double)},
+	 * but visits the edges by decreasing number of spot pairs at the cutoff of
+	 * the graph. This number bounds the number of spot pairs closer than the
+	 * max pairing distance, so the visit stops as soon as the bound drops
+	 * below the largest count found.
+	 */
+	private static int bestEdgeBounded( final CandidateGraph graph, final int i, final boolean[] taken, final int[] ranks, final double maxPairingDistance )
+	{
+		final int start = graph.edgesStart( i );
+		final int end = graph.edgesEnd( i );
+		final long[] order = new long[ end - start ];
+		for ( int e = start; e < end; e++ )
+			order[ e - start ] = ( ( long ) ( Integer.MAX_VALUE - graph.nPairs( e ) ) << 32 ) | e;
+		Arrays.sort( order );
+
+		int bestEdge = -1;
+		int largestCommonNbr = 0;
+		for ( final long key : order )
+		{
+			final int e = ( int ) key;
+			final int bound = graph.nPairs( e );
+			if ( bound < largestCommonNbr )
+				break;
+			if ( taken[ graph.track2( e ) ] || ( bound == largestCommonNbr && bestEdge >= 0 && ranks[ graph.track2( e ) ] > ranks[ graph.track2( bestEdge ) ] ) )
+				continue;
+			final int n = graph.nPairs( e, maxPairingDistance );
+			if ( n > largestCommonNbr || ( n == largestCommonNbr && n > 0 && ranks[ graph.track2( e ) ] < ranks[ graph.track2( bestEdge ) ] ) )
+			{
+				largestCommonNbr = n;
+				bestEdge = e;
+			}
+		}
+		return bestEdge;
+	}
 }
@@ -29,29 +29,41 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPopupMenu;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartMouseEvent;
+import org.jfree.chart.ChartMouseListener;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.chart.ui.RectangleInsets;
-import org.jfree.data.xy.DefaultXYDataset;
 
 import com.opencsv.CSVWriterBuilder;
 import com.opencsv.ICSVWriter;
 
 import fiji.plugin.trackmate.gui.Icons;
+import fiji.plugin.trackmate.pairing.CumulativeHistogramDataset;
+import fiji.plugin.trackmate.pairing.Pairing;
 import fiji.plugin.trackmate.pairing.PairingCumulativeHistogram;
+import fiji.plugin.trackmate.pairing.PairingErrorEstimate;
+import fiji.plugin.trackmate.pairing.PairingLiveOverlay;
 import fiji.plugin.trackmate.pairing.PairingPreviewCreator;
+import fiji.plugin.trackmate.pairing.PairingSession;
+import fiji.plugin.trackmate.pairing.PairingSession.Update;
 import fiji.plugin.trackmate.pairing.PairingTrackMate;
 import fiji.plugin.trackmate.pairing.method.PairingMethod;
 import fiji.plugin.trackmate.pairing.method.PairingMethods;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
 import fiji.plugin.trackmate.util.EverythingDisablerAndReenabler;
 import fiji.plugin.trackmate.util.ExportableChartPanel;
 import fiji.plugin.trackmate.util.FileChooser;
@@ -62,8 +74,35 @@ import ij.ImagePlus;
 public class PairingTrackMateController
 {
 
+	/**
+	 * The cutoff of a live session, as a multiple of the max pairing distance
+	 * when the session is created.
+	 */
+	private static final double LIVE_CUTOFF_FACTOR = 3.;
+
+	private static final String HISTOGRAM_TITLE = "Pair distance cumulative histogram";
+
 	private PairingTrackMatePanel gui;
 
+	/*
+	 * Live pairing. The session and overlay are only modified on the live
+	 * executor and on the EDT, in this order.
+	 */
+
+	private volatile PairingSession session;
+
+	private PairingLiveOverlay liveOverlay;
+
+	private ExecutorService liveExecutor;
+
+	private final AtomicBoolean livePending = new AtomicBoolean( false );
+
+	private volatile PairingMethods liveMethod;
+
+	private volatile double liveDistance;
+
+	private volatile Pairing livePairing;
+
 	public void showGUI()
 	{
 		if ( gui == null )
@@ -75,17 +114,50 @@ public class PairingTrackMateController
 				try
 				{
 					reenabler.disable();
-					pair(
+					final String path1 = gui.tf1.getText();
+					final String path2 = gui.tf2.getText();
+					final PairingMethods method = ( PairingMethods ) gui.cmbboxPairingMethod.getSelectedItem();
+					final double maxPairDistance = ( ( Number ) gui.ftfMaxDist.getValue() ).doubleValue();
+					final Pairing current = currentLivePairing( path1, path2, method, maxPairDistance );
+					if ( current != null )
+						save( path1, path2, current );
+					else
+						pair( path1, path2, method.method(), maxPairDistance );
+				}
+				finally
+				{
+					reenabler.reenable();
+				}
+			} ).start() );
+			gui.btnLive.addActionListener( e -> new Thread( () -> {
+
+				final EverythingDisablerAndReenabler reenabler = new EverythingDisablerAndReenabler( gui, new Class[] { JLabel.class } );
+				final boolean ok;
+				try
+				{
+					reenabler.disable();
+					ok = live(
 							gui.tf1.getText(),
 							gui.tf2.getText(),
-							( ( PairingMethods ) gui.cmbboxPairingMethod.getSelectedItem() ).method(),
 							( ( Number ) gui.ftfMaxDist.getValue() ).doubleValue() );
 				}
 				finally
 				{
 					reenabler.reenable();
 				}
+				if ( ok )
+					SwingUtilities.invokeLater( () -> startLive() );
 			} ).start() );
+			gui.sliderMaxDist.addChangeListener( e -> {
+				final PairingSession s = session;
+				if ( s == null || !gui.sliderMaxDist.isEnabled() )
+					return;
+				final double maxPairDistance = gui.sliderMaxDist.getValue() * s.getCutoff() / PairingTrackMatePanel.SLIDER_STEPS;
+				gui.ftfMaxDist.setValue( Double.valueOf( maxPairDistance ) );
+				requestLivePairing();
+			} );
+			gui.cmbboxPairingMethod.addItemListener( e -> requestLivePairing() );
+			gui.btnRefine.addActionListener( e -> refineLivePairing() );
 			gui.btnPreview.addActionListener( e -> new Thread( () -> {
 
 				final EverythingDisablerAndReenabler reenabler = new EverythingDisablerAndReenabler( gui, new Class[] { JLabel.class } );
@@ -112,6 +184,11 @@ public class PairingTrackMateController
 				public void windowClosing( final java.awt.event.WindowEvent e )
 				{
 					gui = null;
+					session = null;
+					livePairing = null;
+					if ( liveExecutor != null )
+						liveExecutor.shutdown();
+					liveExecutor = null;
 				};
 			} );
 			frame.setVisible( true );
@@ -121,11 +198,23 @@ public class PairingTrackMateController
 	private void preview( final String path1, final String path2 )
 	{
 		/*
-		 * Compute distance histogram.
+		 * Compute distance histogram, showing it as soon as a first estimate
+		 * is available.
 		 */
 
 		IJ.log( "Creating distance cumulative histogram for " + path1 + " and " + path2 );
 		final PairingCumulativeHistogram histo = new PairingCumulativeHistogram( path1, path2 );
+		histo.setZScale( getZScale() );
+		final CumulativeHistogramDataset dataset = new CumulativeHistogramDataset( new double[ 0 ] );
+		final JFreeChart[] chart = new JFreeChart[ 1 ];
+		histo.setListener( ( estimate, progress ) -> SwingUtilities.invokeLater( () -> {
+			if ( chart[ 0 ] == null )
+				chart[ 0 ] = showHistogram( dataset, histo.getUnits() );
+			dataset.setValues( estimate );
+			chart[ 0 ].setTitle( ( progress < 1. )
+					? String.format( "%s (%.0f%% of frames)", HISTOGRAM_TITLE, 100. * progress )
+					: HISTOGRAM_TITLE );
+		} ) );
 		if ( !histo.checkInput() || !histo.process() )
 		{
 			IJ.error( "Pairing histogram", "Problem with the files:\n" + histo.getErrorMessage() );
@@ -133,16 +222,16 @@ public class PairingTrackMateController
 		}
 		IJ.log( "Histogram measured." );
 		IJ.log( histo.getResult().toString() );
-		final DefaultXYDataset dataset = histo.getResult();
-
-		/*
-		 * Create histogram plot.
-		 */
+	}
 
-		final String units = histo.getUnits();
+	/**
+	 * Shows the specified cumulative histogram in a new window.
+	 */
+	private JFreeChart showHistogram( final CumulativeHistogramDataset dataset, final String units )
+	{
 		final String xlabel = "Pair distance (" + units + ")";
 		final String ylabel = "cdf";
-		final String title = "Pair distance cumulative histogram";
+		final String title = HISTOGRAM_TITLE;
 		final JFreeChart chart = ChartFactory.createXYLineChart(
 				title, xlabel, ylabel, dataset, PlotOrientation.VERTICAL, false, false, false );
 
@@ -162,6 +251,9 @@ public class PairingTrackMateController
 		plot.getRangeAxis().setTickLabelInsets( new RectangleInsets( 20, 10, 20, 10 ) );
 		plot.getDomainAxis().setTickLabelInsets( new RectangleInsets( 10, 20, 10, 20 ) );
 
+		// Resample the cumulative histogram when zooming.
+		plot.getDomainAxis().addChangeListener( dataset );
+
 		chart.setBorderVisible( false );
 		chart.setBackgroundPaint( new Color( 0.8f, 0.8f, 0.9f ) );
 
@@ -180,11 +272,194 @@ public class PairingTrackMateController
 		chartPanel.setPreferredSize( new java.awt.Dimension( 500, 520 ) );
 		chartPanel.setOpaque( false );
 
+		// Exact steps around the mouse.
+		chartPanel.addChartMouseListener( new ChartMouseListener()
+		{
+
+			@Override
+			public void chartMouseMoved( final ChartMouseEvent event )
+			{
+				final double x = plot.getDomainAxis().java2DToValue(
+						event.getTrigger().getX(),
+						chartPanel.getScreenDataArea(),
+						plot.getDomainAxisEdge() );
+				dataset.setCursor( x );
+			}
+
+			@Override
+			public void chartMouseClicked( final ChartMouseEvent event )
+			{}
+		} );
+
 		final JFrame frame = new JFrame( title );
 		frame.getContentPane().add( chartPanel );
 		frame.pack();
 		frame.setLocationRelativeTo( gui );
 		frame.setVisible( true );
+		return chart;
+	}
+
+	/**
+	 * Loads the two files in a new live session, and shows the preview image
+	 * on which the live pairing will be drawn.
+	 */
+	private boolean live( final String path1, final String path2, final double maxPairDistance )
+	{
+		final double cutoff = LIVE_CUTOFF_FACTOR * maxPairDistance;
+		IJ.log( "Loading " + path1 + " and " + path2 + " for live pairing up to a distance of " + cutoff );
+		final PairingSession s = new PairingSession( path1, path2, cutoff );
+		s.setZScale( getZScale() );
+		if ( gui != null && gui.chkboxApproximate.isSelected() )
+		{
+			final FrameSampling sampling = FrameSampling.every( PairingTrackMatePanel.APPROXIMATE_FRAME_STEP );
+			s.setFrameSampling( sampling );
+			IJ.log( "Approximate live pairing, scoring track pairs on " + sampling + '.' );
+		}
+		if ( !s.checkInput() || !s.process() )
+		{
+			IJ.error( "Pairing TrackMate", "Problem loading the files:\n" + s.getErrorMessage() );
+			return false;
+		}
+
+		final ImagePlus imp = PairingPreviewCreator.openImage( path1 );
+		final PairingLiveOverlay overlay;
+		if ( imp == null )
+		{
+			IJ.log( "Could not open image referenced in the the first TrackMate file.\n"
+					+ "Live preview image won't be generated." );
+			overlay = null;
+		}
+		else
+		{
+			final ImagePlus output = PairingPreviewCreator.project( imp );
+			overlay = new PairingLiveOverlay( output, imp );
+			output.show();
+		}
+
+		if ( liveExecutor == null )
+			liveExecutor = Executors.newSingleThreadExecutor();
+		// Set first, so that pending updates of the previous session are discarded.
+		this.session = s;
+		SwingUtilities.invokeLater( () -> {
+			this.liveOverlay = overlay;
+			this.livePairing = null;
+		} );
+		IJ.log( "Live pairing ready." );
+		return true;
+	}
+
+	private void startLive()
+	{
+		final PairingSession s = session;
+		if ( gui == null || s == null )
+			return;
+		final double maxPairDistance = ( ( Number ) gui.ftfMaxDist.getValue() ).doubleValue();
+		gui.sliderMaxDist.setValue( ( int ) Math.round( maxPairDistance / s.getCutoff() * PairingTrackMatePanel.SLIDER_STEPS ) );
+		gui.sliderMaxDist.setEnabled( true );
+		gui.btnRefine.setEnabled( s.isApproximate() );
+		requestLivePairing();
+	}
+
+	/**
+	 * Re-pairs the live session with the method and distance currently
+	 * selected in the GUI. Must be called on the EDT. Requests made while a
+	 * pairing is pending are merged into it.
+	 */
+	private void requestLivePairing()
+	{
+		final PairingSession s = session;
+		if ( gui == null || s == null || liveExecutor == null )
+			return;
+		liveMethod = ( PairingMethods ) gui.cmbboxPairingMethod.getSelectedItem();
+		liveDistance = Math.min( s.getCutoff(), ( ( Number ) gui.ftfMaxDist.getValue() ).doubleValue() );
+		if ( !livePending.compareAndSet( false, true ) )
+			return;
+
+		liveExecutor.submit( () -> {
+			livePending.set( false );
+			final PairingMethods method = liveMethod;
+			final double maxPairDistance = liveDistance;
+			try
+			{
+				final Update update = s.pair( method.contextualMethod(), maxPairDistance );
+				if ( update == null )
+				{
+					IJ.log( "Live pairing failed: " + s.getErrorMessage() );
+					return;
+				}
+				final PairingErrorEstimate estimate = s.getErrorEstimate();
+				SwingUtilities.invokeLater( () -> showLiveUpdate( s, update, maxPairDistance, estimate ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				IJ.log( "Live pairing failed: " + e );
+				e.printStackTrace();
+			}
+		} );
+	}
+
+	/**
+	 * Repeats the last pairing of an approximate live session on all frames.
+	 * Must be called on the EDT.
+	 */
+	private void refineLivePairing()
+	{
+		final PairingSession s = session;
+		if ( gui == null || s == null || liveExecutor == null )
+			return;
+		gui.btnRefine.setEnabled( false );
+		final double maxPairDistance = liveDistance;
+		liveExecutor.submit( () -> {
+			IJ.log( "Refining the live pairing on all frames." );
+			try
+			{
+				final Update update = s.refine();
+				if ( update != null )
+					SwingUtilities.invokeLater( () -> showLiveUpdate( s, update, maxPairDistance, null ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				IJ.log( "Refining the live pairing failed: " + e );
+				e.printStackTrace();
+			}
+		} );
+	}
+
+	/**
+	 * Displays a live pairing update. Must be called on the EDT.
+	 */
+	private void showLiveUpdate( final PairingSession s, final Update update, final double maxPairDistance, final PairingErrorEstimate estimate )
+	{
+		if ( gui == null || session != s )
+			return;
+		if ( liveOverlay != null )
+			liveOverlay.apply( update );
+		livePairing = update.pairing;
+		final String counts = String.format( "%d pairs, %d + %d unmatched tracks at %.3f %s",
+				update.pairing.pairs.size(),
+				update.pairing.unmatchedTracks1.size(),
+				update.pairing.unmatchedTracks2.size(),
+				maxPairDistance,
+				update.pairing.units );
+		if ( estimate == null )
+			gui.lblLiveCounts.setText( counts );
+		else
+			gui.lblLiveCounts.setText( String.format( "%s (approx., ~%.0f may change)", counts, estimate.expectedChanges ) );
+	}
+
+	/**
+	 * Returns the pairing last displayed by the live session, if it was made
+	 * on the same files, with the same method and distance.
+	 */
+	private Pairing currentLivePairing( final String path1, final String path2, final PairingMethods method, final double maxPairDistance )
+	{
+		final PairingSession s = session;
+		final Pairing pairing = livePairing;
+		if ( s == null || pairing == null || !s.canPair( path1, path2, maxPairDistance ) || s.getZScale() != getZScale() )
+			return null;
+		if ( method != liveMethod || maxPairDistance != liveDistance || pairing != s.getPairing() )
+			return null;
+		return pairing;
 	}
 
 	public void pair( final String path1, final String path2, final PairingMethod method, final double maxPairDistance )
@@ -195,6 +470,7 @@ public class PairingTrackMateController
 
 		IJ.log( "Pairing " + path1 + " and " + path2 );
 		final PairingTrackMate pairing = new PairingTrackMate( path1, path2, method, maxPairDistance );
+		pairing.setZScale( getZScale() );
 		if ( !pairing.checkInput() || !pairing.process() )
 		{
 			IJ.error( "Pairing TrackMate", "Problem pairing the files:\n" + pairing.getErrorMessage() );
@@ -208,7 +484,7 @@ public class PairingTrackMateController
 		 */
 
 		IJ.log( "Generating preview image." );
-		final ImagePlus imp = PairingPreviewCreator.openImage( path1 );
+		final ImagePlus imp = PairingPreviewCreator.openImage( path1, pairing.getResult() );
 		if ( imp == null )
 		{
 			IJ.log( "Could not open image referenced in the the first TrackMate file.\n"
@@ -222,6 +498,11 @@ public class PairingTrackMateController
 			IJ.log( "Preview finished!" );
 		}
 
+		save( path1, path2, pairing.getResult() );
+	}
+
+	private void save( final String path1, final String path2, final Pairing pairing )
+	{
 		/*
 		 * Build CSV path.
 		 */
@@ -256,7 +537,7 @@ public class PairingTrackMateController
 		try (final ICSVWriter writer = new CSVWriterBuilder(
 				new FileWriter( choosenFile ) ).withSeparator( ',' ).build())
 		{
-			writer.writeAll( pairing.getResult().toCsv() );
+			writer.writeAll( pairing.toCsv() );
 		}
 		catch ( final IOException e )
 		{
@@ -287,6 +568,24 @@ public class PairingTrackMateController
 		gui.ftfMaxDist.setValue( Double.valueOf( maxPairingDistance ) );
 	}
 
+	public void setZScale( final double zScale )
+	{
+		if ( gui == null )
+			return;
+		gui.ftfZScale.setValue( Double.valueOf( zScale ) );
+	}
+
+	/**
+	 * Returns the Z scale entered in the GUI, or 1 if there is no GUI.
+	 */
+	private double getZScale()
+	{
+		final PairingTrackMatePanel panel = gui;
+		if ( panel == null )
+			return 1.;
+		return ( ( Number ) panel.ftfZScale.getValue() ).doubleValue();
+	}
+
 	public static String longestCommonPrefix( final String a, final String b )
 	{
 		final int end = Math.min( a.length(), b.length() );
@@ -21,9 +21,6 @@
  */
 package fiji.plugin.trackmate.pairing.plugin;
 
-import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
-import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
-
 import java.awt.Frame;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -38,18 +35,17 @@ import java.util.Vector;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
 import javax.swing.JTextArea;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
 import javax.swing.text.JTextComponent;
 
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.input.SAXBuilder;
 import org.scijava.prefs.PrefService;
 import org.scijava.util.VersionUtils;
 
@@ -61,6 +57,7 @@ import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.io.IOUtils;
 import fiji.plugin.trackmate.pairing.PairingTrackMate;
+import fiji.plugin.trackmate.pairing.io.TmXmlStreamReader;
 import fiji.plugin.trackmate.pairing.method.PairingMethods;
 import fiji.plugin.trackmate.util.TMUtils;
 
@@ -69,6 +66,18 @@ public class PairingTrackMatePanel extends JPanel
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Number of positions of the max distance slider, between 0 and the cutoff
+	 * of the live session.
+	 */
+	static final int SLIDER_STEPS = 1000;
+
+	/**
+	 * In approximate live sessions, one frame out of this number is used to
+	 * score track pairs.
+	 */
+	static final int APPROXIMATE_FRAME_STEP = 10;
+
 	private final PrefService prefService;
 
 	final JTextArea tf1;
@@ -81,10 +90,21 @@ public class PairingTrackMatePanel extends JPanel
 
 	final JFormattedTextField ftfMaxDist;
 
+	final JFormattedTextField ftfZScale;
+
 	final JComboBox< PairingMethods > cmbboxPairingMethod;
 
 	final JLabel lblUnits;
 
+	final JButton btnLive;
+
+	final JSlider sliderMaxDist;
+
+	final JLabel lblLiveCounts;
+
+	final JCheckBox chkboxApproximate;
+
+	final JButton btnRefine;
 
 	public PairingTrackMatePanel()
 	{
@@ -92,9 +112,9 @@ public class PairingTrackMatePanel extends JPanel
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 0, 0, 0, 0 };
-		gridBagLayout.rowHeights = new int[] { 0, 30, 45, 65, 45, 65, 45, 45, 30, 0, 0 };
+		gridBagLayout.rowHeights = new int[] { 0, 30, 45, 65, 45, 65, 45, 45, 45, 30, 0, 0 };
 		gridBagLayout.columnWeights = new double[] { 1.0, 1.0, 0.0, Double.MIN_VALUE };
-		gridBagLayout.rowWeights = new double[] { 0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, Double.MIN_VALUE };
+		gridBagLayout.rowWeights = new double[] { 0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, Double.MIN_VALUE };
 		setLayout( gridBagLayout );
 
 		final JLabel lblTitle = new JLabel( "Pairing TrackMate v" + VersionUtils.getVersion( PairingTrackMatePanel.class ) );
@@ -199,25 +219,82 @@ public class PairingTrackMatePanel extends JPanel
 		gbc_lblUnits.gridy = 6;
 		add( lblUnits, gbc_lblUnits );
 
+		final JLabel lblZScale = new JLabel( "Z scale:" );
+		final GridBagConstraints gbcLblZScale = new GridBagConstraints();
+		gbcLblZScale.anchor = GridBagConstraints.EAST;
+		gbcLblZScale.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblZScale.gridx = 0;
+		gbcLblZScale.gridy = 7;
+		add( lblZScale, gbcLblZScale );
+
+		ftfZScale = new JFormattedTextField( new DecimalFormat( ".###" ) );
+		ftfZScale.setValue( prefService.getDouble( PairingTrackMate.class, "ZScale", 1. ) );
+		ftfZScale.setHorizontalAlignment( SwingConstants.CENTER );
+		ftfZScale.setToolTipText( "Factor by which the Z coordinates are multiplied before computing distances." );
+		GuiUtils.selectAllOnFocus( ftfZScale );
+		final GridBagConstraints gbcFtfZScale = new GridBagConstraints();
+		gbcFtfZScale.insets = new Insets( 5, 5, 5, 5 );
+		gbcFtfZScale.fill = GridBagConstraints.HORIZONTAL;
+		gbcFtfZScale.gridx = 1;
+		gbcFtfZScale.gridy = 7;
+		add( ftfZScale, gbcFtfZScale );
+
 		final JLabel lblPairingMethod = new JLabel( "Pairing method:" );
 		final GridBagConstraints gbcLblPairingMethod = new GridBagConstraints();
 		gbcLblPairingMethod.anchor = GridBagConstraints.EAST;
 		gbcLblPairingMethod.insets = new Insets( 5, 5, 5, 5 );
 		gbcLblPairingMethod.gridx = 0;
-		gbcLblPairingMethod.gridy = 7;
+		gbcLblPairingMethod.gridy = 8;
 		add( lblPairingMethod, gbcLblPairingMethod );
 
 		cmbboxPairingMethod = new JComboBox<>(
 				new Vector<>( Arrays.asList( PairingMethods.values() ) ) );
-		cmbboxPairingMethod.setSelectedIndex( prefService.getInt( PairingTrackMate.class, "PairingMethod", 0 ) );
+		cmbboxPairingMethod.setSelectedItem( savedPairingMethod() );
 		final GridBagConstraints gbcCmbboxPairingMethod = new GridBagConstraints();
 		gbcCmbboxPairingMethod.gridwidth = 2;
 		gbcCmbboxPairingMethod.insets = new Insets( 5, 5, 5, 5 );
 		gbcCmbboxPairingMethod.fill = GridBagConstraints.HORIZONTAL;
 		gbcCmbboxPairingMethod.gridx = 1;
-		gbcCmbboxPairingMethod.gridy = 7;
+		gbcCmbboxPairingMethod.gridy = 8;
 		add( cmbboxPairingMethod, gbcCmbboxPairingMethod );
 
+		final JPanel panelLive = new JPanel();
+		panelLive.setLayout( new BoxLayout( panelLive, BoxLayout.PAGE_AXIS ) );
+		final GridBagConstraints gbcPanelLive = new GridBagConstraints();
+		gbcPanelLive.anchor = GridBagConstraints.NORTH;
+		gbcPanelLive.gridwidth = 3;
+		gbcPanelLive.insets = new Insets( 5, 5, 5, 5 );
+		gbcPanelLive.fill = GridBagConstraints.HORIZONTAL;
+		gbcPanelLive.gridx = 0;
+		gbcPanelLive.gridy = 9;
+		add( panelLive, gbcPanelLive );
+
+		// A max pairing distance of 0 pairs nothing.
+		sliderMaxDist = new JSlider( 1, SLIDER_STEPS, 1 );
+		sliderMaxDist.setEnabled( false );
+		sliderMaxDist.setToolTipText( "Press 'Live' to load the files and adjust the max pairing distance interactively." );
+		panelLive.add( sliderMaxDist );
+
+		lblLiveCounts = new JLabel( " " );
+		lblLiveCounts.setFont( Fonts.SMALL_FONT );
+		lblLiveCounts.setAlignmentX( CENTER_ALIGNMENT );
+		panelLive.add( lblLiveCounts );
+
+		final JPanel panelApproximate = new JPanel();
+		panelApproximate.setLayout( new BoxLayout( panelApproximate, BoxLayout.LINE_AXIS ) );
+		chkboxApproximate = new JCheckBox( "Approximate (1 frame in " + APPROXIMATE_FRAME_STEP + ")" );
+		chkboxApproximate.setFont( Fonts.SMALL_FONT );
+		chkboxApproximate.setToolTipText( "Score track pairs on a subset of frames when loading the files for live pairing. Faster, but approximate." );
+		chkboxApproximate.setSelected( prefService.getBoolean( PairingTrackMate.class, "Approximate", false ) );
+		btnRefine = new JButton( "Refine" );
+		btnRefine.setFont( Fonts.SMALL_FONT );
+		btnRefine.setToolTipText( "Repeat the approximate live pairing on all frames." );
+		btnRefine.setEnabled( false );
+		panelApproximate.add( chkboxApproximate );
+		panelApproximate.add( Box.createHorizontalGlue() );
+		panelApproximate.add( btnRefine );
+		panelLive.add( panelApproximate );
+
 		final JPanel panelButtons = new JPanel();
 		panelButtons.setLayout( new BoxLayout( panelButtons, BoxLayout.LINE_AXIS ) );
 		final GridBagConstraints gbcPanelButtons = new GridBagConstraints();
@@ -226,12 +303,15 @@ public class PairingTrackMatePanel extends JPanel
 		gbcPanelButtons.insets = new Insets( 5, 5, 5, 5 );
 		gbcPanelButtons.fill = GridBagConstraints.HORIZONTAL;
 		gbcPanelButtons.gridx = 0;
-		gbcPanelButtons.gridy = 9;
+		gbcPanelButtons.gridy = 10;
 		add( panelButtons, gbcPanelButtons );
 
 		btnPair = new JButton( "Pair" );
 		btnPreview = new JButton( "Preview", Icons.PREVIEW_ICON );
+		btnLive = new JButton( "Live" );
 		panelButtons.add( btnPreview );
+		panelButtons.add( Box.createHorizontalStrut( 5 ) );
+		panelButtons.add( btnLive );
 		panelButtons.add( Box.createHorizontalGlue() );
 		panelButtons.add( btnPair );
 
@@ -288,13 +368,43 @@ public class PairingTrackMatePanel extends JPanel
 			public void focusGained( final FocusEvent e )
 			{}
 		} );
+		ftfZScale.addPropertyChangeListener( "value", e -> prefService.put( PairingTrackMate.class, "ZScale",
+				( ( Number ) ftfZScale.getValue() ).doubleValue() ) );
 		cmbboxPairingMethod.addItemListener( e -> updatePairingMethod() );
+		chkboxApproximate.addItemListener( e -> prefService.put( PairingTrackMate.class, "Approximate", chkboxApproximate.isSelected() ) );
 	}
 
 	private void updatePairingMethod()
 	{
-		prefService.put( PairingTrackMate.class, "PairingMethod",
-				cmbboxPairingMethod.getSelectedIndex() );
+		prefService.put( PairingTrackMate.class, "PairingMethodName",
+				( ( PairingMethods ) cmbboxPairingMethod.getSelectedItem() ).name() );
+	}
+
+	/**
+	 * Returns the pairing method saved in the preferences. The method is
+	 * saved by name, so that adding methods does not change the saved choice.
+	 * Older versions saved its index among the three original methods.
+	 */
+	private PairingMethods savedPairingMethod()
+	{
+		final String name = prefService.get( PairingTrackMate.class, "PairingMethodName", null );
+		if ( name != null )
+		{
+			try
+			{
+				return PairingMethods.valueOf( name );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				return PairingMethods.COMMON_SPOTS;
+			}
+		}
+		final PairingMethods[] legacy = new PairingMethods[] {
+				PairingMethods.COMMON_SPOTS,
+				PairingMethods.CLOSEST_MEAN_POSITION,
+				PairingMethods.CLOSEST_MEDIAN_POSITION };
+		final int index = prefService.getInt( PairingTrackMate.class, "PairingMethod", 0 );
+		return ( index >= 0 && index < legacy.length ) ? legacy[ index ] : PairingMethods.COMMON_SPOTS;
 	}
 
 	private void updateMaxDistanceField()
@@ -329,19 +439,7 @@ public class PairingTrackMatePanel extends JPanel
 
 	private String readSpatialUnits( final String path )
 	{
-		final SAXBuilder sb = new SAXBuilder();
-		try
-		{
-			final Document document = sb.build( new File( path ) );
-			final Element root = document.getRootElement();
-			final Element modelElement = root.getChild( MODEL_ELEMENT_KEY );
-			if ( null == modelElement )
-				return null;
-			return modelElement.getAttributeValue( SPATIAL_UNITS_ATTRIBUTE_NAME );
-		}
-		catch ( final Exception e )
-		{}
-		return null;
+		return TmXmlStreamReader.readSpatialUnits( new File( path ) );
 	}
 
 	private void browse( final JTextComponent tf, final String persistanceKey )
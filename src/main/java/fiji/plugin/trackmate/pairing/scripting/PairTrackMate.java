@@ -27,6 +27,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.scijava.util.VersionUtils;
 
@@ -39,8 +41,18 @@ import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettingsIO;
 import fiji.plugin.trackmate.gui.wizard.descriptors.ConfigureViewsDescriptor;
 import fiji.plugin.trackmate.io.TmXmlWriter;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.PairingComparison;
+import fiji.plugin.trackmate.pairing.PairingPreviewCreator;
+import fiji.plugin.trackmate.pairing.PairingRenderer;
+import fiji.plugin.trackmate.pairing.PairingRenderer.Format;
+import fiji.plugin.trackmate.pairing.PairingSweep;
 import fiji.plugin.trackmate.pairing.PairingTrackMate;
+import fiji.plugin.trackmate.pairing.StreamingPairing;
+import fiji.plugin.trackmate.pairing.io.ReadFilter;
+import fiji.plugin.trackmate.pairing.io.TrackMateFiles;
 import fiji.plugin.trackmate.pairing.method.PairingMethod;
+import fiji.plugin.trackmate.pairing.method.PairingMethods;
 import fiji.plugin.trackmate.pairing.plugin.PairingTrackMateController;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
@@ -50,6 +62,10 @@ import ij.Prefs;
 /**
  * Utility class to facilitate writing scripts for pairing files and saving
  * results in batch.
+ * <p>
+ * The methods that read or write TrackMate files have an overload taking an
+ * {@link Options} object, that sets how the files are read and written. The
+ * other overloads use {@link Options#DEFAULT}.
  * 
  * @author Jean-Yves Tinevez
  *
@@ -59,6 +75,9 @@ public class PairTrackMate
 
 	public static Logger logger = Logger.DEFAULT_LOGGER;
 
+	/** Frame rate of the quality control movies. */
+	private static final double QC_FPS = 5.;
+
 	private static final String LOG_MESSAGE = "PairingTrackMate v" + VersionUtils.getVersion( PairTrackMate.class )
 			+ "\n"
 			+ TrackMate.PLUGIN_NAME_STR + " v" + TrackMate.PLUGIN_NAME_VERSION;
@@ -85,10 +104,27 @@ public class PairTrackMate
 			final PairingMethod method,
 			final double maxPairDistance,
 			final String trackmateFileSubFolder )
+	{
+		process( imagePath, settingsCh1, settingsCh2, method, maxPairDistance, trackmateFileSubFolder, Options.DEFAULT );
+	}
+
+	/**
+	 * Same as
+	 * {@link #process(String, Settings, Settings, PairingMethod, double, String)},
+	 * with the specified options.
+	 */
+	public static final void process(
+			final String imagePath,
+			final Settings settingsCh1,
+			final Settings settingsCh2,
+			final PairingMethod method,
+			final double maxPairDistance,
+			final String trackmateFileSubFolder,
+			final Options options )
 	{
 		logger.log( "Opening image " + imagePath + '\n' );
 		final ImagePlus imp = IJ.openImage( imagePath );
-		process( imp, settingsCh1, settingsCh2, method, maxPairDistance, trackmateFileSubFolder );
+		process( imp, settingsCh1, settingsCh2, method, maxPairDistance, trackmateFileSubFolder, options );
 	}
 
 	/**
@@ -116,6 +152,24 @@ public class PairTrackMate
 			final double maxPairDistance,
 			final String trackmateFileSubFolder )
 	{
+		process( imp, settingsCh1, settingsCh2, method, maxPairDistance, trackmateFileSubFolder, Options.DEFAULT );
+	}
+
+	/**
+	 * Same as
+	 * {@link #process(ImagePlus, Settings, Settings, PairingMethod, double, String)},
+	 * with the specified options. If they compress the output, the TrackMate
+	 * files are compressed once paired.
+	 */
+	public static final void process(
+			final ImagePlus imp,
+			final Settings settingsCh1,
+			final Settings settingsCh2,
+			final PairingMethod method,
+			final double maxPairDistance,
+			final String trackmateFileSubFolder,
+			final Options options )
+	{
 
 		final String directory = imp.getOriginalFileInfo().directory;
 		final String fileName = imp.getOriginalFileInfo().fileName;
@@ -158,16 +212,20 @@ public class PairTrackMate
 		if ( !ok2 )
 		{
 			logger.log( "Skipping.\n" );
+			compressIfNeeded( savePathCh1, options );
 			return;
 		}
 		logger.log( "Tracking results saved to " + savePathCh2 + '\n' );
 
 		/*
-		 * Pairing and saving to CSV.
+		 * Pairing and saving to CSV. The plain files are paired, and
+		 * compressed afterwards.
 		 */
 
 		logger.log( "Performing pairing.\n" );
-		final String csvFile = pair( savePathCh1, savePathCh2, method, maxPairDistance );
+		final String csvFile = pair( savePathCh1, savePathCh2, method, maxPairDistance, null, options );
+		compressIfNeeded( savePathCh1, options );
+		compressIfNeeded( savePathCh2, options );
 		if ( csvFile == null )
 		{
 			logger.log( "Skipping.\n" );
@@ -176,6 +234,40 @@ public class PairTrackMate
 		logger.log( "Pairing results saved to " + csvFile + '\n' );
 	}
 
+	private static void compressIfNeeded( final String path, final Options options )
+	{
+		if ( !options.compressOutput )
+			return;
+		final File target = new File( path + TrackMateFiles.GZIP_EXTENSION );
+		TrackMateFiles.compress( new File( path ), target, true );
+		logger.log( "Compressing " + path + " to " + target + " in the background.\n" );
+	}
+
+	/**
+	 * Waits for the TrackMate files being compressed in the background to be
+	 * written.
+	 * 
+	 * @return <code>true</code> if all files were compressed without error.
+	 */
+	public static final boolean awaitCompressions()
+	{
+		try
+		{
+			TrackMateFiles.awaitCompressions();
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem compressing TrackMate files:\n" + e.getMessage() + '\n' );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while waiting for TrackMate files to be compressed.\n" );
+		}
+		return false;
+	}
+
 	/**
 	 * Performs tracking on the image with the specified path, with the tracking parameters in
 	 * the specified settings object, and saves the results to a TrackMate XML
@@ -207,6 +299,17 @@ public class PairTrackMate
 	 *         <code>null</code> if an error happens.
 	 */
 	public static final String track( final ImagePlus imp, final Settings settings )
+	{
+		return track( imp, settings, Options.DEFAULT );
+	}
+
+	/**
+	 * Same as {@link #track(ImagePlus, Settings)}, with the specified options.
+	 * If they compress the output, the results are saved to a compressed
+	 * file, and this method returns once it is written. If compressing fails,
+	 * the plain file is kept and its path is returned.
+	 */
+	public static final String track( final ImagePlus imp, final Settings settings, final Options options )
 	{
 		final String fileName = imp.getOriginalFileInfo().fileName;
 		if ( fileName == null )
@@ -223,10 +326,45 @@ public class PairTrackMate
 			saveName = fileName.substring( 0, idx ) + ".xml";
 
 		final String savePath = new File( saveName ).getAbsolutePath();
-		track( imp, settings, savePath );
+		if ( !track( imp, settings, savePath ) )
+			return null;
+		if ( !options.compressOutput )
+			return savePath;
+
+		final File target = new File( savePath + TrackMateFiles.GZIP_EXTENSION );
+		try
+		{
+			TrackMateFiles.compress( new File( savePath ), target, true ).get();
+			return target.getAbsolutePath();
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Problem compressing TrackMate results, keeping the plain file:\n" + e.getCause().getMessage() + '\n' );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Interrupted while compressing TrackMate results, keeping the plain file.\n" );
+		}
 		return savePath;
 	}
 
+	/**
+	 * Performs tracking on the specified image, with the tracking parameters in
+	 * the specified settings object, and saves the results to the specified
+	 * file. If its name ends with {@value TrackMateFiles#GZIP_EXTENSION}, the
+	 * results are first written to a plain file next to it, that is then
+	 * compressed on a background thread. The compressed file appears when
+	 * compression completes, see {@link #awaitCompressions()}.
+	 * 
+	 * @param imp
+	 *            the image to track.
+	 * @param settings
+	 *            the tracking parameters.
+	 * @param targetFile
+	 *            the path to the file to write.
+	 * @return <code>true</code> if tracking and saving went well.
+	 */
 	public static final boolean track( final ImagePlus imp, final Settings settings, final String targetFile )
 	{
 		// Prepare TrackMate.
@@ -245,7 +383,11 @@ public class PairTrackMate
 		}
 
 		// Save results.
-		final TmXmlWriter writer = new TmXmlWriter( new File( targetFile ), Logger.VOID_LOGGER );
+		final boolean compress = TrackMateFiles.hasCompressedExtension( targetFile );
+		final File plainFile = compress
+				? new File( targetFile.substring( 0, targetFile.length() - TrackMateFiles.GZIP_EXTENSION.length() ) )
+				: new File( targetFile );
+		final TmXmlWriter writer = new TmXmlWriter( plainFile, Logger.VOID_LOGGER );
 		writer.appendLog( LOG_MESSAGE + "\n" + TMUtils.getCurrentTimeString() );
 		writer.appendModel( trackmate.getModel() );
 		writer.appendSettings( trackmate.getSettings() );
@@ -265,39 +407,414 @@ public class PairTrackMate
 			logger.error( "Problem saving TrackMate results. Input/Output error:\n" + e.getMessage() + '\n' );
 			return false;
 		}
+		if ( compress )
+			TrackMateFiles.compress( plainFile, new File( targetFile ), true );
 		return true;
 	}
 
 	public static final String pair( final String path1, final String path2, final PairingMethod method, final double maxPairDistance )
+	{
+		return pair( path1, path2, method, maxPairDistance, null );
+	}
+
+	/**
+	 * Pairs the two specified files, saves the pairing results to a CSV file
+	 * in the folder of the first file, and optionally renders a quality
+	 * control movie of the pairing next to it.
+	 * 
+	 * @param path1
+	 *            the path to the first TrackMate file.
+	 * @param path2
+	 *            the path to the second TrackMate file.
+	 * @param method
+	 *            the pairing method.
+	 * @param maxPairDistance
+	 *            the max pairing distance.
+	 * @param qcFormat
+	 *            the format of the quality control rendering, or
+	 *            <code>null</code> to skip it. With {@link Format#AVI} a
+	 *            movie is written, otherwise a folder with one image per
+	 *            frame.
+	 * @return the path to the CSV file. Returns <code>null</code> if an error
+	 *         happens.
+	 */
+	public static final String pair( final String path1, final String path2, final PairingMethod method, final double maxPairDistance, final Format qcFormat )
+	{
+		return pair( path1, path2, method, maxPairDistance, qcFormat, Options.DEFAULT );
+	}
+
+	/**
+	 * Same as {@link #pair(String, String, PairingMethod, double, Format)},
+	 * with the specified options.
+	 */
+	public static final String pair( final String path1, final String path2, final PairingMethod method, final double maxPairDistance, final Format qcFormat, final Options options )
 	{
 		// Perform pairing.
 		final PairingTrackMate pairing = new PairingTrackMate( path1, path2, method, maxPairDistance );
+		pairing.setNumThreads( Prefs.getThreads() );
+		pairing.setFilter( options.filter );
+		pairing.setUseSidecars( options.useSidecars );
+		pairing.setZScale( options.zScale );
+		pairing.setTimeBudget( options.timeBudget );
 		if ( !pairing.checkInput() || !pairing.process() )
 		{
 			logger.error( "Problem pairing the files:\n" + pairing.getErrorMessage() + '\n' );
 			return null;
 		}
+		if ( pairing.isPartial() )
+			logger.log( pairing.getCoverage().toString() + '\n' );
+
+		// Save to CSV.
+		final File csvFile = csvFile( path1, path2, "" );
+		if ( !writeCsv( csvFile, pairing.getResult().toCsv() ) )
+			return null;
+
+		if ( qcFormat != null )
+			render( path1, pairing.getResult(), csvFile, qcFormat, options );
+		return csvFile.getAbsolutePath();
+	}
+
+	/**
+	 * Pairs the two specified files without loading them, streaming them a
+	 * window of frames at a time, and saves the pairing results to a CSV file
+	 * in the folder of the first file. Use this for movies too long to be
+	 * loaded in memory.
+	 * 
+	 * @param path1
+	 *            the path to the first TrackMate file.
+	 * @param path2
+	 *            the path to the second TrackMate file.
+	 * @param method
+	 *            the pairing method, {@link PairingMethods#COMMON_SPOTS} or
+	 *            {@link PairingMethods#CLOSEST_MEAN_POSITION}.
+	 * @param maxPairDistance
+	 *            the max pairing distance.
+	 * @param frameWindow
+	 *            the number of frames read at a time.
+	 * @return the path to the CSV file. Returns <code>null</code> if an error
+	 *         happens.
+	 * @see StreamingPairing
+	 */
+	public static final String pairStreaming( final String path1, final String path2, final PairingMethods method, final double maxPairDistance, final int frameWindow )
+	{
+		return pairStreaming( path1, path2, method, maxPairDistance, frameWindow, Options.DEFAULT );
+	}
 
-		// Build CSV path.
+	/**
+	 * Same as
+	 * {@link #pairStreaming(String, String, PairingMethods, double, int)},
+	 * with the specified options. Only their filter and Z scale are used.
+	 */
+	public static final String pairStreaming( final String path1, final String path2, final PairingMethods method, final double maxPairDistance, final int frameWindow, final Options options )
+	{
+		final File csvFile = csvFile( path1, path2, "" );
+		try (final ICSVWriter writer = new CSVWriterBuilder(
+				new FileWriter( csvFile ) ).withSeparator( ',' ).build())
+		{
+			final StreamingPairing pairing = new StreamingPairing( path1, path2, method, maxPairDistance, writer::writeNext );
+			pairing.setFrameWindow( frameWindow );
+			pairing.setNumThreads( Prefs.getThreads() );
+			pairing.setFilter( options.filter );
+			pairing.setZScale( options.zScale );
+			if ( !pairing.checkInput() || !pairing.process() )
+			{
+				logger.error( "Problem pairing the files:\n" + pairing.getErrorMessage() + '\n' );
+				return null;
+			}
+			logger.log( pairing.getResult().toString() + '\n' );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing CSV file:\n" + e.getMessage() + '\n' );
+			return null;
+		}
+		return csvFile.getAbsolutePath();
+	}
+
+	private static void render( final String path1, final Pairing pairing, final File csvFile, final Format format, final Options options )
+	{
+		final ImagePlus imp = PairingPreviewCreator.openImage( path1, pairing, options.maskPreview );
+		if ( imp == null )
+		{
+			logger.error( "Could not open the image referenced in " + path1 + ". Skipping quality control rendering.\n" );
+			return;
+		}
+
+		final PairingRenderer renderer = new PairingRenderer( pairing, imp );
+		renderer.setNumThreads( Prefs.getThreads() );
+		final String csvName = csvFile.getName();
+		final String name = csvName.substring( 0, csvName.length() - 4 ) + "-qc";
+		try
+		{
+			if ( format == Format.AVI )
+			{
+				final File aviFile = new File( csvFile.getParentFile(), name + ".avi" );
+				renderer.writeAvi( aviFile, QC_FPS );
+				logger.log( "Quality control movie saved to " + aviFile + '\n' );
+			}
+			else
+			{
+				final File folder = new File( csvFile.getParentFile(), name );
+				renderer.writeSequence( folder, name, format );
+				logger.log( "Quality control images saved to " + folder + '\n' );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing quality control rendering:\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Runs all the pairing methods on the two specified files, and saves the
+	 * comparison of their results to two CSV files in the folder of the first
+	 * file: one summarizing the results of each method, one reporting the
+	 * agreement between each couple of methods.
+	 * 
+	 * @param path1
+	 *            the path to the first TrackMate file.
+	 * @param path2
+	 *            the path to the second TrackMate file.
+	 * @param maxPairDistance
+	 *            the max pairing distance.
+	 * @return the path to the summary CSV file. Returns <code>null</code> if
+	 *         an error happens.
+	 */
+	public static final String compare( final String path1, final String path2, final double maxPairDistance )
+	{
+		return compare( path1, path2, maxPairDistance, Options.DEFAULT );
+	}
+
+	/**
+	 * Same as {@link #compare(String, String, double)}, with the specified
+	 * options. Their time budget is not used.
+	 */
+	public static final String compare( final String path1, final String path2, final double maxPairDistance, final Options options )
+	{
+		final PairingComparison comparison = new PairingComparison( path1, path2, maxPairDistance );
+		comparison.setNumThreads( Prefs.getThreads() );
+		comparison.setFilter( options.filter );
+		comparison.setUseSidecars( options.useSidecars );
+		comparison.setZScale( options.zScale );
+		comparison.setLogger( logger );
+		if ( !comparison.checkInput() || !comparison.process() )
+		{
+			logger.error( "Problem comparing the pairing methods:\n" + comparison.getErrorMessage() + '\n' );
+			return null;
+		}
+		logger.log( comparison.getResult().toString() + '\n' );
+
+		final File summaryFile = csvFile( path1, path2, "-methods" );
+		final File agreementFile = csvFile( path1, path2, "-agreement" );
+		if ( !writeCsv( summaryFile, comparison.getResult().summaryToCsv() )
+				|| !writeCsv( agreementFile, comparison.getResult().agreementToCsv() ) )
+			return null;
+		return summaryFile.getAbsolutePath();
+	}
+
+	/**
+	 * Pairs the two specified files for several values of the max pairing
+	 * distance, and saves a table of the number of track pairs, unmatched
+	 * tracks and paired spots at each distance to a CSV file in the folder of
+	 * the first file.
+	 * 
+	 * @param path1
+	 *            the path to the first TrackMate file.
+	 * @param path2
+	 *            the path to the second TrackMate file.
+	 * @param method
+	 *            the pairing method.
+	 * @param maxPairDistances
+	 *            the max pairing distances to test.
+	 * @return the path to the CSV file. Returns <code>null</code> if an error
+	 *         happens.
+	 */
+	public static final String sweep( final String path1, final String path2, final PairingMethod method, final double... maxPairDistances )
+	{
+		return sweep( path1, path2, method, Options.DEFAULT, maxPairDistances );
+	}
+
+	/**
+	 * Same as {@link #sweep(String, String, PairingMethod, double...)}, with
+	 * the specified options. Their time budget is not used.
+	 */
+	public static final String sweep( final String path1, final String path2, final PairingMethod method, final Options options, final double... maxPairDistances )
+	{
+		final PairingSweep sweep = new PairingSweep( path1, path2, method, maxPairDistances );
+		sweep.setNumThreads( Prefs.getThreads() );
+		sweep.setFilter( options.filter );
+		sweep.setUseSidecars( options.useSidecars );
+		sweep.setZScale( options.zScale );
+		sweep.setLogger( logger );
+		if ( !sweep.checkInput() || !sweep.process() )
+		{
+			logger.error( "Problem sweeping the max pairing distance:\n" + sweep.getErrorMessage() + '\n' );
+			return null;
+		}
+
+		final File csvFile = csvFile( path1, path2, "-sweep" );
+		if ( !writeCsv( csvFile, sweep.getResult().toCsv() ) )
+			return null;
+		return csvFile.getAbsolutePath();
+	}
+
+	private static File csvFile( final String path1, final String path2, final String suffix )
+	{
 		final Path parent = Paths.get( path1 ).getParent();
 		final String filename1 = Paths.get( path1 ).getFileName().toString();
 		final String filename2 = Paths.get( path2 ).getFileName().toString();
 		String prefix = PairingTrackMateController.longestCommonPrefix( filename1, filename2 );
 		if (prefix.endsWith( "-ch" ))
 			prefix = prefix.substring( 0, prefix.length() - 3 );
-		final File csvFile = Paths.get( parent.toString(), prefix + ".csv" ).toFile();
+		return Paths.get( parent.toString(), prefix + suffix + ".csv" ).toFile();
+	}
 
-		// Save to CSV.
+	private static boolean writeCsv( final File csvFile, final List< String[] > lines )
+	{
 		try (final ICSVWriter writer = new CSVWriterBuilder(
 				new FileWriter( csvFile ) ).withSeparator( ',' ).build())
 		{
-			writer.writeAll( pairing.getResult().toCsv() );
+			writer.writeAll( lines );
 		}
 		catch ( final IOException e )
 		{
 			logger.error( "Problem writing CSV file:\n" + e.getMessage() + '\n' );
-			return null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Options of the methods that read or write TrackMate files. They are
+	 * immutable, and created with {@link #build()}.
+	 */
+	public static final class Options
+	{
+
+		/**
+		 * The default options: everything is read, without sidecar files nor
+		 * time budget, Z is not scaled, and the output is neither compressed
+		 * nor masked.
+		 */
+		public static final Options DEFAULT = build().get();
+
+		private final ReadFilter filter;
+
+		private final boolean useSidecars;
+
+		private final double zScale;
+
+		private final long timeBudget;
+
+		private final boolean compressOutput;
+
+		private final boolean maskPreview;
+
+		private Options( final ReadFilter filter, final boolean useSidecars, final double zScale, final long timeBudget, final boolean compressOutput, final boolean maskPreview )
+		{
+			this.filter = filter;
+			this.useSidecars = useSidecars;
+			this.zScale = zScale;
+			this.timeBudget = timeBudget;
+			this.compressOutput = compressOutput;
+			this.maskPreview = maskPreview;
+		}
+
+		public static Builder build()
+		{
+			return new Builder();
+		}
+
+		public static final class Builder
+		{
+
+			private ReadFilter filter = ReadFilter.NONE;
+
+			private boolean useSidecars = false;
+
+			private double zScale = 1.;
+
+			private long timeBudget = -1l;
+
+			private boolean compressOutput = false;
+
+			private boolean maskPreview = false;
+
+			private Builder()
+			{}
+
+			/**
+			 * Sets the filter applied to the spots and tracks of the TrackMate
+			 * files when they are read for pairing, comparison and sweeps.
+			 */
+			public Builder filter( final ReadFilter filter )
+			{
+				this.filter = ( filter == null ) ? ReadFilter.NONE : filter;
+				return this;
+			}
+
+			/**
+			 * Sets whether the content of the TrackMate files read for
+			 * pairing, comparison and sweeps is cached in binary sidecar files
+			 * next to them, so that pairing the same files again skips parsing
+			 * them.
+			 */
+			public Builder useSidecars( final boolean useSidecars )
+			{
+				this.useSidecars = useSidecars;
+				return this;
+			}
+
+			/**
+			 * Sets the factor by which the Z coordinates are multiplied before
+			 * computing distances, for pairing, comparison and sweeps. The
+			 * default is 1.
+			 */
+			public Builder zScale( final double zScale )
+			{
+				this.zScale = zScale;
+				return this;
+			}
+
+			/**
+			 * Sets the time budget of pairing, in milliseconds, or a negative
+			 * value for no budget. When it expires, the pairing is made on the
+			 * most promising track pairs examined so far, and saved as is.
+			 */
+			public Builder timeBudget( final long millis )
+			{
+				this.timeBudget = ( millis < 0 ) ? -1l : millis;
+				return this;
+			}
+
+			/**
+			 * Sets whether the TrackMate files written by tracking are
+			 * compressed with gzip, on a background thread. Call
+			 * {@link PairTrackMate#awaitCompressions()} before exiting to make
+			 * sure they are all written.
+			 */
+			public Builder compressOutput( final boolean compressOutput )
+			{
+				this.compressOutput = compressOutput;
+				return this;
+			}
+
+			/**
+			 * Sets whether the quality control rendering only reads the planes
+			 * of the image it needs.
+			 * 
+			 * @see PairingPreviewCreator#openImage(String, Pairing, boolean)
+			 */
+			public Builder maskPreview( final boolean maskPreview )
+			{
+				this.maskPreview = maskPreview;
+				return this;
+			}
+
+			public Options get()
+			{
+				return new Options( filter, useSidecars, zScale, timeBudget, compressOutput, maskPreview );
+			}
 		}
-		return csvFile.getAbsolutePath();
 	}
 }
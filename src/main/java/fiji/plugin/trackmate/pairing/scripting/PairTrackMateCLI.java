@@ -0,0 +1,466 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.scripting;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import com.opencsv.CSVWriterBuilder;
+import com.opencsv.ICSVWriter;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.pairing.CumulativeHistogramDataset;
+import fiji.plugin.trackmate.pairing.PairingCumulativeHistogram;
+import fiji.plugin.trackmate.pairing.PairingTrackMate;
+import fiji.plugin.trackmate.pairing.StreamingPairing;
+import fiji.plugin.trackmate.pairing.io.ReadFilter;
+import fiji.plugin.trackmate.pairing.io.TrackMateFiles;
+import fiji.plugin.trackmate.pairing.method.PairingMethods;
+import fiji.plugin.trackmate.pairing.util.FrameSampling;
+
+/**
+ * Command-line entry point for pairing two TrackMate files, or for measuring
+ * the cumulative histogram of their spot distances.
+ * <p>
+ * Unlike {@link PairTrackMate}, this class only relies on the TrackMate XML
+ * classes: it does not create a SciJava context, does not read ImageJ
+ * preferences and does not touch AWT. It can be launched directly with the
+ * plugin jar and its dependencies on the class path, for instance in cluster
+ * jobs:
+ * 
+ * <pre>
+ * java -cp "Fiji.app/jars/*:Fiji.app/plugins/*" \
+ *     fiji.plugin.trackmate.pairing.scripting.PairTrackMateCLI \
+ *     --method COMMON_SPOTS --max-dist 1.5 file-ch1.xml file-ch2.xml
+ * </pre>
+ * 
+ * The exit code is 0 on success, {@value #EXIT_USAGE} if the arguments are
+ * invalid, {@value #EXIT_PROCESSING} if the files cannot be read or paired,
+ * and {@value #EXIT_IO} if the results cannot be written.
+ * 
+ * @author Jean-Yves Tinevez
+ *
+ */
+public class PairTrackMateCLI
+{
+
+	public static final int EXIT_OK = 0;
+
+	public static final int EXIT_PROCESSING = 1;
+
+	public static final int EXIT_USAGE = 2;
+
+	public static final int EXIT_IO = 3;
+
+	private static final String USAGE = "Usage: PairTrackMateCLI [options] <file1.xml> <file2.xml>\n"
+			+ "\n"
+			+ "Pairs the tracks of two TrackMate files and saves the pairs to a CSV file.\n"
+			+ "\n"
+			+ "Options:\n"
+			+ "  -m, --method NAME     the pairing method, one of " + methodNames() + ".\n"
+			+ "                        Default: " + PairingMethods.COMMON_SPOTS.name() + ".\n"
+			+ "  -d, --max-dist VALUE  the max pairing distance, in physical units. Required\n"
+			+ "                        for pairing.\n"
+			+ "      --z-scale VALUE   multiplies the Z coordinates before computing\n"
+			+ "                        distances, for images whose Z calibration is not\n"
+			+ "                        correct. Default: 1.\n"
+			+ "      --histogram       instead of pairing, saves the cumulative histogram of\n"
+			+ "                        the distances between the spots of the two files.\n"
+			+ "      --track-filter F  only reads the tracks whose feature is above or\n"
+			+ "                        below a threshold, e.g. 'NUMBER_SPOTS>=60'. Can be\n"
+			+ "                        repeated.\n"
+			+ "      --frames MIN:MAX  only reads the spots in this frame window.\n"
+			+ "      --region BOX      only reads the spots in this region, in physical\n"
+			+ "                        units: 'XMIN,YMIN,XMAX,YMAX' or\n"
+			+ "                        'XMIN,YMIN,ZMIN,XMAX,YMAX,ZMAX'.\n"
+			+ "      --window N        streams the files N frames at a time instead of\n"
+			+ "                        loading them, for very long movies. Only for the\n"
+			+ "                        COMMON_SPOTS and CLOSEST_MEAN_POSITION methods.\n"
+			+ "      --sample-frames K scores track pairs on 1 frame in K only. Faster, but\n"
+			+ "                        approximate: the number of assignments that might\n"
+			+ "                        change in the exact pairing is estimated.\n"
+			+ "      --time-budget MS  returns the pairing found within this time, in\n"
+			+ "                        milliseconds, reading the files included. The\n"
+			+ "                        most promising candidates are examined first. The\n"
+			+ "                        pairing is partial if the budget expires.\n"
+			+ "      --cache           caches the content of the TrackMate files in binary\n"
+			+ "                        files next to them, to read them faster next time.\n"
+			+ "                        Not available with --window.\n"
+			+ "  -f, --format FORMAT   the output format, 'csv' or 'tsv'. Default: csv.\n"
+			+ "  -o, --output FILE     the output file. Default: next to the first file,\n"
+			+ "                        named after it.\n"
+			+ "  -t, --threads N       the number of threads. Default: all processors.\n"
+			+ "  -q, --quiet           only report errors.\n"
+			+ "  -h, --help            prints this message.\n";
+
+	public static void main( final String[] args )
+	{
+		System.exit( run( args ) );
+	}
+
+	/**
+	 * Runs the command-line tool with the specified arguments.
+	 * 
+	 * @param args
+	 *            the command-line arguments.
+	 * @return the exit code.
+	 */
+	public static int run( final String... args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+
+		/*
+		 * Parse arguments.
+		 */
+
+		PairingMethods method = PairingMethods.COMMON_SPOTS;
+		double maxPairDistance = Double.NaN;
+		double zScale = 1.;
+		boolean histogram = false;
+		char separator = ',';
+		String output = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		boolean quiet = false;
+		boolean useSidecars = false;
+		int frameWindow = 0;
+		FrameSampling frameSampling = FrameSampling.ALL;
+		long timeBudget = -1l;
+		String path1 = null;
+		String path2 = null;
+		final ReadFilter.Builder filterBuilder = ReadFilter.build();
+		try
+		{
+			for ( int i = 0; i < args.length; i++ )
+			{
+				final String arg = args[ i ];
+				switch ( arg )
+				{
+				case "-h":
+				case "--help":
+					System.out.print( USAGE );
+					return EXIT_OK;
+				case "-m":
+				case "--method":
+					method = PairingMethods.valueOf( value( args, ++i, arg ).toUpperCase( Locale.ROOT ) );
+					break;
+				case "-d":
+				case "--max-dist":
+					maxPairDistance = Double.parseDouble( value( args, ++i, arg ) );
+					break;
+				case "--z-scale":
+					zScale = Double.parseDouble( value( args, ++i, arg ) );
+					if ( !( zScale > 0. ) || Double.isInfinite( zScale ) )
+						throw new IllegalArgumentException( "Z scale must be positive and finite." );
+					break;
+				case "--histogram":
+					histogram = true;
+					break;
+				case "--track-filter":
+					filterBuilder.trackFilter( trackFilter( value( args, ++i, arg ) ) );
+					break;
+				case "--frames":
+				{
+					final String[] bounds = value( args, ++i, arg ).split( ":" );
+					if ( bounds.length != 2 )
+						throw new IllegalArgumentException( "Frame window must be specified as MIN:MAX." );
+					filterBuilder.frames( Integer.parseInt( bounds[ 0 ].trim() ), Integer.parseInt( bounds[ 1 ].trim() ) );
+					break;
+				}
+				case "--region":
+				{
+					final String[] bounds = value( args, ++i, arg ).split( "," );
+					final double[] b = new double[ bounds.length ];
+					for ( int k = 0; k < b.length; k++ )
+						b[ k ] = Double.parseDouble( bounds[ k ].trim() );
+					if ( b.length == 4 )
+						filterBuilder.region( b[ 0 ], b[ 1 ], b[ 2 ], b[ 3 ] );
+					else if ( b.length == 6 )
+						filterBuilder.region( b[ 0 ], b[ 1 ], b[ 2 ], b[ 3 ], b[ 4 ], b[ 5 ] );
+					else
+						throw new IllegalArgumentException( "Region must have 4 or 6 values." );
+					break;
+				}
+				case "--cache":
+					useSidecars = true;
+					break;
+				case "--window":
+					frameWindow = Integer.parseInt( value( args, ++i, arg ) );
+					if ( frameWindow <= 0 )
+						throw new IllegalArgumentException( "Frame window must be positive." );
+					break;
+				case "--sample-frames":
+				{
+					final int step = Integer.parseInt( value( args, ++i, arg ) );
+					if ( step <= 0 )
+						throw new IllegalArgumentException( "Frame sampling step must be positive." );
+					frameSampling = FrameSampling.every( step );
+					break;
+				}
+				case "--time-budget":
+					timeBudget = Long.parseLong( value( args, ++i, arg ) );
+					if ( timeBudget < 0 )
+						throw new IllegalArgumentException( "Time budget must be positive or zero." );
+					break;
+				case "-f":
+				case "--format":
+					separator = separator( value( args, ++i, arg ) );
+					break;
+				case "-o":
+				case "--output":
+					output = value( args, ++i, arg );
+					break;
+				case "-t":
+				case "--threads":
+					numThreads = Integer.parseInt( value( args, ++i, arg ) );
+					break;
+				case "-q":
+				case "--quiet":
+					quiet = true;
+					break;
+				default:
+					if ( arg.startsWith( "-" ) )
+						throw new IllegalArgumentException( "Unknown option: " + arg );
+					if ( path1 == null )
+						path1 = arg;
+					else if ( path2 == null )
+						path2 = arg;
+					else
+						throw new IllegalArgumentException( "Unexpected argument: " + arg );
+				}
+			}
+			if ( path2 == null )
+				throw new IllegalArgumentException( "Two TrackMate files must be specified." );
+			if ( !histogram && !( maxPairDistance > 0. ) )
+				throw new IllegalArgumentException( "A positive max pairing distance must be specified." );
+			if ( frameWindow > 0 && !frameSampling.isAll() )
+				throw new IllegalArgumentException( "Frame sampling cannot be used with a frame window." );
+			if ( frameWindow > 0 && timeBudget >= 0 )
+				throw new IllegalArgumentException( "A time budget cannot be used with a frame window." );
+			if ( frameWindow > 0 && useSidecars )
+				throw new IllegalArgumentException( "Sidecar caching cannot be used with a frame window." );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			// Also catches NumberFormatException.
+			System.err.println( e.getMessage() );
+			System.err.print( USAGE );
+			return EXIT_USAGE;
+		}
+
+		final Logger logger = quiet ? Logger.VOID_LOGGER : Logger.DEFAULT_LOGGER;
+		final ReadFilter filter = filterBuilder.get();
+		if ( !filter.isEmpty() )
+			logger.log( "Reading with filter: " + filter + '\n' );
+		final String suffix = histogram ? "-histogram" : "-pairing";
+		final File outputFile = ( output != null )
+				? new File( output )
+				: defaultOutput( path1, suffix, separator );
+
+		/*
+		 * Process.
+		 */
+
+		if ( histogram )
+		{
+			logger.log( "Measuring distance cumulative histogram for " + path1 + " and " + path2 + '\n' );
+			final PairingCumulativeHistogram histo = new PairingCumulativeHistogram( path1, path2 );
+			histo.setNumThreads( numThreads );
+			histo.setFilter( filter );
+			histo.setZScale( zScale );
+			histo.setUseSidecars( useSidecars );
+			histo.setFrameSampling( frameSampling );
+			if ( !histo.checkInput() || !histo.process() )
+			{
+				System.err.println( "Problem with the files:\n" + histo.getErrorMessage() );
+				return EXIT_PROCESSING;
+			}
+			logger.log( histo.getResult().toString() + '\n' );
+			return write( outputFile, separator, histo.getResult(), histo.getUnits(), logger );
+		}
+
+		logger.log( "Pairing " + path1 + " and " + path2 + " with method '" + method
+				+ "' and max distance " + maxPairDistance + '\n' );
+		if ( frameWindow > 0 )
+			return stream( path1, path2, method, maxPairDistance, zScale, frameWindow, numThreads, filter, outputFile, separator, logger );
+
+		final PairingTrackMate pairing = new PairingTrackMate( path1, path2, method.method(), maxPairDistance );
+		pairing.setNumThreads( numThreads );
+		pairing.setFilter( filter );
+		pairing.setZScale( zScale );
+		pairing.setUseSidecars( useSidecars );
+		pairing.setFrameSampling( frameSampling );
+		pairing.setTimeBudget( timeBudget );
+		if ( !pairing.checkInput() || !pairing.process() )
+		{
+			System.err.println( "Problem pairing the files:\n" + pairing.getErrorMessage() );
+			return EXIT_PROCESSING;
+		}
+		logger.log( pairing.getResult().toString() + '\n' );
+		if ( pairing.getErrorEstimate() != null )
+			logger.log( pairing.getErrorEstimate().toString() + '\n' );
+		if ( pairing.isPartial() )
+			System.err.println( pairing.getCoverage().toString() );
+		else if ( pairing.getCoverage() != null )
+			logger.log( pairing.getCoverage().toString() + '\n' );
+		final List< String[] > lines = pairing.getResult().toCsv();
+
+		/*
+		 * Write results.
+		 */
+
+		try (final ICSVWriter writer = new CSVWriterBuilder(
+				new FileWriter( outputFile ) ).withSeparator( separator ).build())
+		{
+			writer.writeAll( lines );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Problem writing results to " + outputFile + ":\n" + e.getMessage() );
+			return EXIT_IO;
+		}
+		logger.log( "Results saved to " + outputFile + '\n' );
+		return EXIT_OK;
+	}
+
+	/**
+	 * Pairs the two files with a {@link StreamingPairing}, writing the spot
+	 * pairs as they are read back.
+	 */
+	private static int stream( final String path1, final String path2, final PairingMethods method, final double maxPairDistance, final double zScale, final int frameWindow, final int numThreads, final ReadFilter filter, final File outputFile, final char separator, final Logger logger )
+	{
+		try (final ICSVWriter writer = new CSVWriterBuilder(
+				new FileWriter( outputFile ) ).withSeparator( separator ).build())
+		{
+			final StreamingPairing pairing = new StreamingPairing( path1, path2, method, maxPairDistance, writer::writeNext );
+			pairing.setFrameWindow( frameWindow );
+			pairing.setNumThreads( numThreads );
+			pairing.setFilter( filter );
+			pairing.setZScale( zScale );
+			if ( !pairing.checkInput() || !pairing.process() )
+			{
+				System.err.println( "Problem pairing the files:\n" + pairing.getErrorMessage() );
+				return EXIT_PROCESSING;
+			}
+			logger.log( pairing.getResult().toString() + '\n' );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Problem writing results to " + outputFile + ":\n" + e.getMessage() );
+			return EXIT_IO;
+		}
+		logger.log( "Results saved to " + outputFile + '\n' );
+		return EXIT_OK;
+	}
+
+	/**
+	 * Writes one line per distance, with the fraction of distances smaller
+	 * than or equal to it.
+	 */
+	private static int write( final File outputFile, final char separator, final CumulativeHistogramDataset histogram, final String units, final Logger logger )
+	{
+		try (final ICSVWriter writer = new CSVWriterBuilder(
+				new FileWriter( outputFile ) ).withSeparator( separator ).build())
+		{
+			writer.writeNext( new String[] { "Distance_(" + units + ")", "Cumulative_fraction" } );
+			final int n = histogram.nValues();
+			for ( int i = 0; i < n; i++ )
+				writer.writeNext( new String[] {
+						Double.toString( histogram.getValue( i ) ),
+						Double.toString( ( double ) ( i + 1 ) / n ) } );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Problem writing results to " + outputFile + ":\n" + e.getMessage() );
+			return EXIT_IO;
+		}
+		logger.log( "Results saved to " + outputFile + '\n' );
+		return EXIT_OK;
+	}
+
+	private static String value( final String[] args, final int i, final String option )
+	{
+		if ( i >= args.length )
+			throw new IllegalArgumentException( "Missing value for option " + option );
+		return args[ i ];
+	}
+
+	/**
+	 * Parses a track filter written as 'FEATURE>=VALUE' or 'FEATURE<=VALUE'.
+	 * '>' and '<' are accepted too, with the same inclusive meaning as the
+	 * track filters of TrackMate.
+	 */
+	private static FeatureFilter trackFilter( final String str )
+	{
+		final int above = str.indexOf( '>' );
+		final int below = str.indexOf( '<' );
+		final int idx = Math.max( above, below );
+		if ( idx <= 0 || ( above >= 0 && below >= 0 ) )
+			throw new IllegalArgumentException( "Track filter must be written as FEATURE>=VALUE or FEATURE<=VALUE: " + str );
+		final String feature = str.substring( 0, idx ).trim();
+		final int start = ( idx + 1 < str.length() && str.charAt( idx + 1 ) == '=' ) ? idx + 2 : idx + 1;
+		final double value = Double.parseDouble( str.substring( start ).trim() );
+		return new FeatureFilter( feature, value, above >= 0 );
+	}
+
+	private static char separator( final String format )
+	{
+		switch ( format.toLowerCase( Locale.ROOT ) )
+		{
+		case "csv":
+			return ',';
+		case "tsv":
+			return '\t';
+		default:
+			throw new IllegalArgumentException( "Unknown output format: " + format );
+		}
+	}
+
+	private static File defaultOutput( final String path1, final String suffix, final char separator )
+	{
+		final File file1 = new File( path1 ).getAbsoluteFile();
+		final String name = file1.getName();
+		final String name1 = TrackMateFiles.hasCompressedExtension( name )
+				? name.substring( 0, name.length() - TrackMateFiles.GZIP_EXTENSION.length() )
+				: name;
+		final int idx = name1.lastIndexOf( '.' );
+		final String base = ( idx < 0 ) ? name1 : name1.substring( 0, idx );
+		final String extension = ( separator == '\t' ) ? ".tsv" : ".csv";
+		return new File( file1.getParentFile(), base + suffix + extension );
+	}
+
+	private static String methodNames()
+	{
+		final StringBuilder str = new StringBuilder();
+		final PairingMethods[] methods = PairingMethods.values();
+		for ( int i = 0; i < methods.length; i++ )
+		{
+			if ( i > 0 )
+				str.append( ( i == methods.length - 1 ) ? " or " : ", " );
+			str.append( methods[ i ].name() );
+		}
+		return str.toString();
+	}
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+/**
+ * Distance kernels operating on coordinates stored as a structure of arrays.
+ * <p>
+ * All the methods of this class work on contiguous <code>double[]</code>
+ * arrays for X, Y and Z, and compute squared distances in plain loops without
+ * branches nor virtual calls, so that the JIT can unroll and vectorize them.
+ * The Z component of every difference can be multiplied by a scale factor, to
+ * accommodate anisotropic data. Use 1 for isotropic distances.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DistanceKernels
+{
+
+	private DistanceKernels()
+	{}
+
+	/**
+	 * Computes the squared distance between two points.
+	 *
+	 * @param x1
+	 *            the X coordinate of the first point.
+	 * @param y1
+	 *            the Y coordinate of the first point.
+	 * @param z1
+	 *            the Z coordinate of the first point.
+	 * @param x2
+	 *            the X coordinate of the second point.
+	 * @param y2
+	 *            the Y coordinate of the second point.
+	 * @param z2
+	 *            the Z coordinate of the second point.
+	 * @param zScale
+	 *            the factor by which to multiply Z differences.
+	 * @return the squared distance.
+	 */
+	public static double squareDistance(
+			final double x1,
+			final double y1,
+			final double z1,
+			final double x2,
+			final double y2,
+			final double z2,
+			final double zScale )
+	{
+		final double dx = x2 - x1;
+		final double dy = y2 - y1;
+		final double dz = z2 * zScale - z1 * zScale;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Computes the squared distances between one point and a range of points.
+	 *
+	 * @param x
+	 *            the X coordinate of the source point.
+	 * @param y
+	 *            the Y coordinate of the source point.
+	 * @param z
+	 *            the Z coordinate of the source point.
+	 * @param xs
+	 *            the X coordinates of the target points.
+	 * @param ys
+	 *            the Y coordinates of the target points.
+	 * @param zs
+	 *            the Z coordinates of the target points.
+	 * @param from
+	 *            the index of the first target point, inclusive.
+	 * @param to
+	 *            the index of the last target point, exclusive.
+	 * @param zScale
+	 *            the factor by which to multiply Z differences.
+	 * @param out
+	 *            the array to write the squared distances to. The squared
+	 *            distance to the target point <code>i</code> is written at
+	 *            <code>out[i - from]</code>.
+	 */
+	public static void squareDistances(
+			final double x,
+			final double y,
+			final double z,
+			final double[] xs,
+			final double[] ys,
+			final double[] zs,
+			final int from,
+			final int to,
+			final double zScale,
+			final double[] out )
+	{
+		final double sz = z * zScale;
+		for ( int i = from; i < to; i++ )
+		{
+			final double dx = xs[ i ] - x;
+			final double dy = ys[ i ] - y;
+			final double dz = zs[ i ] * zScale - sz;
+			out[ i - from ] = dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	/**
+	 * Computes the squared distances between one point and all the specified
+	 * points.
+	 *
+	 * @return a new array containing the squared distances, in the order of
+	 *         the target points.
+	 * @see #squareDistances(double, double, double, double[], double[],
+	 *      double[], int, int, double, double[])
+	 */
+	public static double[] squareDistances(
+			final double x,
+			final double y,
+			final double z,
+			final double[] xs,
+			final double[] ys,
+			final double[] zs,
+			final double zScale )
+	{
+		final double[] out = new double[ xs.length ];
+		squareDistances( x, y, z, xs, ys, zs, 0, xs.length, zScale, out );
+		return out;
+	}
+
+	/**
+	 * Computes the squared distances between all the points of two ranges.
+	 * The results are written row-major: the squared distance between source
+	 * point <code>i</code> and target point <code>j</code> is written at
+	 * <code>out[ (i - from1) * (to2 - from2) + (j - from2) ]</code>.
+	 *
+	 * @param xs1
+	 *            the X coordinates of the source points.
+	 * @param ys1
+	 *            the Y coordinates of the source points.
+	 * @param zs1
+	 *            the Z coordinates of the source points.
+	 * @param from1
+	 *            the index of the first source point, inclusive.
+	 * @param to1
+	 *            the index of the last source point, exclusive.
+	 * @param xs2
+	 *            the X coordinates of the target points.
+	 * @param ys2
+	 *            the Y coordinates of the target points.
+	 * @param zs2
+	 *            the Z coordinates of the target points.
+	 * @param from2
+	 *            the index of the first target point, inclusive.
+	 * @param to2
+	 *            the index of the last target point, exclusive.
+	 * @param zScale
+	 *            the factor by which to multiply Z differences.
+	 * @param out
+	 *            the array to write the squared distances to. Must be at
+	 *            least <code>(to1 - from1) * (to2 - from2)</code> long.
+	 */
+	public static void squareDistances(
+			final double[] xs1,
+			final double[] ys1,
+			final double[] zs1,
+			final int from1,
+			final int to1,
+			final double[] xs2,
+			final double[] ys2,
+			final double[] zs2,
+			final int from2,
+			final int to2,
+			final double zScale,
+			final double[] out )
+	{
+		final int n2 = to2 - from2;
+		for ( int i = from1; i < to1; i++ )
+		{
+			final double x = xs1[ i ];
+			final double y = ys1[ i ];
+			final double sz = zs1[ i ] * zScale;
+			final int offset = ( i - from1 ) * n2 - from2;
+			for ( int j = from2; j < to2; j++ )
+			{
+				final double dx = xs2[ j ] - x;
+				final double dy = ys2[ j ] - y;
+				final double dz = zs2[ j ] * zScale - sz;
+				out[ offset + j ] = dx * dx + dy * dy + dz * dz;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first value of the specified range that is
+	 * strictly smaller than the threshold.
+	 *
+	 * @param values
+	 *            the values to scan.
+	 * @param n
+	 *            the number of values to scan, starting from 0.
+	 * @param threshold
+	 *            the threshold.
+	 * @return the index of the first value below the threshold, or -1 if
+	 *         there is none.
+	 */
+	public static int firstBelow( final double[] values, final int n, final double threshold )
+	{
+		for ( int i = 0; i < n; i++ )
+			if ( values[ i ] < threshold )
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+/**
+ * A subset of frames used to approximate a pairing. Spots in frames not
+ * accepted by the sampling are ignored when the spots of the two models are
+ * joined, which makes the join proportionally cheaper.
+ * <p>
+ * Two samplings are offered: every <code>k</code>-th frame, and a random
+ * fraction of the frames. Random samplings are deterministic: whether a
+ * frame is accepted only depends on the frame and the seed.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class FrameSampling
+{
+
+	/** A sampling that accepts all frames. */
+	public static final FrameSampling ALL = new FrameSampling( 1, 1., 0l );
+
+	private final int step;
+
+	private final double fraction;
+
+	private final long seed;
+
+	private FrameSampling( final int step, final double fraction, final long seed )
+	{
+		this.step = step;
+		this.fraction = fraction;
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns a sampling that accepts every <code>step</code>-th frame,
+	 * starting with frame 0.
+	 *
+	 * @param step
+	 *            the interval between accepted frames.
+	 * @return a new sampling.
+	 */
+	public static FrameSampling every( final int step )
+	{
+		if ( step < 1 )
+			throw new IllegalArgumentException( "Frame step must be at least 1: " + step );
+		return ( step == 1 ) ? ALL : new FrameSampling( step, 1. / step, 0l );
+	}
+
+	/**
+	 * Returns a sampling that accepts a random fraction of the frames.
+	 *
+	 * @param fraction
+	 *            the fraction of frames to accept, in <code>]0, 1]</code>.
+	 * @param seed
+	 *            the seed of the random selection.
+	 * @return a new sampling.
+	 */
+	public static FrameSampling random( final double fraction, final long seed )
+	{
+		if ( !( fraction > 0. && fraction <= 1. ) )
+			throw new IllegalArgumentException( "Frame fraction must be in ]0, 1]: " + fraction );
+		return ( fraction == 1. ) ? ALL : new FrameSampling( 0, fraction, seed );
+	}
+
+	/**
+	 * Returns <code>true</code> if the spots of the specified frame are used.
+	 */
+	public boolean accepts( final int frame )
+	{
+		if ( step == 1 )
+			return true;
+		if ( step > 1 )
+			return Math.floorMod( frame, step ) == 0;
+		return uniform( frame ) < fraction;
+	}
+
+	/**
+	 * Returns the fraction of frames accepted by this sampling.
+	 */
+	public double fraction()
+	{
+		return fraction;
+	}
+
+	/**
+	 * Returns <code>true</code> if this sampling accepts all frames.
+	 */
+	public boolean isAll()
+	{
+		return step == 1;
+	}
+
+	/**
+	 * A uniform value in <code>[0, 1[</code> derived from the frame and the
+	 * seed, with the finalizer of SplitMix64.
+	 */
+	private double uniform( final int frame )
+	{
+		long z = seed + ( frame + 1l ) * 0x9E3779B97F4A7C15l;
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9l;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBl;
+		z = z ^ ( z >>> 31 );
+		return ( z >>> 11 ) * 0x1.0p-53;
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( step == 1 )
+			return "all frames";
+		if ( step > 1 )
+			return "1 frame in " + step;
+		return String.format( "%.0f%% of frames (seed %d)", 100. * fraction, seed );
+	}
+}
@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A spatial index of the spots of a {@link TrackSnapshot}, made of one
+ * {@link PointKDTree} per frame.
+ * <p>
+ * Spots are bucketed by frame when the index is created, but the k-d tree of
+ * a frame is only built the first time this frame is queried. Queries can be
+ * made concurrently from several threads.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class FrameSpatialIndex
+{
+
+	/**
+	 * The spots of one frame and their k-d tree. The index returned by the
+	 * tree queries can be used with {@link #trackIndices} and
+	 * {@link #spotIndices} to retrieve the spot in the snapshot.
+	 */
+	public static final class FrameIndex
+	{
+
+		public final int frame;
+
+		/**
+		 * The index of the track of each spot in the snapshot.
+		 */
+		public final int[] trackIndices;
+
+		/**
+		 * The index of each spot in the {@link SpotCoordinates} of its track.
+		 */
+		public final int[] spotIndices;
+
+		public final double[] xs;
+
+		public final double[] ys;
+
+		public final double[] zs;
+
+		public final PointKDTree tree;
+
+		private FrameIndex( final int frame, final int[] trackIndices, final int[] spotIndices, final double[] xs, final double[] ys, final double[] zs, final double zScale )
+		{
+			this.frame = frame;
+			this.trackIndices = trackIndices;
+			this.spotIndices = spotIndices;
+			this.xs = xs;
+			this.ys = ys;
+			this.zs = zs;
+			this.tree = new PointKDTree( xs, ys, zs, xs.length, zScale );
+		}
+
+		public int size()
+		{
+			return trackIndices.length;
+		}
+	}
+
+	private final TrackSnapshot tracks;
+
+	private final double zScale;
+
+	private final int minFrame;
+
+	/**
+	 * For frame <code>f</code>, the spots are stored from
+	 * <code>offsets[f - minFrame]</code> to
+	 * <code>offsets[f - minFrame + 1]</code> in the arrays below.
+	 */
+	private final int[] offsets;
+
+	private final int[] trackIndices;
+
+	private final int[] spotIndices;
+
+	private final AtomicReferenceArray< FrameIndex > frames;
+
+	public FrameSpatialIndex( final TrackSnapshot tracks, final double zScale )
+	{
+		this.tracks = tracks;
+		this.zScale = zScale;
+
+		// Frame range.
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for ( int t = 0; t < tracks.size(); t++ )
+		{
+			final SpotCoordinates track = tracks.track( t );
+			if ( track.size() == 0 )
+				continue;
+			min = Math.min( min, track.frames[ 0 ] );
+			max = Math.max( max, track.frames[ track.size() - 1 ] );
+		}
+		if ( min > max )
+		{
+			min = 0;
+			max = -1;
+		}
+		this.minFrame = min;
+		final int nFrames = max - min + 1;
+
+		// Counting sort of spots by frame.
+		this.offsets = new int[ nFrames + 1 ];
+		for ( int t = 0; t < tracks.size(); t++ )
+			for ( final int frame : tracks.track( t ).frames )
+				offsets[ frame - min + 1 ]++;
+		for ( int f = 0; f < nFrames; f++ )
+			offsets[ f + 1 ] += offsets[ f ];
+
+		final int nSpots = offsets[ nFrames ];
+		this.trackIndices = new int[ nSpots ];
+		this.spotIndices = new int[ nSpots ];
+		final int[] cursors = Arrays.copyOf( offsets, nFrames );
+		for ( int t = 0; t < tracks.size(); t++ )
+		{
+			final int[] trackFrames = tracks.track( t ).frames;
+			for ( int s = 0; s < trackFrames.length; s++ )
+			{
+				final int pos = cursors[ trackFrames[ s ] - min ]++;
+				trackIndices[ pos ] = t;
+				spotIndices[ pos ] = s;
+			}
+		}
+		this.frames = new AtomicReferenceArray<>( nFrames );
+	}
+
+	/**
+	 * Returns the index of the spots in the specified frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the index for this frame, or <code>null</code> if there are no
+	 *         spots in this frame.
+	 */
+	public FrameIndex frame( final int frame )
+	{
+		final int f = frame - minFrame;
+		if ( f < 0 || f >= frames.length() || offsets[ f ] == offsets[ f + 1 ] )
+			return null;
+
+		FrameIndex index = frames.get( f );
+		if ( index == null )
+		{
+			frames.compareAndSet( f, null, build( frame ) );
+			index = frames.get( f );
+		}
+		return index;
+	}
+
+	private FrameIndex build( final int frame )
+	{
+		final int f = frame - minFrame;
+		final int from = offsets[ f ];
+		final int to = offsets[ f + 1 ];
+		final int n = to - from;
+		final int[] ti = Arrays.copyOfRange( trackIndices, from, to );
+		final int[] si = Arrays.copyOfRange( spotIndices, from, to );
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] zs = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final SpotCoordinates track = tracks.track( ti[ i ] );
+			xs[ i ] = track.xs[ si[ i ] ];
+			ys[ i ] = track.ys[ si[ i ] ];
+			zs[ i ] = track.zs[ si[ i ] ];
+		}
+		return new FrameIndex( frame, ti, si, xs, ys, zs, zScale );
+	}
+
+	/**
+	 * Returns the number of spots in the specified frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return the number of spots.
+	 */
+	public int nSpots( final int frame )
+	{
+		final int f = frame - minFrame;
+		if ( f < 0 || f >= frames.length() )
+			return 0;
+		return offsets[ f + 1 ] - offsets[ f ];
+	}
+
+	/**
+	 * Returns the first frame that contains spots.
+	 */
+	public int minFrame()
+	{
+		return minFrame;
+	}
+
+	/**
+	 * Returns the last frame that contains spots.
+	 */
+	public int maxFrame()
+	{
+		return minFrame + frames.length() - 1;
+	}
+
+	public TrackSnapshot getTracks()
+	{
+		return tracks;
+	}
+
+	/**
+	 * Returns the factor applied to the Z coordinates by the trees of this
+	 * index.
+	 */
+	public double getZScale()
+	{
+		return zScale;
+	}
+}
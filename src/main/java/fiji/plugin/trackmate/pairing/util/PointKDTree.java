@@ -0,0 +1,420 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import org.scijava.util.IntArray;
+
+/**
+ * A static, balanced k-d tree over 3D points given as a structure of arrays.
+ * <p>
+ * The tree is stored implicitly in permuted copies of the coordinate arrays:
+ * the node of a range <code>[lo, hi)</code> is the point at its middle, and
+ * its children are the two half ranges on each side. Queries return the index
+ * of the points in the arrays the tree was built from. Z coordinates are
+ * multiplied by a scale factor before being stored, to accommodate
+ * anisotropic data.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PointKDTree
+{
+
+	private final double[] xs;
+
+	private final double[] ys;
+
+	private final double[] zs;
+
+	private final int[] indices;
+
+	private final byte[] splitDims;
+
+	private final double zScale;
+
+	/**
+	 * Builds a k-d tree over the first <code>n</code> points of the
+	 * specified arrays. The arrays are not modified.
+	 *
+	 * @param xs
+	 *            the X coordinates.
+	 * @param ys
+	 *            the Y coordinates.
+	 * @param zs
+	 *            the Z coordinates.
+	 * @param n
+	 *            the number of points.
+	 * @param zScale
+	 *            the factor by which to multiply Z coordinates.
+	 */
+	public PointKDTree( final double[] xs, final double[] ys, final double[] zs, final int n, final double zScale )
+	{
+		this.zScale = zScale;
+		this.xs = new double[ n ];
+		this.ys = new double[ n ];
+		this.zs = new double[ n ];
+		this.indices = new int[ n ];
+		this.splitDims = new byte[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			this.xs[ i ] = xs[ i ];
+			this.ys[ i ] = ys[ i ];
+			this.zs[ i ] = zs[ i ] * zScale;
+			this.indices[ i ] = i;
+		}
+		build( 0, n );
+	}
+
+	public int size()
+	{
+		return indices.length;
+	}
+
+	/**
+	 * Adds to the specified array the index of all the points strictly closer
+	 * than the specified radius to the query point.
+	 *
+	 * @param x
+	 *            the X coordinate of the query point.
+	 * @param y
+	 *            the Y coordinate of the query point.
+	 * @param z
+	 *            the Z coordinate of the query point.
+	 * @param radius
+	 *            the search radius.
+	 * @param out
+	 *            the array to add the indices to.
+	 */
+	public void radiusSearch( final double x, final double y, final double z, final double radius, final IntArray out )
+	{
+		radiusSearch( 0, indices.length, x, y, z * zScale, radius * radius, out );
+	}
+
+	/**
+	 * Returns the index of the point closest to the query point. If several
+	 * points are at the same distance, the one with the smallest index is
+	 * returned, whatever the layout of the tree.
+	 *
+	 * @param x
+	 *            the X coordinate of the query point.
+	 * @param y
+	 *            the Y coordinate of the query point.
+	 * @param z
+	 *            the Z coordinate of the query point.
+	 * @return the index of the closest point, or -1 if the tree is empty.
+	 */
+	public int nearest( final double x, final double y, final double z )
+	{
+		final double[] best = new double[] { Double.POSITIVE_INFINITY, -1 };
+		nearest( 0, indices.length, x, y, z * zScale, best );
+		return ( int ) best[ 1 ];
+	}
+
+	/**
+	 * Adds to the specified array the index of the <code>k</code> points
+	 * closest to the query point, among the ones strictly closer than the
+	 * specified radius. They are added by increasing distance, then by
+	 * increasing index.
+	 *
+	 * @param x
+	 *            the X coordinate of the query point.
+	 * @param y
+	 *            the Y coordinate of the query point.
+	 * @param z
+	 *            the Z coordinate of the query point.
+	 * @param k
+	 *            the max number of points to return.
+	 * @param radius
+	 *            the search radius.
+	 * @param out
+	 *            the array to add the indices to.
+	 */
+	public void kNearest( final double x, final double y, final double z, final int k, final double radius, final IntArray out )
+	{
+		if ( k <= 0 )
+			return;
+		final Neighbors neighbors = new Neighbors( k, radius * radius );
+		kNearest( 0, indices.length, x, y, z * zScale, neighbors );
+		for ( int i = 0; i < neighbors.size; i++ )
+			out.addValue( neighbors.indices[ i ] );
+	}
+
+	private void radiusSearch( final int lo, final int hi, final double x, final double y, final double z, final double r2, final IntArray out )
+	{
+		if ( lo >= hi )
+			return;
+		final int mid = ( lo + hi ) >>> 1;
+		final double dx = xs[ mid ] - x;
+		final double dy = ys[ mid ] - y;
+		final double dz = zs[ mid ] - z;
+		if ( dx * dx + dy * dy + dz * dz < r2 )
+			out.addValue( indices[ mid ] );
+
+		final double diff = diff( mid, x, y, z );
+		if ( diff <= 0 )
+		{
+			radiusSearch( lo, mid, x, y, z, r2, out );
+			if ( diff * diff < r2 )
+				radiusSearch( mid + 1, hi, x, y, z, r2, out );
+		}
+		else
+		{
+			radiusSearch( mid + 1, hi, x, y, z, r2, out );
+			if ( diff * diff < r2 )
+				radiusSearch( lo, mid, x, y, z, r2, out );
+		}
+	}
+
+	private void nearest( final int lo, final int hi, final double x, final double y, final double z, final double[] best )
+	{
+		if ( lo >= hi )
+			return;
+		final int mid = ( lo + hi ) >>> 1;
+		final double dx = xs[ mid ] - x;
+		final double dy = ys[ mid ] - y;
+		final double dz = zs[ mid ] - z;
+		final double d2 = dx * dx + dy * dy + dz * dz;
+		if ( d2 < best[ 0 ] || ( d2 == best[ 0 ] && indices[ mid ] < best[ 1 ] ) )
+		{
+			best[ 0 ] = d2;
+			best[ 1 ] = indices[ mid ];
+		}
+
+		// Equal distances are explored too, for the tie-breaking.
+		final double diff = diff( mid, x, y, z );
+		if ( diff <= 0 )
+		{
+			nearest( lo, mid, x, y, z, best );
+			if ( diff * diff <= best[ 0 ] )
+				nearest( mid + 1, hi, x, y, z, best );
+		}
+		else
+		{
+			nearest( mid + 1, hi, x, y, z, best );
+			if ( diff * diff <= best[ 0 ] )
+				nearest( lo, mid, x, y, z, best );
+		}
+	}
+
+	private void kNearest( final int lo, final int hi, final double x, final double y, final double z, final Neighbors neighbors )
+	{
+		if ( lo >= hi )
+			return;
+		final int mid = ( lo + hi ) >>> 1;
+		final double dx = xs[ mid ] - x;
+		final double dy = ys[ mid ] - y;
+		final double dz = zs[ mid ] - z;
+		neighbors.offer( dx * dx + dy * dy + dz * dz, indices[ mid ] );
+
+		final double diff = diff( mid, x, y, z );
+		if ( diff <= 0 )
+		{
+			kNearest( lo, mid, x, y, z, neighbors );
+			if ( neighbors.reaches( diff * diff ) )
+				kNearest( mid + 1, hi, x, y, z, neighbors );
+		}
+		else
+		{
+			kNearest( mid + 1, hi, x, y, z, neighbors );
+			if ( neighbors.reaches( diff * diff ) )
+				kNearest( lo, mid, x, y, z, neighbors );
+		}
+	}
+
+	/**
+	 * Signed difference between the query and the node along the split
+	 * dimension of the node. Negative means the query is on the left side.
+	 */
+	private double diff( final int node, final double x, final double y, final double z )
+	{
+		switch ( splitDims[ node ] )
+		{
+		case 0:
+			return x - xs[ node ];
+		case 1:
+			return y - ys[ node ];
+		default:
+			return z - zs[ node ];
+		}
+	}
+
+	/*
+	 * Construction.
+	 */
+
+	private void build( final int lo, final int hi )
+	{
+		if ( hi - lo <= 1 )
+			return;
+
+		final byte dim = widestDimension( lo, hi );
+		final int mid = ( lo + hi ) >>> 1;
+		select( lo, hi - 1, mid, dim );
+		splitDims[ mid ] = dim;
+		build( lo, mid );
+		build( mid + 1, hi );
+	}
+
+	private byte widestDimension( final int lo, final int hi )
+	{
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double minZ = Double.POSITIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		for ( int i = lo; i < hi; i++ )
+		{
+			minX = Math.min( minX, xs[ i ] );
+			maxX = Math.max( maxX, xs[ i ] );
+			minY = Math.min( minY, ys[ i ] );
+			maxY = Math.max( maxY, ys[ i ] );
+			minZ = Math.min( minZ, zs[ i ] );
+			maxZ = Math.max( maxZ, zs[ i ] );
+		}
+		final double sx = maxX - minX;
+		final double sy = maxY - minY;
+		final double sz = maxZ - minZ;
+		if ( sx >= sy && sx >= sz )
+			return 0;
+		if ( sy >= sz )
+			return 1;
+		return 2;
+	}
+
+	private double coordinate( final int i, final int dim )
+	{
+		switch ( dim )
+		{
+		case 0:
+			return xs[ i ];
+		case 1:
+			return ys[ i ];
+		default:
+			return zs[ i ];
+		}
+	}
+
+	/**
+	 * Quick-select: reorders the range <code>[left, right]</code> so that the
+	 * point at <code>k</code> is the one that would be there if the range was
+	 * sorted along the specified dimension.
+	 */
+	private void select( int left, int right, final int k, final int dim )
+	{
+		while ( right > left )
+		{
+			final double pivot = coordinate( ( left + right ) >>> 1, dim );
+			int i = left;
+			int j = right;
+			while ( i <= j )
+			{
+				while ( coordinate( i, dim ) < pivot )
+					i++;
+				while ( coordinate( j, dim ) > pivot )
+					j--;
+				if ( i <= j )
+				{
+					swap( i, j );
+					i++;
+					j--;
+				}
+			}
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private void swap( final int i, final int j )
+	{
+		final double x = xs[ i ];
+		xs[ i ] = xs[ j ];
+		xs[ j ] = x;
+		final double y = ys[ i ];
+		ys[ i ] = ys[ j ];
+		ys[ j ] = y;
+		final double z = zs[ i ];
+		zs[ i ] = zs[ j ];
+		zs[ j ] = z;
+		final int index = indices[ i ];
+		indices[ i ] = indices[ j ];
+		indices[ j ] = index;
+	}
+
+	/**
+	 * The <code>k</code> closest points found so far, sorted by increasing
+	 * distance then index.
+	 */
+	private static final class Neighbors
+	{
+
+		private final double[] d2s;
+
+		private final int[] indices;
+
+		private final double r2;
+
+		private int size;
+
+		private Neighbors( final int k, final double r2 )
+		{
+			this.d2s = new double[ k ];
+			this.indices = new int[ k ];
+			this.r2 = r2;
+		}
+
+		private void offer( final double d2, final int index )
+		{
+			if ( d2 >= r2 )
+				return;
+			final int k = d2s.length;
+			if ( size == k && !before( d2, index, size - 1 ) )
+				return;
+
+			int i = ( size == k ) ? k - 1 : size++;
+			while ( i > 0 && before( d2, index, i - 1 ) )
+			{
+				d2s[ i ] = d2s[ i - 1 ];
+				indices[ i ] = indices[ i - 1 ];
+				i--;
+			}
+			d2s[ i ] = d2;
+			indices[ i ] = index;
+		}
+
+		private boolean before( final double d2, final int index, final int i )
+		{
+			return d2 < d2s[ i ] || ( d2 == d2s[ i ] && index < indices[ i ] );
+		}
+
+		/**
+		 * Whether points at the specified squared distance can still be
+		 * taken. Equal distances are accepted, for the tie-breaking.
+		 */
+		private boolean reaches( final double d2 )
+		{
+			if ( size < d2s.length )
+				return d2 < r2;
+			return d2 <= d2s[ size - 1 ];
+		}
+	}
+}
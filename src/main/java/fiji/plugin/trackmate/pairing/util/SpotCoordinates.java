@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * The positions and frames of a collection of spots, stored as a structure of
+ * arrays so that they can be fed to the {@link DistanceKernels}.
+ * <p>
+ * Instances created with {@link #byFrame(Collection)} are sorted by frame,
+ * and the spots that belong to one frame are stored contiguously, in the
+ * iteration order of the source collection. The {@link #frameStart(int)} and
+ * {@link #frameEnd(int)} methods can then be used to find them.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotCoordinates
+{
+
+	private static final Comparator< Spot > FRAME_COMPARATOR = Comparator.comparingInt( s -> s.getFeature( Spot.FRAME ).intValue() );
+
+	public final Spot[] spots;
+
+	public final int[] frames;
+
+	public final double[] xs;
+
+	public final double[] ys;
+
+	public final double[] zs;
+
+	private final boolean sorted;
+
+	private SpotCoordinates( final Spot[] spots, final boolean sorted )
+	{
+		this.spots = spots;
+		this.sorted = sorted;
+		final int n = spots.length;
+		this.frames = new int[ n ];
+		this.xs = new double[ n ];
+		this.ys = new double[ n ];
+		this.zs = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final Spot spot = spots[ i ];
+			frames[ i ] = spot.getFeature( Spot.FRAME ).intValue();
+			xs[ i ] = spot.getDoublePosition( 0 );
+			ys[ i ] = spot.getDoublePosition( 1 );
+			zs[ i ] = spot.getDoublePosition( 2 );
+		}
+	}
+
+	/**
+	 * Stores the coordinates of the specified spots, in their iteration order.
+	 *
+	 * @param spots
+	 *            the spots.
+	 * @return a new {@link SpotCoordinates}.
+	 */
+	public static SpotCoordinates of( final Collection< Spot > spots )
+	{
+		return new SpotCoordinates( spots.toArray( new Spot[ spots.size() ] ), false );
+	}
+
+	/**
+	 * Stores the coordinates of the specified spots, sorted by frame. Spots in
+	 * the same frame are kept in their iteration order.
+	 *
+	 * @param spots
+	 *            the spots.
+	 * @return a new {@link SpotCoordinates}.
+	 */
+	public static SpotCoordinates byFrame( final Collection< Spot > spots )
+	{
+		final Spot[] arr = spots.toArray( new Spot[ spots.size() ] );
+		Arrays.sort( arr, FRAME_COMPARATOR );
+		return new SpotCoordinates( arr, true );
+	}
+
+	public int size()
+	{
+		return spots.length;
+	}
+
+	public boolean isSortedByFrame()
+	{
+		return sorted;
+	}
+
+	/**
+	 * Returns the index of the first spot in the specified frame, or of the
+	 * first spot after this frame if there are none in it. Only valid if the
+	 * coordinates are sorted by frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return an index in the arrays.
+	 */
+	public int frameStart( final int frame )
+	{
+		int lo = 0;
+		int hi = frames.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( frames[ mid ] < frame )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the index after the last spot in the specified frame. Only valid
+	 * if the coordinates are sorted by frame.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @return an index in the arrays.
+	 */
+	public int frameEnd( final int frame )
+	{
+		return frameStart( frame + 1 );
+	}
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * An immutable snapshot of the visible tracks of a model. Each track is
+ * stored as {@link SpotCoordinates} sorted by frame, and tracks are indexed
+ * by their position in the snapshot.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class TrackSnapshot
+{
+
+	private final Integer[] ids;
+
+	private final SpotCoordinates[] tracks;
+
+	private final Map< Integer, Integer > indices;
+
+	private final String spaceUnits;
+
+	public TrackSnapshot( final Integer[] ids, final SpotCoordinates[] tracks, final String spaceUnits )
+	{
+		if ( ids.length != tracks.length )
+			throw new IllegalArgumentException( "Track IDs and tracks do not have the same length." );
+		this.ids = ids;
+		this.tracks = tracks;
+		this.spaceUnits = spaceUnits;
+		this.indices = new HashMap<>( ids.length );
+		for ( int i = 0; i < ids.length; i++ )
+			indices.put( ids[ i ], Integer.valueOf( i ) );
+	}
+
+	/**
+	 * Creates a snapshot of the visible tracks of the specified model. Tracks
+	 * are stored in the iteration order of
+	 * {@link TrackModel#unsortedTrackIDs(boolean)}.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return a new snapshot.
+	 */
+	public static TrackSnapshot of( final Model model )
+	{
+		final TrackModel tm = model.getTrackModel();
+		final Set< Integer > trackIDs = tm.unsortedTrackIDs( true );
+		final Integer[] ids = trackIDs.toArray( new Integer[ trackIDs.size() ] );
+		final SpotCoordinates[] tracks = new SpotCoordinates[ ids.length ];
+		for ( int i = 0; i < ids.length; i++ )
+			tracks[ i ] = SpotCoordinates.byFrame( tm.trackSpots( ids[ i ] ) );
+		return new TrackSnapshot( ids, tracks, model.getSpaceUnits() );
+	}
+
+	public int size()
+	{
+		return ids.length;
+	}
+
+	public Integer id( final int index )
+	{
+		return ids[ index ];
+	}
+
+	public SpotCoordinates track( final int index )
+	{
+		return tracks[ index ];
+	}
+
+	/**
+	 * Returns the spots of the track with the specified index, sorted by
+	 * frame.
+	 *
+	 * @param index
+	 *            the track index.
+	 * @return an unmodifiable collection.
+	 */
+	public Collection< Spot > spots( final int index )
+	{
+		return Collections.unmodifiableList( Arrays.asList( tracks[ index ].spots ) );
+	}
+
+	/**
+	 * Returns the index of the track with the specified ID in this snapshot.
+	 *
+	 * @param id
+	 *            the track ID.
+	 * @return the track index, or -1 if the track is not in this snapshot.
+	 */
+	public int indexOf( final Integer id )
+	{
+		final Integer index = indices.get( id );
+		return index == null ? -1 : index.intValue();
+	}
+
+	public int nSpots()
+	{
+		int n = 0;
+		for ( final SpotCoordinates track : tracks )
+			n += track.size();
+		return n;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+}
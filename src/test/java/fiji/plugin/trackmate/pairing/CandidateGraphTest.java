@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class CandidateGraphTest
+{
+
+	@Test
+	public void testCountsMatchPairwiseCommonSpots()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 1l, 300, 40 );
+		for ( final double maxDist : new double[] { 0.5, 1.5, 4. } )
+		{
+			try (final PairingContext context = PairingContext.build( models[ 0 ], models[ 1 ], maxDist ).numThreads( 2 ).get())
+			{
+				final CandidateGraph graph = context.getCandidateGraph();
+				assertNotNull( graph );
+				assertTrue( graph.isComplete() );
+				assertPairwiseCounts( graph, maxDist, maxDist );
+			}
+		}
+	}
+
+	@Test
+	public void testCountsBelowTheCutoffMatchPairwiseCommonSpots()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 2l, 300, 40 );
+		try (final PairingContext context = PairingContext.build( models[ 0 ], models[ 1 ], 5. ).get())
+		{
+			final CandidateGraph graph = context.getCandidateGraph();
+			for ( final double maxDist : new double[] { 0.5, 1.5, 4., 5. } )
+				assertPairwiseCounts( graph, 5., maxDist );
+		}
+	}
+
+	@Test
+	public void testSpotPairsAreTheClosest()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 3l, 200, 40 );
+		final double maxDist = 3.;
+		try (final PairingContext context = PairingContext.build( models[ 0 ], models[ 1 ], maxDist ).get())
+		{
+			final CandidateGraph graph = context.getCandidateGraph();
+			final TrackSnapshot tracks2 = graph.getTracks2();
+			for ( int e = 0; e < graph.nEdges(); e++ )
+			{
+				final Collection< SpotPair > pairs = graph.spotPairs( e );
+				assertEquals( graph.nPairs( e ), pairs.size() );
+				final int j = graph.track2( e );
+				for ( final SpotPair pair : pairs )
+				{
+					assertTrue( pair.distance() < maxDist );
+					final int frame = pair.s1.getFeature( Spot.FRAME ).intValue();
+					for ( final Spot s2 : tracks2.spots( j ) )
+						if ( s2.getFeature( Spot.FRAME ).intValue() == frame )
+							assertTrue( pair.s1.squareDistanceTo( pair.s2 ) <= pair.s1.squareDistanceTo( s2 ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testZScale()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 4l, 200, 30 );
+		SimulatedTracks.spreadInZ( models, 4l, 4. );
+
+		final double maxDist = 3.;
+		final double zScale = 2.5;
+		try (final PairingContext context = PairingContext.build( models[ 0 ], models[ 1 ], maxDist ).zScale( zScale ).get())
+		{
+			final CandidateGraph graph = context.getCandidateGraph();
+			assertEquals( zScale, graph.getZScale(), 0. );
+			final TrackSnapshot tracks1 = graph.getTracks1();
+			final TrackSnapshot tracks2 = graph.getTracks2();
+			int nEdges = 0;
+			for ( int i = 0; i < tracks1.size(); i++ )
+			{
+				final SpotCoordinates track1 = tracks1.track( i );
+				for ( int j = 0; j < tracks2.size(); j++ )
+				{
+					final SpotCoordinates track2 = tracks2.track( j );
+					int expected = 0;
+					for ( int k = 0; k < track1.size(); k++ )
+					{
+						final int frame = track1.frames[ k ];
+						for ( int l = track2.frameStart( frame ); l < track2.frameEnd( frame ); l++ )
+						{
+							if ( DistanceKernels.squareDistance( track1.xs[ k ], track1.ys[ k ], track1.zs[ k ],
+									track2.xs[ l ], track2.ys[ l ], track2.zs[ l ], zScale ) < maxDist * maxDist )
+							{
+								expected++;
+								break;
+							}
+						}
+					}
+					assertEquals( expected, AbstractPairing.commonSpots( track1, track2, maxDist, zScale ).size() );
+					final int edge = graph.edge( i, j );
+					if ( expected == 0 )
+					{
+						assertEquals( -1, edge );
+						continue;
+					}
+					nEdges++;
+					assertEquals( expected, graph.nPairs( edge ) );
+					for ( final SpotPair pair : graph.spotPairs( edge ) )
+					{
+						final double d2 = DistanceKernels.squareDistance(
+								pair.s1.getDoublePosition( 0 ), pair.s1.getDoublePosition( 1 ), pair.s1.getDoublePosition( 2 ),
+								pair.s2.getDoublePosition( 0 ), pair.s2.getDoublePosition( 1 ), pair.s2.getDoublePosition( 2 ), zScale );
+						assertEquals( Math.sqrt( d2 ), pair.distance(), 1e-12 );
+						assertTrue( pair.distance() < maxDist );
+					}
+				}
+			}
+			assertEquals( nEdges, graph.nEdges() );
+		}
+	}
+
+	private static void assertPairwiseCounts( final CandidateGraph graph, final double cutoff, final double maxDist )
+	{
+		final TrackSnapshot[] tracks = new TrackSnapshot[] { graph.getTracks1(), graph.getTracks2() };
+		int nEdges = 0;
+		for ( int i = 0; i < tracks[ 0 ].size(); i++ )
+		{
+			for ( int j = 0; j < tracks[ 1 ].size(); j++ )
+			{
+				final int expected = AbstractPairing.commonSpots( tracks[ 0 ].track( i ), tracks[ 1 ].track( j ), maxDist ).size();
+				final int edge = graph.edge( i, j );
+				if ( AbstractPairing.commonSpots( tracks[ 0 ].track( i ), tracks[ 1 ].track( j ), cutoff ).isEmpty() )
+				{
+					assertEquals( -1, edge );
+					continue;
+				}
+				nEdges++;
+				assertTrue( edge >= 0 );
+				assertEquals( i, graph.track1( edge ) );
+				assertEquals( j, graph.track2( edge ) );
+				assertEquals( "Tracks " + i + " and " + j + " at " + maxDist, expected, graph.nPairs( edge, maxDist ) );
+			}
+		}
+		assertEquals( nEdges, graph.nEdges() );
+	}
+}
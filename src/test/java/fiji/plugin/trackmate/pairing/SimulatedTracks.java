@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import java.util.Random;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * Random models of two channels imaging the same objects, for tests.
+ */
+public class SimulatedTracks
+{
+
+	private SimulatedTracks()
+	{}
+
+	/**
+	 * Simulates two channels imaging the same objects. Each object follows a
+	 * random walk over a random range of frames, and gives a track in the
+	 * first model. In the second channel, the object is detected in most
+	 * frames with some localization noise, sometimes twice in the same frame
+	 * as in a split, and its track is sometimes missing. The second model also
+	 * has a few tracks of its own.
+	 *
+	 * @param seed
+	 *            the seed of the random generator.
+	 * @param nTracks
+	 *            the number of objects.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @return an array with the first and second models.
+	 */
+	public static Model[] twoChannels( final long seed, final int nTracks, final int nFrames )
+	{
+		final Random ran = new Random( seed );
+		final Model model1 = new Model();
+		final Model model2 = new Model();
+		model1.setPhysicalUnits( "micron", "sec" );
+		model2.setPhysicalUnits( "micron", "sec" );
+		model1.beginUpdate();
+		model2.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < nTracks; t++ )
+			{
+				double x = ran.nextDouble() * 100.;
+				double y = ran.nextDouble() * 100.;
+				final int start = ran.nextInt( nFrames - 1 );
+				final int end = Math.min( nFrames, start + 2 + ran.nextInt( nFrames ) );
+				final boolean detected = ran.nextDouble() < 0.9;
+				Spot previous1 = null;
+				Spot previous2 = null;
+				for ( int frame = start; frame < end; frame++ )
+				{
+					x += ran.nextGaussian();
+					y += ran.nextGaussian();
+					previous1 = addSpot( model1, x, y, frame, previous1 );
+					if ( !detected )
+						continue;
+					if ( previous2 != null && ran.nextDouble() < 0.05 )
+						addSpot( model2, x + 2. * ran.nextGaussian(), y + 2. * ran.nextGaussian(), frame, previous2 );
+					if ( ran.nextDouble() < 0.8 )
+						previous2 = addSpot( model2, x + 0.7 * ran.nextGaussian(), y + 0.7 * ran.nextGaussian(), frame, previous2 );
+				}
+			}
+			for ( int t = 0; t < nTracks / 10; t++ )
+			{
+				final double x = ran.nextDouble() * 100.;
+				final double y = ran.nextDouble() * 100.;
+				final int start = ran.nextInt( nFrames - 1 );
+				Spot previous = null;
+				for ( int frame = start; frame < nFrames && frame < start + 5; frame++ )
+					previous = addSpot( model2, x + ran.nextGaussian(), y + ran.nextGaussian(), frame, previous );
+			}
+		}
+		finally
+		{
+			model1.endUpdate();
+			model2.endUpdate();
+		}
+		return new Model[] { model1, model2 };
+	}
+
+	/**
+	 * Returns snapshots of the visible tracks of the two models simulated by
+	 * {@link #twoChannels(long, int, int)}.
+	 */
+	public static TrackSnapshot[] twoChannelSnapshots( final long seed, final int nTracks, final int nFrames )
+	{
+		final Model[] models = twoChannels( seed, nTracks, nFrames );
+		return new TrackSnapshot[] { TrackSnapshot.of( models[ 0 ] ), TrackSnapshot.of( models[ 1 ] ) };
+	}
+
+	/**
+	 * Moves the spots of the specified models to random Z positions, between
+	 * 0 and the specified depth.
+	 */
+	public static void spreadInZ( final Model[] models, final long seed, final double depth )
+	{
+		final Random ran = new Random( seed );
+		for ( final Model model : models )
+			for ( final Integer id : model.getTrackModel().trackIDs( false ) )
+				for ( final Spot spot : model.getTrackModel().trackSpots( id ) )
+					spot.putFeature( Spot.POSITION_Z, Double.valueOf( depth * ran.nextDouble() ) );
+	}
+
+	private static Spot addSpot( final Model model, final double x, final double y, final int frame, final Spot previous )
+	{
+		final Spot spot = model.addSpotTo( new Spot( x, y, 0., 0.5, 1. ), Integer.valueOf( frame ) );
+		if ( previous != null )
+			model.addEdge( previous, spot, -1. );
+		return spot;
+	}
+}
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.io.TmXmlStreamReader;
+import fiji.plugin.trackmate.pairing.io.TmXmlTestFiles;
+import fiji.plugin.trackmate.pairing.method.PairingContext;
+import fiji.plugin.trackmate.pairing.method.PairingMethods;
+import fiji.plugin.trackmate.pairing.method.SpotConcensusPairing;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class StreamingPairingTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testCommonSpotsMatchesContextPairing() throws Exception
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 1l, 200, 40 );
+		final File xml1 = folder.newFile( "tracks1.xml" );
+		final File xml2 = folder.newFile( "tracks2.xml" );
+		TmXmlTestFiles.write( tracks[ 0 ], new HashSet<>(), xml1 );
+		TmXmlTestFiles.write( tracks[ 1 ], new HashSet<>(), xml2 );
+
+		final double maxDist = 2.;
+		final Pairing expected;
+		try (final PairingContext context = PairingContext.build(
+				new TmXmlStreamReader( xml1 ).getTracks(),
+				new TmXmlStreamReader( xml2 ).getTracks(), maxDist ).get())
+		{
+			expected = new SpotConcensusPairing().pair( context ).get();
+		}
+		final Map< String, Integer > expectedCounts = new TreeMap<>();
+		for ( final TrackPair pair : expected.pairs )
+			expectedCounts.put( pair.getName(), Integer.valueOf( pair.paired.size() ) );
+
+		// Small windows assign the tracks while streaming.
+		for ( final int window : new int[] { 1, 7, 100 } )
+		{
+			final Map< String, Integer > counts = new TreeMap<>();
+			final StreamingPairing pairing = new StreamingPairing( xml1.getPath(), xml2.getPath(), PairingMethods.COMMON_SPOTS, maxDist,
+					line -> counts.merge( line[ 0 ], Integer.valueOf( 1 ), Integer::sum ) );
+			pairing.setFrameWindow( window );
+			assertTrue( pairing.getErrorMessage(), pairing.checkInput() && pairing.process() );
+			counts.remove( Pairing.csvHeader()[ 0 ] );
+
+			final StreamingPairing.Result result = pairing.getResult();
+			assertEquals( "Window " + window, expectedCounts, counts );
+			assertEquals( expected.pairs.size(), result.nTrackPairs );
+			assertEquals( sorted( expected.unmatchedTracks1.keySet() ), sorted( result.unmatchedTracks1 ) );
+			assertEquals( sorted( expected.unmatchedTracks2.keySet() ), sorted( result.unmatchedTracks2 ) );
+		}
+	}
+
+	private static List< Integer > sorted( final Iterable< Integer > ids )
+	{
+		final List< Integer > list = new ArrayList<>();
+		ids.forEach( list::add );
+		Collections.sort( list );
+		return list;
+	}
+}
@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class ReadFilterTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEmptyFilter()
+	{
+		assertTrue( ReadFilter.NONE.isEmpty() );
+		assertFalse( ReadFilter.NONE.filtersSpots() );
+		assertTrue( ReadFilter.NONE.acceptSpot( -5, 1e9, -1e9, 0. ) );
+		assertFalse( ReadFilter.build().frames( 0, 10 ).get().isEmpty() );
+		assertFalse( ReadFilter.build().trackFilter( new FeatureFilter( "NUMBER_SPOTS", 5., true ) ).get().filtersSpots() );
+	}
+
+	@Test
+	public void testFilteredReadMatchesFilteredDomModel() throws Exception
+	{
+		final TrackSnapshot tracks = TrackSnapshot.of( SimulatedTracks.twoChannels( 1l, 300, 60 )[ 0 ] );
+		final File file = folder.newFile( "tracks.xml" );
+		TmXmlTestFiles.write( tracks, new HashSet<>(), file );
+		final TrackSnapshot all = TrackSnapshot.of( new TmXmlReader( file ).getModel() );
+
+		final double minSpots = 19.5;
+		final int minFrame = 10;
+		final int maxFrame = 30;
+		final double[] min = new double[] { 20., 20. };
+		final double[] max = new double[] { 80., 80. };
+
+		final ReadFilter[] filters = new ReadFilter[] {
+				ReadFilter.build().trackFilter( new FeatureFilter( "NUMBER_SPOTS", minSpots, true ) ).get(),
+				ReadFilter.build().frames( minFrame, maxFrame ).get(),
+				ReadFilter.build().region( min[ 0 ], min[ 1 ], max[ 0 ], max[ 1 ] ).get(),
+				ReadFilter.build()
+						.trackFilter( new FeatureFilter( "NUMBER_SPOTS", minSpots, true ) )
+						.frames( minFrame, maxFrame )
+						.region( min[ 0 ], min[ 1 ], max[ 0 ], max[ 1 ] )
+						.get() };
+		final boolean[][] restrictions = new boolean[][] {
+				{ true, false, false },
+				{ false, true, false },
+				{ false, false, true },
+				{ true, true, true } };
+
+		for ( int k = 0; k < filters.length; k++ )
+		{
+			final boolean byTrack = restrictions[ k ][ 0 ];
+			final boolean byFrame = restrictions[ k ][ 1 ];
+			final boolean byRegion = restrictions[ k ][ 2 ];
+
+			final List< Integer > ids = new ArrayList<>();
+			final List< SpotCoordinates > coords = new ArrayList<>();
+			for ( int i = 0; i < all.size(); i++ )
+			{
+				if ( byTrack && all.track( i ).size() < minSpots )
+					continue;
+				final List< Spot > spots = new ArrayList<>();
+				for ( final Spot spot : all.spots( i ) )
+				{
+					final int frame = spot.getFeature( Spot.FRAME ).intValue();
+					final double x = spot.getDoublePosition( 0 );
+					final double y = spot.getDoublePosition( 1 );
+					if ( byFrame && ( frame < minFrame || frame > maxFrame ) )
+						continue;
+					if ( byRegion && ( x < min[ 0 ] || x > max[ 0 ] || y < min[ 1 ] || y > max[ 1 ] ) )
+						continue;
+					spots.add( spot );
+				}
+				if ( spots.isEmpty() )
+					continue;
+				ids.add( all.id( i ) );
+				coords.add( SpotCoordinates.byFrame( spots ) );
+			}
+			final TrackSnapshot expected = new TrackSnapshot( ids.toArray( new Integer[ ids.size() ] ), coords.toArray( new SpotCoordinates[ coords.size() ] ), all.getSpaceUnits() );
+
+			final TmXmlStreamReader reader = new TmXmlStreamReader( file, filters[ k ] );
+			assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+			assertTrue( "Filter " + filters[ k ] + " keeps every track.", reader.getTracks().size() < all.size() );
+			TmXmlTestFiles.assertSameTracks( expected, reader.getTracks() );
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class TmXmlSidecarTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		final File file = writeTrackMateFile( 1l );
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file );
+		assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+		assertTrue( TmXmlSidecar.of( reader ).write( file, ReadFilter.NONE ) );
+		assertTrue( TmXmlSidecar.sidecarOf( file ).isFile() );
+
+		final TmXmlSidecar sidecar = TmXmlSidecar.load( file, ReadFilter.NONE );
+		assertNotNull( sidecar );
+		TmXmlTestFiles.assertSameTracks( reader.getTracks(), sidecar.getTracks() );
+		assertEquals( reader.getSpaceUnits(), sidecar.getSpaceUnits() );
+		assertEquals( reader.getImagePath(), sidecar.getImagePath() );
+		assertEquals( reader.getTargetChannel(), sidecar.getTargetChannel() );
+
+		// Track order, spot order and spot features are kept.
+		final TrackSnapshot expected = reader.getTracks();
+		final TrackSnapshot actual = sidecar.getTracks();
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			assertEquals( expected.id( i ), actual.id( i ) );
+			final Spot[] spots1 = expected.track( i ).spots;
+			final Spot[] spots2 = actual.track( i ).spots;
+			for ( int k = 0; k < spots1.length; k++ )
+			{
+				assertEquals( spots1[ k ].ID(), spots2[ k ].ID() );
+				assertEquals( spots1[ k ].getName(), spots2[ k ].getName() );
+				for ( final String feature : new String[] { Spot.FRAME, Spot.POSITION_T, Spot.RADIUS, Spot.QUALITY } )
+					assertEquals( spots1[ k ].getFeature( feature ), spots2[ k ].getFeature( feature ) );
+			}
+		}
+	}
+
+	@Test
+	public void testFilteredRoundTrip() throws Exception
+	{
+		final File file = writeTrackMateFile( 2l );
+		final ReadFilter filter = ReadFilter.build().frames( 5, 15 ).region( 10., 10., 90., 90. ).get();
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file, filter );
+		assertTrue( TmXmlSidecar.of( reader ).write( file, filter ) );
+
+		final TmXmlSidecar sidecar = TmXmlSidecar.load( file, ReadFilter.build().frames( 5, 15 ).region( 10., 10., 90., 90. ).get() );
+		assertNotNull( sidecar );
+		TmXmlTestFiles.assertSameTracks( reader.getTracks(), sidecar.getTracks() );
+
+		// Written for another filter.
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.build().frames( 5, 16 ).get() ) );
+	}
+
+	@Test
+	public void testStaleSidecarIsIgnored() throws Exception
+	{
+		final File file = writeTrackMateFile( 3l );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file ) ).write( file, ReadFilter.NONE ) );
+		assertNotNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+
+		assertTrue( file.setLastModified( file.lastModified() - 10_000l ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+
+		// Same size and modification time, different content.
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file ) ).write( file, ReadFilter.NONE ) );
+		final long lastModified = file.lastModified();
+		try (final RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			raf.seek( raf.length() - 3 );
+			final int b = raf.read();
+			raf.seek( raf.length() - 3 );
+			raf.write( b == 'a' ? 'b' : 'a' );
+		}
+		assertTrue( file.setLastModified( lastModified ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+	}
+
+	@Test
+	public void testEditInTheMiddleIsDetected() throws Exception
+	{
+		// Large enough for the middle to be far from both ends.
+		final TrackSnapshot tracks = TrackSnapshot.of( SimulatedTracks.twoChannels( 5l, 3000, 40 )[ 0 ] );
+		final File file = folder.newFile( "large.xml" );
+		TmXmlTestFiles.write( tracks, new HashSet<>(), file );
+		assertTrue( file.length() > 4 << 20 );
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file ) ).write( file, ReadFilter.NONE ) );
+		assertNotNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+
+		final long lastModified = file.lastModified();
+		try (final RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			long pos = raf.length() / 2;
+			raf.seek( pos );
+			// Change a digit, to keep the file valid.
+			int b;
+			while ( !Character.isDigit( b = raf.read() ) )
+				pos++;
+			raf.seek( pos );
+			raf.write( b == '1' ? '2' : '1' );
+		}
+		assertTrue( file.setLastModified( lastModified ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+	}
+
+	@Test
+	public void testOtherFeatureSelectionIsIgnored() throws Exception
+	{
+		final File file = writeTrackMateFile( 6l );
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file ) ).write( file, ReadFilter.NONE ) );
+		assertNotNull( TmXmlSidecar.load( file, ReadFilter.NONE, TmXmlSidecar.EXPORTED_FEATURES ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE, "all" ) );
+
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file, key -> true ) ).write( file, ReadFilter.NONE, "all" ) );
+		assertNotNull( TmXmlSidecar.load( file, ReadFilter.NONE, "all" ) );
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+	}
+
+	@Test
+	public void testTruncatedSidecarIsIgnored() throws Exception
+	{
+		final File file = writeTrackMateFile( 4l );
+		assertTrue( TmXmlSidecar.of( new TmXmlStreamReader( file ) ).write( file, ReadFilter.NONE ) );
+		try (final RandomAccessFile raf = new RandomAccessFile( TmXmlSidecar.sidecarOf( file ), "rw" ))
+		{
+			raf.setLength( raf.length() / 2 );
+		}
+		assertNull( TmXmlSidecar.load( file, ReadFilter.NONE ) );
+	}
+
+	private File writeTrackMateFile( final long seed ) throws Exception
+	{
+		final TrackSnapshot tracks = TrackSnapshot.of( SimulatedTracks.twoChannels( seed, 200, 20 )[ 0 ] );
+		final Set< Integer > hidden = new HashSet<>();
+		for ( int i = 0; i < tracks.size(); i += 5 )
+			hidden.add( tracks.id( i ) );
+		final File file = folder.newFile( "tracks-" + seed + ".xml" );
+		TmXmlTestFiles.write( tracks, hidden, file );
+		return file;
+	}
+}
@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class TmXmlStreamReaderTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMatchesDomReader() throws Exception
+	{
+		final TrackSnapshot tracks = TrackSnapshot.of( SimulatedTracks.twoChannels( 1l, 200, 40 )[ 0 ] );
+		final Set< Integer > hidden = new HashSet<>();
+		for ( int i = 0; i < tracks.size(); i += 7 )
+			hidden.add( tracks.id( i ) );
+		final File file = folder.newFile( "tracks.xml" );
+		TmXmlTestFiles.write( tracks, hidden, file );
+
+		final TmXmlReader domReader = new TmXmlReader( file );
+		final Model model = domReader.getModel();
+		assertTrue( domReader.getErrorMessage(), domReader.isReadingOk() );
+
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file );
+		assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+		assertEquals( tracks.size() - hidden.size(), reader.getTracks().size() );
+		TmXmlTestFiles.assertSameTracks( TrackSnapshot.of( model ), reader.getTracks() );
+		assertEquals( model.getSpaceUnits(), reader.getSpaceUnits() );
+		assertEquals( tracks.nSpots(), reader.getNSpots() );
+	}
+
+	@Test
+	public void testSettings() throws Exception
+	{
+		final TrackSnapshot tracks = TrackSnapshot.of( SimulatedTracks.twoChannels( 2l, 20, 10 )[ 0 ] );
+		final File file = folder.newFile( "settings.xml" );
+		TmXmlTestFiles.write( tracks, new HashSet<>(), file );
+
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file );
+		final String imagePath = TmXmlTestFiles.IMAGE_FOLDER + TmXmlTestFiles.IMAGE_FILE;
+		assertEquals( imagePath, reader.getImagePath() );
+		assertEquals( TmXmlTestFiles.TARGET_CHANNEL, reader.getTargetChannel() );
+		assertEquals( tracks.getSpaceUnits(), reader.getSpaceUnits() );
+		assertEquals( tracks.getSpaceUnits(), TmXmlStreamReader.readSpatialUnits( file ) );
+
+		final TmXmlStreamReader.ImageSettings settings = TmXmlStreamReader.readImageSettings( file );
+		assertNotNull( settings );
+		assertEquals( imagePath, settings.imagePath );
+		assertEquals( TmXmlTestFiles.TARGET_CHANNEL, settings.targetChannel );
+	}
+
+	@Test
+	public void testCheckFile() throws Exception
+	{
+		final File file = folder.newFile( "check.xml" );
+		TmXmlTestFiles.write( TrackSnapshot.of( SimulatedTracks.twoChannels( 4l, 10, 10 )[ 0 ] ), new HashSet<>(), file );
+		assertNull( TmXmlStreamReader.checkFile( file ) );
+		assertNotNull( TmXmlStreamReader.checkFile( folder.newFile( "empty.xml" ) ) );
+		assertNotNull( TmXmlStreamReader.checkFile( new File( folder.getRoot(), "missing.xml" ) ) );
+	}
+
+	@Test
+	public void testTrackIDOutsideFilteredTracks() throws Exception
+	{
+		final File file = folder.newFile( "malformed.xml" );
+		TmXmlTestFiles.write( TrackSnapshot.of( SimulatedTracks.twoChannels( 5l, 10, 10 )[ 0 ] ), new HashSet<>(), file );
+		final String xml = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 )
+				.replace( "<FilteredTracks>", "" )
+				.replace( "</FilteredTracks>", "" );
+		Files.write( file.toPath(), xml.getBytes( StandardCharsets.UTF_8 ) );
+
+		final TmXmlStreamReader reader = new TmXmlStreamReader( file );
+		assertFalse( reader.isReadingOk() );
+		assertNull( reader.getTracks() );
+		assertTrue( reader.getErrorMessage().contains( "FilteredTracks" ) );
+	}
+}
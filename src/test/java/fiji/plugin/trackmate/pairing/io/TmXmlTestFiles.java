@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+/**
+ * Writes small TrackMate files for the reader tests, and compares track
+ * snapshots.
+ */
+public class TmXmlTestFiles
+{
+
+	public static final String IMAGE_FOLDER = "/data/";
+
+	public static final String IMAGE_FILE = "image.tif";
+
+	public static final int TARGET_CHANNEL = 2;
+
+	private TmXmlTestFiles()
+	{}
+
+	/**
+	 * Writes the tracks of the specified snapshot to a TrackMate file. The
+	 * spots of each track are linked in the order of the snapshot, so each
+	 * track must have at most one spot per frame.
+	 *
+	 * @param tracks
+	 *            the tracks to write.
+	 * @param hidden
+	 *            the IDs of the tracks to write as not visible.
+	 * @param file
+	 *            the file to write to.
+	 */
+	public static void write( final TrackSnapshot tracks, final Set< Integer > hidden, final File file ) throws IOException
+	{
+		final Map< Integer, List< Spot > > frames = new TreeMap<>();
+		for ( int i = 0; i < tracks.size(); i++ )
+			for ( final Spot spot : tracks.spots( i ) )
+				frames.computeIfAbsent( Integer.valueOf( spot.getFeature( Spot.FRAME ).intValue() ), f -> new ArrayList<>() ).add( spot );
+
+		try (final PrintWriter out = new PrintWriter( file, "UTF-8" ))
+		{
+			out.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+			out.println( "<TrackMate version=\"7.11.1\">" );
+			out.println( "  <Log>Test file.</Log>" );
+			out.println( "  <Model spatialunits=\"" + tracks.getSpaceUnits() + "\" timeunits=\"sec\">" );
+			out.println( "    <FeatureDeclarations>" );
+			out.println( "      <SpotFeatures>" );
+			out.println( "        <Feature feature=\"QUALITY\" name=\"Quality\" shortname=\"Quality\" dimension=\"QUALITY\" isint=\"false\" />" );
+			out.println( "      </SpotFeatures>" );
+			out.println( "      <EdgeFeatures />" );
+			out.println( "      <TrackFeatures>" );
+			out.println( "        <Feature feature=\"NUMBER_SPOTS\" name=\"Number of spots in track\" shortname=\"N spots\" dimension=\"NONE\" isint=\"true\" />" );
+			out.println( "      </TrackFeatures>" );
+			out.println( "    </FeatureDeclarations>" );
+			out.println( "    <AllSpots nspots=\"" + tracks.nSpots() + "\">" );
+			for ( final Map.Entry< Integer, List< Spot > > entry : frames.entrySet() )
+			{
+				out.println( "      <SpotsInFrame frame=\"" + entry.getKey() + "\">" );
+				for ( final Spot spot : entry.getValue() )
+					out.println( "        <Spot ID=\"" + spot.ID() + "\" name=\"ID" + spot.ID()
+							+ "\" QUALITY=\"1.0\" POSITION_T=\"" + entry.getKey() + ".0\""
+							+ " FRAME=\"" + entry.getKey() + "\" RADIUS=\"0.5\" VISIBILITY=\"1\""
+							+ " POSITION_X=\"" + spot.getDoublePosition( 0 )
+							+ "\" POSITION_Y=\"" + spot.getDoublePosition( 1 )
+							+ "\" POSITION_Z=\"" + spot.getDoublePosition( 2 ) + "\" />" );
+				out.println( "      </SpotsInFrame>" );
+			}
+			out.println( "    </AllSpots>" );
+			out.println( "    <AllTracks>" );
+			for ( int i = 0; i < tracks.size(); i++ )
+			{
+				final Spot[] spots = tracks.track( i ).spots;
+				out.println( "      <Track name=\"Track_" + tracks.id( i ) + "\" TRACK_ID=\"" + tracks.id( i )
+						+ "\" NUMBER_SPOTS=\"" + spots.length + "\">" );
+				for ( int k = 1; k < spots.length; k++ )
+					out.println( "        <Edge SPOT_SOURCE_ID=\"" + spots[ k - 1 ].ID()
+							+ "\" SPOT_TARGET_ID=\"" + spots[ k ].ID() + "\" LINK_COST=\"-1.0\" />" );
+				out.println( "      </Track>" );
+			}
+			out.println( "    </AllTracks>" );
+			out.println( "    <FilteredTracks>" );
+			for ( int i = 0; i < tracks.size(); i++ )
+				if ( !hidden.contains( tracks.id( i ) ) )
+					out.println( "      <TrackID TRACK_ID=\"" + tracks.id( i ) + "\" />" );
+			out.println( "    </FilteredTracks>" );
+			out.println( "  </Model>" );
+			out.println( "  <Settings>" );
+			out.println( "    <ImageData filename=\"" + IMAGE_FILE + "\" folder=\"" + IMAGE_FOLDER + "\" width=\"0\" height=\"0\" nslices=\"1\" nframes=\"0\" />" );
+			out.println( "    <DetectorSettings DETECTOR_NAME=\"LOG_DETECTOR\" TARGET_CHANNEL=\"" + TARGET_CHANNEL + "\" RADIUS=\"0.5\" />" );
+			out.println( "  </Settings>" );
+			out.println( "</TrackMate>" );
+		}
+	}
+
+	/**
+	 * Asserts that two snapshots have the same tracks, with the same spots at
+	 * the same positions, whatever the order of the tracks.
+	 */
+	public static void assertSameTracks( final TrackSnapshot expected, final TrackSnapshot actual )
+	{
+		assertEquals( expected.size(), actual.size() );
+		assertEquals( expected.nSpots(), actual.nSpots() );
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			final int j = actual.indexOf( expected.id( i ) );
+			assertTrue( "Missing track " + expected.id( i ), j >= 0 );
+			assertEquals( "Track " + expected.id( i ), signature( expected.spots( i ) ), signature( actual.spots( j ) ) );
+		}
+	}
+
+	private static Map< Integer, String > signature( final Collection< Spot > spots )
+	{
+		final Map< Integer, String > signature = new TreeMap<>();
+		for ( final Spot spot : spots )
+			signature.put( Integer.valueOf( spot.ID() ), spot.getFeature( Spot.FRAME ).intValue()
+					+ " " + spot.getDoublePosition( 0 )
+					+ " " + spot.getDoublePosition( 1 )
+					+ " " + spot.getDoublePosition( 2 ) );
+		return signature;
+	}
+}
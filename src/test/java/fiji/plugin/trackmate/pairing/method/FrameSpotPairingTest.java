@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.method.FrameSpotPairing.Assignment;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class FrameSpotPairingTest
+{
+
+	@Test
+	public void testGreedyMatchesBruteForce()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 1l, 300, 40 );
+		for ( final double maxDist : new double[] { 0.5, 2., 5. } )
+		{
+			final Pairing pairing = pair( Assignment.GREEDY, tracks, maxDist );
+			assertEquals( "Max distance " + maxDist, greedy( tracks, maxDist, 1. ), spotPairs( pairing ) );
+			assertUnmatched( pairing, tracks );
+		}
+	}
+
+	@Test
+	public void testGreedyScalesZ()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 4l, 300, 40 );
+		SimulatedTracks.spreadInZ( models, 4l, 3. );
+		final TrackSnapshot[] tracks = new TrackSnapshot[] { TrackSnapshot.of( models[ 0 ] ), TrackSnapshot.of( models[ 1 ] ) };
+		final double maxDist = 3.;
+		final double zScale = 2.;
+		final Pairing pairing = pair( Assignment.GREEDY, tracks, maxDist, zScale );
+		assertEquals( greedy( tracks, maxDist, zScale ), spotPairs( pairing ) );
+		for ( final TrackPair trackPair : pairing.pairs )
+			for ( final SpotPair pair : trackPair.paired )
+				assertTrue( pair.distance() < maxDist );
+		assertUnmatched( pairing, tracks );
+	}
+
+	@Test
+	public void testLAPMatchesBruteForce()
+	{
+		final TrackSnapshot[] tracks = crowded( 2l, 6, 60 );
+		for ( final double maxDist : new double[] { 1., 2., 3. } )
+		{
+			final Pairing pairing = pair( Assignment.LAP, tracks, maxDist );
+			final Set< String > pairs = spotPairs( pairing );
+
+			final Map< Integer, List< Spot > > frames1 = byFrame( tracks[ 0 ] );
+			final Map< Integer, List< Spot > > frames2 = byFrame( tracks[ 1 ] );
+			int nPairs = 0;
+			double cost = 0.;
+			final Map< String, SpotPair > found = new HashMap<>();
+			for ( final TrackPair trackPair : pairing.pairs )
+				for ( final SpotPair pair : trackPair.paired )
+					found.put( key( pair.s1, pair.s2 ), pair );
+			for ( final Integer frame : frames1.keySet() )
+			{
+				final List< Spot > spots1 = frames1.get( frame );
+				final List< Spot > spots2 = frames2.getOrDefault( frame, Collections.emptyList() );
+				final double[] best = new double[] { 0., 0. };
+				optimal( spots1, spots2, maxDist, 0, new boolean[ spots2.size() ], 0, 0., best );
+				nPairs += ( int ) best[ 0 ];
+				cost += best[ 1 ];
+			}
+			double foundCost = 0.;
+			for ( final SpotPair pair : found.values() )
+			{
+				assertTrue( pair.distance() < maxDist );
+				foundCost += pair.s1.squareDistanceTo( pair.s2 );
+			}
+			assertEquals( "Max distance " + maxDist, nPairs, pairs.size() );
+			assertEquals( "Max distance " + maxDist, cost, foundCost, 1e-9 );
+			assertUnmatched( pairing, tracks );
+		}
+	}
+
+	@Test
+	public void testLAPPairsAtLeastAsManySpotsAsGreedy()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 3l, 300, 40 );
+		for ( final double maxDist : new double[] { 1., 3. } )
+			assertTrue( spotPairs( pair( Assignment.LAP, tracks, maxDist ) ).size() >= spotPairs( pair( Assignment.GREEDY, tracks, maxDist ) ).size() );
+	}
+
+	private static Pairing pair( final Assignment assignment, final TrackSnapshot[] tracks, final double maxDist )
+	{
+		return pair( assignment, tracks, maxDist, 1. );
+	}
+
+	private static Pairing pair( final Assignment assignment, final TrackSnapshot[] tracks, final double maxDist, final double zScale )
+	{
+		try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).zScale( zScale ).get())
+		{
+			return new FrameSpotPairing( assignment ).pair( context ).get();
+		}
+	}
+
+	/**
+	 * Takes the closest spot pairs of each frame first, over all the spots of
+	 * the frame.
+	 */
+	private static Set< String > greedy( final TrackSnapshot[] tracks, final double maxDist, final double zScale )
+	{
+		final Map< Integer, List< Spot > > frames1 = byFrame( tracks[ 0 ] );
+		final Map< Integer, List< Spot > > frames2 = byFrame( tracks[ 1 ] );
+		final Set< String > pairs = new HashSet<>();
+		for ( final Integer frame : frames1.keySet() )
+		{
+			final List< Spot > spots2 = frames2.get( frame );
+			if ( spots2 == null )
+				continue;
+			final List< SpotPair > candidates = new ArrayList<>();
+			for ( final Spot s1 : frames1.get( frame ) )
+				for ( final Spot s2 : spots2 )
+					if ( squareDistance( s1, s2, zScale ) < maxDist * maxDist )
+						candidates.add( new SpotPair( s1, s2 ) );
+			candidates.sort( ( p1, p2 ) -> Double.compare( squareDistance( p1.s1, p1.s2, zScale ), squareDistance( p2.s1, p2.s2, zScale ) ) );
+			final Set< Spot > taken = new HashSet<>();
+			for ( final SpotPair pair : candidates )
+			{
+				if ( taken.contains( pair.s1 ) || taken.contains( pair.s2 ) )
+					continue;
+				taken.add( pair.s1 );
+				taken.add( pair.s2 );
+				pairs.add( key( pair.s1, pair.s2 ) );
+			}
+		}
+		return pairs;
+	}
+
+	private static double squareDistance( final Spot s1, final Spot s2, final double zScale )
+	{
+		return DistanceKernels.squareDistance(
+				s1.getDoublePosition( 0 ), s1.getDoublePosition( 1 ), s1.getDoublePosition( 2 ),
+				s2.getDoublePosition( 0 ), s2.getDoublePosition( 1 ), s2.getDoublePosition( 2 ), zScale );
+	}
+
+	/**
+	 * Enumerates all the assignments of a frame, and stores in
+	 * <code>best</code> the max number of pairs and the min sum of squared
+	 * distances for this number.
+	 */
+	private static void optimal( final List< Spot > spots1, final List< Spot > spots2, final double maxDist, final int i, final boolean[] taken, final int n, final double cost, final double[] best )
+	{
+		if ( i == spots1.size() )
+		{
+			if ( n > best[ 0 ] || ( n == best[ 0 ] && cost < best[ 1 ] ) )
+			{
+				best[ 0 ] = n;
+				best[ 1 ] = cost;
+			}
+			return;
+		}
+		optimal( spots1, spots2, maxDist, i + 1, taken, n, cost, best );
+		final Spot s1 = spots1.get( i );
+		for ( int j = 0; j < spots2.size(); j++ )
+		{
+			final double d2 = s1.squareDistanceTo( spots2.get( j ) );
+			if ( taken[ j ] || d2 >= maxDist * maxDist )
+				continue;
+			taken[ j ] = true;
+			optimal( spots1, spots2, maxDist, i + 1, taken, n + 1, cost + d2, best );
+			taken[ j ] = false;
+		}
+	}
+
+	/**
+	 * Every track is either part of a track pair or unmatched.
+	 */
+	private static void assertUnmatched( final Pairing pairing, final TrackSnapshot[] tracks )
+	{
+		final Set< Integer > paired1 = new HashSet<>();
+		final Set< Integer > paired2 = new HashSet<>();
+		for ( final TrackPair pair : pairing.pairs )
+		{
+			paired1.add( pair.id1 );
+			paired2.add( pair.id2 );
+		}
+		for ( int i = 0; i < tracks[ 0 ].size(); i++ )
+			assertTrue( paired1.contains( tracks[ 0 ].id( i ) ) != pairing.unmatchedTracks1.containsKey( tracks[ 0 ].id( i ) ) );
+		for ( int j = 0; j < tracks[ 1 ].size(); j++ )
+			assertTrue( paired2.contains( tracks[ 1 ].id( j ) ) != pairing.unmatchedTracks2.containsKey( tracks[ 1 ].id( j ) ) );
+	}
+
+	/**
+	 * A few tracks wandering in a small region, so that each frame has
+	 * several candidate assignments.
+	 */
+	private static TrackSnapshot[] crowded( final long seed, final int nTracks, final int nFrames )
+	{
+		final Random ran = new Random( seed );
+		final TrackSnapshot[] snapshots = new TrackSnapshot[ 2 ];
+		for ( int c = 0; c < 2; c++ )
+		{
+			final Integer[] ids = new Integer[ nTracks ];
+			final SpotCoordinates[] coords = new SpotCoordinates[ nTracks ];
+			for ( int t = 0; t < nTracks; t++ )
+			{
+				final List< Spot > spots = new ArrayList<>();
+				for ( int frame = 0; frame < nFrames; frame++ )
+				{
+					if ( ran.nextDouble() < 0.2 )
+						continue;
+					final Spot spot = new Spot( 5. * ran.nextDouble(), 5. * ran.nextDouble(), 0., 0.5, 1. );
+					spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
+					spots.add( spot );
+				}
+				ids[ t ] = Integer.valueOf( 100 * c + t );
+				coords[ t ] = SpotCoordinates.byFrame( spots );
+			}
+			snapshots[ c ] = new TrackSnapshot( ids, coords, "micron" );
+		}
+		return snapshots;
+	}
+
+	private static Map< Integer, List< Spot > > byFrame( final TrackSnapshot tracks )
+	{
+		final Map< Integer, List< Spot > > frames = new HashMap<>();
+		for ( int i = 0; i < tracks.size(); i++ )
+			for ( final Spot spot : tracks.spots( i ) )
+				frames.computeIfAbsent( Integer.valueOf( spot.getFeature( Spot.FRAME ).intValue() ), f -> new ArrayList<>() ).add( spot );
+		return frames;
+	}
+
+	private static Set< String > spotPairs( final Pairing pairing )
+	{
+		final Set< String > pairs = new HashSet<>();
+		for ( final TrackPair trackPair : pairing.pairs )
+			for ( final SpotPair pair : trackPair.paired )
+				assertTrue( pairs.add( key( pair.s1, pair.s2 ) ) );
+		return pairs;
+	}
+
+	private static String key( final Spot s1, final Spot s2 )
+	{
+		return s1.ID() + "-" + s2.ID();
+	}
+}
@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.AbstractPairing;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.DistanceKernels;
+import fiji.plugin.trackmate.pairing.util.SpotCoordinates;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class MutualNearestPositionPairingTest
+{
+
+	@Test
+	public void testMatchesGlobalGreedyAssignment()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 1l, 500, 40 );
+		for ( final double maxDist : new double[] { 0.5, 2., 5., 20. } )
+			assertMatchesGreedy( tracks, maxDist, 1. );
+	}
+
+	@Test
+	public void testScalesZ()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 3l, 500, 40 );
+		SimulatedTracks.spreadInZ( models, 3l, 3. );
+		final TrackSnapshot[] tracks = new TrackSnapshot[] { TrackSnapshot.of( models[ 0 ] ), TrackSnapshot.of( models[ 1 ] ) };
+		for ( final double maxDist : new double[] { 2., 5. } )
+			assertMatchesGreedy( tracks, maxDist, 3. );
+	}
+
+	@Test
+	public void testDoesNotDependOnTrackOrder()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 2l, 500, 40 );
+		final double maxDist = 3.;
+		final String expected = signature( pair( tracks[ 0 ], tracks[ 1 ], maxDist ) );
+		for ( long seed = 1; seed < 4; seed++ )
+		{
+			final String shuffled = signature( pair( shuffle( tracks[ 0 ], seed ), shuffle( tracks[ 1 ], seed + 10 ), maxDist ) );
+			assertEquals( expected, shuffled );
+		}
+	}
+
+	private static void assertMatchesGreedy( final TrackSnapshot[] tracks, final double maxDist, final double zScale )
+	{
+		final Pairing pairing = pair( tracks[ 0 ], tracks[ 1 ], maxDist, zScale );
+
+		final Set< String > expectedPairs = new HashSet<>();
+		final Set< Integer > expectedUnmatched1 = new HashSet<>();
+		final Set< Integer > expectedUnmatched2 = new HashSet<>();
+		greedy( tracks, maxDist, zScale, expectedPairs, expectedUnmatched1, expectedUnmatched2 );
+
+		final Set< String > pairs = new HashSet<>();
+		for ( final TrackPair pair : pairing.pairs )
+			pairs.add( pair.getName() );
+		assertEquals( "Max distance " + maxDist, expectedPairs, pairs );
+		assertEquals( "Max distance " + maxDist, expectedUnmatched1, pairing.unmatchedTracks1.keySet() );
+		assertEquals( "Max distance " + maxDist, expectedUnmatched2, pairing.unmatchedTracks2.keySet() );
+	}
+
+	private static Pairing pair( final TrackSnapshot tracks1, final TrackSnapshot tracks2, final double maxDist )
+	{
+		return pair( tracks1, tracks2, maxDist, 1. );
+	}
+
+	private static Pairing pair( final TrackSnapshot tracks1, final TrackSnapshot tracks2, final double maxDist, final double zScale )
+	{
+		try (final PairingContext context = PairingContext.build( tracks1, tracks2, maxDist ).zScale( zScale ).get())
+		{
+			return new MutualNearestPositionPairing().pair( context ).get();
+		}
+	}
+
+	/**
+	 * Pairs the tracks by increasing distance between their mean positions,
+	 * over all the candidate pairs. Pairs without spots in common are
+	 * dropped, and their tracks are not reported as unmatched.
+	 */
+	private static void greedy( final TrackSnapshot[] tracks, final double maxDist, final double zScale, final Set< String > pairs, final Set< Integer > unmatched1, final Set< Integer > unmatched2 )
+	{
+		final int n1 = tracks[ 0 ].size();
+		final int n2 = tracks[ 1 ].size();
+		final double[][] means1 = means( tracks[ 0 ] );
+		final double[][] means2 = means( tracks[ 1 ] );
+		final List< double[] > candidates = new ArrayList<>();
+		for ( int i = 0; i < n1; i++ )
+		{
+			for ( int j = 0; j < n2; j++ )
+			{
+				final double d2 = DistanceKernels.squareDistance(
+						means1[ i ][ 0 ], means1[ i ][ 1 ], means1[ i ][ 2 ],
+						means2[ j ][ 0 ], means2[ j ][ 1 ], means2[ j ][ 2 ], zScale );
+				if ( d2 <= maxDist * maxDist )
+					candidates.add( new double[] { d2, i, j } );
+			}
+		}
+		candidates.sort( ( c1, c2 ) -> Double.compare( c1[ 0 ], c2[ 0 ] ) );
+
+		final boolean[] paired1 = new boolean[ n1 ];
+		final boolean[] paired2 = new boolean[ n2 ];
+		for ( final double[] candidate : candidates )
+		{
+			final int i = ( int ) candidate[ 1 ];
+			final int j = ( int ) candidate[ 2 ];
+			if ( paired1[ i ] || paired2[ j ] )
+				continue;
+			paired1[ i ] = true;
+			paired2[ j ] = true;
+			if ( !AbstractPairing.commonSpots( tracks[ 0 ].track( i ), tracks[ 1 ].track( j ), maxDist, zScale ).isEmpty() )
+				pairs.add( tracks[ 0 ].id( i ) + "&" + tracks[ 1 ].id( j ) );
+		}
+		for ( int i = 0; i < n1; i++ )
+			if ( !paired1[ i ] )
+				unmatched1.add( tracks[ 0 ].id( i ) );
+		for ( int j = 0; j < n2; j++ )
+			if ( !paired2[ j ] )
+				unmatched2.add( tracks[ 1 ].id( j ) );
+	}
+
+	private static double[][] means( final TrackSnapshot tracks )
+	{
+		final double[][] means = new double[ tracks.size() ][ 3 ];
+		for ( int i = 0; i < tracks.size(); i++ )
+		{
+			final SpotCoordinates track = tracks.track( i );
+			for ( int k = 0; k < track.size(); k++ )
+			{
+				means[ i ][ 0 ] += track.xs[ k ] / track.size();
+				means[ i ][ 1 ] += track.ys[ k ] / track.size();
+				means[ i ][ 2 ] += track.zs[ k ] / track.size();
+			}
+		}
+		return means;
+	}
+
+	private static TrackSnapshot shuffle( final TrackSnapshot tracks, final long seed )
+	{
+		final List< Integer > order = new ArrayList<>();
+		for ( int i = 0; i < tracks.size(); i++ )
+			order.add( Integer.valueOf( i ) );
+		Collections.shuffle( order, new Random( seed ) );
+		final Integer[] ids = new Integer[ tracks.size() ];
+		final SpotCoordinates[] coords = new SpotCoordinates[ tracks.size() ];
+		for ( int k = 0; k < ids.length; k++ )
+		{
+			ids[ k ] = tracks.id( order.get( k ) );
+			coords[ k ] = tracks.track( order.get( k ) );
+		}
+		return new TrackSnapshot( ids, coords, tracks.getSpaceUnits() );
+	}
+
+	private static String signature( final Pairing pairing )
+	{
+		final List< String > pairs = new ArrayList<>();
+		for ( final TrackPair pair : pairing.pairs )
+			pairs.add( pair.getName() + ":" + pair.paired.size() );
+		Collections.sort( pairs );
+		final List< Integer > unmatched1 = new ArrayList<>( pairing.unmatchedTracks1.keySet() );
+		final List< Integer > unmatched2 = new ArrayList<>( pairing.unmatchedTracks2.keySet() );
+		Collections.sort( unmatched1 );
+		Collections.sort( unmatched2 );
+		return pairs + " " + unmatched1 + " " + unmatched2;
+	}
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class ShortlistSpotConcensusPairingTest
+{
+
+	@Test
+	public void testFullShortlistMatchesSpotConcensus()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 1l, 300, 40 );
+		for ( final boolean median : new boolean[] { false, true } )
+		{
+			// Every second track is shortlisted for every first track.
+			final ShortlistSpotConcensusPairing method = new ShortlistSpotConcensusPairing( median, tracks[ 1 ].size(), 1e6 );
+			for ( final double maxDist : new double[] { 0.5, 2., 5. } )
+			{
+				final String expected = signature( pair( new SpotConcensusPairing(), tracks, maxDist ) );
+				assertEquals( "Max distance " + maxDist, expected, signature( pair( method, tracks, maxDist ) ) );
+			}
+		}
+	}
+
+	@Test
+	public void testFullShortlistScalesZ()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 3l, 300, 40 );
+		SimulatedTracks.spreadInZ( models, 3l, 3. );
+		final TrackSnapshot[] tracks = new TrackSnapshot[] { TrackSnapshot.of( models[ 0 ] ), TrackSnapshot.of( models[ 1 ] ) };
+		final ShortlistSpotConcensusPairing method = new ShortlistSpotConcensusPairing( false, tracks[ 1 ].size(), 1e6 );
+		final double maxDist = 2.;
+		final double zScale = 2.;
+		final Pairing pairing = pair( method, tracks, maxDist, zScale );
+		assertEquals( signature( pair( new SpotConcensusPairing(), tracks, maxDist, zScale ) ), signature( pairing ) );
+		for ( final TrackPair pair : pairing.pairs )
+			for ( final SpotPair spots : pair.paired )
+				assertTrue( spots.distance() < maxDist );
+	}
+
+	@Test
+	public void testDefaultShortlistPairsTracksWithCommonSpots()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 2l, 300, 40 );
+		final double maxDist = 2.;
+		final Pairing exact = pair( new SpotConcensusPairing(), tracks, maxDist );
+		final Pairing shortlisted = pair( new ShortlistSpotConcensusPairing( false ), tracks, maxDist );
+		for ( final TrackPair pair : shortlisted.pairs )
+		{
+			assertFalse( pair.paired.isEmpty() );
+			for ( final SpotPair spots : pair.paired )
+				assertTrue( spots.distance() < maxDist );
+		}
+		assertEquals( tracks[ 0 ].size(), shortlisted.pairs.size() + shortlisted.unmatchedTracks1.size() );
+		// Tracks that share spots are close, so the shortlist misses few pairs.
+		assertTrue( shortlisted.pairs.size() >= 0.95 * exact.pairs.size() );
+	}
+
+	private static Pairing pair( final ContextualPairingMethod method, final TrackSnapshot[] tracks, final double maxDist )
+	{
+		return pair( method, tracks, maxDist, 1. );
+	}
+
+	private static Pairing pair( final ContextualPairingMethod method, final TrackSnapshot[] tracks, final double maxDist, final double zScale )
+	{
+		try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).zScale( zScale ).get())
+		{
+			return method.pair( context ).get();
+		}
+	}
+
+	private static String signature( final Pairing pairing )
+	{
+		final List< String > pairs = new ArrayList<>();
+		for ( final TrackPair pair : pairing.pairs )
+			pairs.add( pair.getName() + ":" + pair.paired.size() );
+		Collections.sort( pairs );
+		final List< Integer > unmatched1 = new ArrayList<>( pairing.unmatchedTracks1.keySet() );
+		final List< Integer > unmatched2 = new ArrayList<>( pairing.unmatchedTracks2.keySet() );
+		Collections.sort( unmatched1 );
+		Collections.sort( unmatched2 );
+		return pairs + " " + unmatched1 + " " + unmatched2;
+	}
+}
@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.method;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.pairing.AbstractPairing;
+import fiji.plugin.trackmate.pairing.CandidateGraph;
+import fiji.plugin.trackmate.pairing.Pairing;
+import fiji.plugin.trackmate.pairing.Pairing.SpotPair;
+import fiji.plugin.trackmate.pairing.Pairing.TrackPair;
+import fiji.plugin.trackmate.pairing.SimulatedTracks;
+import fiji.plugin.trackmate.pairing.util.TrackSnapshot;
+
+public class SpotConcensusPairingTest
+{
+
+	private static final double[] DISTANCES = new double[] { 0.5, 1., 2., 4. };
+
+	@Test
+	public void testMatchesPairwiseCommonSpots()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 1l, 300, 40 );
+		for ( final double maxDist : DISTANCES )
+		{
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).get())
+			{
+				final Pairing pairing = new SpotConcensusPairing().pair( context ).get();
+				assertEquals( "Max distance " + maxDist, bruteForce( tracks, maxDist ), signature( pairing ) );
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesModelPairing()
+	{
+		final Model[] models = SimulatedTracks.twoChannels( 4l, 300, 40 );
+		final TrackSnapshot[] tracks = new TrackSnapshot[] { TrackSnapshot.of( models[ 0 ] ), TrackSnapshot.of( models[ 1 ] ) };
+		final CandidateGraph graph;
+		try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], 5. ).get())
+		{
+			graph = context.getCandidateGraph();
+		}
+		for ( final double maxDist : DISTANCES )
+		{
+			final String expected = spotSignature( new SpotConcensusPairing().pair( models[ 0 ], models[ 1 ], maxDist ).get() );
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).get())
+			{
+				assertEquals( "Max distance " + maxDist, expected, spotSignature( new SpotConcensusPairing().pair( context ).get() ) );
+			}
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).candidateGraph( graph ).get())
+			{
+				assertEquals( "Max distance " + maxDist, expected, spotSignature( new SpotConcensusPairing().pair( context ).get() ) );
+			}
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).timeBudget( 600_000l ).get())
+			{
+				assertEquals( "Max distance " + maxDist, expected, spotSignature( new SpotConcensusPairing().pair( context ).get() ) );
+			}
+		}
+	}
+
+	@Test
+	public void testBoundedVisitMatchesUnbounded()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 2l, 300, 40 );
+		final CandidateGraph graph;
+		try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], 5. ).get())
+		{
+			graph = context.getCandidateGraph();
+		}
+		for ( final double maxDist : DISTANCES )
+		{
+			// Graph built at the max pairing distance: counts are not bounded.
+			final String unbounded;
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).get())
+			{
+				unbounded = signature( new SpotConcensusPairing().pair( context ).get() );
+			}
+			// Shared graph with a larger cutoff: edges visited by decreasing bound.
+			final String bounded;
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).candidateGraph( graph ).get())
+			{
+				bounded = signature( new SpotConcensusPairing().pair( context ).get() );
+			}
+			assertEquals( "Max distance " + maxDist, unbounded, bounded );
+		}
+	}
+
+	@Test
+	public void testUnexpiredBudgetMatchesUnbounded()
+	{
+		final TrackSnapshot[] tracks = SimulatedTracks.twoChannelSnapshots( 3l, 300, 40 );
+		for ( final double maxDist : DISTANCES )
+		{
+			final String expected;
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).get())
+			{
+				expected = signature( new SpotConcensusPairing().pair( context ).get() );
+			}
+			try (final PairingContext context = PairingContext.build( tracks[ 0 ], tracks[ 1 ], maxDist ).timeBudget( 600_000l ).get())
+			{
+				assertEquals( "Max distance " + maxDist, expected, signature( new SpotConcensusPairing().pair( context ).get() ) );
+			}
+		}
+	}
+
+	/**
+	 * Matches each first track, in the order of the snapshot, to the free
+	 * second track with the most spots in common, ties going to the first
+	 * one in a hash set of their IDs.
+	 */
+	private static String bruteForce( final TrackSnapshot[] tracks, final double maxDist )
+	{
+		final boolean[] taken = new boolean[ tracks[ 1 ].size() ];
+		final Map< Integer, Integer > indices = new HashMap<>();
+		for ( int j = 0; j < tracks[ 1 ].size(); j++ )
+			indices.put( tracks[ 1 ].id( j ), Integer.valueOf( j ) );
+		final Set< Integer > ids2 = new HashSet<>( indices.keySet() );
+		final List< String > pairs = new ArrayList<>();
+		final List< Integer > unmatched1 = new ArrayList<>();
+		final List< Integer > unmatched2 = new ArrayList<>();
+		for ( int i = 0; i < tracks[ 0 ].size(); i++ )
+		{
+			int best = -1;
+			int bestCount = 0;
+			for ( final Integer id2 : ids2 )
+			{
+				final int j = indices.get( id2 ).intValue();
+				if ( taken[ j ] )
+					continue;
+				final int count = AbstractPairing.commonSpots( tracks[ 0 ].track( i ), tracks[ 1 ].track( j ), maxDist ).size();
+				if ( count > bestCount )
+				{
+					bestCount = count;
+					best = j;
+				}
+			}
+			if ( best < 0 )
+			{
+				unmatched1.add( tracks[ 0 ].id( i ) );
+				continue;
+			}
+			taken[ best ] = true;
+			pairs.add( tracks[ 0 ].id( i ) + "&" + tracks[ 1 ].id( best ) + ":" + bestCount );
+		}
+		for ( int j = 0; j < tracks[ 1 ].size(); j++ )
+			if ( !taken[ j ] )
+				unmatched2.add( tracks[ 1 ].id( j ) );
+		return signature( pairs, unmatched1, unmatched2 );
+	}
+
+	private static String signature( final Pairing pairing )
+	{
+		final List< String > pairs = new ArrayList<>();
+		for ( final TrackPair pair : pairing.pairs )
+			pairs.add( pair.getName() + ":" + pair.paired.size() );
+		return signature( pairs, new ArrayList<>( pairing.unmatchedTracks1.keySet() ), new ArrayList<>( pairing.unmatchedTracks2.keySet() ) );
+	}
+
+	/**
+	 * Also lists the IDs of the spots of each spot pair.
+	 */
+	private static String spotSignature( final Pairing pairing )
+	{
+		final List< String > pairs = new ArrayList<>();
+		for ( final TrackPair pair : pairing.pairs )
+		{
+			final StringBuilder str = new StringBuilder( pair.getName() + ":" );
+			for ( final SpotPair spots : pair.paired )
+				str.append( ' ' ).append( spots.s1.ID() ).append( '-' ).append( spots.s2.ID() );
+			pairs.add( str.toString() );
+		}
+		return signature( pairs, new ArrayList<>( pairing.unmatchedTracks1.keySet() ), new ArrayList<>( pairing.unmatchedTracks2.keySet() ) );
+	}
+
+	private static String signature( final List< String > pairs, final List< Integer > unmatched1, final List< Integer > unmatched2 )
+	{
+		Collections.sort( pairs );
+		Collections.sort( unmatched1 );
+		Collections.sort( unmatched2 );
+		return pairs + " " + unmatched1 + " " + unmatched2;
+	}
+}
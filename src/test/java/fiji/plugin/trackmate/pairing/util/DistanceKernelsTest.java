@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+
+public class DistanceKernelsTest
+{
+
+	private static final int N = 50;
+
+	@Test
+	public void testOneToManyMatchesSpotDistances()
+	{
+		final Random ran = new Random( 1l );
+		final Spot[] spots = randomSpots( ran, N );
+		final double[][] coords = coordinates( spots );
+		final Spot source = randomSpots( ran, 1 )[ 0 ];
+
+		final double[] expected = new double[ N ];
+		for ( int i = 0; i < N; i++ )
+			expected[ i ] = source.squareDistanceTo( spots[ i ] );
+		final double[] actual = DistanceKernels.squareDistances(
+				source.getDoublePosition( 0 ), source.getDoublePosition( 1 ), source.getDoublePosition( 2 ),
+				coords[ 0 ], coords[ 1 ], coords[ 2 ], 1. );
+		assertArrayEquals( expected, actual, 1e-9 );
+
+		// Sub-range, written from the start of the output array.
+		final double[] out = new double[ N ];
+		DistanceKernels.squareDistances(
+				source.getDoublePosition( 0 ), source.getDoublePosition( 1 ), source.getDoublePosition( 2 ),
+				coords[ 0 ], coords[ 1 ], coords[ 2 ], 10, 20, 1., out );
+		for ( int i = 10; i < 20; i++ )
+			assertEquals( expected[ i ], out[ i - 10 ], 1e-9 );
+	}
+
+	@Test
+	public void testZScale()
+	{
+		final Random ran = new Random( 2l );
+		final double[][] coords = coordinates( randomSpots( ran, N ) );
+		final double zScale = 2.5;
+		final double[] actual = DistanceKernels.squareDistances( 1., 2., 3., coords[ 0 ], coords[ 1 ], coords[ 2 ], zScale );
+		for ( int i = 0; i < N; i++ )
+		{
+			final double dx = coords[ 0 ][ i ] - 1.;
+			final double dy = coords[ 1 ][ i ] - 2.;
+			final double dz = ( coords[ 2 ][ i ] - 3. ) * zScale;
+			assertEquals( dx * dx + dy * dy + dz * dz, actual[ i ], 1e-9 );
+		}
+	}
+
+	@Test
+	public void testManyToManyLayout()
+	{
+		final Random ran = new Random( 3l );
+		final double[][] c1 = coordinates( randomSpots( ran, N ) );
+		final double[][] c2 = coordinates( randomSpots( ran, N ) );
+		final double zScale = 0.5;
+		final int from1 = 5, to1 = 15, from2 = 20, to2 = 47;
+		final double[] out = new double[ ( to1 - from1 ) * ( to2 - from2 ) ];
+		DistanceKernels.squareDistances( c1[ 0 ], c1[ 1 ], c1[ 2 ], from1, to1, c2[ 0 ], c2[ 1 ], c2[ 2 ], from2, to2, zScale, out );
+
+		final double[] row = new double[ N ];
+		for ( int i = from1; i < to1; i++ )
+		{
+			DistanceKernels.squareDistances( c1[ 0 ][ i ], c1[ 1 ][ i ], c1[ 2 ][ i ], c2[ 0 ], c2[ 1 ], c2[ 2 ], from2, to2, zScale, row );
+			for ( int j = from2; j < to2; j++ )
+				assertEquals( row[ j - from2 ], out[ ( i - from1 ) * ( to2 - from2 ) + ( j - from2 ) ], 0. );
+		}
+	}
+
+	@Test
+	public void testFirstBelowIsStrict()
+	{
+		final double[] values = new double[] { 4., 2., 1., 0.5 };
+		assertEquals( 2, DistanceKernels.firstBelow( values, 4, 2. ) );
+		assertEquals( 1, DistanceKernels.firstBelow( values, 4, 2.5 ) );
+		assertEquals( -1, DistanceKernels.firstBelow( values, 2, 2. ) );
+		assertEquals( -1, DistanceKernels.firstBelow( values, 4, 0.5 ) );
+	}
+
+	private static Spot[] randomSpots( final Random ran, final int n )
+	{
+		final Spot[] spots = new Spot[ n ];
+		for ( int i = 0; i < n; i++ )
+			spots[ i ] = new Spot( 100. * ran.nextDouble(), 100. * ran.nextDouble(), 10. * ran.nextDouble(), 0.5, 1. );
+		return spots;
+	}
+
+	private static double[][] coordinates( final Spot[] spots )
+	{
+		final double[][] coords = new double[ 3 ][ spots.length ];
+		for ( int i = 0; i < spots.length; i++ )
+			for ( int d = 0; d < 3; d++ )
+				coords[ d ][ i ] = spots[ i ].getDoublePosition( d );
+		return coords;
+	}
+}
@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2023 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.pairing.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.scijava.util.IntArray;
+
+public class PointKDTreeTest
+{
+
+	private static final int N_POINTS = 2000;
+
+	private static final int N_QUERIES = 200;
+
+	@Test
+	public void testRadiusSearchMatchesBruteForce()
+	{
+		final Random ran = new Random( 1l );
+		final double[][] points = randomPoints( ran, N_POINTS, 100. );
+		final PointKDTree tree = new PointKDTree( points[ 0 ], points[ 1 ], points[ 2 ], N_POINTS, 1. );
+		assertEquals( N_POINTS, tree.size() );
+
+		final IntArray out = new IntArray();
+		for ( int q = 0; q < N_QUERIES; q++ )
+		{
+			final double x = ran.nextDouble() * 100.;
+			final double y = ran.nextDouble() * 100.;
+			final double z = ran.nextDouble() * 10.;
+			final double radius = ran.nextDouble() * 15.;
+			out.clear();
+			tree.radiusSearch( x, y, z, radius, out );
+			assertArrayEquals( bruteForceRadius( points, x, y, z, radius ), sorted( out ) );
+		}
+	}
+
+	@Test
+	public void testRadiusSearchExcludesPointsOnTheRadius()
+	{
+		// Integer coordinates, so that distances are exact.
+		final int n = 5 * 5 * 3;
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] zs = new double[ n ];
+		int i = 0;
+		for ( int x = 0; x < 5; x++ )
+			for ( int y = 0; y < 5; y++ )
+				for ( int z = 0; z < 3; z++ )
+				{
+					xs[ i ] = x;
+					ys[ i ] = y;
+					zs[ i ] = z;
+					i++;
+				}
+		final PointKDTree tree = new PointKDTree( xs, ys, zs, n, 1. );
+		final double[][] points = new double[][] { xs, ys, zs };
+
+		final IntArray out = new IntArray();
+		for ( final double radius : new double[] { 0., 1., Math.sqrt( 2. ), 2., 3. } )
+		{
+			out.clear();
+			tree.radiusSearch( 2., 2., 1., radius, out );
+			final int[] expected = bruteForceRadius( points, 2., 2., 1., radius );
+			assertArrayEquals( "Radius " + radius, expected, sorted( out ) );
+		}
+
+		// Only the query point itself is strictly closer than 1.
+		out.clear();
+		tree.radiusSearch( 2., 2., 1., 1., out );
+		assertEquals( 1, out.size() );
+		assertEquals( 2 * 15 + 2 * 3 + 1, out.getValue( 0 ) );
+	}
+
+	@Test
+	public void testNearestMatchesBruteForce()
+	{
+		final Random ran = new Random( 2l );
+		final double[][] points = randomPoints( ran, N_POINTS, 100. );
+		final PointKDTree tree = new PointKDTree( points[ 0 ], points[ 1 ], points[ 2 ], N_POINTS, 1. );
+		for ( int q = 0; q < N_QUERIES; q++ )
+		{
+			final double x = ran.nextDouble() * 100.;
+			final double y = ran.nextDouble() * 100.;
+			final double z = ran.nextDouble() * 10.;
+			assertEquals( bruteForceNearest( points, x, y, z ), tree.nearest( x, y, z ) );
+		}
+	}
+
+	@Test
+	public void testNearestBreaksTiesBySmallestIndex()
+	{
+		// Four points at the same distance from the origin.
+		final double[] xs = new double[] { 1., 0., -1., 0., 5. };
+		final double[] ys = new double[] { 0., 1., 0., -1., 5. };
+		final double[] zs = new double[ 5 ];
+		final PointKDTree tree = new PointKDTree( xs, ys, zs, 5, 1. );
+		assertEquals( 0, tree.nearest( 0., 0., 0. ) );
+		assertEquals( -1, new PointKDTree( xs, ys, zs, 0, 1. ).nearest( 0., 0., 0. ) );
+	}
+
+
+	@Test
+	public void testKNearestMatchesBruteForce()
+	{
+		final Random ran = new Random( 3l );
+		final double[][] points = randomPoints( ran, N_POINTS, 100. );
+		final PointKDTree tree = new PointKDTree( points[ 0 ], points[ 1 ], points[ 2 ], N_POINTS, 1. );
+		final IntArray out = new IntArray();
+		for ( int q = 0; q < N_QUERIES; q++ )
+		{
+			final double x = ran.nextDouble() * 100.;
+			final double y = ran.nextDouble() * 100.;
+			final double z = ran.nextDouble() * 10.;
+			final double radius = ran.nextDouble() * 20.;
+			final int k = 1 + ran.nextInt( 10 );
+
+			final int[] inRadius = bruteForceRadius( points, x, y, z, radius );
+			final List< Integer > expected = new ArrayList<>();
+			for ( final int i : inRadius )
+				expected.add( Integer.valueOf( i ) );
+			expected.sort( ( i1, i2 ) -> {
+				final int c = Double.compare( squareDistance( points, i1, x, y, z ), squareDistance( points, i2, x, y, z ) );
+				return c != 0 ? c : Integer.compare( i1, i2 );
+			} );
+
+			out.clear();
+			tree.kNearest( x, y, z, k, radius, out );
+			assertEquals( Math.min( k, expected.size() ), out.size() );
+			for ( int i = 0; i < out.size(); i++ )
+				assertEquals( expected.get( i ).intValue(), out.getValue( i ) );
+		}
+	}
+
+
+	@Test
+	public void testRadiusSearchScalesZ()
+	{
+		final Random ran = new Random( 4l );
+		final double[][] points = randomPoints( ran, N_POINTS, 100. );
+		final double zScale = 3.;
+		final PointKDTree tree = new PointKDTree( points[ 0 ], points[ 1 ], points[ 2 ], N_POINTS, zScale );
+		final double[][] scaled = new double[][] { points[ 0 ], points[ 1 ], new double[ N_POINTS ] };
+		for ( int i = 0; i < N_POINTS; i++ )
+			scaled[ 2 ][ i ] = points[ 2 ][ i ] * zScale;
+
+		final IntArray out = new IntArray();
+		for ( int q = 0; q < N_QUERIES; q++ )
+		{
+			final double x = ran.nextDouble() * 100.;
+			final double y = ran.nextDouble() * 100.;
+			final double z = ran.nextDouble() * 10.;
+			final double radius = ran.nextDouble() * 15.;
+			out.clear();
+			tree.radiusSearch( x, y, z, radius, out );
+			assertArrayEquals( bruteForceRadius( scaled, x, y, z * zScale, radius ), sorted( out ) );
+			assertEquals( bruteForceNearest( scaled, x, y, z * zScale ), tree.nearest( x, y, z ) );
+		}
+	}
+
+	private static double[][] randomPoints( final Random ran, final int n, final double size )
+	{
+		final double[][] points = new double[ 3 ][ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			points[ 0 ][ i ] = ran.nextDouble() * size;
+			points[ 1 ][ i ] = ran.nextDouble() * size;
+			// Flat stacks, as in most TrackMate files.
+			points[ 2 ][ i ] = ran.nextDouble() * size / 10.;
+		}
+		return points;
+	}
+
+	private static double squareDistance( final double[][] points, final int i, final double x, final double y, final double z )
+	{
+		final double dx = points[ 0 ][ i ] - x;
+		final double dy = points[ 1 ][ i ] - y;
+		final double dz = points[ 2 ][ i ] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private static int[] bruteForceRadius( final double[][] points, final double x, final double y, final double z, final double radius )
+	{
+		final IntArray out = new IntArray();
+		for ( int i = 0; i < points[ 0 ].length; i++ )
+			if ( squareDistance( points, i, x, y, z ) < radius * radius )
+				out.addValue( i );
+		return out.copyArray();
+	}
+
+	private static int bruteForceNearest( final double[][] points, final double x, final double y, final double z )
+	{
+		int best = -1;
+		double bestSqDist = Double.POSITIVE_INFINITY;
+		for ( int i = 0; i < points[ 0 ].length; i++ )
+		{
+			final double d2 = squareDistance( points, i, x, y, z );
+			if ( d2 < bestSqDist )
+			{
+				bestSqDist = d2;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private static int[] sorted( final IntArray array )
+	{
+		final int[] values = array.copyArray();
+		Arrays.sort( values );
+		return values;
+	}
+}